@@ -0,0 +1,84 @@
+package com.nhinds.lastpass.benchmarks;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nhinds.lastpass.encryption.AES256EncryptionProvider;
+
+/**
+ * Per-field decryption cost of {@link AES256EncryptionProvider}, compared against looking up and initialising a new {@link Cipher} for
+ * every field (which is what the provider did before it pooled ciphers).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AES256EncryptionProviderBenchmark {
+	/** A typical short field, such as a username */
+	private static final String FIELD = "someone@example.com";
+
+	private byte[] key;
+	private byte[] ecbField;
+	private byte[] cbcField;
+	private AES256EncryptionProvider provider;
+
+	@Setup
+	public void setup() throws GeneralSecurityException {
+		final Random random = new Random(42);
+		this.key = new byte[32];
+		random.nextBytes(this.key);
+		this.provider = new AES256EncryptionProvider(this.key);
+		this.cbcField = this.provider.encrypt(FIELD);
+
+		final Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(this.key, "AES"));
+		this.ecbField = cipher.doFinal(FIELD.getBytes());
+	}
+
+	@Benchmark
+	public String ecbDecrypt() {
+		return this.provider.decrypt(this.ecbField);
+	}
+
+	@Benchmark
+	public String cbcDecrypt() {
+		return this.provider.decrypt(this.cbcField);
+	}
+
+	@Benchmark
+	public byte[] cbcEncrypt() {
+		return this.provider.encrypt(FIELD);
+	}
+
+	@Benchmark
+	public String ecbDecryptNewCipherPerField() throws GeneralSecurityException {
+		final Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(this.key, "AES"));
+		return new String(cipher.doFinal(this.ecbField));
+	}
+
+	@Benchmark
+	public String cbcDecryptNewCipherPerField() throws GeneralSecurityException {
+		final Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(this.key, "AES"), new IvParameterSpec(this.cbcField, 1, 16));
+		return new String(cipher.doFinal(this.cbcField, 17, this.cbcField.length - 17));
+	}
+}
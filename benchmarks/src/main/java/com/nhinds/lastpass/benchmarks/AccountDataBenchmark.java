@@ -0,0 +1,49 @@
+package com.nhinds.lastpass.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.nhinds.lastpass.impl.AccountData;
+import com.nhinds.lastpass.impl.PasswordStoreReader;
+
+/**
+ * Decryption of the lazily decrypted {@link AccountData} fields (username and password) for every account in a vault. Each invocation
+ * uses freshly parsed accounts, since decrypted values are cached on the account.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class AccountDataBenchmark {
+	private List<AccountData> accounts;
+
+	@Setup(Level.Iteration)
+	public void parse(final VaultState vault) throws IOException {
+		this.accounts = new ArrayList<AccountData>(new PasswordStoreReader(vault.open(), vault.encryptionProvider).getAccounts().values());
+	}
+
+	@Benchmark
+	public void decryptUsernamesAndPasswords(final Blackhole blackhole) {
+		for (final AccountData account : this.accounts) {
+			blackhole.consume(account.getUsername());
+			blackhole.consume(account.getPassword());
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package com.nhinds.lastpass.benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point for the benchmarks jar. Accepts the usual JMH command line options, and always enables the GC profiler so that allocation
+ * rates are reported alongside timings.
+ */
+public class BenchmarkMain {
+	public static void main(final String[] args) throws RunnerException, CommandLineOptionException, IOException {
+		final CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+		if (commandLineOptions.shouldHelp() || commandLineOptions.shouldList() || commandLineOptions.shouldListProfilers()
+				|| commandLineOptions.shouldListResultFormats() || commandLineOptions.shouldListWithParams()) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		new Runner(new OptionsBuilder().parent(commandLineOptions).addProfiler(GCProfiler.class).build()).run();
+	}
+}
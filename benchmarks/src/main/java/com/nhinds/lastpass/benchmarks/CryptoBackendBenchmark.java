@@ -0,0 +1,91 @@
+package com.nhinds.lastpass.benchmarks;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nhinds.lastpass.encryption.AES256EncryptionProvider;
+import com.nhinds.lastpass.encryption.CryptoBackend;
+import com.nhinds.lastpass.encryption.PBKDF2SHA256KeyProvider;
+import com.nhinds.lastpass.encryption.StandardCryptoBackend;
+
+/**
+ * Compares the {@link StandardCryptoBackend}s on the primitives LastPass logins use: AES decryption of fields, SHA-256, and PBKDF2.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoBackendBenchmark {
+	@Param({ "JDK", "SPONGY_CASTLE" })
+	public String backend;
+
+	/** A 4KB field, such as a secure note, so that the cost of the AES rounds dominates */
+	private byte[] ecbField;
+	private byte[] cbcField;
+	private byte[] digestInput;
+	private AES256EncryptionProvider encryptionProvider;
+	private PBKDF2SHA256KeyProvider keyProvider;
+	private CryptoBackend cryptoBackend;
+
+	@Setup
+	public void setup() throws GeneralSecurityException {
+		final Random random = new Random(42);
+		final byte[] key = new byte[32];
+		random.nextBytes(key);
+		final char[] field = new char[4096];
+		for (int i = 0; i < field.length; i++) {
+			field[i] = (char) ('a' + random.nextInt(26));
+		}
+		this.digestInput = new byte[64];
+		random.nextBytes(this.digestInput);
+
+		this.cryptoBackend = StandardCryptoBackend.valueOf(this.backend);
+		this.encryptionProvider = new AES256EncryptionProvider(key, this.cryptoBackend);
+		this.keyProvider = new PBKDF2SHA256KeyProvider(this.cryptoBackend);
+		this.cbcField = this.encryptionProvider.encrypt(new String(field));
+		final Cipher cipher = this.cryptoBackend.getCipher("AES/ECB/PKCS5Padding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+		this.ecbField = cipher.doFinal(new String(field).getBytes());
+	}
+
+	@Benchmark
+	public String aesEcbDecrypt() {
+		return this.encryptionProvider.decrypt(this.ecbField);
+	}
+
+	@Benchmark
+	public String aesCbcDecrypt() {
+		return this.encryptionProvider.decrypt(this.cbcField);
+	}
+
+	@Benchmark
+	public byte[] sha256() throws GeneralSecurityException {
+		final MessageDigest digest = this.cryptoBackend.getMessageDigest("SHA-256");
+		return digest.digest(this.digestInput);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public byte[] pbkdf2() throws GeneralSecurityException {
+		return this.keyProvider.getKey("someone@example.com", "correct horse battery staple", 5000);
+	}
+}
@@ -0,0 +1,55 @@
+package com.nhinds.lastpass.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.nhinds.lastpass.encryption.AES256EncryptionProvider;
+
+/** {@link AES256EncryptionProvider} ECB and CBC decryption of one field per account in a vault */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class FieldDecryptionBenchmark {
+	private byte[][] ecbFields;
+	private byte[][] cbcFields;
+
+	@Setup(Level.Trial)
+	public void encrypt(final VaultState vault) {
+		this.ecbFields = new byte[vault.vaultSize][];
+		this.cbcFields = new byte[vault.vaultSize][];
+		for (int i = 0; i < vault.vaultSize; i++) {
+			final String field = "user" + i + "@example.com";
+			this.ecbFields[i] = vault.encryptionProvider.encrypt(field, AES256EncryptionProvider.Mode.ECB);
+			this.cbcFields[i] = vault.encryptionProvider.encrypt(field, AES256EncryptionProvider.Mode.CBC);
+		}
+	}
+
+	@Benchmark
+	public void ecbDecrypt(final VaultState vault, final Blackhole blackhole) {
+		for (final byte[] field : this.ecbFields) {
+			blackhole.consume(vault.encryptionProvider.decrypt(field));
+		}
+	}
+
+	@Benchmark
+	public void cbcDecrypt(final VaultState vault, final Blackhole blackhole) {
+		for (final byte[] field : this.cbcFields) {
+			blackhole.consume(vault.encryptionProvider.decrypt(field));
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.nhinds.lastpass.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.ByteStreams;
+import com.nhinds.lastpass.impl.FileCacheProvider;
+
+/** Writing a vault to, and reading it back from, a {@link FileCacheProvider} */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileCacheProviderBenchmark {
+	private static final String USERNAME = "someone@example.com";
+
+	private File cacheFile;
+	private FileCacheProvider cacheProvider;
+
+	@Setup(Level.Trial)
+	public void setup(final VaultState vault) throws IOException {
+		this.cacheFile = File.createTempFile("cache-", ".bin");
+		this.cacheProvider = new FileCacheProvider(this.cacheFile);
+		this.cacheProvider.storeAccountData(USERNAME, 5000, 1, vault.open());
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() {
+		this.cacheFile.delete();
+	}
+
+	@Benchmark
+	public void write(final VaultState vault) throws IOException {
+		this.cacheProvider.storeAccountData(USERNAME, 5000, 1, vault.open());
+	}
+
+	@Benchmark
+	public long read() throws IOException {
+		return read(this.cacheProvider);
+	}
+
+	/** Read the cache file with a new provider, which has to check the account data against its checksum first */
+	@Benchmark
+	public long openAndRead() throws IOException {
+		return read(new FileCacheProvider(this.cacheFile));
+	}
+
+	private static long read(final FileCacheProvider cacheProvider) throws IOException {
+		final InputStream accountData = cacheProvider.getAccountData(USERNAME);
+		try {
+			return ByteStreams.copy(accountData, ByteStreams.nullOutputStream());
+		} finally {
+			accountData.close();
+		}
+	}
+}
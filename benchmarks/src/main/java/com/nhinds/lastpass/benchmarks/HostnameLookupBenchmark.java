@@ -0,0 +1,55 @@
+package com.nhinds.lastpass.benchmarks;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nhinds.lastpass.PasswordInfo;
+import com.nhinds.lastpass.PasswordStore;
+import com.nhinds.lastpass.impl.PasswordStoreImpl;
+
+/** {@link PasswordStore#getPasswordsByHostname(String)} for hostnames with and without equivalent domains */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class HostnameLookupBenchmark {
+	private static final int HOSTNAMES = 1000;
+
+	private PasswordStore passwordStore;
+	private String[] hostnames;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void load(final VaultState vault) throws IOException {
+		this.passwordStore = new PasswordStoreImpl(vault.open(), vault.encryptionProvider);
+		// Look up the vault's domains, some of which are in equivalent domain groups, in proportion to how often they are used
+		this.hostnames = new String[Math.min(HOSTNAMES, vault.vaultSize)];
+		final Iterator<PasswordInfo> passwords = this.passwordStore.getPasswords().iterator();
+		for (int i = 0; i < this.hostnames.length; i++) {
+			this.hostnames[i] = URI.create(passwords.next().getUrl()).getHost();
+		}
+	}
+
+	@Benchmark
+	public Collection<PasswordInfo> lookup() {
+		this.next = (this.next + 1) % this.hostnames.length;
+		return this.passwordStore.getPasswordsByHostname(this.hostnames[this.next]);
+	}
+}
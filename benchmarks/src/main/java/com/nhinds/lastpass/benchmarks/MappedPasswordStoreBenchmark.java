@@ -0,0 +1,27 @@
+package com.nhinds.lastpass.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nhinds.lastpass.impl.MappedPasswordStore;
+
+/** Time to map and scan a whole vault, for comparison with {@link PasswordStoreReaderBenchmark} */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class MappedPasswordStoreBenchmark {
+	@Benchmark
+	public MappedPasswordStore map(final VaultState vault) throws IOException {
+		return MappedPasswordStore.map(vault.blob, 0, vault.encryptionProvider);
+	}
+}
@@ -0,0 +1,63 @@
+package com.nhinds.lastpass.benchmarks;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spongycastle.crypto.PBEParametersGenerator;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import com.nhinds.lastpass.encryption.PBKDF2SHA256KeyProvider;
+import com.nhinds.lastpass.encryption.StandardCryptoBackend;
+
+/**
+ * Compares {@link PBKDF2SHA256KeyProvider} with each backend (the JDK backend uses the JDK's HmacSHA256 {@link Mac}, the SpongyCastle
+ * backend uses the dedicated PBKDF2-HMAC-SHA256 engine) against SpongyCastle's generic PKCS5S2 generator, which the key provider used
+ * originally. Run with <code>-prof gc</code> to compare allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PBKDF2Benchmark {
+	private static final String USERNAME = "someone@example.com";
+	private static final String PASSWORD = "correct horse battery staple";
+
+	@Param({ "5000", "100100", "600000" })
+	public int iterations;
+
+	private final PBKDF2SHA256KeyProvider jdkKeyProvider = new PBKDF2SHA256KeyProvider(StandardCryptoBackend.JDK);
+	private final PBKDF2SHA256KeyProvider spongyCastleKeyProvider = new PBKDF2SHA256KeyProvider(StandardCryptoBackend.SPONGY_CASTLE);
+
+	@Benchmark
+	public byte[] jdkKeyProvider() throws GeneralSecurityException {
+		return this.jdkKeyProvider.getKey(USERNAME, PASSWORD, this.iterations);
+	}
+
+	@Benchmark
+	public byte[] engineKeyProvider() throws GeneralSecurityException {
+		return this.spongyCastleKeyProvider.getKey(USERNAME, PASSWORD, this.iterations);
+	}
+
+	@Benchmark
+	public byte[] spongyCastleGenerator() {
+		final PKCS5S2ParametersGenerator generator = new PKCS5S2ParametersGenerator(new SHA256Digest());
+		generator.init(PBEParametersGenerator.PKCS5PasswordToUTF8Bytes(PASSWORD.toCharArray()), USERNAME.getBytes(), this.iterations);
+		return ((KeyParameter) generator.generateDerivedMacParameters(32 * 8)).getKey();
+	}
+}
@@ -0,0 +1,180 @@
+package com.nhinds.lastpass.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nhinds.lastpass.encryption.AES256EncryptionProvider;
+import com.nhinds.lastpass.impl.AccountData;
+import com.nhinds.lastpass.impl.ParsePipeline;
+import com.nhinds.lastpass.impl.PasswordStoreReader;
+import com.nhinds.lastpass.impl.PasswordStoreWriter;
+
+/** Time to parse a whole vault, including decrypting every account name */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class PasswordStoreReaderBenchmark {
+	@State(Scope.Benchmark)
+	public static class ParseExecutor {
+		ExecutorService executor;
+
+		@Setup(Level.Trial)
+		public void start() {
+			this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() {
+			this.executor.shutdownNow();
+		}
+	}
+
+	/** A download of the vault which is limited to a fixed number of bytes per millisecond */
+	@State(Scope.Benchmark)
+	public static class SlowLink {
+		@Param("32768")
+		int bytesPerMillisecond;
+
+		InputStream open(final VaultState vault) throws IOException {
+			return new FilterInputStream(vault.open()) {
+				/** Bytes read since the last sleep */
+				private int unpaidBytes;
+
+				@Override
+				public int read() throws IOException {
+					final int read = super.read();
+					if (read != -1)
+						pay(1);
+					return read;
+				}
+
+				@Override
+				public int read(final byte[] b, final int off, final int len) throws IOException {
+					final int read = super.read(b, off, len);
+					if (read > 0)
+						pay(read);
+					return read;
+				}
+
+				private void pay(final int read) throws InterruptedIOException {
+					this.unpaidBytes += read;
+					if (this.unpaidBytes < SlowLink.this.bytesPerMillisecond)
+						return;
+					try {
+						Thread.sleep(this.unpaidBytes / SlowLink.this.bytesPerMillisecond);
+					} catch (final InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+					this.unpaidBytes %= SlowLink.this.bytesPerMillisecond;
+				}
+			};
+		}
+	}
+
+	/** Executors for a pipeline which reads on one thread and decrypts on one thread per processor */
+	@State(Scope.Benchmark)
+	public static class Pipeline {
+		ExecutorService readExecutor;
+		ExecutorService decryptExecutor;
+		ParsePipeline pipeline;
+
+		@Setup(Level.Trial)
+		public void start() {
+			this.readExecutor = Executors.newSingleThreadExecutor();
+			this.decryptExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			this.pipeline = new ParsePipeline(this.readExecutor, this.decryptExecutor);
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() {
+			this.readExecutor.shutdownNow();
+			this.decryptExecutor.shutdownNow();
+		}
+	}
+
+	/** A parsed vault, and a newer version of it in which one account in every hundred has a new password */
+	@State(Scope.Benchmark)
+	public static class RefreshedVault {
+		private static final int CHANGED_ACCOUNT_INTERVAL = 100;
+
+		PasswordStoreReader previous;
+		byte[] refreshedBlob;
+
+		@Setup(Level.Trial)
+		public void generate(final VaultState vault) throws IOException {
+			this.previous = new PasswordStoreReader(vault.open(), vault.encryptionProvider);
+			// Rewrite the accounts in ECB mode, so that unchanged accounts are encrypted to the same bytes as they were in the original blob
+			final byte[] blob = write(vault, false);
+			this.previous = new PasswordStoreReader(new ByteArrayInputStream(blob), vault.encryptionProvider, null, true);
+			this.refreshedBlob = write(vault, true);
+		}
+
+		private byte[] write(final VaultState vault, final boolean changePasswords) throws IOException {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final PasswordStoreWriter writer = new PasswordStoreWriter(out, vault.encryptionProvider, AES256EncryptionProvider.Mode.ECB);
+			for (final AccountData account : this.previous.getAccounts().values()) {
+				if (changePasswords && account.getId() % CHANGED_ACCOUNT_INTERVAL == 0)
+					writer.writeAccount(account.getId(), account.getName(), account.getGroup(), account.getUrl(), account.getExtra(),
+							account.getUsername(), account.getPassword() + "!", false);
+				else
+					writer.writeAccount(account);
+			}
+			writer.close();
+			return out.toByteArray();
+		}
+	}
+
+	@Benchmark
+	public PasswordStoreReader parse(final VaultState vault) throws IOException {
+		return new PasswordStoreReader(vault.open(), vault.encryptionProvider);
+	}
+
+	/** Parse accounts on a pool with one thread per processor */
+	@Benchmark
+	public PasswordStoreReader parseParallel(final VaultState vault, final ParseExecutor parseExecutor) throws IOException {
+		return new PasswordStoreReader(vault.open(), vault.encryptionProvider, parseExecutor.executor);
+	}
+
+	/** Parse a vault as it is downloaded over a slow link, on the calling thread */
+	@Benchmark
+	public PasswordStoreReader parseSlowLink(final VaultState vault, final SlowLink slowLink) throws IOException {
+		return new PasswordStoreReader(slowLink.open(vault), vault.encryptionProvider);
+	}
+
+	/** Parse a vault as it is downloaded over a slow link, with the download overlapping splitting and decryption */
+	@Benchmark
+	public PasswordStoreReader parsePipelinedSlowLink(final VaultState vault, final SlowLink slowLink, final Pipeline pipeline)
+			throws IOException {
+		return new PasswordStoreReader(slowLink.open(vault), vault.encryptionProvider, pipeline.pipeline, null, null);
+	}
+
+	/** Parse a newer version of a vault, reusing the accounts which have not changed */
+	@Benchmark
+	public PasswordStoreReader refresh(final VaultState vault, final RefreshedVault refreshedVault) throws IOException {
+		return new PasswordStoreReader(new ByteArrayInputStream(refreshedVault.refreshedBlob), vault.encryptionProvider, null,
+				refreshedVault.previous);
+	}
+}
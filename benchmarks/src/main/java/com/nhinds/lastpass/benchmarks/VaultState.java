@@ -0,0 +1,51 @@
+package com.nhinds.lastpass.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.nhinds.lastpass.encryption.AES256EncryptionProvider;
+import com.nhinds.lastpass.impl.SyntheticVaultGenerator;
+
+/** A synthetic vault of a parameterized size, written to a temporary file */
+@State(Scope.Benchmark)
+public class VaultState {
+	@Param({ "100", "10000", "1000000" })
+	public int vaultSize;
+
+	File blob;
+	byte[] key;
+	AES256EncryptionProvider encryptionProvider;
+
+	@Setup(Level.Trial)
+	public void generate() throws IOException {
+		this.key = new byte[32];
+		new Random(42).nextBytes(this.key);
+		this.encryptionProvider = new AES256EncryptionProvider(this.key);
+		this.blob = File.createTempFile("vault-" + this.vaultSize + "-", ".blob");
+		this.blob.deleteOnExit();
+		new SyntheticVaultGenerator(this.vaultSize).generate(new BufferedOutputStream(new FileOutputStream(this.blob), 1 << 16),
+				this.encryptionProvider, AES256EncryptionProvider.Mode.CBC, this.vaultSize);
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() {
+		this.blob.delete();
+	}
+
+	InputStream open() throws IOException {
+		return new BufferedInputStream(new FileInputStream(this.blob), 1 << 16);
+	}
+}
@@ -1,5 +1,10 @@
 package com.nhinds.lastpass;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * Main entry point to LastPass password stores.
@@ -16,6 +21,25 @@ public interface LastPass {
 	interface ProgressListener {
 		void statusChanged(ProgressStatus status);
 	}
+	/**
+	 * Consumer which is given accounts one at a time as they are parsed, rather than once the whole password store is available.
+	 * <p>
+	 * Methods are called on the thread which is reading the account data, and the next account is not read until {@link #accept(PasswordInfo)}
+	 * returns, so a slow consumer slows down reading rather than causing accounts to be buffered in memory.
+	 */
+	interface PasswordConsumer {
+		/** Called for each account, in the order they appear in the account data, as soon as it has been parsed */
+		void accept(PasswordInfo password);
+
+		/**
+		 * Called once after every account has been accepted
+		 * 
+		 * @param equivalentDomains
+		 *            The user's equivalent domains, mapping each domain to the group of domains it is equivalent to
+		 */
+		void complete(Map<String, Collection<String>> equivalentDomains);
+	}
+
 	/**
 	 * An interface to retrieve the password store for a given user
 	 */
@@ -49,6 +73,94 @@ public interface LastPass {
 		 *             if there is an error logging in
 		 */
 		PasswordStore getPasswordStore(String otp, String trustLabel, ProgressListener listener);
+
+		/**
+		 * Attempt to stream the user's accounts to a consumer without a one-time password. Unlike
+		 * {@link #getPasswordStore(ProgressListener)}, the accounts are not kept once they have been given to the consumer.
+		 * 
+		 * @param listener
+		 *            Listener to notify of status changes while getting the accounts, may be null
+		 * @param consumer
+		 *            Consumer to give each account to as soon as it has been parsed
+		 * @throws GoogleAuthenticatorRequired
+		 *             if a one-time password is required. In this case, prompt the user for a one-time password then call
+		 *             {@link #streamPasswords(String, String, ProgressListener, PasswordConsumer)}
+		 * @throws LastPassException
+		 *             if there is an error logging in, or an error reading the accounts after some of them have been given to the consumer
+		 */
+		void streamPasswords(ProgressListener listener, PasswordConsumer consumer) throws GoogleAuthenticatorRequired;
+
+		/**
+		 * Attempt to stream the user's accounts to a consumer specifying a one-time password, and optionally trust the current device
+		 * 
+		 * @param otp
+		 *            The one-time password
+		 * @param trustLabel
+		 *            The label to use for this trusted device in lastpass, or null to not trust this device
+		 * @param listener
+		 *            Listener to notify of status changes while getting the accounts, may be null
+		 * @param consumer
+		 *            Consumer to give each account to as soon as it has been parsed
+		 * @throws LastPassException
+		 *             if there is an error logging in, or an error reading the accounts after some of them have been given to the consumer
+		 */
+		void streamPasswords(String otp, String trustLabel, ProgressListener listener, PasswordConsumer consumer);
+
+		/**
+		 * Attempt to get a password store which can be refreshed without logging in again, without a one-time password
+		 * 
+		 * @param listener
+		 *            Listener to notify of status changes while getting the password store, may be null
+		 * @return The password store for the configured user
+		 * @throws GoogleAuthenticatorRequired
+		 *             if a one-time password is required. In this case, prompt the user for a one-time password then call
+		 *             {@link #getRefreshablePasswordStore(String, String, ProgressListener)}
+		 * @throws LastPassException
+		 *             if there is an error logging in
+		 */
+		RefreshablePasswordStore getRefreshablePasswordStore(ProgressListener listener) throws GoogleAuthenticatorRequired;
+
+		/**
+		 * Attempt to get a password store which can be refreshed without logging in again, specifying a one-time password, and optionally
+		 * trust the current device
+		 * 
+		 * @param otp
+		 *            The one-time password
+		 * @param trustLabel
+		 *            The label to use for this trusted device in lastpass, or null to not trust this device
+		 * @param listener
+		 *            Listener to notify of status changes while getting the password store, may be null
+		 * @return The password store for the configured user
+		 * @throws LastPassException
+		 *             if there is an error logging in
+		 */
+		RefreshablePasswordStore getRefreshablePasswordStore(String otp, String trustLabel, ProgressListener listener);
+
+		/**
+		 * Get the password store without blocking the calling thread. Deriving the key and decrypting the accounts run on the CPU
+		 * executor, and logging in and downloading the account data run on the I/O executor, so a slow network does not hold up CPU
+		 * threads or the other way round. The listener is notified on whichever executor thread is running at the time.
+		 * <p>
+		 * Downloaded account data is decrypted as it arrives rather than being held in memory first: the I/O executor reads a bounded
+		 * number of blocks ahead of the CPU executor. The CPU executor must therefore not decrypt on the only thread of the I/O executor.
+		 * <p>
+		 * Cancelling the returned future stops the login before its next stage and disconnects an account data download in progress.
+		 * 
+		 * @param otp
+		 *            The one-time password, or null to log in without one
+		 * @param trustLabel
+		 *            The label to use for this trusted device in lastpass, or null to not trust this device
+		 * @param listener
+		 *            Listener to notify of status changes while getting the password store, may be null
+		 * @param ioExecutor
+		 *            The executor to log in and download the account data on
+		 * @param cpuExecutor
+		 *            The executor to derive the key and decrypt the accounts on
+		 * @return A future for the password store for the configured user. It fails with {@link GoogleAuthenticatorRequired} if otp is
+		 *         null and a one-time password is required, or with a {@link LastPassException} if there is an error logging in
+		 */
+		ListenableFuture<PasswordStore> getPasswordStoreAsync(String otp, String trustLabel, ProgressListener listener,
+				Executor ioExecutor, Executor cpuExecutor);
 	}
 
 	/**
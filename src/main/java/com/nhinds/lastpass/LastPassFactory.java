@@ -1,11 +1,18 @@
 package com.nhinds.lastpass;
 
 import java.io.File;
+import java.io.IOException;
 
+import com.google.api.client.http.javanet.NetHttpTransport;
 import com.nhinds.lastpass.LastPass.PasswordStoreBuilder;
+import com.nhinds.lastpass.encryption.PBKDF2SHA256KeyProvider;
+import com.nhinds.lastpass.encryption.ScheduledKeyProvider;
+import com.nhinds.lastpass.impl.DirectoryCacheProvider;
 import com.nhinds.lastpass.impl.FileCacheProvider;
 import com.nhinds.lastpass.impl.LastPassImpl;
+import com.nhinds.lastpass.impl.NetworkPolicy;
 import com.nhinds.lastpass.impl.NullCacheProvider;
+import com.nhinds.lastpass.impl.ParsePipeline;
 
 /**
  * Factory for retrieving instances of {@link LastPass}
@@ -34,4 +41,24 @@ public class LastPassFactory {
 	public static LastPass getCachingLastPass(final File cacheFile) {
 		return new LastPassImpl(new FileCacheProvider(cacheFile));
 	}
+
+	/**
+	 * Get a LastPass implementation for servers, which caches account information for any number of users in the given directory
+	 * <p>
+	 * The returned {@link LastPass} and the {@link PasswordStoreBuilder} objects it creates are safe to use from multiple threads. Every
+	 * builder shares one HTTP transport (and so its connection pool), and key derivations for all users run on one pool of threads. Reads
+	 * and writes of a user's cached data are serialized by username, while reads for different users mostly run in parallel (see
+	 * {@link DirectoryCacheProvider}).
+	 * 
+	 * @param cacheDirectory
+	 *            The directory used to cache login and account data for offline logins, which is created if it does not exist. May not
+	 *            be null.
+	 * @return A thread-safe LastPass implementation which caches to a directory
+	 * @throws IOException
+	 *             If the cache directory could not be created or read
+	 */
+	public static LastPass getConcurrentLastPass(final File cacheDirectory) throws IOException {
+		return new LastPassImpl(new DirectoryCacheProvider(cacheDirectory), new NetHttpTransport(), (ParsePipeline) null,
+				NetworkPolicy.DEFAULT, new ScheduledKeyProvider(new PBKDF2SHA256KeyProvider()));
+	}
 }
@@ -0,0 +1,20 @@
+package com.nhinds.lastpass;
+
+/**
+ * A password store which keeps the LastPass session it was retrieved with, so that it can be kept up to date without logging in again.
+ * This class is safe to use from multiple threads; readers see the accounts from before a refresh until the refresh has finished.
+ */
+public interface RefreshablePasswordStore extends PasswordStore {
+	/**
+	 * Bring the accounts up to date. This checks whether the user's accounts have changed using the existing session, and only retrieves
+	 * them again if they have. If the session has expired, this logs in again without a one-time password.
+	 * 
+	 * @return Whether the accounts had changed
+	 * @throws GoogleAuthenticatorRequired
+	 *             if the session has expired and logging in again requires a one-time password. In this case, get a new password store
+	 *             from the {@link LastPass.PasswordStoreBuilder}
+	 * @throws LastPassException
+	 *             if there is an error checking for or retrieving changes, in which case the store keeps its existing accounts
+	 */
+	boolean refresh() throws GoogleAuthenticatorRequired;
+}
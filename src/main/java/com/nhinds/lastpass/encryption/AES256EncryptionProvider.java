@@ -2,16 +2,34 @@ package com.nhinds.lastpass.encryption;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.util.Arrays;
-import java.util.Random;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import com.google.common.base.Preconditions;
 import com.nhinds.lastpass.LastPassException;
 
-public class AES256EncryptionProvider extends RequiresSpongyCastle implements EncryptionProvider {
+/**
+ * Encryption provider for LastPass' AES-256 encrypted fields.
+ * <p>
+ * The key spec is built once, and {@link Cipher} instances are pooled per provider so that decrypting a field does not need to look up a
+ * security provider. The pools are bounded and belong to the provider, so key-initialised ciphers do not outlive it in the threads which
+ * used it. Instances are safe to use from multiple threads.
+ */
+public class AES256EncryptionProvider implements EncryptionProvider {
+	/** The block cipher modes LastPass uses for encrypted fields */
+	public enum Mode {
+		/** Legacy mode, with no IV */
+		ECB,
+		/** Current mode, with a random IV stored in front of the cipher text */
+		CBC
+	}
+
 	private static final char CBC_MARKER = '!';
 	private static final int IV_LENGTH = 16;
 	private static final String AES_ALGORITHM = "AES";
@@ -19,11 +37,27 @@ public class AES256EncryptionProvider extends RequiresSpongyCastle implements En
 	private static final String CBC_PLAIN_CIPHER = AES_ALGORITHM+"/CBC/"+PKCS5_PADDING;
 	private static final String ECB_PLAIN_CIPHER = AES_ALGORITHM+"/ECB/"+PKCS5_PADDING;
 	
+	private static final SecureRandom IV_RANDOM = new SecureRandom();
+	/** The most idle ciphers of each kind to keep; further ciphers returned to a full pool are dropped */
+	static final int MAX_POOLED_CIPHERS = 16;
 	
 	private final byte[] encryptionKey;
+	private final CryptoBackend cryptoBackend;
+	private final SecretKeySpec keySpec;
+	/** ECB decryption takes no per-field parameters, so these ciphers are initialised once when they are created */
+	private final Queue<Cipher> ecbDecryptCiphers = new ArrayBlockingQueue<Cipher>(MAX_POOLED_CIPHERS);
+	private final Queue<Cipher> ecbEncryptCiphers = new ArrayBlockingQueue<Cipher>(MAX_POOLED_CIPHERS);
+	/** CBC ciphers are re-initialised with the field's IV (or a new IV when encrypting) on every use */
+	private final Queue<Cipher> cbcCiphers = new ArrayBlockingQueue<Cipher>(MAX_POOLED_CIPHERS);
 
 	public AES256EncryptionProvider(final byte[] encryptionKey) {
+		this(encryptionKey, StandardCryptoBackend.getDefault());
+	}
+
+	public AES256EncryptionProvider(final byte[] encryptionKey, final CryptoBackend cryptoBackend) {
 		this.encryptionKey = encryptionKey;
+		this.cryptoBackend = Preconditions.checkNotNull(cryptoBackend);
+		this.keySpec = new SecretKeySpec(encryptionKey, AES_ALGORITHM);
 	}
 
 	@Override
@@ -50,29 +84,56 @@ public class AES256EncryptionProvider extends RequiresSpongyCastle implements En
 	 * This currently encrypts the data with AES-256 CBC
 	 */
 	@Override
-	public byte[] encrypt(String plainText) {
-		final byte[] plainTextBytes = plainText.getBytes();
+	public byte[] encrypt(final String plainText) {
+		return encrypt(plainText, Mode.CBC);
+	}
+
+	/** Encrypt the given plaintext with AES-256 in the given mode */
+	public byte[] encrypt(final String plainText, final Mode mode) {
 		try {
-			final byte[] iv = new byte[IV_LENGTH];
-			new Random().nextBytes(iv);
-			
-			final Cipher cipher = Cipher.getInstance(CBC_PLAIN_CIPHER);
-			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(encryptionKey, AES_ALGORITHM), new IvParameterSpec(iv));
-			final byte[] encryptedData = new byte[cipher.getOutputSize(plainTextBytes.length) + IV_LENGTH + 1];
-			encryptedData[0] = CBC_MARKER;
-			System.arraycopy(iv, 0, encryptedData, 1, iv.length);
-			cipher.doFinal(plainTextBytes, 0, plainTextBytes.length, encryptedData, IV_LENGTH + 1);
-			return encryptedData;
+			switch (mode) {
+			case ECB:
+				return encodeAES256ECBPlain(plainText);
+			case CBC:
+				return encodeAES256CBCPlain(plainText);
+			default:
+				throw new IllegalArgumentException("Unknown mode: " + mode);
+			}
 		} catch (final GeneralSecurityException e) {
 			throw new LastPassException("Error encrypting data", e);
 		}
 	}
 
+	private byte[] encodeAES256ECBPlain(final String plainText) throws GeneralSecurityException {
+		final Cipher cipher = getEcbCipher(this.ecbEncryptCiphers, Cipher.ENCRYPT_MODE);
+		// The cipher is not guaranteed to be reset if doFinal fails, so it is only returned to the pool on success
+		final byte[] encryptedData = cipher.doFinal(plainText.getBytes());
+		this.ecbEncryptCiphers.offer(cipher);
+		return encryptedData;
+	}
+
+	private byte[] encodeAES256CBCPlain(final String plainText) throws GeneralSecurityException {
+		final byte[] plainTextBytes = plainText.getBytes();
+		final byte[] iv = new byte[IV_LENGTH];
+		IV_RANDOM.nextBytes(iv);
+
+		final Cipher cipher = getCbcCipher();
+		cipher.init(Cipher.ENCRYPT_MODE, this.keySpec, new IvParameterSpec(iv));
+		final byte[] encryptedData = new byte[cipher.getOutputSize(plainTextBytes.length) + IV_LENGTH + 1];
+		encryptedData[0] = CBC_MARKER;
+		System.arraycopy(iv, 0, encryptedData, 1, iv.length);
+		cipher.doFinal(plainTextBytes, 0, plainTextBytes.length, encryptedData, IV_LENGTH + 1);
+		this.cbcCiphers.offer(cipher);
+		return encryptedData;
+	}
+
 	private String decodeAES256ECBPlain(final byte[] aesItem) throws IOException {
 		try {
-			final Cipher cipher = Cipher.getInstance(ECB_PLAIN_CIPHER);
-			cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(this.encryptionKey, AES_ALGORITHM));
-			return new String(cipher.doFinal(aesItem));
+			final Cipher cipher = getEcbCipher(this.ecbDecryptCiphers, Cipher.DECRYPT_MODE);
+			// The cipher is not guaranteed to be reset if doFinal fails, so it is only returned to the pool on success
+			final String plainText = new String(cipher.doFinal(aesItem));
+			this.ecbDecryptCiphers.offer(cipher);
+			return plainText;
 		} catch (final GeneralSecurityException e) {
 			throw new IOException(e);
 		}
@@ -81,14 +142,37 @@ public class AES256EncryptionProvider extends RequiresSpongyCastle implements En
 	private String decodeAES256CBCPlain(final byte[] aesItem) throws IOException {
 		assert aesItem[0] == CBC_MARKER;
 		try {
-			final Cipher cipher = Cipher.getInstance(CBC_PLAIN_CIPHER);
-			cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(this.encryptionKey, AES_ALGORITHM), new IvParameterSpec(aesItem, 1, IV_LENGTH));
-			return new String(cipher.doFinal(aesItem, IV_LENGTH + 1, aesItem.length - IV_LENGTH - 1));
+			final Cipher cipher = getCbcCipher();
+			cipher.init(Cipher.DECRYPT_MODE, this.keySpec, new IvParameterSpec(aesItem, 1, IV_LENGTH));
+			final String plainText = new String(cipher.doFinal(aesItem, IV_LENGTH + 1, aesItem.length - IV_LENGTH - 1));
+			this.cbcCiphers.offer(cipher);
+			return plainText;
 		} catch (final GeneralSecurityException e) {
 			throw new IOException(e);
 		}
 	}
 
+	/** Take an ECB cipher from the pool, or create one initialised with the key if the pool is empty */
+	private Cipher getEcbCipher(final Queue<Cipher> pool, final int opmode) throws GeneralSecurityException {
+		Cipher cipher = pool.poll();
+		if (cipher == null) {
+			cipher = this.cryptoBackend.getCipher(ECB_PLAIN_CIPHER);
+			cipher.init(opmode, this.keySpec);
+		}
+		return cipher;
+	}
+
+	/** Take a CBC cipher from the pool, or create one if the pool is empty. The caller initialises it */
+	private Cipher getCbcCipher() throws GeneralSecurityException {
+		final Cipher cipher = this.cbcCiphers.poll();
+		return cipher != null ? cipher : this.cryptoBackend.getCipher(CBC_PLAIN_CIPHER);
+	}
+
+	/** @return the number of idle ciphers pooled by this provider */
+	int getPooledCipherCount() {
+		return this.ecbDecryptCiphers.size() + this.ecbEncryptCiphers.size() + this.cbcCiphers.size();
+	}
+
 	@Override
 	public int hashCode() {
 		return Arrays.hashCode(this.encryptionKey);
@@ -96,7 +180,9 @@ public class AES256EncryptionProvider extends RequiresSpongyCastle implements En
 
 	@Override
 	public boolean equals(Object obj) {
-		return (obj instanceof AES256EncryptionProvider)
-				&& Arrays.equals(this.encryptionKey, ((AES256EncryptionProvider) obj).encryptionKey);
+		if (!(obj instanceof AES256EncryptionProvider))
+			return false;
+		final AES256EncryptionProvider other = (AES256EncryptionProvider) obj;
+		return Arrays.equals(this.encryptionKey, other.encryptionKey) && this.cryptoBackend.equals(other.cryptoBackend);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,24 @@
+package com.nhinds.lastpass.encryption;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+/**
+ * Source of the JCA primitives used by the encryption and key providers. Implementations choose which security provider supplies each
+ * primitive, without needing to register that provider with {@link java.security.Security}.
+ * 
+ * @see StandardCryptoBackend
+ */
+public interface CryptoBackend {
+	/** @return a new, uninitialised cipher for the given transformation, e.g. <code>AES/CBC/PKCS5Padding</code> */
+	Cipher getCipher(String transformation) throws GeneralSecurityException;
+
+	/** @return a new message digest for the given algorithm, e.g. <code>SHA-256</code> */
+	MessageDigest getMessageDigest(String algorithm) throws GeneralSecurityException;
+
+	/** @return a new, uninitialised MAC for the given algorithm, e.g. <code>HmacSHA256</code> */
+	Mac getMac(String algorithm) throws GeneralSecurityException;
+}
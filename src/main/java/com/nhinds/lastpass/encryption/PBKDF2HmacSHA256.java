@@ -0,0 +1,191 @@
+package com.nhinds.lastpass.encryption;
+
+/**
+ * PBKDF2 (RFC 2898) with HMAC-SHA256, producing a single 256 bit block since that is the only key length LastPass uses.
+ * <p>
+ * The SHA-256 states after absorbing the HMAC inner and outer pads are computed once per derivation, so each iteration costs exactly two
+ * SHA-256 compressions. The iteration loop works on preallocated word arrays and does not allocate.
+ */
+final class PBKDF2HmacSHA256 {
+	static final int KEY_LENGTH = 32;
+
+	private static final int BLOCK_LENGTH = 64;
+	private static final int STATE_WORDS = 8;
+	private static final int BLOCK_WORDS = 16;
+
+	private static final int[] INITIAL_STATE = { 0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab,
+			0x5be0cd19 };
+
+	private static final int[] K = { 0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+			0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174, 0xe49b69c1, 0xefbe4786,
+			0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da, 0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
+			0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967, 0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb,
+			0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+			0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3, 0x748f82ee, 0x78a5636f,
+			0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2 };
+
+	private PBKDF2HmacSHA256() {
+	}
+
+	/**
+	 * Derive a 256 bit key
+	 *
+	 * @param password
+	 *            The HMAC key. May be any length, including empty
+	 * @param salt
+	 *            The salt
+	 * @param iterations
+	 *            The number of iterations, at least 1
+	 * @return The derived key
+	 */
+	static byte[] derive(final byte[] password, final byte[] salt, final int iterations) {
+		if (iterations < 1)
+			throw new IllegalArgumentException("Iterations must be positive: " + iterations);
+
+		// Precompute the HMAC inner and outer states
+		final byte[] key = password.length > BLOCK_LENGTH ? toBytes(hash(INITIAL_STATE, 0, password)) : password;
+		final int[] padBlock = new int[BLOCK_WORDS];
+		final int[] schedule = new int[64];
+		final int[] innerState = INITIAL_STATE.clone();
+		final int[] outerState = INITIAL_STATE.clone();
+		fillPadBlock(padBlock, key, 0x36363636);
+		compress(innerState, padBlock, schedule);
+		fillPadBlock(padBlock, key, 0x5c5c5c5c);
+		compress(outerState, padBlock, schedule);
+
+		// Every hash after the pads is of a single 32 byte value (a previous U, or an inner hash), which fits in one block with its
+		// padding: value || 0x80 || 0... || bit length. Only the first 8 words of the block change
+		final int[] block = new int[BLOCK_WORDS];
+		block[STATE_WORDS] = 0x80000000;
+		block[BLOCK_WORDS - 1] = (BLOCK_LENGTH + KEY_LENGTH) * 8;
+
+		// U1 = HMAC(password, salt || INT(1))
+		final byte[] firstMessage = new byte[salt.length + 4];
+		System.arraycopy(salt, 0, firstMessage, 0, salt.length);
+		firstMessage[salt.length + 3] = 1;
+		final int[] u = hash(innerState, BLOCK_LENGTH, firstMessage);
+		finishHmac(outerState, u, block, schedule);
+
+		final int[] result = u.clone();
+		for (int i = 1; i < iterations; i++) {
+			System.arraycopy(u, 0, block, 0, STATE_WORDS);
+			System.arraycopy(innerState, 0, u, 0, STATE_WORDS);
+			compress(u, block, schedule);
+			finishHmac(outerState, u, block, schedule);
+			for (int j = 0; j < STATE_WORDS; j++) {
+				result[j] ^= u[j];
+			}
+		}
+		return toBytes(result);
+	}
+
+	/**
+	 * Replace the inner hash in <code>u</code> with the outer hash, using <code>block</code> (which must already contain the single block
+	 * padding in words 8-15) as scratch space
+	 */
+	private static void finishHmac(final int[] outerState, final int[] u, final int[] block, final int[] schedule) {
+		System.arraycopy(u, 0, block, 0, STATE_WORDS);
+		System.arraycopy(outerState, 0, u, 0, STATE_WORDS);
+		compress(u, block, schedule);
+	}
+
+	private static void fillPadBlock(final int[] block, final byte[] key, final int pad) {
+		for (int i = 0; i < BLOCK_WORDS; i++) {
+			block[i] = readWord(key, i * 4) ^ pad;
+		}
+	}
+
+	/** Read a big-endian word from the given offset, treating bytes past the end of the array as zero */
+	private static int readWord(final byte[] bytes, final int offset) {
+		int word = 0;
+		for (int i = 0; i < 4; i++) {
+			word <<= 8;
+			if (offset + i < bytes.length)
+				word |= bytes[offset + i] & 0xff;
+		}
+		return word;
+	}
+
+	/**
+	 * SHA-256 of a message, starting from the given state which has already absorbed <code>prefixLength</code> bytes (a whole number of
+	 * blocks)
+	 */
+	private static int[] hash(final int[] initialState, final int prefixLength, final byte[] message) {
+		final long bitLength = (prefixLength + (long) message.length) * 8;
+		// Message, 0x80 terminator and 8 byte length, rounded up to a whole number of blocks
+		final int paddedLength = (message.length + 1 + 8 + BLOCK_LENGTH - 1) / BLOCK_LENGTH * BLOCK_LENGTH;
+		final byte[] padded = new byte[paddedLength];
+		System.arraycopy(message, 0, padded, 0, message.length);
+		padded[message.length] = (byte) 0x80;
+		for (int i = 0; i < 8; i++) {
+			padded[paddedLength - 1 - i] = (byte) (bitLength >>> (8 * i));
+		}
+
+		final int[] state = initialState.clone();
+		final int[] block = new int[BLOCK_WORDS];
+		final int[] schedule = new int[64];
+		for (int offset = 0; offset < paddedLength; offset += BLOCK_LENGTH) {
+			for (int i = 0; i < BLOCK_WORDS; i++) {
+				block[i] = readWord(padded, offset + i * 4);
+			}
+			compress(state, block, schedule);
+		}
+		return state;
+	}
+
+	/** The SHA-256 compression function (FIPS 180-4 section 6.2.2), updating <code>state</code> in place */
+	private static void compress(final int[] state, final int[] block, final int[] w) {
+		System.arraycopy(block, 0, w, 0, BLOCK_WORDS);
+		for (int t = BLOCK_WORDS; t < 64; t++) {
+			final int w15 = w[t - 15];
+			final int w2 = w[t - 2];
+			final int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+			final int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+			w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+		}
+
+		int a = state[0];
+		int b = state[1];
+		int c = state[2];
+		int d = state[3];
+		int e = state[4];
+		int f = state[5];
+		int g = state[6];
+		int h = state[7];
+		for (int t = 0; t < 64; t++) {
+			final int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+			final int ch = (e & f) ^ (~e & g);
+			final int temp1 = h + s1 + ch + K[t] + w[t];
+			final int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+			final int maj = (a & b) ^ (a & c) ^ (b & c);
+			final int temp2 = s0 + maj;
+			h = g;
+			g = f;
+			f = e;
+			e = d + temp1;
+			d = c;
+			c = b;
+			b = a;
+			a = temp1 + temp2;
+		}
+		state[0] += a;
+		state[1] += b;
+		state[2] += c;
+		state[3] += d;
+		state[4] += e;
+		state[5] += f;
+		state[6] += g;
+		state[7] += h;
+	}
+
+	private static byte[] toBytes(final int[] words) {
+		final byte[] bytes = new byte[words.length * 4];
+		for (int i = 0; i < words.length; i++) {
+			bytes[i * 4] = (byte) (words[i] >>> 24);
+			bytes[i * 4 + 1] = (byte) (words[i] >>> 16);
+			bytes[i * 4 + 2] = (byte) (words[i] >>> 8);
+			bytes[i * 4 + 3] = (byte) words[i];
+		}
+		return bytes;
+	}
+}
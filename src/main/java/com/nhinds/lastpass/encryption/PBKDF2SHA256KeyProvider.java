@@ -3,20 +3,33 @@ package com.nhinds.lastpass.encryption;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
 import org.apache.commons.codec.binary.Hex;
-import org.spongycastle.crypto.PBEParametersGenerator;
-import org.spongycastle.crypto.digests.SHA256Digest;
-import org.spongycastle.crypto.generators.PKCS5S2ParametersGenerator;
-import org.spongycastle.crypto.params.KeyParameter;
 
-public class PBKDF2SHA256KeyProvider extends RequiresSpongyCastle implements KeyProvider {
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+public class PBKDF2SHA256KeyProvider implements KeyProvider {
 
 	private static final Hex HEX = new Hex();
+	private static final String HMAC_SHA256 = "HmacSHA256";
+
+	private final CryptoBackend cryptoBackend;
+
+	public PBKDF2SHA256KeyProvider() {
+		this(StandardCryptoBackend.getDefault());
+	}
+
+	public PBKDF2SHA256KeyProvider(final CryptoBackend cryptoBackend) {
+		this.cryptoBackend = Preconditions.checkNotNull(cryptoBackend);
+	}
 
 	@Override
 	public byte[] getKey(final String username, final String password, final int iterations) throws GeneralSecurityException {
 		if (iterations == 1) {
-			final MessageDigest digest = MessageDigest.getInstance("SHA-256", "SC");
+			final MessageDigest digest = this.cryptoBackend.getMessageDigest("SHA-256");
 			digest.update(username.getBytes());
 			digest.update(password.getBytes());
 			return digest.digest();
@@ -27,7 +40,7 @@ public class PBKDF2SHA256KeyProvider extends RequiresSpongyCastle implements Key
 	@Override
 	public String getHash(final byte[] key, final String password, final int iterations) throws GeneralSecurityException {
 		if (iterations == 1) {
-			final MessageDigest digest = MessageDigest.getInstance("SHA-256", "SC");
+			final MessageDigest digest = this.cryptoBackend.getMessageDigest("SHA-256");
 			digest.update(HEX.encode(key));
 			digest.update(password.getBytes());
 			return new String(Hex.encodeHex(digest.digest()));
@@ -35,14 +48,70 @@ public class PBKDF2SHA256KeyProvider extends RequiresSpongyCastle implements Key
 			return new String(Hex.encodeHex(doPBKDF2_SHA256(key, password, 1)));
 	}
 
-	private static byte[] doPBKDF2_SHA256(final String key, final String salt, final int iterations) {
-		return doPBKDF2_SHA256(PBEParametersGenerator.PKCS5PasswordToUTF8Bytes(key.toCharArray()), salt, iterations);
+	private byte[] doPBKDF2_SHA256(final String key, final String salt, final int iterations) throws GeneralSecurityException {
+		return doPBKDF2_SHA256(key.getBytes(Charsets.UTF_8), salt, iterations);
+	}
+
+	private byte[] doPBKDF2_SHA256(final byte[] key, final String salt, final int iterations) throws GeneralSecurityException {
+		// The JDK's SHA-256 is intrinsified on HotSpot, which beats any java implementation. Everywhere else the dedicated engine is
+		// several times faster than a generic HMAC (see PBKDF2Benchmark)
+		if (this.cryptoBackend == StandardCryptoBackend.JDK)
+			return doPBKDF2_SHA256WithMac(key, salt.getBytes(), iterations);
+		return PBKDF2HmacSHA256.derive(key, salt.getBytes(), iterations);
+	}
+
+	private byte[] doPBKDF2_SHA256WithMac(final byte[] key, final byte[] salt, final int iterations) throws GeneralSecurityException {
+		final Mac mac = this.cryptoBackend.getMac(HMAC_SHA256);
+		mac.init(new HmacKey(key));
+		mac.update(salt);
+		// Block index 1, big-endian
+		mac.update(new byte[] { 0, 0, 0, 1 });
+		final byte[] u = mac.doFinal();
+		final byte[] result = u.clone();
+		for (int i = 1; i < iterations; i++) {
+			mac.update(u);
+			mac.doFinal(u, 0);
+			for (int j = 0; j < result.length; j++) {
+				result[j] ^= u[j];
+			}
+		}
+		return result;
 	}
 
-	private static byte[] doPBKDF2_SHA256(final byte[] key, final String salt, final int iterations) {
-		final PKCS5S2ParametersGenerator generator = new PKCS5S2ParametersGenerator(new SHA256Digest());
-		generator.init(key, salt.getBytes(), iterations);
-		return ((KeyParameter) generator.generateDerivedMacParameters(32 * 8)).getKey();
+	@Override
+	public int hashCode() {
+		return this.cryptoBackend.hashCode();
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		return obj instanceof PBKDF2SHA256KeyProvider && this.cryptoBackend.equals(((PBKDF2SHA256KeyProvider) obj).cryptoBackend);
+	}
+
+	/** Raw HMAC key. Unlike {@link javax.crypto.spec.SecretKeySpec} this allows empty keys, which PBKDF2 permits for empty passwords */
+	private static class HmacKey implements SecretKey {
+		private static final long serialVersionUID = 1L;
+
+		private final byte[] key;
+
+		HmacKey(final byte[] key) {
+			this.key = key;
+		}
+
+		@Override
+		public String getAlgorithm() {
+			return HMAC_SHA256;
+		}
+
+		@Override
+		public String getFormat() {
+			return "RAW";
+		}
+
+		@Override
+		public byte[] getEncoded() {
+			return this.key.clone();
+		}
 	}
 
 }
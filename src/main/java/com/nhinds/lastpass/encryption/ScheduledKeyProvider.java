@@ -0,0 +1,206 @@
+package com.nhinds.lastpass.encryption;
+
+import java.io.Closeable;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.nhinds.lastpass.LastPassException;
+
+/**
+ * Key provider which derives keys on a dedicated pool of threads, so that a burst of logins cannot occupy every thread of the caller (and
+ * every core) with key derivations.
+ * <p>
+ * Derivations wait in a bounded queue, where interactive logins are ahead of background refreshes. A thread marks its derivations as
+ * background work with {@link #setCurrentPriority(Priority)}. If the queue is full, a derivation is rejected immediately with a
+ * {@link LastPassException} rather than waiting. Hashes are cheap, so they are computed on the calling thread.
+ */
+public class ScheduledKeyProvider implements KeyProvider, Closeable {
+	static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+	/** The priority of a key derivation, highest first */
+	public enum Priority {
+		INTERACTIVE, BACKGROUND
+	}
+
+	private static final ThreadLocal<Priority> CURRENT_PRIORITY = new ThreadLocal<Priority>() {
+		@Override
+		protected Priority initialValue() {
+			return Priority.INTERACTIVE;
+		}
+	};
+
+	private final KeyProvider delegate;
+	private final ThreadPoolExecutor executor;
+	/** Permits for the derivations running or queued */
+	private final Semaphore admission;
+	/** Keeps derivations of the same priority in the order they arrived */
+	private final AtomicLong sequence = new AtomicLong();
+	private final Metrics metrics = new Metrics();
+
+	/** Derive keys on one thread per core, with the default queue capacity */
+	public ScheduledKeyProvider(final KeyProvider delegate) {
+		this(delegate, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * @param delegate
+	 *            The key provider to derive keys with
+	 * @param threads
+	 *            The number of derivations to run at once
+	 * @param queueCapacity
+	 *            The number of derivations which may wait for a thread before further derivations are rejected
+	 */
+	public ScheduledKeyProvider(final KeyProvider delegate, final int threads, final int queueCapacity) {
+		Preconditions.checkArgument(threads > 0, "Threads must be positive: %s", threads);
+		Preconditions.checkArgument(queueCapacity >= 0, "Queue capacity must not be negative: %s", queueCapacity);
+		this.delegate = Preconditions.checkNotNull(delegate);
+		this.admission = new Semaphore(threads + queueCapacity);
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+				new ThreadFactoryBuilder().setNameFormat("lastpass-key-derivation-%d").setDaemon(true).build());
+	}
+
+	/**
+	 * Set the priority of key derivations started by the current thread
+	 *
+	 * @return The previous priority, to restore once the work with the new priority has finished
+	 */
+	public static Priority setCurrentPriority(final Priority priority) {
+		final Priority previous = CURRENT_PRIORITY.get();
+		CURRENT_PRIORITY.set(Preconditions.checkNotNull(priority));
+		return previous;
+	}
+
+	@Override
+	public byte[] getKey(final String username, final String password, final int iterations) throws GeneralSecurityException {
+		if (!this.admission.tryAcquire()) {
+			this.metrics.rejected.incrementAndGet();
+			throw new LastPassException("Too many key derivations waiting, rejecting key derivation for " + username);
+		}
+		final long queued = System.nanoTime();
+		final DerivationTask task = new DerivationTask(CURRENT_PRIORITY.get(), this.sequence.getAndIncrement(), new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws GeneralSecurityException {
+				// Record the metrics before the caller is given the key, so that they include its derivation
+				final long start = System.nanoTime();
+				ScheduledKeyProvider.this.metrics.queueWaitNanos.addAndGet(start - queued);
+				try {
+					return ScheduledKeyProvider.this.delegate.getKey(username, password, iterations);
+				} finally {
+					ScheduledKeyProvider.this.metrics.computeNanos.addAndGet(System.nanoTime() - start);
+					ScheduledKeyProvider.this.metrics.completed.incrementAndGet();
+				}
+			}
+		});
+		try {
+			this.executor.execute(task);
+		} catch (final RejectedExecutionException e) {
+			this.admission.release();
+			throw new LastPassException("Key provider has been closed", e);
+		}
+
+		try {
+			return task.get();
+		} catch (final InterruptedException e) {
+			task.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new LastPassException("Interrupted while waiting for key derivation", e);
+		} catch (final ExecutionException e) {
+			Throwables.propagateIfInstanceOf(e.getCause(), GeneralSecurityException.class);
+			throw Throwables.propagate(e.getCause());
+		}
+	}
+
+	@Override
+	public String getHash(final byte[] key, final String password, final int iterations) throws GeneralSecurityException {
+		return this.delegate.getHash(key, password, iterations);
+	}
+
+	/** @return metrics for the derivations run by this key provider, which are updated as derivations run */
+	public Metrics getMetrics() {
+		return this.metrics;
+	}
+
+	/** Stop the derivation threads once the derivations already queued have finished. Further derivations are rejected */
+	@Override
+	public void close() {
+		this.executor.shutdown();
+	}
+
+	/**
+	 * A derivation waiting for or running on the pool, ordered by priority then arrival. Its permit is released once the pool has finished
+	 * with it rather than when it completes, since a derivation cancelled by an interrupted caller keeps running (or keeps its place in the
+	 * queue) until then
+	 */
+	private class DerivationTask extends FutureTask<byte[]> implements Comparable<DerivationTask> {
+		private final Priority priority;
+		private final long sequence;
+
+		DerivationTask(final Priority priority, final long sequence, final Callable<byte[]> derivation) {
+			super(derivation);
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public void run() {
+			try {
+				super.run();
+			} finally {
+				ScheduledKeyProvider.this.admission.release();
+			}
+		}
+
+		@Override
+		public int compareTo(final DerivationTask other) {
+			if (this.priority != other.priority)
+				return this.priority.compareTo(other.priority);
+			return this.sequence < other.sequence ? -1 : this.sequence == other.sequence ? 0 : 1;
+		}
+	}
+
+	/** Counts and times of the key derivations run by a {@link ScheduledKeyProvider} */
+	public static final class Metrics {
+		private final AtomicLong completed = new AtomicLong();
+		private final AtomicLong rejected = new AtomicLong();
+		private final AtomicLong queueWaitNanos = new AtomicLong();
+		private final AtomicLong computeNanos = new AtomicLong();
+
+		/** @return the number of derivations which have finished or failed */
+		public long getCompleted() {
+			return this.completed.get();
+		}
+
+		/** @return the number of derivations rejected because the queue was full */
+		public long getRejected() {
+			return this.rejected.get();
+		}
+
+		/** @return the total time derivations spent waiting for a thread */
+		public long getQueueWaitNanos() {
+			return this.queueWaitNanos.get();
+		}
+
+		/** @return the total time spent deriving keys, added up over all threads */
+		public long getComputeNanos() {
+			return this.computeNanos.get();
+		}
+
+		@Override
+		public String toString() {
+			return "Metrics [completed=" + getCompleted() + ", rejected=" + getRejected() + ", queueWait="
+					+ TimeUnit.NANOSECONDS.toMillis(getQueueWaitNanos()) + "ms, compute=" + TimeUnit.NANOSECONDS.toMillis(getComputeNanos())
+					+ "ms]";
+		}
+	}
+}
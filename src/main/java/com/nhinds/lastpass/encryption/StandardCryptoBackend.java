@@ -0,0 +1,92 @@
+package com.nhinds.lastpass.encryption;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Provider;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** The built-in {@link CryptoBackend}s */
+public enum StandardCryptoBackend implements CryptoBackend {
+	/**
+	 * Uses the security providers installed in the JVM. On HotSpot these are the SunJCE implementations, which use the AES-NI and SHA
+	 * intrinsics where the CPU supports them.
+	 */
+	JDK {
+		@Override
+		public Cipher getCipher(final String transformation) throws GeneralSecurityException {
+			return Cipher.getInstance(transformation);
+		}
+
+		@Override
+		public MessageDigest getMessageDigest(final String algorithm) throws GeneralSecurityException {
+			return MessageDigest.getInstance(algorithm);
+		}
+
+		@Override
+		public Mac getMac(final String algorithm) throws GeneralSecurityException {
+			return Mac.getInstance(algorithm);
+		}
+	},
+	/**
+	 * Uses a private instance of the SpongyCastle provider, which is available everywhere (including on android). The provider is not
+	 * registered with {@link java.security.Security}, so using this backend does not affect other users of the JCA.
+	 */
+	SPONGY_CASTLE {
+		@Override
+		public Cipher getCipher(final String transformation) throws GeneralSecurityException {
+			return Cipher.getInstance(transformation, SpongyCastleHolder.PROVIDER);
+		}
+
+		@Override
+		public MessageDigest getMessageDigest(final String algorithm) throws GeneralSecurityException {
+			return MessageDigest.getInstance(algorithm, SpongyCastleHolder.PROVIDER);
+		}
+
+		@Override
+		public Mac getMac(final String algorithm) throws GeneralSecurityException {
+			return Mac.getInstance(algorithm, SpongyCastleHolder.PROVIDER);
+		}
+	};
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StandardCryptoBackend.class);
+
+	/**
+	 * @return {@link #JDK} if the installed security providers support everything LastPass needs (including 256 bit AES keys), otherwise
+	 *         {@link #SPONGY_CASTLE}
+	 */
+	public static CryptoBackend getDefault() {
+		return DefaultHolder.DEFAULT;
+	}
+
+	private static boolean isSupported(final CryptoBackend backend) {
+		try {
+			backend.getCipher("AES/ECB/PKCS5Padding");
+			backend.getCipher("AES/CBC/PKCS5Padding");
+			backend.getMessageDigest("SHA-256");
+			backend.getMac("HmacSHA256");
+			return Cipher.getMaxAllowedKeyLength("AES") >= 256;
+		} catch (final GeneralSecurityException e) {
+			LOGGER.debug("Crypto backend {} is not supported", backend, e);
+			return false;
+		}
+	}
+
+	/** Lazily creates the SpongyCastle provider so that it is not loaded unless it is used */
+	private static class SpongyCastleHolder {
+		static final Provider PROVIDER = new org.spongycastle.jce.provider.BouncyCastleProvider();
+	}
+
+	/** Lazily probes for the default backend the first time it is requested */
+	private static class DefaultHolder {
+		static final CryptoBackend DEFAULT;
+		static {
+			DEFAULT = isSupported(JDK) ? JDK : SPONGY_CASTLE;
+			LOGGER.debug("Using crypto backend {}", DEFAULT);
+		}
+	}
+}
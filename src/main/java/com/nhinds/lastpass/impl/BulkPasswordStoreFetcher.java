@@ -0,0 +1,245 @@
+package com.nhinds.lastpass.impl;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.nhinds.lastpass.LastPass;
+import com.nhinds.lastpass.PasswordStore;
+
+/**
+ * Fetches the password stores of many users at once, such as the service accounts used by a credential rotation job.
+ * <p>
+ * Each fetch blocks a thread while it logs in and downloads account data, so on JDK 21 and later every fetch runs on its own virtual
+ * thread. On older JVMs fetches run on a pool with one platform thread per allowed concurrent fetch. Either way, at most the configured
+ * number of fetches talk to LastPass at once, since every login and download goes to the same host. Key derivations are still limited by
+ * the {@link com.nhinds.lastpass.encryption.KeyProvider} of the {@link LastPass}, so a
+ * {@link com.nhinds.lastpass.encryption.ScheduledKeyProvider} keeps them from occupying every core.
+ * <p>
+ * Use a thread-safe {@link LastPass}, such as one from {@link com.nhinds.lastpass.LastPassFactory#getConcurrentLastPass(java.io.File)}.
+ */
+public class BulkPasswordStoreFetcher implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(BulkPasswordStoreFetcher.class);
+
+	static final int DEFAULT_MAX_CONCURRENT_FETCHES = 16;
+
+	/** The login details of one user to fetch the password store of */
+	public static final class Credentials {
+		private final String username;
+		private final String password;
+		private final String deviceId;
+
+		public Credentials(final String username, final String password) {
+			this(username, password, null);
+		}
+
+		/**
+		 * @param deviceId
+		 *            The device identifier to log in with, or null for none
+		 */
+		public Credentials(final String username, final String password, final String deviceId) {
+			this.username = Preconditions.checkNotNull(username);
+			this.password = Preconditions.checkNotNull(password);
+			this.deviceId = deviceId;
+		}
+
+		public String getUsername() {
+			return this.username;
+		}
+
+		public String getPassword() {
+			return this.password;
+		}
+
+		public String getDeviceId() {
+			return this.deviceId;
+		}
+
+		@Override
+		public String toString() {
+			return "Credentials [username=" + this.username + ", deviceId=" + this.deviceId + "]";
+		}
+	}
+
+	/** The outcome of fetching the password store of one user: either the password store or the reason it could not be fetched */
+	public static final class Result {
+		private final Credentials credentials;
+		private final PasswordStore passwordStore;
+		private final Exception failure;
+
+		Result(final Credentials credentials, final PasswordStore passwordStore, final Exception failure) {
+			this.credentials = credentials;
+			this.passwordStore = passwordStore;
+			this.failure = failure;
+		}
+
+		public Credentials getCredentials() {
+			return this.credentials;
+		}
+
+		/** @return whether the password store was fetched */
+		public boolean isSuccessful() {
+			return this.failure == null;
+		}
+
+		/** @return the password store, or null if it could not be fetched */
+		public PasswordStore getPasswordStore() {
+			return this.passwordStore;
+		}
+
+		/**
+		 * @return why the password store could not be fetched, or null if it was fetched. Users who need a one time password fail with
+		 *         {@link com.nhinds.lastpass.GoogleAuthenticatorRequired}
+		 */
+		public Exception getFailure() {
+			return this.failure;
+		}
+
+		@Override
+		public String toString() {
+			return "Result [credentials=" + this.credentials + (isSuccessful() ? ", successful" : ", failure=" + this.failure) + "]";
+		}
+	}
+
+	private final LastPass lastPass;
+	private final ExecutorService executor;
+	private final boolean virtualThreads;
+	/** Permits for the fetches talking to LastPass */
+	private final Semaphore fetches;
+
+	public BulkPasswordStoreFetcher(final LastPass lastPass) {
+		this(lastPass, DEFAULT_MAX_CONCURRENT_FETCHES);
+	}
+
+	/**
+	 * @param lastPass
+	 *            The LastPass to fetch password stores with, which must be safe to use from multiple threads
+	 * @param maxConcurrentFetches
+	 *            The number of fetches which may talk to LastPass at once
+	 */
+	public BulkPasswordStoreFetcher(final LastPass lastPass, final int maxConcurrentFetches) {
+		this(lastPass, maxConcurrentFetches, newVirtualThreadExecutor());
+	}
+
+	/**
+	 * @param executor
+	 *            The executor to run a fetch on, with one task per fetch, or null to use a pool of platform threads
+	 */
+	BulkPasswordStoreFetcher(final LastPass lastPass, final int maxConcurrentFetches, final ExecutorService executor) {
+		Preconditions.checkArgument(maxConcurrentFetches > 0, "Maximum concurrent fetches must be positive: %s", maxConcurrentFetches);
+		this.lastPass = Preconditions.checkNotNull(lastPass);
+		this.fetches = new Semaphore(maxConcurrentFetches);
+		this.virtualThreads = executor != null;
+		if (executor != null) {
+			this.executor = executor;
+		} else {
+			LOGGER.debug("Virtual threads are not available, fetching on {} platform threads", maxConcurrentFetches);
+			this.executor = Executors.newFixedThreadPool(maxConcurrentFetches,
+					new ThreadFactoryBuilder().setNameFormat("lastpass-bulk-fetch-%d").setDaemon(true).build());
+		}
+	}
+
+	/**
+	 * Create an executor which runs each task on a new virtual thread. The executor is looked up reflectively so that this class still
+	 * runs on JVMs without virtual threads
+	 *
+	 * @return the executor, or null if virtual threads are not available
+	 */
+	static ExecutorService newVirtualThreadExecutor() {
+		final Method factory;
+		try {
+			factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (final NoSuchMethodException e) {
+			return null;
+		}
+		try {
+			return (ExecutorService) factory.invoke(null);
+		} catch (final InvocationTargetException e) {
+			// Virtual threads are a preview feature on JDK 19 and 20, and cannot be used unless previews are enabled
+			LOGGER.debug("Virtual threads are not enabled", e.getCause());
+			return null;
+		} catch (final IllegalAccessException e) {
+			LOGGER.debug("Virtual threads are not accessible", e);
+			return null;
+		}
+	}
+
+	/** @return whether fetches run on virtual threads, rather than on a pool of platform threads */
+	public boolean usesVirtualThreads() {
+		return this.virtualThreads;
+	}
+
+	/**
+	 * Fetch the password stores of all the given users concurrently, waiting until every fetch has finished. A failed fetch does not affect
+	 * the others
+	 *
+	 * @return the result of each fetch, in the same order as the credentials
+	 * @throws InterruptedException
+	 *             If interrupted while waiting, in which case the fetches still running are cancelled
+	 */
+	public List<Result> fetchAll(final Collection<Credentials> credentials) throws InterruptedException {
+		final List<Future<Result>> futures = new ArrayList<Future<Result>>(credentials.size());
+		try {
+			for (final Credentials user : credentials)
+				futures.add(this.executor.submit(fetch(user)));
+
+			final List<Result> results = new ArrayList<Result>(futures.size());
+			for (final Future<Result> future : futures)
+				results.add(getResult(future));
+			return results;
+		} finally {
+			for (final Future<Result> future : futures)
+				future.cancel(true);
+		}
+	}
+
+	private Callable<Result> fetch(final Credentials credentials) {
+		return new Callable<Result>() {
+			@Override
+			public Result call() throws InterruptedException {
+				BulkPasswordStoreFetcher.this.fetches.acquire();
+				try {
+					final PasswordStore passwordStore = BulkPasswordStoreFetcher.this.lastPass
+							.getPasswordStoreBuilder(credentials.getUsername(), credentials.getPassword(), credentials.getDeviceId())
+							.getPasswordStore(null);
+					return new Result(credentials, passwordStore, null);
+				} catch (final Exception e) {
+					LOGGER.debug("Could not fetch password store for " + credentials.getUsername(), e);
+					return new Result(credentials, null, e);
+				} finally {
+					BulkPasswordStoreFetcher.this.fetches.release();
+				}
+			}
+		};
+	}
+
+	private static Result getResult(final Future<Result> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (final ExecutionException e) {
+			// Fetches catch their own exceptions, so this is an error
+			throw Throwables.propagate(e.getCause());
+		}
+	}
+
+	/** Stop the fetch threads once the fetches already started have finished */
+	@Override
+	public void close() {
+		this.executor.shutdown();
+	}
+}
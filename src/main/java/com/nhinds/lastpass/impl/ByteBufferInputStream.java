@@ -0,0 +1,41 @@
+package com.nhinds.lastpass.impl;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/** Stream which reads the remaining bytes of a buffer, advancing its position */
+class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer buffer;
+
+	ByteBufferInputStream(final ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public int read() {
+		return this.buffer.hasRemaining() ? this.buffer.get() & 0xff : -1;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) {
+		if (len == 0)
+			return 0;
+		if (!this.buffer.hasRemaining())
+			return -1;
+		final int read = Math.min(len, this.buffer.remaining());
+		this.buffer.get(b, off, read);
+		return read;
+	}
+
+	@Override
+	public long skip(final long n) {
+		final int skipped = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+		this.buffer.position(this.buffer.position() + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return this.buffer.remaining();
+	}
+}
@@ -0,0 +1,168 @@
+package com.nhinds.lastpass.impl;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+
+/**
+ * The format of a file holding cached account data for one user: a header followed by the account data.
+ * <p>
+ * The header starts with a magic number and format version, then the length and CRC-32 of the account data, then the username, iterations
+ * and account version. The length and checksum are at a fixed offset so that they can be filled in once the account data has been written.
+ * Reading a header checks that the file is exactly as long as the header says, so truncated files are rejected without reading the account
+ * data; the checksum is checked by {@link #verify(File, Header)} in one pass over the account data.
+ */
+final class CacheFileFormat {
+	private static final int MAGIC = 0x4c504143; // "LPAC"
+	private static final int VERSION = 1;
+	/** Offset of the account data length and checksum */
+	private static final int CHECKSUM_OFFSET = 8;
+	private static final int VERIFY_BUFFER_SIZE = 64 * 1024;
+
+	private CacheFileFormat() {
+	}
+
+	static final class Header {
+		final String username;
+		final int iterations;
+		final int accountVersion;
+		/** Offset of the account data from the start of the file */
+		final long accountDataOffset;
+		final long accountDataLength;
+		final int checksum;
+		/** Whether the account data is known to match the checksum. The file must not be modified once it has been verified */
+		volatile boolean verified;
+
+		Header(final String username, final int iterations, final int accountVersion, final long accountDataOffset,
+				final long accountDataLength, final int checksum) {
+			this.username = username;
+			this.iterations = iterations;
+			this.accountVersion = accountVersion;
+			this.accountDataOffset = accountDataOffset;
+			this.accountDataLength = accountDataLength;
+			this.checksum = checksum;
+		}
+	}
+
+	/** Read the header of a file, checking that it is a complete cache file in this format */
+	static Header readHeader(final File file) throws IOException {
+		final CountingInputStream countingInput = new CountingInputStream(new BufferedInputStream(new FileInputStream(file), 1024));
+		final DataInputStream cacheInput = new DataInputStream(countingInput);
+		final Header header;
+		try {
+			if (cacheInput.readInt() != MAGIC)
+				throw new IOException("Not a cache file");
+			final int version = cacheInput.readInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported cache file version " + version);
+			final long accountDataLength = cacheInput.readLong();
+			final int checksum = cacheInput.readInt();
+			final String username = cacheInput.readUTF();
+			final int iterations = cacheInput.readInt();
+			final int accountVersion = cacheInput.readInt();
+			header = new Header(username, iterations, accountVersion, countingInput.getCount(), accountDataLength, checksum);
+		} finally {
+			cacheInput.close();
+		}
+		final long expectedLength = header.accountDataOffset + header.accountDataLength;
+		if (file.length() != expectedLength)
+			throw new IOException("Cache file is " + file.length() + " bytes long, expected " + expectedLength);
+		return header;
+	}
+
+	/**
+	 * Write a header to the start of a new file. The account data length and checksum are left empty, to be filled in by
+	 * {@link #completeHeader(File, Header, long, int)}.
+	 */
+	static Header writeHeader(final DataOutputStream out, final String username, final int iterations, final int accountVersion)
+			throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(0);
+		out.writeInt(0);
+		out.writeUTF(username);
+		out.writeInt(iterations);
+		out.writeInt(accountVersion);
+		return new Header(username, iterations, accountVersion, out.size(), 0, 0);
+	}
+
+	/**
+	 * Fill in the account data length and checksum of a file written with {@link #writeHeader(DataOutputStream, String, int, int)}
+	 *
+	 * @return the complete header, which is marked as verified since the checksum was calculated from the data as it was written
+	 */
+	static Header completeHeader(final File file, final Header header, final long accountDataLength, final int checksum)
+			throws IOException {
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.seek(CHECKSUM_OFFSET);
+			randomAccessFile.writeLong(accountDataLength);
+			randomAccessFile.writeInt(checksum);
+			// Make sure the file is complete on disk before it can be moved into place
+			randomAccessFile.getFD().sync();
+		} finally {
+			randomAccessFile.close();
+		}
+		final Header completeHeader = new Header(header.username, header.iterations, header.accountVersion, header.accountDataOffset,
+				accountDataLength, checksum);
+		completeHeader.verified = true;
+		return completeHeader;
+	}
+
+	/** Check the account data in a file against the header's checksum, unless it has already been checked */
+	static void verify(final File file, final Header header) throws IOException {
+		if (header.verified)
+			return;
+		final InputStream in = openUnverifiedAccountData(file, header);
+		final CRC32 crc = new CRC32();
+		try {
+			final byte[] buffer = new byte[VERIFY_BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				crc.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		if ((int) crc.getValue() != header.checksum)
+			throw new IOException("Cache file " + file + " does not match its checksum");
+		header.verified = true;
+	}
+
+	/** Open the account data in a file, verifying it first if it has not already been verified */
+	static InputStream openAccountData(final File file, final Header header) throws IOException {
+		verify(file, header);
+		return openUnverifiedAccountData(file, header);
+	}
+
+	/** Map the account data in a file, verifying it first if it has not already been verified */
+	static ByteBuffer mapAccountData(final File file, final Header header) throws IOException {
+		verify(file, header);
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, header.accountDataOffset, header.accountDataLength);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	private static InputStream openUnverifiedAccountData(final File file, final Header header) throws IOException {
+		final FileInputStream fileInputStream = new FileInputStream(file);
+		if (header.accountDataOffset != fileInputStream.skip(header.accountDataOffset)) {
+			fileInputStream.close();
+			throw new IOException("Could not skip " + header.accountDataOffset + " bytes from file");
+		}
+		return ByteStreams.limit(fileInputStream, header.accountDataLength);
+	}
+}
@@ -0,0 +1,108 @@
+package com.nhinds.lastpass.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.CountingOutputStream;
+import com.nhinds.lastpass.impl.StreamingCacheProvider.AccountDataSink;
+
+/**
+ * Account data sink which writes a cache file to a temporary file next to it, which is installed in place of the cache file when the sink
+ * is committed. A failed or partial write therefore leaves any previous cache file in place.
+ */
+abstract class CacheFileSink implements AccountDataSink {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CacheFileSink.class);
+
+	static final String TEMP_FILE_SUFFIX = ".tmp";
+
+	private final File cacheFile;
+	private final File tempFile;
+	private final DataOutputStream fileOut;
+	private final CRC32 checksum = new CRC32();
+	/** Stream for the account data, which keeps track of its length and checksum */
+	private final CountingOutputStream out;
+	private final CacheFileFormat.Header header;
+	private boolean finished;
+
+	CacheFileSink(final File cacheFile, final String username, final int iterations, final int accountVersion) throws IOException {
+		this.cacheFile = cacheFile;
+		this.tempFile = File.createTempFile(cacheFile.getName(), TEMP_FILE_SUFFIX, cacheFile.getAbsoluteFile().getParentFile());
+		this.fileOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.tempFile)));
+		this.out = new CountingOutputStream(new CheckedOutputStream(this.fileOut, this.checksum));
+		try {
+			this.header = CacheFileFormat.writeHeader(this.fileOut, username, iterations, accountVersion);
+		} catch (IOException e) {
+			abort();
+			throw e;
+		}
+	}
+
+	/**
+	 * Install the complete temporary file, normally by {@linkplain #rename(File, File) renaming} it over the cache file. The temporary
+	 * file is deleted if this throws an exception.
+	 *
+	 * @param length
+	 *            The length of the temporary file, including the header
+	 */
+	abstract void install(File tempFile, CacheFileFormat.Header header, long length) throws IOException;
+
+	/**
+	 * Rename a complete temporary file over a cache file. The rename replaces the cache file atomically on POSIX file systems. Where a
+	 * rename cannot replace an existing file, such as on Windows, the cache file is deleted first, so a crash in between loses the cache
+	 * file but never leaves a partial one. The file is never copied.
+	 *
+	 * @throws IOException
+	 *             If the file could not be renamed, for example because the files are on different file systems
+	 */
+	static void rename(final File tempFile, final File cacheFile) throws IOException {
+		if (tempFile.renameTo(cacheFile))
+			return;
+		if (cacheFile.exists() && cacheFile.delete() && tempFile.renameTo(cacheFile))
+			return;
+		throw new IOException("Could not rename " + tempFile + " to " + cacheFile);
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return this.out;
+	}
+
+	@Override
+	public void commit() throws IOException {
+		Preconditions.checkState(!this.finished, "Account data has already been committed or aborted");
+		this.finished = true;
+		try {
+			this.out.close();
+			final CacheFileFormat.Header header = CacheFileFormat.completeHeader(this.tempFile, this.header, this.out.getCount(),
+					(int) this.checksum.getValue());
+			install(this.tempFile, header, this.tempFile.length());
+		} catch (IOException e) {
+			this.tempFile.delete();
+			throw e;
+		}
+		LOGGER.debug("Stored account data for {} in {}", this.header.username, this.cacheFile);
+	}
+
+	@Override
+	public void abort() {
+		if (this.finished)
+			return;
+		this.finished = true;
+		try {
+			this.out.close();
+		} catch (IOException ignore) {
+		}
+		if (!this.tempFile.delete())
+			LOGGER.warn("Could not delete temporary cache file {}", this.tempFile);
+	}
+}
@@ -0,0 +1,92 @@
+package com.nhinds.lastpass.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import com.google.common.base.Preconditions;
+
+/** Utilities for working with cache providers which may not implement {@link StreamingCacheProvider} */
+final class CacheProviders {
+	private CacheProviders() {
+	}
+
+	/**
+	 * @return the given provider if it streams account data, otherwise a view of it which buffers account data in memory and stores it
+	 *         when the sink is committed
+	 */
+	static StreamingCacheProvider streaming(final CacheProvider cacheProvider) {
+		if (cacheProvider instanceof StreamingCacheProvider)
+			return (StreamingCacheProvider) cacheProvider;
+		return new BufferingCacheProvider(cacheProvider);
+	}
+
+	/** Streaming view of a cache provider which only supports storing complete account data */
+	private static class BufferingCacheProvider implements StreamingCacheProvider {
+		private final CacheProvider delegate;
+
+		BufferingCacheProvider(final CacheProvider delegate) {
+			this.delegate = Preconditions.checkNotNull(delegate);
+		}
+
+		@Override
+		public Integer getIterations(final String username) throws IOException {
+			return this.delegate.getIterations(username);
+		}
+
+		@Override
+		public Integer getAccountVersion(final String username) throws IOException {
+			return this.delegate.getAccountVersion(username);
+		}
+
+		@Override
+		public InputStream getAccountData(final String username) throws IOException {
+			return this.delegate.getAccountData(username);
+		}
+
+		@Override
+		public void storeAccountData(final String username, final int iterations, final int accountVersion, final InputStream accountData)
+				throws IOException {
+			this.delegate.storeAccountData(username, iterations, accountVersion, accountData);
+		}
+
+		@Override
+		public ByteBuffer mapAccountData(final String username) {
+			return null;
+		}
+
+		@Override
+		public AccountDataSink newAccountDataSink(final String username, final int iterations, final int accountVersion) {
+			final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			return new AccountDataSink() {
+				@Override
+				public OutputStream getOutputStream() {
+					return buffer;
+				}
+
+				@Override
+				public void commit() throws IOException {
+					storeAccountData(username, iterations, accountVersion, new ByteArrayInputStream(buffer.toByteArray()));
+				}
+
+				@Override
+				public void abort() {
+					buffer.reset();
+				}
+			};
+		}
+
+		@Override
+		public int hashCode() {
+			return this.delegate.hashCode();
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			return obj instanceof BufferingCacheProvider && this.delegate.equals(((BufferingCacheProvider) obj).delegate);
+		}
+	}
+}
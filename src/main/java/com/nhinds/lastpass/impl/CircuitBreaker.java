@@ -0,0 +1,58 @@
+package com.nhinds.lastpass.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+/**
+ * Skips LastPass for a cool-down period after repeated connection failures, so that logins fall back to cached account data immediately
+ * rather than each waiting for the network to time out. Once the cool-down has passed, requests are allowed again; another failure
+ * restarts the cool-down, and a success closes the breaker. This class is safe to use from multiple threads.
+ */
+public class CircuitBreaker {
+	private final int failureThreshold;
+	private final long coolDownNanos;
+	private final Ticker ticker;
+	/** Guarded by this */
+	private int consecutiveFailures;
+	/** Guarded by this */
+	private long lastFailureNanos;
+
+	/**
+	 * @param failureThreshold
+	 *            The number of consecutive failures after which LastPass is skipped
+	 * @param coolDown
+	 *            How long to skip LastPass for after the last failure
+	 */
+	public CircuitBreaker(final int failureThreshold, final long coolDown, final TimeUnit unit) {
+		this(failureThreshold, coolDown, unit, Ticker.systemTicker());
+	}
+
+	CircuitBreaker(final int failureThreshold, final long coolDown, final TimeUnit unit, final Ticker ticker) {
+		Preconditions.checkArgument(failureThreshold > 0, "Failure threshold must be positive: %s", failureThreshold);
+		Preconditions.checkArgument(coolDown >= 0, "Cool-down must not be negative: %s", coolDown);
+		this.failureThreshold = failureThreshold;
+		this.coolDownNanos = unit.toNanos(coolDown);
+		this.ticker = ticker;
+	}
+
+	/** @return whether a request to LastPass should be attempted */
+	public synchronized boolean allowRequest() {
+		return !isOpen();
+	}
+
+	/** @return whether LastPass is being skipped because of recent failures */
+	public synchronized boolean isOpen() {
+		return this.consecutiveFailures >= this.failureThreshold && this.ticker.read() - this.lastFailureNanos < this.coolDownNanos;
+	}
+
+	public synchronized void recordSuccess() {
+		this.consecutiveFailures = 0;
+	}
+
+	public synchronized void recordFailure() {
+		this.consecutiveFailures++;
+		this.lastFailureNanos = this.ticker.read();
+	}
+}
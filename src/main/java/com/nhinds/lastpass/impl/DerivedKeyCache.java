@@ -0,0 +1,122 @@
+package com.nhinds.lastpass.impl;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.nhinds.lastpass.encryption.KeyProvider;
+
+/**
+ * Short-lived cache of derived keys, so that one logical login (including retrying with a one-time password, or with the iteration count
+ * the server asked for) only derives each key once.
+ * <p>
+ * Entries are keyed by username, a digest of the password and the iteration count. The number of entries is bounded, entries expire
+ * shortly after they are added, and keys are zeroed when they are removed from the cache. Callers always receive their own copy of a
+ * key. This class is safe to use from multiple threads.
+ */
+class DerivedKeyCache {
+	static final int DEFAULT_MAXIMUM_SIZE = 16;
+	static final long DEFAULT_EXPIRY_MINUTES = 5;
+
+	private final Cache<CacheKey, CachedKey> keys;
+
+	DerivedKeyCache() {
+		this(DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRY_MINUTES, TimeUnit.MINUTES, Ticker.systemTicker());
+	}
+
+	DerivedKeyCache(final int maximumSize, final long expiry, final TimeUnit expiryUnit, final Ticker ticker) {
+		this.keys = CacheBuilder.newBuilder().maximumSize(maximumSize).expireAfterWrite(expiry, expiryUnit).ticker(ticker)
+				.removalListener(new RemovalListener<CacheKey, CachedKey>() {
+					@Override
+					public void onRemoval(final RemovalNotification<CacheKey, CachedKey> notification) {
+						notification.getValue().destroy();
+					}
+				}).build();
+	}
+
+	/**
+	 * Get the key for the given credentials from the cache, deriving it with the given key provider if it is not cached
+	 *
+	 * @return A copy of the key, which the caller may modify
+	 */
+	byte[] getKey(final KeyProvider keyProvider, final String username, final String password, final int iterations)
+			throws GeneralSecurityException {
+		final CacheKey cacheKey = new CacheKey(username, password, iterations);
+		final CachedKey cached = this.keys.getIfPresent(cacheKey);
+		if (cached != null) {
+			final byte[] key = cached.copy();
+			if (key != null)
+				return key;
+		}
+		final byte[] key = keyProvider.getKey(username, password, iterations);
+		this.keys.put(cacheKey, new CachedKey(key.clone()));
+		return key;
+	}
+
+	/** Remove and zero all keys cached for the given user */
+	void invalidate(final String username) {
+		for (final CacheKey cacheKey : this.keys.asMap().keySet()) {
+			if (cacheKey.username.equals(username))
+				this.keys.invalidate(cacheKey);
+		}
+	}
+
+	/** Remove and zero all cached keys */
+	void clear() {
+		this.keys.invalidateAll();
+	}
+
+	private static class CacheKey {
+		private final String username;
+		private final HashCode passwordDigest;
+		private final int iterations;
+
+		CacheKey(final String username, final String password, final int iterations) {
+			this.username = username;
+			this.passwordDigest = Hashing.sha256().hashString(password, Charsets.UTF_8);
+			this.iterations = iterations;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(this.username, this.passwordDigest, this.iterations);
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof CacheKey))
+				return false;
+			final CacheKey other = (CacheKey) obj;
+			return this.username.equals(other.username) && this.passwordDigest.equals(other.passwordDigest)
+					&& this.iterations == other.iterations;
+		}
+	}
+
+	/** A cached key which is zeroed when it is removed, and is never handed out after that */
+	private static class CachedKey {
+		private final byte[] key;
+		private boolean destroyed;
+
+		CachedKey(final byte[] key) {
+			this.key = key;
+		}
+
+		synchronized byte[] copy() {
+			return this.destroyed ? null : this.key.clone();
+		}
+
+		synchronized void destroy() {
+			this.destroyed = true;
+			Arrays.fill(this.key, (byte) 0);
+		}
+	}
+}
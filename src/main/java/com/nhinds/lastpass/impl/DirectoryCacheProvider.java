@@ -0,0 +1,312 @@
+package com.nhinds.lastpass.impl;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Cache provider which caches data for any number of users in a directory, with one file per user named after a hash of the username.
+ * <p>
+ * The headers of all cache files are read when the provider is created and kept in memory, so {@link #getIterations(String)} and
+ * {@link #getAccountVersion(String)} do not access the disk. When the total size of the cache files exceeds the configured budget, the
+ * files for the least recently used usernames are deleted until it fits again (the most recently stored file is always kept, even if it is
+ * larger than the budget on its own).
+ * <p>
+ * Account data is written to a temporary file and renamed over the user's cache file once it is complete, so a failed or partial write
+ * leaves the previous cache file in place.
+ * <p>
+ * Instances are safe to use from multiple threads, but it is not safe to use multiple instances with the same directory. Reading, replacing
+ * and deleting a user's cache file hold one of a fixed number of locks chosen by username, so reads of different users' account data,
+ * including verifying their checksums, mostly run in parallel. The lock on the provider itself only guards the in-memory entries.
+ */
+public class DirectoryCacheProvider implements StreamingCacheProvider {
+	private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryCacheProvider.class);
+
+	static final String CACHE_FILE_SUFFIX = ".cache";
+	static final int LOCK_STRIPES = 64;
+
+	private final File directory;
+	private final long maxBytes;
+	/** Cache entries by username, from least to most recently used. Guarded by this */
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	/** Guarded by this */
+	private long totalBytes;
+	/** Locks held while a user's cache file is read, replaced or deleted, shared between usernames */
+	private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+
+	private static class Entry {
+		private final File file;
+		private final CacheFileFormat.Header header;
+		private final long length;
+
+		Entry(final File file, final CacheFileFormat.Header header, final long length) {
+			this.file = file;
+			this.header = header;
+			this.length = length;
+		}
+	}
+
+	/** Create a cache provider with no limit on the size of the cache */
+	public DirectoryCacheProvider(final File directory) throws IOException {
+		this(directory, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param maxBytes
+	 *            The maximum total size of the cache files in the directory
+	 */
+	public DirectoryCacheProvider(final File directory, final long maxBytes) throws IOException {
+		Preconditions.checkArgument(maxBytes > 0, "Maximum cache size must be positive: %s", maxBytes);
+		this.directory = Preconditions.checkNotNull(directory);
+		this.maxBytes = maxBytes;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create cache directory " + directory);
+		LOGGER.debug("Caching to directory {}", directory);
+		loadEntries();
+	}
+
+	/** Read the header of every cache file in the directory, treating the least recently modified files as the least recently used */
+	private void loadEntries() {
+		final File[] files = this.directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(final File dir, final String name) {
+				return name.endsWith(CACHE_FILE_SUFFIX) || name.endsWith(CacheFileSink.TEMP_FILE_SUFFIX);
+			}
+		});
+		if (files == null)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(final File file1, final File file2) {
+				final long lastModified1 = file1.lastModified();
+				final long lastModified2 = file2.lastModified();
+				return lastModified1 < lastModified2 ? -1 : lastModified1 == lastModified2 ? 0 : 1;
+			}
+		});
+		for (final File file : files) {
+			if (file.getName().endsWith(CacheFileSink.TEMP_FILE_SUFFIX)) {
+				// Left behind by a process which stopped while writing account data
+				delete(file);
+				continue;
+			}
+			try {
+				final CacheFileFormat.Header header = CacheFileFormat.readHeader(file);
+				if (file.equals(getCacheFile(header.username))) {
+					addEntry(header.username, new Entry(file, header, file.length()));
+					continue;
+				}
+				LOGGER.debug("Cache file {} does not match its username", file);
+			} catch (final IOException e) {
+				LOGGER.debug("Could not read cache file " + file, e);
+			}
+			// Assume an invalid cache file can be thrown away
+			delete(file);
+		}
+		LOGGER.debug("Found {} cached users using {} bytes", this.entries.size(), this.totalBytes);
+		for (final Entry evicted : evict().values())
+			delete(evicted.file);
+	}
+
+	@Override
+	public synchronized Integer getIterations(final String username) {
+		final Entry entry = this.entries.get(username);
+		return entry == null ? null : entry.header.iterations;
+	}
+
+	@Override
+	public synchronized Integer getAccountVersion(final String username) {
+		final Entry entry = this.entries.get(username);
+		return entry == null ? null : entry.header.accountVersion;
+	}
+
+	@Override
+	public InputStream getAccountData(final String username) throws IOException {
+		final Lock lock = lock(username);
+		try {
+			final Entry entry = getVerifiedEntry(username);
+			return entry == null ? null : CacheFileFormat.openAccountData(entry.file, entry.header);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public ByteBuffer mapAccountData(final String username) throws IOException {
+		final Lock lock = lock(username);
+		try {
+			final Entry entry = getVerifiedEntry(username);
+			return entry == null ? null : CacheFileFormat.mapAccountData(entry.file, entry.header);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the entry for a username, checking its account data against its checksum. A corrupt cache file is deleted. Must be called while
+	 * holding the lock for the username, so that its cache file is not replaced or deleted in the meantime
+	 */
+	private Entry getVerifiedEntry(final String username) {
+		final Entry entry;
+		synchronized (this) {
+			entry = this.entries.get(username);
+		}
+		if (entry == null)
+			return null;
+		try {
+			CacheFileFormat.verify(entry.file, entry.header);
+			return entry;
+		} catch (final IOException e) {
+			synchronized (this) {
+				// The entry may have been evicted while it was being verified, in which case the file is deleted by the eviction
+				if (this.entries.get(username) != entry)
+					return null;
+				this.entries.remove(username);
+				this.totalBytes -= entry.length;
+			}
+			LOGGER.warn("Discarding corrupt cache file " + entry.file, e);
+			delete(entry.file);
+			return null;
+		}
+	}
+
+	@Override
+	public void storeAccountData(final String username, final int iterations, final int accountVersion, final InputStream accountData)
+			throws IOException {
+		final AccountDataSink sink = newAccountDataSink(username, iterations, accountVersion);
+		boolean committed = false;
+		try {
+			ByteStreams.copy(accountData, sink.getOutputStream());
+			sink.commit();
+			committed = true;
+		} finally {
+			accountData.close();
+			if (!committed)
+				sink.abort();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Account data is written to a temporary file in the cache directory, which replaces the user's cache file when the sink is committed.
+	 * Committing may evict other users' cache files to stay within the size budget.
+	 */
+	@Override
+	public AccountDataSink newAccountDataSink(final String username, final int iterations, final int accountVersion)
+			throws IOException {
+		final File cacheFile = getCacheFile(username);
+		return new CacheFileSink(cacheFile, username, iterations, accountVersion) {
+			@Override
+			void install(final File tempFile, final CacheFileFormat.Header header, final long length) throws IOException {
+				final Map<String, Entry> evicted;
+				final Lock lock = lock(username);
+				try {
+					rename(tempFile, cacheFile);
+					synchronized (DirectoryCacheProvider.this) {
+						addEntry(username, new Entry(cacheFile, header, length));
+						evicted = evict();
+					}
+				} finally {
+					lock.unlock();
+				}
+				// Take each evicted user's lock in turn rather than while holding this user's, so that installs cannot deadlock
+				for (final Map.Entry<String, Entry> entry : evicted.entrySet())
+					deleteEvicted(entry.getKey(), entry.getValue());
+			}
+		};
+	}
+
+	/** @return the number of bytes used by the cache files */
+	synchronized long getTotalBytes() {
+		return this.totalBytes;
+	}
+
+	File getCacheFile(final String username) {
+		return new File(this.directory, Hashing.sha256().hashString(username, Charsets.UTF_8) + CACHE_FILE_SUFFIX);
+	}
+
+	private void addEntry(final String username, final Entry entry) {
+		final Entry previous = this.entries.remove(username);
+		if (previous != null)
+			this.totalBytes -= previous.length;
+		this.entries.put(username, entry);
+		this.totalBytes += entry.length;
+	}
+
+	/**
+	 * Remove the least recently used entries until the cache fits in its budget, keeping at least the most recently used one. Must be
+	 * called while holding the lock on this provider
+	 *
+	 * @return the evicted entries by username, whose files still need to be deleted
+	 */
+	private Map<String, Entry> evict() {
+		final Map<String, Entry> evicted = new LinkedHashMap<String, Entry>();
+		final Iterator<Map.Entry<String, Entry>> leastRecentlyUsed = this.entries.entrySet().iterator();
+		while (this.totalBytes > this.maxBytes && this.entries.size() > 1) {
+			final Map.Entry<String, Entry> entry = leastRecentlyUsed.next();
+			leastRecentlyUsed.remove();
+			this.totalBytes -= entry.getValue().length;
+			LOGGER.debug("Evicting cached account data for {}", entry.getKey());
+			evicted.put(entry.getKey(), entry.getValue());
+		}
+		return evicted;
+	}
+
+	/** Delete the file of an evicted entry, unless new account data has been stored for the user since it was evicted */
+	private void deleteEvicted(final String username, final Entry entry) {
+		final Lock lock = lock(username);
+		try {
+			synchronized (this) {
+				if (this.entries.containsKey(username))
+					return;
+			}
+			if (entry.file.exists())
+				delete(entry.file);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** @return the lock for a username, which is held while its cache file is read, replaced or deleted */
+	Lock getLock(final String username) {
+		return this.locks.get(username);
+	}
+
+	private Lock lock(final String username) {
+		final Lock lock = getLock(username);
+		lock.lock();
+		return lock;
+	}
+
+	private static void delete(final File file) {
+		if (!file.delete())
+			LOGGER.warn("Could not delete cache file {}", file);
+	}
+
+	@Override
+	public int hashCode() {
+		return this.directory.hashCode();
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		return obj instanceof DirectoryCacheProvider && this.directory.equals(((DirectoryCacheProvider) obj).directory);
+	}
+}
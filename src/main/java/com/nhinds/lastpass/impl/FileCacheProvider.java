@@ -1,36 +1,34 @@
 package com.nhinds.lastpass.impl;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
 import com.google.common.io.ByteStreams;
-import com.google.common.io.CountingInputStream;
 
 /**
  * Cache provider which caches data to a file. Only data for a single user is stored, and storing data for a new username deletes cached
  * data for other usernames.
  * <p>
- * It is not safe to use multiple instances of this class with the same cache file, or read from this class while calling
- * {@link #storeAccountData(String, int, int, InputStream)} from another thread (although it is safe to call the read mehods from multiple
- * threads at the same time)
+ * Account data is written to a temporary file and renamed over the cache file once it is complete, so a failed or partial write leaves the
+ * previous cache file in place. The cache file records the length and checksum of the account data, so a truncated file is ignored when
+ * the provider is created and a corrupt one is discarded before its account data is returned.
+ * <p>
+ * Instances are safe to use from multiple threads: account data is opened and new account data is installed while holding a lock, so a
+ * reader always opens the cache file its header describes. It is not safe to use multiple instances of this class with the same cache
+ * file. Use {@link SharedFileCacheProvider} to share a cache between processes.
  */
-public class FileCacheProvider implements CacheProvider {
+public class FileCacheProvider implements StreamingCacheProvider {
 	private static final Logger LOGGER = LoggerFactory.getLogger(FileCacheProvider.class);
 
 	private final File cacheFile;
-	private String username;
-	private Integer iterations;
-	private Integer accountVersion;
-	private long skipBytes;
+	/** The header of the cache file, or null if there is no valid cache file. Only replaced while holding the lock on this */
+	private volatile CacheFileFormat.Header header;
 
 	public FileCacheProvider(File cacheFile) {
 		this.cacheFile = Preconditions.checkNotNull(cacheFile);
@@ -38,73 +36,95 @@ public class FileCacheProvider implements CacheProvider {
 		if (cacheFile.isFile()) {
 			LOGGER.debug("Cache file {} exists", cacheFile);
 			try {
-				final CountingInputStream countingInput = new CountingInputStream(new FileInputStream(cacheFile));
-				final DataInputStream cacheInput = new DataInputStream(countingInput);
-				try {
-					this.username = cacheInput.readUTF();
-					this.iterations = cacheInput.readInt();
-					this.accountVersion = cacheInput.readInt();
-					this.skipBytes = countingInput.getCount();
-				} finally {
-					cacheInput.close();
-				}
-			} catch (IOException ignore) {
+				this.header = CacheFileFormat.readHeader(cacheFile);
+			} catch (IOException e) {
 				// Assume an invalid cache file can be thrown away
-				this.username = null;
-				this.iterations = null;
-				this.accountVersion = null;
-				this.skipBytes = 0;
+				LOGGER.debug("Ignoring invalid cache file " + cacheFile, e);
+				this.header = null;
 			}
 		}
 	}
 
 	@Override
 	public Integer getIterations(String username) {
-		if (username.equals(this.username)) {
-			return this.iterations;
-		}
-		return null;
+		final CacheFileFormat.Header header = getHeader(username);
+		return header == null ? null : header.iterations;
 	}
 
 	@Override
 	public Integer getAccountVersion(String username) {
-		if (username.equals(this.username)) {
-			return this.accountVersion;
-		}
-		return null;
+		final CacheFileFormat.Header header = getHeader(username);
+		return header == null ? null : header.accountVersion;
 	}
 
 	@Override
-	public InputStream getAccountData(String username) throws IOException {
-		if (username.equals(this.username)) {
-			FileInputStream fileInputStream = new FileInputStream(this.cacheFile);
-			if (this.skipBytes != fileInputStream.skip(this.skipBytes)) {
-				throw new IOException("Could not skip " + this.skipBytes + " bytes from file");
-			}
-			return fileInputStream;
+	public synchronized InputStream getAccountData(String username) throws IOException {
+		final CacheFileFormat.Header header = getVerifiedHeader(username);
+		return header == null ? null : CacheFileFormat.openAccountData(this.cacheFile, header);
+	}
+
+	@Override
+	public synchronized ByteBuffer mapAccountData(String username) throws IOException {
+		final CacheFileFormat.Header header = getVerifiedHeader(username);
+		return header == null ? null : CacheFileFormat.mapAccountData(this.cacheFile, header);
+	}
+
+	private CacheFileFormat.Header getHeader(String username) {
+		final CacheFileFormat.Header header = this.header;
+		return header != null && username.equals(header.username) ? header : null;
+	}
+
+	/**
+	 * Get the header for a username, checking the account data against its checksum. A corrupt cache file is discarded. Must be called
+	 * while holding the lock on this
+	 */
+	private CacheFileFormat.Header getVerifiedHeader(String username) {
+		final CacheFileFormat.Header header = getHeader(username);
+		if (header == null)
+			return null;
+		try {
+			CacheFileFormat.verify(this.cacheFile, header);
+			return header;
+		} catch (IOException e) {
+			LOGGER.warn("Discarding corrupt cache file " + this.cacheFile, e);
+			this.header = null;
+			return null;
 		}
-		return null;
 	}
 
 	@Override
 	public void storeAccountData(String username, int iterations, int accountVersion, InputStream accountData) throws IOException {
-		this.username = username;
-		this.iterations = iterations;
-		this.accountVersion = accountVersion;
-		final DataOutputStream out = new DataOutputStream(new FileOutputStream(this.cacheFile));
+		final AccountDataSink sink = newAccountDataSink(username, iterations, accountVersion);
+		boolean committed = false;
 		try {
-			out.writeUTF(username);
-			out.writeInt(iterations);
-			out.writeInt(accountVersion);
-			// Record how many bytes we wrote before the account data to skip in getAccountData()
-			this.skipBytes = out.size();
-			ByteStreams.copy(accountData, out);
+			ByteStreams.copy(accountData, sink.getOutputStream());
+			sink.commit();
+			committed = true;
 		} finally {
 			accountData.close();
-			out.close();
+			if (!committed)
+				sink.abort();
 		}
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Account data is written to a temporary file next to the cache file, which replaces the cache file when the sink is committed
+	 */
+	@Override
+	public AccountDataSink newAccountDataSink(String username, int iterations, int accountVersion) throws IOException {
+		return new CacheFileSink(this.cacheFile, username, iterations, accountVersion) {
+			@Override
+			void install(File tempFile, CacheFileFormat.Header header, long length) throws IOException {
+				synchronized (FileCacheProvider.this) {
+					rename(tempFile, FileCacheProvider.this.cacheFile);
+					FileCacheProvider.this.header = header;
+				}
+			}
+		};
+	}
+
 	@Override
 	public int hashCode() {
 		return this.cacheFile.hashCode();
@@ -0,0 +1,136 @@
+package com.nhinds.lastpass.impl;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.net.InternetDomainName;
+
+/**
+ * Index from registrable domain (and equivalent domain group) to the IDs of the accounts whose URLs belong to that domain.
+ * <p>
+ * The index is populated with {@link #add(long, String)} while a password store is being built, after which it is read-only and safe to
+ * query from multiple threads.
+ */
+class HostnameIndex {
+	private final Map<String, Collection<String>> domains;
+	/** Identifier for each distinct equivalent domain group, keyed by the group collection itself */
+	private final Map<Collection<String>, Integer> groupIds = new IdentityHashMap<Collection<String>, Integer>();
+	/** The groups each domain is a member of. A domain may be configured in more than one group */
+	private final Map<String, List<Integer>> groupsByDomain = new HashMap<String, List<Integer>>();
+	private final Map<String, List<Long>> accountsByDomain = new HashMap<String, List<Long>>();
+	private final Map<Integer, List<Long>> accountsByGroup = new HashMap<Integer, List<Long>>();
+	/** Resolved names for hosts seen while building the index, since many accounts usually share a host */
+	private final Map<String, String> resolvedHosts = new HashMap<String, String>();
+
+	HostnameIndex(final Map<String, Collection<String>> domains) {
+		this(domains, null);
+	}
+
+	/**
+	 * @param previous
+	 *            An index built for an earlier version of the same vault, whose resolved hosts are reused so that only hosts which were not
+	 *            in the earlier version need to be resolved. May be null
+	 */
+	HostnameIndex(final Map<String, Collection<String>> domains, final HostnameIndex previous) {
+		this.domains = domains;
+		if (previous != null)
+			this.resolvedHosts.putAll(previous.resolvedHosts);
+		for (final Collection<String> group : domains.values()) {
+			if (!this.groupIds.containsKey(group)) {
+				final Integer groupId = this.groupIds.size();
+				this.groupIds.put(group, groupId);
+				for (final String domain : group) {
+					List<Integer> groups = this.groupsByDomain.get(domain);
+					if (groups == null) {
+						groups = new ArrayList<Integer>(1);
+						this.groupsByDomain.put(domain, groups);
+					}
+					groups.add(groupId);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add an account to the index. Accounts with URLs which cannot be parsed or which have no host are ignored.
+	 */
+	void add(final long id, final String url) {
+		final String host;
+		try {
+			host = new URI(url).getHost();
+		} catch (final URISyntaxException e) {
+			return;
+		}
+		if (host == null)
+			return;
+
+		String resolvedHost = this.resolvedHosts.get(host);
+		if (resolvedHost == null) {
+			resolvedHost = resolveHost(host);
+			this.resolvedHosts.put(host, resolvedHost);
+		}
+
+		addTo(this.accountsByDomain, resolvedHost, id);
+		final List<Integer> groups = this.groupsByDomain.get(resolvedHost);
+		if (groups != null) {
+			for (final Integer groupId : groups) {
+				addTo(this.accountsByGroup, groupId, id);
+			}
+		}
+	}
+
+	/**
+	 * @return the IDs of accounts which could be used to log into a site with the given hostname, in the order they were added
+	 */
+	Collection<Long> getAccountIds(final String hostname) {
+		final String resolvedName = resolveHost(hostname);
+		final Collection<String> group = this.domains.get(resolvedName);
+		final List<Long> accountIds;
+		if (group != null)
+			accountIds = this.accountsByGroup.get(this.groupIds.get(group));
+		else
+			accountIds = this.accountsByDomain.get(resolvedName);
+		if (accountIds == null)
+			return Collections.emptyList();
+		return Collections.unmodifiableList(accountIds);
+	}
+
+	/**
+	 * @return the domains which are considered equivalent to the given hostname
+	 */
+	Collection<String> getCandidateDomains(final String host) {
+		final String resolvedName = resolveHost(host);
+		final Collection<String> candidateDomains = this.domains.get(resolvedName);
+		if (candidateDomains != null)
+			return candidateDomains;
+		return Collections.singleton(resolvedName);
+	}
+
+	static String resolveHost(final String host) {
+		try {
+			InternetDomainName domainName = InternetDomainName.from(host);
+			if (domainName.isUnderPublicSuffix()) {
+				domainName = domainName.topPrivateDomain();
+			}
+			return domainName.toString();
+		} catch (final IllegalArgumentException e) {
+			return host;
+		}
+	}
+
+	private static <K> void addTo(final Map<K, List<Long>> index, final K key, final long id) {
+		List<Long> ids = index.get(key);
+		if (ids == null) {
+			ids = new ArrayList<Long>(2);
+			index.put(key, ids);
+		}
+		ids.add(id);
+	}
+}
@@ -1,11 +1,15 @@
 package com.nhinds.lastpass.impl;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,14 +20,26 @@ import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpTransport;
 import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.nhinds.lastpass.GoogleAuthenticatorRequired;
+import com.nhinds.lastpass.LastPass.PasswordConsumer;
 import com.nhinds.lastpass.LastPass.PasswordStoreBuilder;
 import com.nhinds.lastpass.LastPass.ProgressListener;
 import com.nhinds.lastpass.LastPass.ProgressStatus;
 import com.nhinds.lastpass.LastPassException;
 import com.nhinds.lastpass.PasswordStore;
+import com.nhinds.lastpass.RefreshablePasswordStore;
 import com.nhinds.lastpass.encryption.AES256EncryptionProvider;
 import com.nhinds.lastpass.encryption.EncryptionProvider;
+import com.nhinds.lastpass.encryption.ScheduledKeyProvider;
+import com.nhinds.lastpass.encryption.ScheduledKeyProvider.Priority;
+import com.nhinds.lastpass.impl.StreamingCacheProvider.AccountDataSink;
 import com.nhinds.lastpass.impl.LastPassLoginProvider.LoginResult;
 
 class LastPassBuilderImpl implements PasswordStoreBuilder {
@@ -35,9 +51,12 @@ class LastPassBuilderImpl implements PasswordStoreBuilder {
 	private final HttpRequestFactory requestFactory;
 	private final String username;
 	private final String password;
-	private final CacheProvider cacheProvider;
+	private final StreamingCacheProvider cacheProvider;
 	private final LastPassLoginProvider loginProvider;
 	private final PasswordStoreFactory passwordStoreFactory;
+	private final LoginCoalescer loginCoalescer;
+	/** The password store most recently returned by this builder, which can be refreshed instead of being rebuilt from scratch */
+	private volatile PasswordStore previousPasswordStore;
 
 	public LastPassBuilderImpl(final HttpTransport transport, final String username, final String password,
 			final CacheProvider cacheProvider, final LastPassLoginProvider loginProvider) {
@@ -46,12 +65,23 @@ class LastPassBuilderImpl implements PasswordStoreBuilder {
 
 	LastPassBuilderImpl(final HttpTransport transport, final String username, final String password,
 			final CacheProvider cacheProvider, final LastPassLoginProvider loginProvider, final PasswordStoreFactory passwordStoreFactory) {
+		this(transport, username, password, cacheProvider, loginProvider, passwordStoreFactory, null);
+	}
+
+	/**
+	 * @param loginCoalescer
+	 *            Shares password stores between concurrent logins with the same details, or null to always log in
+	 */
+	LastPassBuilderImpl(final HttpTransport transport, final String username, final String password,
+			final CacheProvider cacheProvider, final LastPassLoginProvider loginProvider, final PasswordStoreFactory passwordStoreFactory,
+			final LoginCoalescer loginCoalescer) {
 		this.username = username;
 		this.password = password;
-		this.cacheProvider = cacheProvider;
+		this.cacheProvider = cacheProvider == null ? null : CacheProviders.streaming(cacheProvider);
 		this.passwordStoreFactory = passwordStoreFactory;
 		this.requestFactory = transport.createRequestFactory();
 		this.loginProvider = loginProvider;
+		this.loginCoalescer = loginCoalescer;
 	}
 
 	@Override
@@ -80,31 +110,308 @@ class LastPassBuilderImpl implements PasswordStoreBuilder {
 
 	@Override
 	public PasswordStore getPasswordStore(final String otp, final String trustLabel, final ProgressListener listener) {
+		final Supplier<PasswordStore> login = new Supplier<PasswordStore>() {
+			@Override
+			public PasswordStore get() {
+				return getAccountData(otp, trustLabel, listener, passwordStoreHandler());
+			}
+		};
+		final PasswordStore passwordStore;
+		if (this.loginCoalescer == null)
+			passwordStore = login.get();
+		else
+			passwordStore = this.loginCoalescer.getPasswordStore(this.username, this.password, this.loginProvider.getDeviceId(), otp,
+					trustLabel, login);
+		this.previousPasswordStore = passwordStore;
+		return passwordStore;
+	}
+
+	@Override
+	public void streamPasswords(final ProgressListener listener, final PasswordConsumer consumer) throws GoogleAuthenticatorRequired {
 		try {
-			if (listener != null)
-				listener.statusChanged(ProgressStatus.LOGGING_IN);
+			streamPasswords(null, null, listener, consumer);
+		} catch (final ErrorResponseException e) {
+			if ("googleauthrequired".equals(e.getError().getCause()))
+				throw new GoogleAuthenticatorRequired(e.getError().getMessage(), e.getCause());
+			throw e;
+		}
+	}
 
-			final LoginResult loginResult = this.loginProvider.login(this.username, this.password, otp, trustLabel, getIterations());
+	@Override
+	public void streamPasswords(final String otp, final String trustLabel, final ProgressListener listener,
+			final PasswordConsumer consumer) {
+		getAccountData(otp, trustLabel, listener, new AccountDataHandler<Void>() {
+			@Override
+			public Void handle(final ByteBuffer accountData, final EncryptionProvider encryptionProvider) {
+				return handle(new ByteBufferInputStream(accountData), encryptionProvider);
+			}
 
-			InputStream accountData = getCachedAccountData(loginResult, loginResult.getAccountsVersion(), loginResult.getIterations());
-			if (accountData == null) {
-				LOGGER.debug("No cached account data found");
-				if (loginResult.getSessionId() == null)
-					throw new LastPassException("LastPass is offline and no cached account data is available");
-				if (listener != null)
-					listener.statusChanged(ProgressStatus.RETRIEVING);
+			@Override
+			public Void handle(final InputStream accountData, final EncryptionProvider encryptionProvider) {
+				LastPassBuilderImpl.this.passwordStoreFactory.streamPasswords(accountData, encryptionProvider, consumer);
+				return null;
+			}
+		});
+	}
 
-				final HttpRequest request = this.requestFactory.buildGetRequest(new GenericUrl(ACCOUNT_DATA_URL));
-				request.getHeaders().setCookie(SESSION_COOKIE_NAME + '=' + loginResult.getSessionId());
-				final HttpResponse response = request.execute();
-				accountData = new CachingInputStream(loginResult, response.getContent());
-				LOGGER.debug("Account data retrieved");
+	@Override
+	public RefreshablePasswordStore getRefreshablePasswordStore(final ProgressListener listener) throws GoogleAuthenticatorRequired {
+		try {
+			return getRefreshablePasswordStore(null, null, listener);
+		} catch (final ErrorResponseException e) {
+			if ("googleauthrequired".equals(e.getError().getCause()))
+				throw new GoogleAuthenticatorRequired(e.getError().getMessage(), e.getCause());
+			throw e;
+		}
+	}
+
+	@Override
+	public RefreshablePasswordStore getRefreshablePasswordStore(final String otp, final String trustLabel,
+			final ProgressListener listener) {
+		if (listener != null)
+			listener.statusChanged(ProgressStatus.LOGGING_IN);
+		final Executor revalidateExecutor = getNetworkPolicy().getRevalidateExecutor();
+		if (otp == null && revalidateExecutor != null) {
+			final LoginResult cachedLogin = cachedLogin();
+			if (cachedLogin != null) {
+				// Serve the cached accounts now, and bring them up to date in the background
+				final SessionPasswordStore passwordStore = new SessionPasswordStore(this, cachedLogin, getPasswordStore(cachedLogin,
+						listener));
+				try {
+					revalidate(revalidateExecutor, passwordStore);
+					return passwordStore;
+				} catch (final RejectedExecutionException e) {
+					// Log in now instead, which refreshes the password store just built from the cached accounts
+					LOGGER.debug("Could not revalidate cached accounts in the background, logging in", e);
+				}
 			}
+		}
+		final LoginResult loginResult = login(otp, trustLabel, getIterations());
+		return new SessionPasswordStore(this, loginResult, getPasswordStore(loginResult, listener));
+	}
 
-			if (listener != null)
-				listener.statusChanged(ProgressStatus.DECRYPTING);
+	/** Refresh a password store built from cached account data on the revalidate executor */
+	private static void revalidate(final Executor revalidateExecutor, final SessionPasswordStore passwordStore) {
+		revalidateExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final Priority previousPriority = ScheduledKeyProvider.setCurrentPriority(Priority.BACKGROUND);
+				try {
+					passwordStore.refresh();
+				} catch (final GoogleAuthenticatorRequired e) {
+					LOGGER.warn("Could not refresh cached accounts: a one-time password is required");
+				} catch (final ErrorResponseException e) {
+					// The cached accounts were served without checking the password, and LastPass has now rejected it
+					LOGGER.warn("LastPass rejected the login for cached accounts, no longer serving them", e);
+					passwordStore.invalidate(e);
+				} catch (final RuntimeException e) {
+					LOGGER.warn("Could not refresh cached accounts", e);
+				} finally {
+					ScheduledKeyProvider.setCurrentPriority(previousPriority);
+				}
+			}
+		});
+	}
+
+	private NetworkPolicy getNetworkPolicy() {
+		return Objects.firstNonNull(this.loginProvider.getNetworkPolicy(), NetworkPolicy.DEFAULT);
+	}
 
-			return this.passwordStoreFactory.getPasswordStore(accountData, new AES256EncryptionProvider(loginResult.getKey()));
+	/** @return a login using only cached account data, or null if there is none */
+	private LoginResult cachedLogin() {
+		try {
+			return this.loginProvider.cachedLogin(this.username, this.password, getIterations());
+		} catch (final IOException e) {
+			LOGGER.debug("Could not log in with cached account data", e);
+			return null;
+		} catch (final GeneralSecurityException e) {
+			throw new LastPassException(e);
+		}
+	}
+
+	/** Log in again without a one-time password, for a password store whose session has expired */
+	LoginResult logInAgain() throws GoogleAuthenticatorRequired {
+		try {
+			return login(null, null, getIterations());
+		} catch (final ErrorResponseException e) {
+			if ("googleauthrequired".equals(e.getError().getCause()))
+				throw new GoogleAuthenticatorRequired(e.getError().getMessage(), e.getCause());
+			throw e;
+		}
+	}
+
+	/** @return the current accounts version for the session from an earlier login, or null if the session has expired */
+	Integer checkSession(final String sessionId) {
+		try {
+			return this.loginProvider.checkSession(sessionId);
+		} catch (final IOException e) {
+			throw new LastPassException("Error connecting to LastPass: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Get the password store for an existing login to back a {@link RefreshablePasswordStore}, refreshing the previous password store where
+	 * possible
+	 */
+	PasswordStore getPasswordStore(final LoginResult loginResult, final ProgressListener listener) {
+		final PasswordStore passwordStore = handle(retrieve(loginResult, listener, null), listener, passwordStoreHandler(true));
+		this.previousPasswordStore = passwordStore;
+		return passwordStore;
+	}
+
+	@Override
+	public ListenableFuture<PasswordStore> getPasswordStoreAsync(final String otp, final String trustLabel,
+			final ProgressListener listener, final Executor ioExecutor, final Executor cpuExecutor) {
+		final AsyncRetrieval retrieval = new AsyncRetrieval(ioExecutor);
+
+		if (listener != null)
+			listener.statusChanged(ProgressStatus.LOGGING_IN);
+		final ListenableFuture<LoginResult> loggedIn = loginAsync(otp, trustLabel, deriveKeyAsync(null, cpuExecutor), false, ioExecutor,
+				cpuExecutor);
+
+		final ListenableFuture<RetrievedAccountData> retrieved = Futures.transform(loggedIn,
+				new AsyncFunction<LoginResult, RetrievedAccountData>() {
+					@Override
+					public ListenableFuture<RetrievedAccountData> apply(final LoginResult loginResult) {
+						return Futures.immediateFuture(retrieve(loginResult, listener, retrieval));
+					}
+				}, ioExecutor);
+
+		final ListenableFuture<PasswordStore> passwordStore = Futures.transform(retrieved,
+				new AsyncFunction<RetrievedAccountData, PasswordStore>() {
+					@Override
+					public ListenableFuture<PasswordStore> apply(final RetrievedAccountData accountData) {
+						final PasswordStore passwordStore = handle(accountData, listener, passwordStoreHandler());
+						LastPassBuilderImpl.this.previousPasswordStore = passwordStore;
+						return Futures.immediateFuture(passwordStore);
+					}
+				}, cpuExecutor);
+
+		passwordStore.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (passwordStore.isCancelled())
+					retrieval.cancel();
+				else
+					retrieval.finished();
+			}
+		}, MoreExecutors.sameThreadExecutor());
+		return passwordStore;
+	}
+
+	/**
+	 * Derive the key for a login on the CPU executor
+	 * 
+	 * @param iterations
+	 *            The number of iterations to derive the key with, or null to use the number from the cache
+	 * @return a future for the number of iterations the key was derived with
+	 */
+	private ListenableFuture<Integer> deriveKeyAsync(final Integer iterations, final Executor cpuExecutor) {
+		final ListenableFutureTask<Integer> keyDerived = ListenableFutureTask.create(new Callable<Integer>() {
+			@Override
+			public Integer call() throws GeneralSecurityException {
+				final int keyIterations = iterations == null ? getIterations() : iterations;
+				LastPassBuilderImpl.this.loginProvider.deriveKey(LastPassBuilderImpl.this.username, LastPassBuilderImpl.this.password,
+						keyIterations);
+				return keyIterations;
+			}
+		});
+		cpuExecutor.execute(keyDerived);
+		return keyDerived;
+	}
+
+	/**
+	 * Log in on the I/O executor once the key has been derived. If LastPass uses a different number of iterations, the key is derived
+	 * again on the CPU executor before logging in again, so that the I/O executor never derives keys
+	 * 
+	 * @param serverProvided
+	 *            Whether the key was derived with the number of iterations given by LastPass, so that it must not ask for another number
+	 */
+	private ListenableFuture<LoginResult> loginAsync(final String otp, final String trustLabel, final ListenableFuture<Integer> keyDerived,
+			final boolean serverProvided, final Executor ioExecutor, final Executor cpuExecutor) {
+		return Futures.transform(keyDerived, new AsyncFunction<Integer, LoginResult>() {
+			@Override
+			public ListenableFuture<LoginResult> apply(final Integer iterations) throws GoogleAuthenticatorRequired {
+				try {
+					return Futures.immediateFuture(login(otp, trustLabel, iterations, false));
+				} catch (final ErrorResponseException e) {
+					final Integer requiredIterations = e.getError().getIterations();
+					if (requiredIterations != null && requiredIterations.intValue() != iterations) {
+						if (serverProvided)
+							throw new IllegalStateException("Expected " + iterations + " iterations but response indicated "
+									+ requiredIterations);
+						LOGGER.debug("LastPass uses {} iterations, deriving the key again", requiredIterations);
+						return loginAsync(otp, trustLabel, deriveKeyAsync(requiredIterations, cpuExecutor), true, ioExecutor, cpuExecutor);
+					}
+					if (otp == null && "googleauthrequired".equals(e.getError().getCause()))
+						throw new GoogleAuthenticatorRequired(e.getError().getMessage(), e.getCause());
+					throw e;
+				}
+			}
+		}, ioExecutor);
+	}
+
+	/** Handles the account data for a login, from the cache or from LastPass */
+	private interface AccountDataHandler<T> {
+		T handle(ByteBuffer accountData, EncryptionProvider encryptionProvider);
+
+		T handle(InputStream accountData, EncryptionProvider encryptionProvider);
+	}
+
+	/** @return a handler which builds a password store, refreshing the previous one where possible */
+	private AccountDataHandler<PasswordStore> passwordStoreHandler() {
+		return passwordStoreHandler(false);
+	}
+
+	/**
+	 * @param refreshable
+	 *            Whether the password store is for a {@link RefreshablePasswordStore}, so that the account data it is built from should be
+	 *            tracked for the next refresh. Other password stores only start tracking once they have been refreshed
+	 * @return a handler which builds a password store, refreshing the previous one where possible
+	 */
+	private AccountDataHandler<PasswordStore> passwordStoreHandler(final boolean refreshable) {
+		return new AccountDataHandler<PasswordStore>() {
+			@Override
+			public PasswordStore handle(final ByteBuffer accountData, final EncryptionProvider encryptionProvider) {
+				return LastPassBuilderImpl.this.passwordStoreFactory.getPasswordStore(accountData, encryptionProvider);
+			}
+
+			@Override
+			public PasswordStore handle(final InputStream accountData, final EncryptionProvider encryptionProvider) {
+				final PasswordStore previousPasswordStore = LastPassBuilderImpl.this.previousPasswordStore;
+				if (previousPasswordStore != null)
+					return LastPassBuilderImpl.this.passwordStoreFactory.refreshPasswordStore(previousPasswordStore, accountData,
+							encryptionProvider);
+				if (refreshable)
+					return LastPassBuilderImpl.this.passwordStoreFactory.getPasswordStore(accountData, encryptionProvider, true);
+				return LastPassBuilderImpl.this.passwordStoreFactory.getPasswordStore(accountData, encryptionProvider);
+			}
+		};
+	}
+
+	/** Log in and pass the account data to a handler, mapping it from the cache where possible */
+	private <T> T getAccountData(final String otp, final String trustLabel, final ProgressListener listener,
+			final AccountDataHandler<T> handler) {
+		if (listener != null)
+			listener.statusChanged(ProgressStatus.LOGGING_IN);
+		final LoginResult loginResult = login(otp, trustLabel, getIterations());
+		return handle(retrieve(loginResult, listener, null), listener, handler);
+	}
+
+	private LoginResult login(final String otp, final String trustLabel, final int iterations) {
+		return login(otp, trustLabel, iterations, true);
+	}
+
+	/**
+	 * @param retryIterations
+	 *            Whether to derive the key again and retry if LastPass uses a different number of iterations, rather than failing with an
+	 *            {@link ErrorResponseException}
+	 */
+	private LoginResult login(final String otp, final String trustLabel, final int iterations, final boolean retryIterations) {
+		try {
+			if (!retryIterations)
+				return this.loginProvider.login(this.username, this.password, otp, trustLabel, iterations, false);
+			return this.loginProvider.login(this.username, this.password, otp, trustLabel, iterations);
 		} catch (final IOException e) {
 			throw new LastPassException("Error connecting to LastPass: " + e.getMessage(), e);
 		} catch (final GeneralSecurityException e) {
@@ -112,19 +419,123 @@ class LastPassBuilderImpl implements PasswordStoreBuilder {
 		}
 	}
 
-	private InputStream getCachedAccountData(final LoginResult loginResult, final int accountsVersion, final int iterations) {
+	/**
+	 * Find the account data for a login in the cache, or start downloading it from LastPass if it is not cached
+	 * 
+	 * @param retrieval
+	 *            The asynchronous retrieval this is part of, or null if it is synchronous
+	 */
+	private RetrievedAccountData retrieve(final LoginResult loginResult, final ProgressListener listener,
+			final AsyncRetrieval retrieval) {
+		final RetrievedAccountData accountData = new RetrievedAccountData(loginResult);
+		if (isCached(loginResult.getAccountsVersion(), loginResult.getIterations())) {
+			// Prefer a mapped copy of the cached data, which can be decoded on demand, to reading it all onto the heap
+			accountData.mapped = mapCachedAccountData();
+			accountData.stream = accountData.mapped == null ? getCachedAccountData() : null;
+		}
+		if (accountData.isMissing()) {
+			LOGGER.debug("No cached account data found");
+			if (loginResult.getSessionId() == null)
+				throw new LastPassException("LastPass is offline and no cached account data is available");
+			// A shared cache may wait for another process to store the same account data before returning a sink, so check again
+			accountData.cacheSink = newCacheSink(loginResult);
+			if (accountData.cacheSink != null && isCached(loginResult.getAccountsVersion(), loginResult.getIterations())) {
+				accountData.mapped = mapCachedAccountData();
+				accountData.stream = accountData.mapped == null ? getCachedAccountData() : null;
+				if (!accountData.isMissing()) {
+					accountData.cacheSink.abort();
+					accountData.cacheSink = null;
+				}
+			}
+		}
+		if (accountData.isMissing()) {
+			if (listener != null)
+				listener.statusChanged(ProgressStatus.RETRIEVING);
+			if (retrieval != null)
+				retrieval.started(accountData);
+
+			boolean retrieved = false;
+			try {
+				final HttpRequest request = this.requestFactory.buildGetRequest(new GenericUrl(ACCOUNT_DATA_URL));
+				getNetworkPolicy().configure(request);
+				request.getHeaders().setCookie(SESSION_COOKIE_NAME + '=' + loginResult.getSessionId());
+				final HttpResponse response = request.execute();
+				if (retrieval != null)
+					retrieval.downloading(response);
+				accountData.stream = response.getContent();
+				if (accountData.cacheSink != null)
+					accountData.stream = accountData.cachingStream = new TeeInputStream(accountData.stream, accountData.cacheSink);
+				if (retrieval != null)
+					accountData.stream = retrieval.readAhead(accountData.stream);
+				retrieved = true;
+			} catch (final IOException e) {
+				throw new LastPassException("Error connecting to LastPass: " + e.getMessage(), e);
+			} finally {
+				if (!retrieved)
+					accountData.abortCache();
+			}
+			LOGGER.debug("Account data retrieved");
+		}
+		return accountData;
+	}
+
+	/** Pass the account data for a login to a handler, caching it if it was downloaded and handled successfully */
+	private <T> T handle(final RetrievedAccountData accountData, final ProgressListener listener,
+			final AccountDataHandler<T> handler) {
+		if (listener != null)
+			listener.statusChanged(ProgressStatus.DECRYPTING);
+
+		final EncryptionProvider encryptionProvider = new AES256EncryptionProvider(accountData.loginResult.getKey());
+		final T result;
+		if (accountData.mapped != null) {
+			result = handler.handle(accountData.mapped, encryptionProvider);
+		} else {
+			try {
+				result = handler.handle(accountData.stream, encryptionProvider);
+			} catch (final RuntimeException e) {
+				accountData.abortCache();
+				throw e;
+			}
+		}
+		accountData.commitCache();
+		// The login is complete, so the keys derived for it are no longer needed
+		this.loginProvider.invalidateKeys(this.username);
+		return result;
+	}
+
+	private boolean isCached(final int accountsVersion, final int iterations) {
 		try {
 			final Integer cachedAccountsVersion = this.cacheProvider.getAccountVersion(this.username);
-			if (cachedAccountsVersion != null && cachedAccountsVersion.equals(accountsVersion) && getIterations() == iterations) {
+			return cachedAccountsVersion != null && cachedAccountsVersion.equals(accountsVersion) && getIterations() == iterations;
+		} catch (IOException ignore) {
+			return false;
+		}
+	}
+
+	private ByteBuffer mapCachedAccountData() {
+		try {
+			final ByteBuffer accountData = this.cacheProvider.mapAccountData(this.username);
+			if (accountData != null)
 				LOGGER.debug("Cached account data found");
-				return this.cacheProvider.getAccountData(this.username);
-			}
+			return accountData;
+		} catch (IOException e) {
+			LOGGER.debug("Could not map cached account data", e);
+			return null;
+		}
+	}
+
+	private InputStream getCachedAccountData() {
+		try {
+			final InputStream accountData = this.cacheProvider.getAccountData(this.username);
+			if (accountData != null)
+				LOGGER.debug("Cached account data found");
+			return accountData;
 		} catch (IOException ignore) {
+			return null;
 		}
-		return null;
 	}
 
-	private int getIterations() throws IOException {
+	private int getIterations() {
 		Integer cachedIterations;
 		try {
 			cachedIterations = this.cacheProvider.getIterations(this.username);
@@ -134,56 +545,219 @@ class LastPassBuilderImpl implements PasswordStoreBuilder {
 		return cachedIterations == null ? 1 : cachedIterations;
 	}
 
-	private class CachingInputStream extends FilterInputStream {
-		private final ByteArrayOutputStream accountDataCopy = new ByteArrayOutputStream();
-		private final LoginResult loginResult;
+	private AccountDataSink newCacheSink(final LoginResult loginResult) {
+		try {
+			return this.cacheProvider.newAccountDataSink(this.username, loginResult.getIterations(), loginResult.getAccountsVersion());
+		} catch (final IOException e) {
+			LOGGER.warn("Could not cache account data", e);
+			return null;
+		}
+	}
+
+	/** Account data for a login, either mapped or read from the cache or downloaded from LastPass */
+	private static class RetrievedAccountData {
+		final LoginResult loginResult;
+		ByteBuffer mapped;
+		InputStream stream;
+		/** The sink downloaded account data is cached in, or null if it is not being cached */
+		AccountDataSink cacheSink;
+		/** The stream copying downloaded account data into the cache sink */
+		TeeInputStream cachingStream;
+		private boolean cacheFinished;
 
-		public CachingInputStream(LoginResult loginResult, InputStream content) {
-			super(content);
+		RetrievedAccountData(final LoginResult loginResult) {
 			this.loginResult = loginResult;
 		}
 
+		boolean isMissing() {
+			return this.mapped == null && this.stream == null;
+		}
+
+		/** Commit the cache sink, unless caching failed or the sink has already been committed or aborted */
+		synchronized void commitCache() {
+			if (this.cacheSink == null || this.cacheFinished)
+				return;
+			this.cacheFinished = true;
+			if (this.cachingStream == null || this.cachingStream.isCacheFailed()) {
+				this.cacheSink.abort();
+				return;
+			}
+			try {
+				this.cacheSink.commit();
+			} catch (final IOException e) {
+				LOGGER.warn("Could not cache account data", e);
+			}
+		}
+
+		/** Abort the cache sink, unless it has already been committed or aborted */
+		synchronized void abortCache() {
+			if (this.cacheSink == null || this.cacheFinished)
+				return;
+			this.cacheFinished = true;
+			this.cacheSink.abort();
+		}
+	}
+
+	/**
+	 * The state of an asynchronous retrieval which needs cleaning up if it is cancelled: the account data download in progress, the cache
+	 * sink it is being written to and the stream reading it ahead on the I/O executor
+	 */
+	private static class AsyncRetrieval {
+		private final Executor ioExecutor;
+		private RetrievedAccountData accountData;
+		private HttpResponse response;
+		private InputStream readAhead;
+		private boolean cancelled;
+		private boolean finished;
+
+		AsyncRetrieval(final Executor ioExecutor) {
+			this.ioExecutor = ioExecutor;
+		}
+
+		synchronized void started(final RetrievedAccountData accountData) {
+			if (this.cancelled)
+				throw new CancellationException();
+			this.accountData = accountData;
+		}
+
+		synchronized void downloading(final HttpResponse response) throws IOException {
+			if (this.cancelled) {
+				response.disconnect();
+				throw new CancellationException();
+			}
+			this.response = response;
+		}
+
+		/**
+		 * @return a stream which reads the download ahead in bounded blocks on the I/O executor, so that decrypting it on the CPU executor
+		 *         never reads from the network
+		 */
+		synchronized InputStream readAhead(final InputStream download) {
+			this.readAhead = new ReadAheadInputStream(download, this.ioExecutor, ParsePipeline.BLOCK_SIZE,
+					ParsePipeline.DEFAULT_READ_AHEAD_BLOCKS, new ParsePipeline.StageTimings());
+			return this.readAhead;
+		}
+
+		/** Disconnect the download in progress and abort its cache sink */
+		synchronized void cancel() {
+			if (this.finished)
+				return;
+			this.cancelled = true;
+			if (this.response != null) {
+				LOGGER.debug("Disconnecting cancelled account data download");
+				try {
+					this.response.disconnect();
+				} catch (final IOException e) {
+					LOGGER.debug("Could not disconnect account data download", e);
+				}
+			}
+			if (this.accountData != null)
+				this.accountData.abortCache();
+			closeReadAhead();
+		}
+
+		/**
+		 * Release the download once the retrieval has succeeded or failed, aborting its cache sink if it was not committed and stopping a
+		 * read ahead which was not read to the end
+		 */
+		synchronized void finished() {
+			this.finished = true;
+			if (this.accountData != null)
+				this.accountData.abortCache();
+			closeReadAhead();
+			this.accountData = null;
+			this.response = null;
+		}
+
+		private void closeReadAhead() {
+			if (this.readAhead == null)
+				return;
+			try {
+				this.readAhead.close();
+			} catch (final IOException e) {
+				LOGGER.debug("Could not close account data download", e);
+			}
+			this.readAhead = null;
+		}
+	}
+
+	/**
+	 * Stream which copies everything read from it into a cache sink. Caching is best effort: if writing to the sink fails, the data is still
+	 * returned to the reader and the sink is marked as failed.
+	 */
+	private static class TeeInputStream extends FilterInputStream {
+		private static final int SKIP_BUFFER_SIZE = 8192;
+
+		private final OutputStream cacheOut;
+		private boolean cacheFailed;
+
+		public TeeInputStream(final InputStream content, final AccountDataSink cacheSink) {
+			super(content);
+			this.cacheOut = cacheSink.getOutputStream();
+		}
+
+		boolean isCacheFailed() {
+			return this.cacheFailed;
+		}
+
 		@Override
 		public int read() throws IOException {
-			int read = super.read();
-			if (read != -1)
-				this.accountDataCopy.write(read);
+			final int read = super.read();
+			if (read != -1 && !this.cacheFailed) {
+				try {
+					this.cacheOut.write(read);
+				} catch (final IOException e) {
+					cacheFailed(e);
+				}
+			}
 			return read;
 		}
 
 		@Override
-		public int read(byte[] b, int off, int len) throws IOException {
-			int read = super.read(b, off, len);
-			if (read != -1)
-				this.accountDataCopy.write(b, off, read);
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			final int read = super.read(b, off, len);
+			if (read > 0 && !this.cacheFailed) {
+				try {
+					this.cacheOut.write(b, off, read);
+				} catch (final IOException e) {
+					cacheFailed(e);
+				}
+			}
 			return read;
 		}
-		
+
 		@Override
-		public long skip(long bytesToSkip) throws IOException {
-			byte[] skipped = new byte[(int) bytesToSkip];
-			return read(skipped);
+		public long skip(final long bytesToSkip) throws IOException {
+			if (bytesToSkip <= 0)
+				return 0;
+			// Skipped bytes still need to be cached, so read them through a bounded buffer
+			final byte[] buffer = new byte[(int) Math.min(bytesToSkip, SKIP_BUFFER_SIZE)];
+			long skipped = 0;
+			while (skipped < bytesToSkip) {
+				final int read = read(buffer, 0, (int) Math.min(bytesToSkip - skipped, buffer.length));
+				if (read == -1)
+					break;
+				skipped += read;
+			}
+			return skipped;
 		}
 
-		@Override
-		public void close() throws IOException {
-			super.close();
-			InputStream accountData = new ByteArrayInputStream(this.accountDataCopy.toByteArray());
-			LastPassBuilderImpl.this.cacheProvider.storeAccountData(LastPassBuilderImpl.this.username, this.loginResult.getIterations(),
-					this.loginResult.getAccountsVersion(), accountData);
+		private void cacheFailed(final IOException e) {
+			LOGGER.warn("Could not cache account data", e);
+			this.cacheFailed = true;
 		}
-		
+
 		// Simple implementation, does not support mark or reset
-		
+
 		@Override
 		public boolean markSupported() {
 			return false;
 		}
-		
+
 		@Override
-		public void mark(int readlimit) {
+		public void mark(final int readlimit) {
 		}
-		
+
 		@Override
 		public synchronized void reset() throws IOException {
 			throw new IOException("mark/reset not supported");
@@ -191,8 +765,55 @@ class LastPassBuilderImpl implements PasswordStoreBuilder {
 	}
 
 	static class PasswordStoreFactory {
+		private final ParsePipeline pipeline;
+
+		PasswordStoreFactory() {
+			this(null);
+		}
+
+		/**
+		 * @param pipeline
+		 *            How to parse downloaded accounts in parallel, or null to parse them on the calling thread
+		 */
+		PasswordStoreFactory(final ParsePipeline pipeline) {
+			this.pipeline = pipeline;
+		}
+
 		public PasswordStore getPasswordStore(final InputStream accountsStream, final EncryptionProvider decryptionProvider) {
-			return new PasswordStoreImpl(accountsStream, decryptionProvider);
+			return getPasswordStore(accountsStream, decryptionProvider, false);
+		}
+
+		/**
+		 * @param refreshable
+		 *            Whether the password store is likely to be refreshed, in which case the hash of each account is recorded so that the
+		 *            refresh can reuse unchanged accounts
+		 */
+		public PasswordStore getPasswordStore(final InputStream accountsStream, final EncryptionProvider decryptionProvider,
+				final boolean refreshable) {
+			return new PasswordStoreImpl(new PasswordStoreReader(accountsStream, decryptionProvider, this.pipeline, null, null,
+					refreshable));
+		}
+
+		/**
+		 * Create a password store from a newer version of the account data the given password store was created from, reusing its
+		 * unchanged accounts where possible. The new password store can be refreshed in turn
+		 */
+		public PasswordStore refreshPasswordStore(final PasswordStore previous, final InputStream accountsStream,
+				final EncryptionProvider decryptionProvider) {
+			if (previous instanceof PasswordStoreImpl)
+				return ((PasswordStoreImpl) previous).refresh(accountsStream, decryptionProvider, this.pipeline);
+			if (previous instanceof MappedPasswordStore)
+				return PasswordStoreImpl.refresh((MappedPasswordStore) previous, accountsStream, decryptionProvider, this.pipeline);
+			return getPasswordStore(accountsStream, decryptionProvider, true);
+		}
+
+		public PasswordStore getPasswordStore(final ByteBuffer accountData, final EncryptionProvider decryptionProvider) {
+			return new MappedPasswordStore(accountData, decryptionProvider);
+		}
+
+		public void streamPasswords(final InputStream accountsStream, final EncryptionProvider decryptionProvider,
+				final PasswordConsumer consumer) {
+			new PasswordStoreReader(accountsStream, decryptionProvider, this.pipeline, null, Preconditions.checkNotNull(consumer));
 		}
 	}
 }
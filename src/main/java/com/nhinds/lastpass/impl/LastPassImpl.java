@@ -1,38 +1,111 @@
 package com.nhinds.lastpass.impl;
 
 import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
 
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.common.base.Objects;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.nhinds.lastpass.GoogleAuthenticatorRequired;
 import com.nhinds.lastpass.LastPass;
 import com.nhinds.lastpass.LastPassFactory;
 import com.nhinds.lastpass.PasswordStore;
+import com.nhinds.lastpass.encryption.KeyProvider;
 import com.nhinds.lastpass.encryption.PBKDF2SHA256KeyProvider;
+import com.nhinds.lastpass.impl.LastPassBuilderImpl.PasswordStoreFactory;
 
+/**
+ * LastPass implementation which is safe to share between threads, provided its cache provider is. All builders share one HTTP transport,
+ * key provider, derived key cache and login coalescer, and builders for the same device identifier share a login provider.
+ */
 public class LastPassImpl implements LastPass {
+	/** The number of device identifiers to keep login providers for */
+	static final int MAX_LOGIN_PROVIDERS = 1000;
 
 	private final HttpTransport transport;
 	private final CacheProvider cacheProvider;
+	/** Shared by all builders so that a login retried through a new builder also reuses the derived key */
+	private final DerivedKeyCache derivedKeyCache = new DerivedKeyCache();
+	/** Shared by all builders so that concurrent logins for the same user through different builders only log in once */
+	private final LoginCoalescer loginCoalescer = new LoginCoalescer();
+	private final PasswordStoreFactory passwordStoreFactory;
+	private final NetworkPolicy networkPolicy;
+	private final KeyProvider keyProvider;
+	/** Login providers by device identifier, which are immutable and so can be shared by every builder for the device */
+	private final LoadingCache<Optional<String>, LastPassLoginProvider> loginProviders;
 
 	public LastPassImpl(final CacheProvider cacheProvider) {
 		this(cacheProvider, new NetHttpTransport());
 	}
 
 	public LastPassImpl(final CacheProvider cacheProvider, final HttpTransport transport) {
+		this(cacheProvider, transport, (ParsePipeline) null);
+	}
+
+	/**
+	 * @param parseExecutor
+	 *            The executor to parse downloaded accounts on in parallel, or null to parse them on the thread building the password
+	 *            store. The executor is not shut down by this class
+	 */
+	public LastPassImpl(final CacheProvider cacheProvider, final HttpTransport transport, final ExecutorService parseExecutor) {
+		this(cacheProvider, transport, ParsePipeline.forExecutor(parseExecutor));
+	}
+
+	/**
+	 * @param pipeline
+	 *            How to read, split and decrypt downloaded account data on separate threads, or null to parse it on the thread building
+	 *            the password store
+	 */
+	public LastPassImpl(final CacheProvider cacheProvider, final HttpTransport transport, final ParsePipeline pipeline) {
+		this(cacheProvider, transport, pipeline, NetworkPolicy.DEFAULT);
+	}
+
+	/**
+	 * @param pipeline
+	 *            How to read, split and decrypt downloaded account data on separate threads, or null to parse it on the thread building
+	 *            the password store
+	 * @param networkPolicy
+	 *            The timeouts, circuit breaker and stale-while-revalidate mode to use when talking to LastPass
+	 */
+	public LastPassImpl(final CacheProvider cacheProvider, final HttpTransport transport, final ParsePipeline pipeline,
+			final NetworkPolicy networkPolicy) {
+		this(cacheProvider, transport, pipeline, networkPolicy, new PBKDF2SHA256KeyProvider());
+	}
+
+	/**
+	 * @param keyProvider
+	 *            The key provider to derive keys with. A {@link com.nhinds.lastpass.encryption.ScheduledKeyProvider} limits the key
+	 *            derivations run at once
+	 */
+	public LastPassImpl(final CacheProvider cacheProvider, final HttpTransport transport, final ParsePipeline pipeline,
+			final NetworkPolicy networkPolicy, final KeyProvider keyProvider) {
 		this.cacheProvider = Preconditions.checkNotNull(cacheProvider);
 		this.transport = Preconditions.checkNotNull(transport);
+		this.passwordStoreFactory = new PasswordStoreFactory(pipeline);
+		this.networkPolicy = Preconditions.checkNotNull(networkPolicy);
+		this.keyProvider = Preconditions.checkNotNull(keyProvider);
+		this.loginProviders = CacheBuilder.newBuilder().maximumSize(MAX_LOGIN_PROVIDERS)
+				.build(new CacheLoader<Optional<String>, LastPassLoginProvider>() {
+					@Override
+					public LastPassLoginProvider load(final Optional<String> deviceId) {
+						return new LastPassLoginProvider(LastPassImpl.this.keyProvider, deviceId.orNull(), LastPassImpl.this.cacheProvider,
+								LastPassImpl.this.transport, LastPassImpl.this.derivedKeyCache, LastPassImpl.this.networkPolicy);
+					}
+				});
 	}
 
 	@Override
 	public PasswordStoreBuilder getPasswordStoreBuilder(final String username, final String password,
 			final String deviceId) {
-		final LastPassLoginProvider loginProvider = new LastPassLoginProvider(new PBKDF2SHA256KeyProvider(), deviceId, this.cacheProvider,
-				this.transport);
-		return new LastPassBuilderImpl(this.transport, username, password, this.cacheProvider, loginProvider);
+		final LastPassLoginProvider loginProvider = this.loginProviders.getUnchecked(Optional.fromNullable(deviceId));
+		return new LastPassBuilderImpl(this.transport, username, password, this.cacheProvider, loginProvider, this.passwordStoreFactory,
+				this.loginCoalescer);
 	}
 
 	@Override
@@ -2,8 +2,10 @@ package com.nhinds.lastpass.impl;
 
 import java.io.IOException;
 import java.net.ConnectException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -28,6 +30,9 @@ import com.nhinds.lastpass.impl.dto.LastPassResponse;
 public class LastPassLoginProvider {
 	private static final Logger LOGGER = LoggerFactory.getLogger(LastPassLoginProvider.class);
 
+	static final String LOGIN_CHECK_URL = "https://lastpass.com/login_check.php";
+	private static final String SKIPPED_MESSAGE = "LastPass was skipped after repeated connection failures";
+
 	public static class LoginResult {
 		private final String sessionId;
 		private final byte[] key;
@@ -72,27 +77,133 @@ public class LastPassLoginProvider {
 	private final String deviceId;
 	private final CacheProvider cacheProvider;
 	private final HttpRequestFactory requestFactory;
+	private final DerivedKeyCache derivedKeyCache;
+	private final NetworkPolicy networkPolicy;
 
 	public LastPassLoginProvider(KeyProvider keyProvider, String deviceId, CacheProvider cacheProvider, HttpTransport transport) {
+		this(keyProvider, deviceId, cacheProvider, transport, new DerivedKeyCache());
+	}
+
+	LastPassLoginProvider(KeyProvider keyProvider, String deviceId, CacheProvider cacheProvider, HttpTransport transport,
+			DerivedKeyCache derivedKeyCache) {
+		this(keyProvider, deviceId, cacheProvider, transport, derivedKeyCache, NetworkPolicy.DEFAULT);
+	}
+
+	LastPassLoginProvider(KeyProvider keyProvider, String deviceId, CacheProvider cacheProvider, HttpTransport transport,
+			DerivedKeyCache derivedKeyCache, final NetworkPolicy networkPolicy) {
 		this.keyProvider = keyProvider;
 		this.deviceId = deviceId;
 		this.cacheProvider = cacheProvider;
-		this.requestFactory = transport.createRequestFactory(XML_REQUEST_INITIALIZER);
+		this.requestFactory = transport.createRequestFactory(new HttpRequestInitializer() {
+			@Override
+			public void initialize(HttpRequest request) throws IOException {
+				XML_REQUEST_INITIALIZER.initialize(request);
+				networkPolicy.configure(request);
+			}
+		});
+		this.derivedKeyCache = derivedKeyCache;
+		this.networkPolicy = networkPolicy;
+	}
+
+	/** @return how this provider talks to LastPass */
+	public NetworkPolicy getNetworkPolicy() {
+		return this.networkPolicy;
+	}
+
+	/**
+	 * Log in using only cached account data, without contacting LastPass. The password is not checked, so decrypting the cached account
+	 * data with the returned key only succeeds if the password is correct.
+	 * 
+	 * @return The login, with no session, or null if no account data is cached for the given number of iterations
+	 */
+	public LoginResult cachedLogin(String username, String password, int iterations) throws GeneralSecurityException, IOException {
+		Integer cachedIterations = this.cacheProvider.getIterations(username);
+		Integer cachedAccountsVersion = this.cacheProvider.getAccountVersion(username);
+		if (cachedIterations == null || cachedAccountsVersion == null || cachedIterations.intValue() != iterations)
+			return null;
+		LOGGER.debug("Logging in with cached account data");
+		byte[] key = this.derivedKeyCache.getKey(this.keyProvider, username, password, iterations);
+		return new LoginResult(null, key, cachedAccountsVersion, iterations);
+	}
+
+	/** @return the identifier of the device logging in, or null if none was provided */
+	public String getDeviceId() {
+		return this.deviceId;
 	}
 
 	public LoginResult login(String username, String password, final String otp, final String trustLabel, final int iterations)
 			throws GeneralSecurityException, IOException {
+		return login(username, password, otp, trustLabel, iterations, true);
+	}
+
+	/**
+	 * @param retryIterations
+	 *            Whether to derive the key again and retry the login if LastPass indicates a different number of iterations. If false, the
+	 *            login fails with an {@link ErrorResponseException} whose error gives the number of iterations instead, so that the caller
+	 *            can derive the key with {@link #deriveKey} on another thread before logging in again
+	 */
+	public LoginResult login(String username, String password, final String otp, final String trustLabel, final int iterations,
+			final boolean retryIterations) throws GeneralSecurityException, IOException {
 		if (this.deviceId == null && trustLabel != null)
 			throw new IllegalArgumentException("Cannot specify a trusted device label if no device ID was provided");
 
-		return login(username, password, otp, trustLabel, iterations, false);
+		return login(username, password, otp, trustLabel, iterations, false, retryIterations);
+	}
+
+	/**
+	 * Derive the key for a login ahead of time, so that a following call to {@link #login} with the same details does not need to derive
+	 * it. This lets the key derivation run on a different thread to the login request.
+	 */
+	public void deriveKey(String username, String password, int iterations) throws GeneralSecurityException {
+		Arrays.fill(this.derivedKeyCache.getKey(this.keyProvider, username, password, iterations), (byte) 0);
+	}
+
+	/** Remove and zero the keys derived for a user's logins, once the login they were derived for is complete */
+	void invalidateKeys(String username) {
+		this.derivedKeyCache.invalidate(username);
+	}
+
+	/**
+	 * Check whether the session from an earlier login is still valid, without logging in again
+	 * 
+	 * @return The current accounts version, or null if the session has expired
+	 */
+	public Integer checkSession(final String sessionId) throws IOException {
+		LOGGER.debug("Sending login check request");
+		final Map<String, Object> options = new HashMap<String, Object>();
+		options.put("method", "cr");
+		final HttpRequest request = this.requestFactory.buildPostRequest(new GenericUrl(LOGIN_CHECK_URL), new UrlEncodedContent(options));
+		request.getHeaders().setCookie(LastPassBuilderImpl.SESSION_COOKIE_NAME + '=' + sessionId);
+
+		final CircuitBreaker circuitBreaker = this.networkPolicy.getCircuitBreaker();
+		if (circuitBreaker != null && !circuitBreaker.allowRequest())
+			throw new ConnectException(SKIPPED_MESSAGE);
+		final LastPassResponse response;
+		try {
+			final HttpResponse clientResponse = request.execute();
+			recordSuccess(circuitBreaker);
+			response = clientResponse.parseAs(LastPassResponse.class);
+		} catch (final IOException e) {
+			if (isUnreachable(e))
+				recordFailure(circuitBreaker);
+			throw e;
+		} catch (final RuntimeException e) {
+			throw new LastPassException("Error parsing login check response: " + e.getMessage(), e);
+		}
+		if (response != null && response.getOk() != null) {
+			LOGGER.debug("Session is valid: {}", response.getOk());
+			return response.getOk().getAccountsVersion();
+		}
+		LOGGER.debug("Session has expired: {}", response);
+		return null;
 	}
 
 	private LoginResult login(String username, String password, final String otp, final String trustLabel, final int iterations,
-			boolean serverProvided) throws GeneralSecurityException, IOException {
+			boolean serverProvided, final boolean retryIterations) throws GeneralSecurityException, IOException {
 		LOGGER.debug("Sending login request (serverProvided: {})", serverProvided);
 		
-		byte[] key = this.keyProvider.getKey(username, password, iterations);
+		// Retries of the same login (e.g. with a one-time password) reuse the key derived by the first attempt
+		byte[] key = this.derivedKeyCache.getKey(this.keyProvider, username, password, iterations);
 		final String hash = this.keyProvider.getHash(key, password, iterations);
 		final Map<String, Object> options = new HashMap<String, Object>();
 		options.put("method", "cr");
@@ -111,17 +222,30 @@ public class LastPassLoginProvider {
 		}
 		options.put("iterations", iterations);
 
+		final CircuitBreaker circuitBreaker = this.networkPolicy.getCircuitBreaker();
+		if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+			LOGGER.debug("Skipping LastPass after repeated connection failures, attempting offline login");
+			return offlineLogin(username, iterations, key, new ConnectException(SKIPPED_MESSAGE));
+		}
+
 		final LastPassResponse response;
 		final HttpResponse clientResponse;
 		try {
 			clientResponse = this.requestFactory.buildPostRequest(new GenericUrl("https://lastpass.com/login.php"),
 					new UrlEncodedContent(options)).execute();
+			recordSuccess(circuitBreaker);
 			response = clientResponse.parseAs(LastPassResponse.class);
 		} catch (final UnknownHostException e) {
 			LOGGER.debug("Unknown host, attempting offline login", e);
+			recordFailure(circuitBreaker);
 			return offlineLogin(username, iterations, key, e);
 		} catch (final ConnectException e) {
 			LOGGER.debug("Connect exception, attempting offline login", e);
+			recordFailure(circuitBreaker);
+			return offlineLogin(username, iterations, key, e);
+		} catch (final SocketTimeoutException e) {
+			LOGGER.debug("Timed out, attempting offline login", e);
+			recordFailure(circuitBreaker);
 			return offlineLogin(username, iterations, key, e);
 		} catch (final RuntimeException e) {
 			throw new LastPassException("Error parsing login response: " + e.getMessage(), e);
@@ -145,7 +269,9 @@ public class LastPassLoginProvider {
 					if (serverProvided)
 						throw new IllegalStateException("Expected " + iterations + " iterations but response indicated "
 								+ error.getIterations());
-					return login(username, password, otp, trustLabel, error.getIterations(), true);
+					if (!retryIterations)
+						throw new ErrorResponseException(error);
+					return login(username, password, otp, trustLabel, error.getIterations(), true, true);
 				} else
 					throw new ErrorResponseException(error);
 			}
@@ -153,6 +279,21 @@ public class LastPassLoginProvider {
 		throw new LastPassException("No error found but unsuccessful response: " + clientResponse + " (" + response + ")");
 	}
 
+	/** @return whether an exception means LastPass could not be reached, rather than that it responded with an error */
+	private static boolean isUnreachable(final IOException e) {
+		return e instanceof UnknownHostException || e instanceof ConnectException || e instanceof SocketTimeoutException;
+	}
+
+	private static void recordSuccess(final CircuitBreaker circuitBreaker) {
+		if (circuitBreaker != null)
+			circuitBreaker.recordSuccess();
+	}
+
+	private static void recordFailure(final CircuitBreaker circuitBreaker) {
+		if (circuitBreaker != null)
+			circuitBreaker.recordFailure();
+	}
+
 	private LoginResult offlineLogin(String username, int iterations, byte[] key, IOException e) throws IOException {
 		Integer cachedIterations = this.cacheProvider.getIterations(username);
 		Integer cachedAccountsVersion = this.cacheProvider.getAccountVersion(username);
@@ -0,0 +1,106 @@
+package com.nhinds.lastpass.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.base.Supplier;
+import com.google.common.base.Throwables;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.nhinds.lastpass.PasswordStore;
+
+/**
+ * Coalesces concurrent logins with the same details, so that only the first caller logs in and retrieves the account data, and callers
+ * who ask for the same password store while that is in progress wait for it and share the result (or the exception it fails with).
+ * <p>
+ * Logins are keyed by username, a digest of the password, the device identifier, the one-time password and the trusted device label. Only
+ * logins in progress are shared: once a login finishes, the next caller starts a new one. This class is safe to use from multiple threads.
+ */
+class LoginCoalescer {
+	private static final Logger LOGGER = LoggerFactory.getLogger(LoginCoalescer.class);
+
+	private final ConcurrentMap<LoginKey, SettableFuture<PasswordStore>> inFlight =
+			new ConcurrentHashMap<LoginKey, SettableFuture<PasswordStore>>();
+	private final AtomicLong coalescedCount = new AtomicLong();
+
+	/**
+	 * Get the password store for the given login details, using the given login unless the same login is already in progress
+	 *
+	 * @param login
+	 *            Logs in and builds the password store. Not called if another caller's login with the same details is shared instead
+	 */
+	PasswordStore getPasswordStore(final String username, final String password, final String deviceId, final String otp,
+			final String trustLabel, final Supplier<PasswordStore> login) {
+		final LoginKey key = new LoginKey(username, password, deviceId, otp, trustLabel);
+		final SettableFuture<PasswordStore> result = SettableFuture.create();
+		final SettableFuture<PasswordStore> existing = this.inFlight.putIfAbsent(key, result);
+		if (existing != null) {
+			LOGGER.debug("Sharing login already in progress for {}", username);
+			this.coalescedCount.incrementAndGet();
+			try {
+				return Uninterruptibles.getUninterruptibly(existing);
+			} catch (final ExecutionException e) {
+				throw Throwables.propagate(e.getCause());
+			}
+		}
+
+		try {
+			final PasswordStore passwordStore = login.get();
+			result.set(passwordStore);
+			return passwordStore;
+		} catch (final RuntimeException e) {
+			result.setException(e);
+			throw e;
+		} catch (final Error e) {
+			result.setException(e);
+			throw e;
+		} finally {
+			this.inFlight.remove(key, result);
+		}
+	}
+
+	/** @return the number of callers which have shared another caller's login instead of logging in themselves */
+	long getCoalescedCount() {
+		return this.coalescedCount.get();
+	}
+
+	private static class LoginKey {
+		private final String username;
+		private final HashCode passwordDigest;
+		private final String deviceId;
+		private final String otp;
+		private final String trustLabel;
+
+		LoginKey(final String username, final String password, final String deviceId, final String otp, final String trustLabel) {
+			this.username = username;
+			this.passwordDigest = Hashing.sha256().hashString(password, Charsets.UTF_8);
+			this.deviceId = deviceId;
+			this.otp = otp;
+			this.trustLabel = trustLabel;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(this.username, this.passwordDigest, this.deviceId, this.otp, this.trustLabel);
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof LoginKey))
+				return false;
+			final LoginKey other = (LoginKey) obj;
+			return this.username.equals(other.username) && this.passwordDigest.equals(other.passwordDigest)
+					&& Objects.equal(this.deviceId, other.deviceId) && Objects.equal(this.otp, other.otp)
+					&& Objects.equal(this.trustLabel, other.trustLabel);
+		}
+	}
+}
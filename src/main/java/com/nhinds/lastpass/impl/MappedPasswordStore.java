@@ -0,0 +1,271 @@
+package com.nhinds.lastpass.impl;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.nhinds.lastpass.LastPassException;
+import com.nhinds.lastpass.PasswordInfo;
+import com.nhinds.lastpass.PasswordStore;
+import com.nhinds.lastpass.encryption.EncryptionProvider;
+
+/**
+ * Password store backed by a blob in a {@link ByteBuffer}, normally a memory-mapped cache file.
+ * <p>
+ * Construction makes a single pass over the blob, recording where each account's chunk starts and indexing account URLs by hostname.
+ * Accounts are only decoded into {@link AccountData} when they are requested, and a bounded number of decoded accounts are kept. Heap
+ * usage therefore depends on the number of accounts, but not on the size of their fields. Instances are safe to use from multiple
+ * threads, provided the buffer is not modified.
+ */
+public class MappedPasswordStore implements PasswordStore {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MappedPasswordStore.class);
+
+	static final int DEFAULT_CACHE_SIZE = 256;
+
+	private final ByteBuffer blob;
+	private final EncryptionProvider decryptionProvider;
+	/** Account IDs in ascending order */
+	private final long[] ids;
+	/** Position of each account's ACCT chunk payload in the blob, in the same order as {@link #ids} */
+	private final int[] positions;
+	private final HostnameIndex hostnameIndex;
+	private final Cache<Long, AccountData> decodedAccounts;
+
+	public MappedPasswordStore(final ByteBuffer blob, final EncryptionProvider decryptionProvider) {
+		this(blob, decryptionProvider, DEFAULT_CACHE_SIZE);
+	}
+
+	MappedPasswordStore(final ByteBuffer blob, final EncryptionProvider decryptionProvider, final int cacheSize) {
+		this.blob = blob.duplicate();
+		this.decryptionProvider = decryptionProvider;
+		this.decodedAccounts = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+
+		final Map<Long, Collection<String>> domainsById = new HashMap<Long, Collection<String>>();
+		long[] ids = new long[64];
+		int[] positions = new int[64];
+		// URLs are only needed until the hostname index is built
+		String[] urls = new String[64];
+		int count = 0;
+		try {
+			LOGGER.debug("Start scanning blob");
+			final ByteBuffer in = this.blob.duplicate();
+			while (true) {
+				final byte[] idBytes = new byte[4];
+				in.get(idBytes);
+				final String id = new String(idBytes);
+				if (PasswordStoreReader.END_MARKER_CHUNK_ID.equals(id))
+					break;
+				final int size = in.getInt();
+				final int position = in.position();
+				final DataInputStream chunk = chunkStream(position, size);
+				if (PasswordStoreReader.ACCT_CHUNK_ID.equals(id)) {
+					if (count == ids.length) {
+						ids = Arrays.copyOf(ids, count * 2);
+						positions = Arrays.copyOf(positions, count * 2);
+						urls = Arrays.copyOf(urls, count * 2);
+					}
+					ids[count] = PasswordStoreReader.readLongItem(chunk);
+					positions[count] = position;
+					// Skip the name and group to get to the URL
+					chunk.skipBytes(chunk.readInt());
+					chunk.skipBytes(chunk.readInt());
+					urls[count] = PasswordStoreReader.readHexItem(chunk);
+					count++;
+				} else if (PasswordStoreReader.EQDN_CHUNK_ID.equals(id)) {
+					PasswordStoreReader.parseEquivalentDomain(chunk, domainsById);
+				}
+				in.position(position + size);
+			}
+		} catch (final IOException e) {
+			throw new LastPassException("Error parsing blob", e);
+		} catch (final RuntimeException e) {
+			// Buffer underflows and invalid positions mean the blob is truncated or corrupt
+			throw new LastPassException("Error parsing blob", e);
+		}
+		LOGGER.debug("Found {} accounts", count);
+
+		this.hostnameIndex = new HostnameIndex(PasswordStoreReader.indexEquivalentDomains(domainsById));
+		for (int i = 0; i < count; i++) {
+			this.hostnameIndex.add(ids[i], urls[i]);
+		}
+
+		sort(ids, positions, count);
+		this.ids = Arrays.copyOf(ids, count);
+		this.positions = Arrays.copyOf(positions, count);
+
+		// Decode one account now so that an incorrect key fails here, as it does for PasswordStoreImpl
+		if (count > 0)
+			getPassword(this.ids[0]);
+	}
+
+	/**
+	 * Map the given region of a file and create a password store from it. The file is not held open, but must not be modified while the
+	 * password store is in use.
+	 *
+	 * @param position
+	 *            The position in the file the blob starts at
+	 */
+	public static MappedPasswordStore map(final File file, final long position, final EncryptionProvider decryptionProvider)
+			throws IOException {
+		return new MappedPasswordStore(mapReadOnly(file, position), decryptionProvider);
+	}
+
+	/** Map a file read-only from the given position to its end */
+	static ByteBuffer mapReadOnly(final File file, final long position) throws IOException {
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = randomAccessFile.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, position, channel.size() - position);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	@Override
+	public Collection<PasswordInfo> getPasswords() {
+		return new AbstractCollection<PasswordInfo>() {
+			@Override
+			public Iterator<PasswordInfo> iterator() {
+				return new Iterator<PasswordInfo>() {
+					private int next;
+
+					@Override
+					public boolean hasNext() {
+						return this.next < MappedPasswordStore.this.ids.length;
+					}
+
+					@Override
+					public PasswordInfo next() {
+						if (!hasNext())
+							throw new NoSuchElementException();
+						final int index = this.next++;
+						// Don't add to the cache when iterating over every account, since that would evict everything in it
+						final AccountData cached = MappedPasswordStore.this.decodedAccounts
+								.getIfPresent(MappedPasswordStore.this.ids[index]);
+						return cached != null ? cached : decode(index);
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return MappedPasswordStore.this.ids.length;
+			}
+		};
+	}
+
+	@Override
+	public PasswordInfo getPassword(final long id) {
+		final AccountData cached = this.decodedAccounts.getIfPresent(id);
+		if (cached != null)
+			return cached;
+		final int index = Arrays.binarySearch(this.ids, id);
+		if (index < 0)
+			throw new IllegalArgumentException("Unknown account " + id);
+		final AccountData accountData = decode(index);
+		this.decodedAccounts.put(id, accountData);
+		return accountData;
+	}
+
+	@Override
+	public Collection<PasswordInfo> getPasswordsByHostname(final String hostname) {
+		final Collection<Long> accountIds = this.hostnameIndex.getAccountIds(hostname);
+		final Collection<PasswordInfo> passwordsForUrl = new ArrayList<PasswordInfo>(accountIds.size());
+		for (final Long id : accountIds) {
+			passwordsForUrl.add(getPassword(id));
+		}
+		return passwordsForUrl;
+	}
+
+	HostnameIndex getHostnameIndex() {
+		return this.hostnameIndex;
+	}
+
+	/**
+	 * @return the accounts of this password store, for refreshing from a newer version of the blob. Only accounts which have already been
+	 *         decoded and are still cached are reused, since decoding the others is no cheaper than parsing the newer blob
+	 */
+	PasswordStoreReader.PreviousAccounts previousAccounts() {
+		return new PasswordStoreReader.PreviousAccounts() {
+			@Override
+			public EncryptionProvider getDecryptionProvider() {
+				return MappedPasswordStore.this.decryptionProvider;
+			}
+
+			@Override
+			public AccountData getUnchangedAccount(final long id, final byte[] payload, final HashCode hash) {
+				final AccountData cached = MappedPasswordStore.this.decodedAccounts.getIfPresent(id);
+				if (cached == null)
+					return null;
+				final int index = Arrays.binarySearch(MappedPasswordStore.this.ids, id);
+				if (index < 0)
+					return null;
+				final int position = MappedPasswordStore.this.positions[index];
+				final ByteBuffer chunk = MappedPasswordStore.this.blob.duplicate();
+				chunk.position(position);
+				chunk.limit(position + chunk.getInt(position - 4));
+				return chunk.equals(ByteBuffer.wrap(payload)) ? cached : null;
+			}
+		};
+	}
+
+	private AccountData decode(final int index) {
+		final int position = this.positions[index];
+		try {
+			return PasswordStoreReader.parseAccountData(chunkStream(position, this.blob.getInt(position - 4)), this.decryptionProvider);
+		} catch (final IOException e) {
+			throw new LastPassException("Error parsing account " + this.ids[index], e);
+		}
+	}
+
+	private DataInputStream chunkStream(final int position, final int size) {
+		final ByteBuffer chunk = this.blob.duplicate();
+		chunk.position(position);
+		chunk.limit(position + size);
+		return new DataInputStream(new ByteBufferInputStream(chunk));
+	}
+
+	/** Sort the first <code>count</code> IDs into ascending order, keeping the positions in the same order. IDs are normally sorted already */
+	private static void sort(final long[] ids, final int[] positions, final int count) {
+		for (int i = 1; i < count; i++) {
+			final long id = ids[i];
+			if (id >= ids[i - 1])
+				continue;
+			// Out of order, so fall back to sorting the pairs by ID
+			final Long[] sortedIds = new Long[count];
+			final Map<Long, Integer> positionsById = new HashMap<Long, Integer>();
+			for (int j = 0; j < count; j++) {
+				sortedIds[j] = ids[j];
+				positionsById.put(ids[j], positions[j]);
+			}
+			Arrays.sort(sortedIds);
+			for (int j = 0; j < count; j++) {
+				ids[j] = sortedIds[j];
+				positions[j] = positionsById.get(sortedIds[j]);
+			}
+			return;
+		}
+	}
+}
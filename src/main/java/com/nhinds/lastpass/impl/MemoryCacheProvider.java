@@ -0,0 +1,450 @@
+package com.nhinds.lastpass.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Cache provider which keeps account data in memory, in direct buffers outside the Java heap, in front of an optional second tier
+ * provider such as a {@link DirectoryCacheProvider}.
+ * <p>
+ * Data is written through to the second tier as it is stored. Users which are not in memory are read from the second tier and kept in
+ * memory for later requests. When the total size of the account data in memory exceeds the configured budget, the least recently used
+ * users are dropped from memory (but not from the second tier); account data larger than the whole budget is not kept in memory at all.
+ * Buffers still being written by sinks count against the budget too, so memory used by concurrent downloads is bounded by the same budget.
+ * Memory used by dropped buffers is released when they are garbage collected.
+ * <p>
+ * Instances are safe to use from multiple threads.
+ */
+public class MemoryCacheProvider implements StreamingCacheProvider {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MemoryCacheProvider.class);
+
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+	private final long maxBytes;
+	private final StreamingCacheProvider secondTier;
+	/** Cache entries by username, from least to most recently used. Guarded by this */
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	/** Bytes of direct memory used by the entries. Guarded by this */
+	private long totalBytes;
+	/** Bytes of direct memory reserved by buffers which are still being written. Guarded by this */
+	private long inFlightBytes;
+
+	private static class Entry {
+		private final int iterations;
+		private final int accountVersion;
+		/** Read-only account data, which must be duplicated before its position is changed */
+		private final ByteBuffer accountData;
+		/** Bytes of direct memory used by the account data, which may be more than its length if it is a slice of a larger buffer */
+		private final long allocatedBytes;
+
+		Entry(final int iterations, final int accountVersion, final ByteBuffer accountData, final long allocatedBytes) {
+			this.iterations = iterations;
+			this.accountVersion = accountVersion;
+			this.accountData = accountData;
+			this.allocatedBytes = allocatedBytes;
+		}
+	}
+
+	/** Create a cache provider which only keeps account data in memory */
+	public MemoryCacheProvider(final long maxBytes) {
+		this(maxBytes, new NullCacheProvider());
+	}
+
+	/**
+	 * @param maxBytes
+	 *            The maximum total size of the account data kept in memory
+	 * @param secondTier
+	 *            The provider to write account data through to, and to read users which are not in memory from
+	 */
+	public MemoryCacheProvider(final long maxBytes, final CacheProvider secondTier) {
+		Preconditions.checkArgument(maxBytes > 0, "Maximum cache size must be positive: %s", maxBytes);
+		this.maxBytes = maxBytes;
+		this.secondTier = CacheProviders.streaming(Preconditions.checkNotNull(secondTier));
+	}
+
+	@Override
+	public Integer getIterations(final String username) throws IOException {
+		final Entry entry = getEntry(username);
+		return entry == null ? this.secondTier.getIterations(username) : Integer.valueOf(entry.iterations);
+	}
+
+	@Override
+	public Integer getAccountVersion(final String username) throws IOException {
+		final Entry entry = getEntry(username);
+		return entry == null ? this.secondTier.getAccountVersion(username) : Integer.valueOf(entry.accountVersion);
+	}
+
+	@Override
+	public InputStream getAccountData(final String username) throws IOException {
+		final Entry entry = getEntry(username);
+		final ByteBuffer accountData = entry == null ? load(username) : entry.accountData.duplicate();
+		return accountData == null ? this.secondTier.getAccountData(username) : new ByteBufferInputStream(accountData);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Account data which is not in memory is loaded from the second tier
+	 */
+	@Override
+	public ByteBuffer mapAccountData(final String username) throws IOException {
+		final Entry entry = getEntry(username);
+		final ByteBuffer accountData = entry == null ? load(username) : entry.accountData.duplicate();
+		return accountData == null ? this.secondTier.mapAccountData(username) : accountData;
+	}
+
+	private synchronized Entry getEntry(final String username) {
+		return this.entries.get(username);
+	}
+
+	/**
+	 * Copy a user's account data from the second tier into memory
+	 *
+	 * @return the account data, or null if the second tier has no account data for the user or it is too large to keep in memory
+	 */
+	private ByteBuffer load(final String username) throws IOException {
+		final Integer iterations = this.secondTier.getIterations(username);
+		final Integer accountVersion = this.secondTier.getAccountVersion(username);
+		if (iterations == null || accountVersion == null)
+			return null;
+		final ByteBuffer accountData;
+		final long allocatedBytes;
+		final ByteBuffer mappedAccountData = this.secondTier.mapAccountData(username);
+		if (mappedAccountData != null) {
+			allocatedBytes = mappedAccountData.remaining();
+			if (reserve(allocatedBytes, allocatedBytes) < 0)
+				return null;
+			accountData = ByteBuffer.allocateDirect(mappedAccountData.remaining());
+			accountData.put(mappedAccountData);
+			accountData.flip();
+		} else {
+			final InputStream accountDataStream = this.secondTier.getAccountData(username);
+			if (accountDataStream == null)
+				return null;
+			final DirectBufferOutputStream out = new DirectBufferOutputStream();
+			try {
+				ByteStreams.copy(accountDataStream, out);
+			} catch (final IOException e) {
+				out.release();
+				throw e;
+			} finally {
+				accountDataStream.close();
+			}
+			if (out.isOverflowed())
+				return null;
+			accountData = out.toBuffer();
+			allocatedBytes = out.getReservedBytes();
+		}
+		LOGGER.debug("Loaded account data for {} from second tier cache", username);
+		final Entry entry = putIfAbsent(username, new Entry(iterations, accountVersion, accountData.asReadOnlyBuffer(), allocatedBytes),
+				allocatedBytes);
+		return entry.accountData.duplicate();
+	}
+
+	@Override
+	public void storeAccountData(final String username, final int iterations, final int accountVersion, final InputStream accountData)
+			throws IOException {
+		final AccountDataSink sink = newAccountDataSink(username, iterations, accountVersion);
+		boolean committed = false;
+		try {
+			ByteStreams.copy(accountData, sink.getOutputStream());
+			sink.commit();
+			committed = true;
+		} finally {
+			accountData.close();
+			if (!committed)
+				sink.abort();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Account data is written to a direct buffer and to the second tier's sink as it is received. Committing commits the second tier first,
+	 * and only replaces the data in memory if that succeeds.
+	 */
+	@Override
+	public AccountDataSink newAccountDataSink(final String username, final int iterations, final int accountVersion)
+			throws IOException {
+		return new MemoryAccountDataSink(username, iterations, accountVersion, this.secondTier.newAccountDataSink(username, iterations,
+				accountVersion));
+	}
+
+	/** @return the number of bytes of direct memory used by account data in memory */
+	synchronized long getTotalBytes() {
+		return this.totalBytes;
+	}
+
+	/** @return the number of bytes of direct memory reserved by buffers which are still being written */
+	synchronized long getInFlightBytes() {
+		return this.inFlightBytes;
+	}
+
+	/**
+	 * Reserve direct memory for a buffer which is about to be allocated. The least recently used users are only evicted if that is needed
+	 * to make room for the minimum
+	 *
+	 * @param minBytes
+	 *            The number of bytes which must be reserved
+	 * @param desiredBytes
+	 *            The number of bytes to reserve if there is room without evicting anything
+	 * @return the number of bytes reserved, between the minimum and the desired number, or -1 if even the minimum could not be reserved
+	 *         because buffers still being written already use the rest of the budget
+	 */
+	private synchronized long reserve(final long minBytes, final long desiredBytes) {
+		if (this.inFlightBytes + minBytes > this.maxBytes)
+			return -1;
+		evict(minBytes);
+		final long room = this.maxBytes - this.totalBytes - this.inFlightBytes;
+		if (room < minBytes)
+			return -1;
+		final long reserved = Math.min(desiredBytes, room);
+		this.inFlightBytes += reserved;
+		return reserved;
+	}
+
+	private synchronized void release(final long bytes) {
+		this.inFlightBytes -= bytes;
+	}
+
+	/**
+	 * Keep an entry in memory, replacing any previous entry for the user
+	 *
+	 * @param reservedBytes
+	 *            The bytes reserved for the entry's buffer while it was written, which are now used by the entry instead
+	 */
+	private synchronized void put(final String username, final Entry entry, final long reservedBytes) {
+		release(reservedBytes);
+		remove(username);
+		this.entries.put(username, entry);
+		this.totalBytes += entry.allocatedBytes;
+		evict(0);
+	}
+
+	/**
+	 * Keep an entry loaded from the second tier in memory, unless account data was committed for the user while it was being loaded
+	 *
+	 * @return the entry kept in memory for the user
+	 */
+	private synchronized Entry putIfAbsent(final String username, final Entry entry, final long reservedBytes) {
+		final Entry existing = this.entries.get(username);
+		if (existing != null) {
+			release(reservedBytes);
+			return existing;
+		}
+		put(username, entry, reservedBytes);
+		return entry;
+	}
+
+	/** Drop the least recently used users from memory until there is room for the given number of bytes */
+	private synchronized void evict(final long bytes) {
+		final Iterator<Map.Entry<String, Entry>> leastRecentlyUsed = this.entries.entrySet().iterator();
+		while (this.totalBytes + this.inFlightBytes + bytes > this.maxBytes && leastRecentlyUsed.hasNext()) {
+			final Map.Entry<String, Entry> evicted = leastRecentlyUsed.next();
+			leastRecentlyUsed.remove();
+			this.totalBytes -= evicted.getValue().allocatedBytes;
+			LOGGER.debug("Evicting cached account data for {} from memory", evicted.getKey());
+		}
+	}
+
+	private synchronized void remove(final String username) {
+		final Entry previous = this.entries.remove(username);
+		if (previous != null)
+			this.totalBytes -= previous.allocatedBytes;
+	}
+
+	private class MemoryAccountDataSink implements AccountDataSink {
+		private final String username;
+		private final int iterations;
+		private final int accountVersion;
+		/** The second tier's sink, or null if it does not store account data */
+		private final AccountDataSink secondTierSink;
+		private final DirectBufferOutputStream buffer = new DirectBufferOutputStream();
+		private final OutputStream out;
+		private boolean finished;
+
+		MemoryAccountDataSink(final String username, final int iterations, final int accountVersion,
+				final AccountDataSink secondTierSink) {
+			this.username = username;
+			this.iterations = iterations;
+			this.accountVersion = accountVersion;
+			this.secondTierSink = secondTierSink;
+			this.out = secondTierSink == null ? this.buffer : new TeeOutputStream(this.buffer, secondTierSink.getOutputStream());
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return this.out;
+		}
+
+		@Override
+		public void commit() throws IOException {
+			Preconditions.checkState(!this.finished, "Account data has already been committed or aborted");
+			this.finished = true;
+			try {
+				if (this.secondTierSink != null)
+					this.secondTierSink.commit();
+			} catch (final IOException e) {
+				this.buffer.release();
+				throw e;
+			}
+			if (this.buffer.isOverflowed()) {
+				// Too large to keep in memory, so make sure an older version is not returned instead
+				remove(this.username);
+			} else {
+				final ByteBuffer accountData = this.buffer.toBuffer().asReadOnlyBuffer();
+				put(this.username, new Entry(this.iterations, this.accountVersion, accountData, this.buffer.getReservedBytes()),
+						this.buffer.getReservedBytes());
+			}
+		}
+
+		@Override
+		public void abort() {
+			if (this.finished)
+				return;
+			this.finished = true;
+			this.buffer.release();
+			if (this.secondTierSink != null)
+				this.secondTierSink.abort();
+		}
+	}
+
+	/**
+	 * Stream which writes to a direct buffer, growing it as needed. Memory for the buffer is reserved from the budget before it is
+	 * allocated, and the buffer grows by less than double if that is all the budget has room for. Once more than fits in the budget has
+	 * been written, further data is discarded, the reservation is released and the stream is marked as overflowed.
+	 */
+	private class DirectBufferOutputStream extends OutputStream {
+		private ByteBuffer buffer;
+		/** Bytes reserved from the budget, which is the capacity of the buffer */
+		private long reservedBytes;
+		private boolean overflowed;
+
+		boolean isOverflowed() {
+			return this.overflowed;
+		}
+
+		@Override
+		public void write(final int b) {
+			if (ensureCapacity(1))
+				this.buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+			if (ensureCapacity(len))
+				this.buffer.put(b, off, len);
+		}
+
+		/** @return whether there is room for the given number of bytes, rather than the stream having overflowed */
+		private boolean ensureCapacity(final int length) {
+			if (this.overflowed)
+				return false;
+			final long size = (this.buffer == null ? 0 : this.buffer.position()) + (long) length;
+			if (this.buffer != null && size <= this.buffer.capacity())
+				return true;
+			if (size > MemoryCacheProvider.this.maxBytes || size > Integer.MAX_VALUE || !grow(size)) {
+				this.overflowed = true;
+				this.buffer = null;
+				release();
+				return false;
+			}
+			return true;
+		}
+
+		/** @return whether memory for a larger buffer could be reserved */
+		private boolean grow(final long size) {
+			long capacity = this.buffer == null ? INITIAL_BUFFER_SIZE : this.buffer.capacity();
+			while (capacity < size) {
+				capacity *= 2;
+			}
+			// Doubling must not reserve more than the budget for data which fits in it
+			capacity = Math.max(size, Math.min(capacity, Math.min(MemoryCacheProvider.this.maxBytes, Integer.MAX_VALUE)));
+			final long reserved = reserve(size - this.reservedBytes, capacity - this.reservedBytes);
+			if (reserved < 0)
+				return false;
+			this.reservedBytes += reserved;
+			final ByteBuffer grown = ByteBuffer.allocateDirect((int) this.reservedBytes);
+			if (this.buffer != null) {
+				this.buffer.flip();
+				grown.put(this.buffer);
+			}
+			this.buffer = grown;
+			return true;
+		}
+
+		/** Release the memory reserved for the buffer. Must not be called once the buffer has been handed over by {@link #toBuffer()} */
+		void release() {
+			MemoryCacheProvider.this.release(this.reservedBytes);
+			this.reservedBytes = 0;
+		}
+
+		/**
+		 * Hand over the written data. Data which fills at least half of the buffer is returned as a slice of it rather than being copied;
+		 * smaller data (which only happens while it fits in the initial buffer) is copied into a buffer of its own, so that small entries
+		 * do not each keep a whole initial buffer. {@link #getReservedBytes()} is updated to the memory used by the returned buffer
+		 *
+		 * @return a buffer of exactly the written data, positioned at its start
+		 */
+		ByteBuffer toBuffer() {
+			if (this.buffer == null)
+				return ByteBuffer.allocateDirect(0);
+			final ByteBuffer written = this.buffer;
+			this.buffer = null;
+			written.flip();
+			if (written.remaining() * 2L >= written.capacity())
+				return written.slice();
+			final ByteBuffer copy = ByteBuffer.allocateDirect(written.remaining());
+			copy.put(written);
+			copy.flip();
+			MemoryCacheProvider.this.release(this.reservedBytes - copy.capacity());
+			this.reservedBytes = copy.capacity();
+			return copy;
+		}
+
+		/** @return the bytes of direct memory reserved for the buffer */
+		long getReservedBytes() {
+			return this.reservedBytes;
+		}
+	}
+
+	/** Stream which writes to two streams */
+	private static class TeeOutputStream extends OutputStream {
+		private final OutputStream out1;
+		private final OutputStream out2;
+
+		TeeOutputStream(final OutputStream out1, final OutputStream out2) {
+			this.out1 = out1;
+			this.out2 = out2;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			this.out1.write(b);
+			this.out2.write(b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			this.out1.write(b, off, len);
+			this.out2.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			this.out1.flush();
+			this.out2.flush();
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.nhinds.lastpass.impl;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.client.http.HttpRequest;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
+
+/**
+ * How to talk to LastPass over an unreliable network:
+ * <ul>
+ * <li>connect and read timeouts for every request to LastPass
+ * <li>an optional {@link CircuitBreaker}, which skips LastPass after repeated connection failures. Logins fall back to cached account data
+ * when LastPass is skipped, unreachable or times out
+ * <li>an optional stale-while-revalidate executor. If one is given, refreshable password stores are built from cached account data
+ * without contacting LastPass, and are then refreshed from LastPass on the executor. The password is not checked by LastPass until the
+ * background refresh logs in. If LastPass rejects that login, the password store stops serving the cached accounts until a refresh logs
+ * in successfully
+ * </ul>
+ * The circuit breaker and executor are shared by everything using this policy. The executor is not shut down by this class.
+ */
+public class NetworkPolicy {
+	/** The timeout google-http-client uses by default */
+	static final int DEFAULT_TIMEOUT_MILLIS = 20000;
+	/** Policy with the default timeouts, which always tries LastPass and always logs in before building a password store */
+	public static final NetworkPolicy DEFAULT = new NetworkPolicy(DEFAULT_TIMEOUT_MILLIS, DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, null,
+			null);
+
+	private final int connectTimeoutMillis;
+	private final int readTimeoutMillis;
+	private final CircuitBreaker circuitBreaker;
+	private final Executor revalidateExecutor;
+
+	/**
+	 * @param connectTimeout
+	 *            How long to wait to connect to LastPass, or 0 to wait indefinitely
+	 * @param readTimeout
+	 *            How long to wait for data from LastPass once connected, or 0 to wait indefinitely
+	 * @param circuitBreaker
+	 *            Circuit breaker to skip LastPass with after repeated failures, or null to always try LastPass
+	 * @param revalidateExecutor
+	 *            Executor to refresh password stores built from cached account data on, or null to always log in before building a
+	 *            password store
+	 */
+	public NetworkPolicy(final long connectTimeout, final long readTimeout, final TimeUnit unit, final CircuitBreaker circuitBreaker,
+			final Executor revalidateExecutor) {
+		Preconditions.checkArgument(connectTimeout >= 0, "Connect timeout must not be negative: %s", connectTimeout);
+		Preconditions.checkArgument(readTimeout >= 0, "Read timeout must not be negative: %s", readTimeout);
+		this.connectTimeoutMillis = Ints.checkedCast(unit.toMillis(connectTimeout));
+		this.readTimeoutMillis = Ints.checkedCast(unit.toMillis(readTimeout));
+		this.circuitBreaker = circuitBreaker;
+		this.revalidateExecutor = revalidateExecutor;
+	}
+
+	/** Apply the timeouts to a request to LastPass */
+	void configure(final HttpRequest request) {
+		request.setConnectTimeout(this.connectTimeoutMillis);
+		request.setReadTimeout(this.readTimeoutMillis);
+	}
+
+	/** @return the circuit breaker, or null if LastPass is always tried */
+	CircuitBreaker getCircuitBreaker() {
+		return this.circuitBreaker;
+	}
+
+	/** @return the executor to refresh password stores built from cached account data on, or null if they are not built that way */
+	Executor getRevalidateExecutor() {
+		return this.revalidateExecutor;
+	}
+}
@@ -2,9 +2,10 @@ package com.nhinds.lastpass.impl;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /** A cache provider which does not cache */
-public class NullCacheProvider implements CacheProvider {
+public class NullCacheProvider implements StreamingCacheProvider {
 
 	@Override
 	public Integer getIterations(String username) throws IOException {
@@ -21,11 +22,21 @@ public class NullCacheProvider implements CacheProvider {
 		return null;
 	}
 
+	@Override
+	public ByteBuffer mapAccountData(String username) throws IOException {
+		return null;
+	}
+
 	@Override
 	public void storeAccountData(String username, int iterations, int accountVersion, InputStream accountData) throws IOException {
 		// nothing to do
 	}
 
+	@Override
+	public AccountDataSink newAccountDataSink(String username, int iterations, int accountVersion) throws IOException {
+		return null;
+	}
+
 	@Override
 	public int hashCode() {
 		return 1;
@@ -0,0 +1,173 @@
+package com.nhinds.lastpass.impl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Configuration for parsing downloaded account data in a pipeline of three stages, so that network latency and decryption overlap:
+ * <ol>
+ * <li>a network reader, which reads blocks of account data on the read executor into a bounded read-ahead queue
+ * <li>a chunk splitter, which runs on the thread building the password store and splits the blocks into chunks, handing batches of
+ * accounts to the decrypt executor
+ * <li>decrypt workers, which parse and decrypt batches of accounts on the decrypt executor. The number of batches waiting to be parsed is
+ * bounded, so a slow decrypt stage slows down the splitter rather than accumulating chunks in memory
+ * </ol>
+ * The time spent in each stage is recorded and passed to an optional listener once the account data has been parsed. Executors are not
+ * shut down by this class.
+ */
+public class ParsePipeline {
+	static final int BLOCK_SIZE = 64 * 1024;
+	static final int DEFAULT_READ_AHEAD_BLOCKS = 16;
+	static final int DEFAULT_BATCHES_IN_FLIGHT = 16;
+
+	/** Listener which is given the stage timings each time account data is parsed by a pipeline */
+	public interface TimingsListener {
+		void parsed(StageTimings timings);
+	}
+
+	private final ExecutorService readExecutor;
+	private final ExecutorService decryptExecutor;
+	private final int readAheadBlocks;
+	private final int batchesInFlight;
+	private final TimingsListener timingsListener;
+
+	public ParsePipeline(final ExecutorService readExecutor, final ExecutorService decryptExecutor) {
+		this(readExecutor, decryptExecutor, DEFAULT_READ_AHEAD_BLOCKS, DEFAULT_BATCHES_IN_FLIGHT, null);
+	}
+
+	/**
+	 * @param readExecutor
+	 *            The executor to read account data from the network on. Each parse occupies one of its threads until the account data has
+	 *            been read, so it should not be the decrypt executor
+	 * @param decryptExecutor
+	 *            The executor to parse and decrypt batches of accounts on
+	 * @param readAheadBlocks
+	 *            The maximum number of blocks of account data read from the network but not yet split into chunks
+	 * @param batchesInFlight
+	 *            The maximum number of batches of accounts handed to the decrypt executor but not yet added to the password store
+	 * @param timingsListener
+	 *            Listener to give the stage timings to, may be null
+	 */
+	public ParsePipeline(final ExecutorService readExecutor, final ExecutorService decryptExecutor, final int readAheadBlocks,
+			final int batchesInFlight, final TimingsListener timingsListener) {
+		Preconditions.checkArgument(readAheadBlocks > 0, "Read-ahead must be positive: %s", readAheadBlocks);
+		Preconditions.checkArgument(batchesInFlight > 0, "Batches in flight must be positive: %s", batchesInFlight);
+		this.readExecutor = Preconditions.checkNotNull(readExecutor);
+		this.decryptExecutor = Preconditions.checkNotNull(decryptExecutor);
+		this.readAheadBlocks = readAheadBlocks;
+		this.batchesInFlight = batchesInFlight;
+		this.timingsListener = timingsListener;
+	}
+
+	/** Only parse accounts on an executor, reading the account data on the calling thread with no limit on batches in flight */
+	private ParsePipeline(final ExecutorService decryptExecutor) {
+		this.readExecutor = null;
+		this.decryptExecutor = decryptExecutor;
+		this.readAheadBlocks = 0;
+		this.batchesInFlight = Integer.MAX_VALUE;
+		this.timingsListener = null;
+	}
+
+	/** @return a pipeline which only parses accounts on the given executor, or null if the executor is null */
+	static ParsePipeline forExecutor(final ExecutorService decryptExecutor) {
+		return decryptExecutor == null ? null : new ParsePipeline(decryptExecutor);
+	}
+
+	/** @return the executor to read account data on, or null to read it on the splitter thread without recording timings */
+	ExecutorService getReadExecutor() {
+		return this.readExecutor;
+	}
+
+	ExecutorService getDecryptExecutor() {
+		return this.decryptExecutor;
+	}
+
+	int getReadAheadBlocks() {
+		return this.readAheadBlocks;
+	}
+
+	int getBatchesInFlight() {
+		return this.batchesInFlight;
+	}
+
+	TimingsListener getTimingsListener() {
+		return this.timingsListener;
+	}
+
+	/**
+	 * Time spent in each stage of parsing one copy of the account data. Stages run at the same time, so the stage times can add up to more
+	 * than the total time; the more they do, the more the stages overlapped.
+	 */
+	public static final class StageTimings {
+		private final long startNanos = System.nanoTime();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong readNanos = new AtomicLong();
+		private final AtomicLong readWaitNanos = new AtomicLong();
+		private final AtomicLong decryptNanos = new AtomicLong();
+		private final AtomicLong decryptWaitNanos = new AtomicLong();
+
+		/** @return the total time taken to parse the account data */
+		public long getTotalNanos() {
+			return this.totalNanos.get();
+		}
+
+		/** @return the time the network reader spent reading account data */
+		public long getReadNanos() {
+			return this.readNanos.get();
+		}
+
+		/** @return the time the chunk splitter spent splitting chunks, excluding time spent waiting for the other stages */
+		public long getSplitNanos() {
+			return getTotalNanos() - getReadWaitNanos() - getDecryptWaitNanos();
+		}
+
+		/** @return the total time the decrypt workers spent parsing and decrypting accounts, added up over all workers */
+		public long getDecryptNanos() {
+			return this.decryptNanos.get();
+		}
+
+		/** @return the time the chunk splitter spent waiting for the network reader */
+		public long getReadWaitNanos() {
+			return this.readWaitNanos.get();
+		}
+
+		/** @return the time the chunk splitter spent waiting for the decrypt workers */
+		public long getDecryptWaitNanos() {
+			return this.decryptWaitNanos.get();
+		}
+
+		void finished() {
+			this.totalNanos.set(System.nanoTime() - this.startNanos);
+		}
+
+		void addRead(final long nanos) {
+			this.readNanos.addAndGet(nanos);
+		}
+
+		void addReadWait(final long nanos) {
+			this.readWaitNanos.addAndGet(nanos);
+		}
+
+		void addDecrypt(final long nanos) {
+			this.decryptNanos.addAndGet(nanos);
+		}
+
+		void addDecryptWait(final long nanos) {
+			this.decryptWaitNanos.addAndGet(nanos);
+		}
+
+		@Override
+		public String toString() {
+			return "StageTimings [total=" + millis(getTotalNanos()) + "ms, read=" + millis(getReadNanos()) + "ms, split="
+					+ millis(getSplitNanos()) + "ms, decrypt=" + millis(getDecryptNanos()) + "ms, readWait=" + millis(getReadWaitNanos())
+					+ "ms, decryptWait=" + millis(getDecryptWaitNanos()) + "ms]";
+		}
+
+		private static long millis(final long nanos) {
+			return TimeUnit.NANOSECONDS.toMillis(nanos);
+		}
+	}
+}
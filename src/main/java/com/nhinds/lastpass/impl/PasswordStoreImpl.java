@@ -1,26 +1,69 @@
 package com.nhinds.lastpass.impl;
 
 import java.io.InputStream;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
-import com.google.common.net.InternetDomainName;
 import com.nhinds.lastpass.PasswordInfo;
 import com.nhinds.lastpass.PasswordStore;
 import com.nhinds.lastpass.encryption.EncryptionProvider;
 
 public class PasswordStoreImpl implements PasswordStore {
 	private final PasswordStoreReader passwordStoreReader;
+	private final HostnameIndex hostnameIndex;
 
 	public PasswordStoreImpl(final InputStream accountsStream, final EncryptionProvider decryptionProvider) {
 		this(new PasswordStoreReader(accountsStream, decryptionProvider));
 	}
 
+	/**
+	 * Create a password store, parsing accounts in parallel on the given executor
+	 *
+	 * @see PasswordStoreReader#PasswordStoreReader(InputStream, EncryptionProvider, ExecutorService)
+	 */
+	public PasswordStoreImpl(final InputStream accountsStream, final EncryptionProvider decryptionProvider,
+			final ExecutorService parseExecutor) {
+		this(new PasswordStoreReader(accountsStream, decryptionProvider, parseExecutor));
+	}
+
+	/**
+	 * Create a password store, parsing accounts in parallel on the given executor
+	 *
+	 * @param refreshable
+	 *            Whether the password store will be passed as the previous password store of a refresh. If not, a refresh from it parses
+	 *            every account again
+	 * @see PasswordStoreReader#PasswordStoreReader(InputStream, EncryptionProvider, ExecutorService, boolean)
+	 */
+	public PasswordStoreImpl(final InputStream accountsStream, final EncryptionProvider decryptionProvider,
+			final ExecutorService parseExecutor, final boolean refreshable) {
+		this(new PasswordStoreReader(accountsStream, decryptionProvider, parseExecutor, refreshable));
+	}
+
+	/**
+	 * Create a password store from a newer version of the blob a previous password store was created from. Accounts which have not changed
+	 * are carried over from the previous password store rather than being parsed and decrypted again, if it was created as refreshable.
+	 *
+	 * @see PasswordStoreReader#PasswordStoreReader(InputStream, EncryptionProvider, ExecutorService, PasswordStoreReader)
+	 */
+	public PasswordStoreImpl(final InputStream accountsStream, final EncryptionProvider decryptionProvider,
+			final ExecutorService parseExecutor, final PasswordStoreImpl previous) {
+		this(new PasswordStoreReader(accountsStream, decryptionProvider, parseExecutor, previous.passwordStoreReader),
+				previous.hostnameIndex);
+	}
+
 	PasswordStoreImpl(final PasswordStoreReader passwordStoreReader) {
+		this(passwordStoreReader, null);
+	}
+
+	private PasswordStoreImpl(final PasswordStoreReader passwordStoreReader, final HostnameIndex previousHostnameIndex) {
 		this.passwordStoreReader = passwordStoreReader;
+		this.hostnameIndex = new HostnameIndex(passwordStoreReader.getDomains(), previousHostnameIndex);
+		for (final Map.Entry<Long, AccountData> account : passwordStoreReader.getAccounts().entrySet()) {
+			this.hostnameIndex.add(account.getKey(), account.getValue().getUrl());
+		}
 	}
 
 	@Override
@@ -38,43 +81,48 @@ public class PasswordStoreImpl implements PasswordStore {
 
 	@Override
 	public Collection<PasswordInfo> getPasswordsByHostname(final String hostname) {
-		final Collection<String> candidateDomains = getCandidateDomains(hostname);
-		final Collection<PasswordInfo> passwordsForUrl = new ArrayList<PasswordInfo>();
-		for (final AccountData account : this.passwordStoreReader.getAccounts().values()) {
-			String accountUrl;
-			try {
-				final String host = new URI(account.getUrl()).getHost();
-				if (host != null) {
-					accountUrl = resolveHost(host);
-					if (candidateDomains.contains(accountUrl)) {
-						passwordsForUrl.add(account);
-					}
-				}
-			} catch (final URISyntaxException e) {
-
-			}
+		final Map<Long, AccountData> accounts = this.passwordStoreReader.getAccounts();
+		final Collection<Long> accountIds = this.hostnameIndex.getAccountIds(hostname);
+		final Collection<PasswordInfo> passwordsForUrl = new ArrayList<PasswordInfo>(accountIds.size());
+		for (final Long id : accountIds) {
+			passwordsForUrl.add(accounts.get(id));
 		}
 		return passwordsForUrl;
 	}
 
-	Collection<String> getCandidateDomains(final String host) {
-		final String resolvedName = resolveHost(host);
-		final Collection<String> candidateDomains = this.passwordStoreReader.getDomains().get(resolvedName);
-		if (candidateDomains != null)
-			return candidateDomains;
-		return Collections.singleton(resolvedName);
+	/**
+	 * Create a password store from a newer version of the blob this password store was created from, carrying over unchanged accounts
+	 *
+	 * @param pipeline
+	 *            How to parse accounts in parallel, or null to parse everything on the calling thread
+	 */
+	PasswordStoreImpl refresh(final InputStream accountsStream, final EncryptionProvider decryptionProvider, final ParsePipeline pipeline) {
+		return refresh(this.passwordStoreReader.previousAccounts(), this.hostnameIndex, accountsStream, decryptionProvider, pipeline);
 	}
 
-	private String resolveHost(final String host) {
-		try {
-			InternetDomainName domainName = InternetDomainName.from(host);
-			if (domainName.isUnderPublicSuffix()) {
-				domainName = domainName.topPrivateDomain();
-			}
-			return domainName.toString();
-		} catch (final IllegalArgumentException e) {
-			return host;
-		}
+	/**
+	 * Create a refreshable password store from a newer version of the blob a mapped password store was created from, carrying over the
+	 * unchanged accounts it has already decoded
+	 */
+	static PasswordStoreImpl refresh(final MappedPasswordStore previous, final InputStream accountsStream,
+			final EncryptionProvider decryptionProvider, final ParsePipeline pipeline) {
+		return refresh(previous.previousAccounts(), previous.getHostnameIndex(), accountsStream, decryptionProvider, pipeline);
+	}
+
+	private static PasswordStoreImpl refresh(final PasswordStoreReader.PreviousAccounts previous,
+			final HostnameIndex previousHostnameIndex, final InputStream accountsStream, final EncryptionProvider decryptionProvider,
+			final ParsePipeline pipeline) {
+		return new PasswordStoreImpl(new PasswordStoreReader(accountsStream, decryptionProvider, pipeline, previous, null, true),
+				previousHostnameIndex);
+	}
+
+	/** @return the number of accounts which were carried over from a previous password store */
+	int getReusedAccounts() {
+		return this.passwordStoreReader.getReusedAccounts();
+	}
+
+	Collection<String> getCandidateDomains(final String host) {
+		return this.hostnameIndex.getCandidateDomains(host);
 	}
 
 }
@@ -1,45 +1,187 @@
 package com.nhinds.lastpass.impl;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
+import com.nhinds.lastpass.LastPass.PasswordConsumer;
 import com.nhinds.lastpass.LastPassException;
 import com.nhinds.lastpass.encryption.EncryptionProvider;
 
 public class PasswordStoreReader {
 	private static final Logger LOGGER = LoggerFactory.getLogger(PasswordStoreReader.class);
 	
-	private static final String END_MARKER_CHUNK_ID = "ENDM";
-	private static final String ACCT_CHUNK_ID = "ACCT";
-	private static final String EQDN_CHUNK_ID = "EQDN";
+	static final String END_MARKER_CHUNK_ID = "ENDM";
+	static final String ACCT_CHUNK_ID = "ACCT";
+	static final String EQDN_CHUNK_ID = "EQDN";
+
+	/** Number of ACCT chunks parsed by each task when parsing in parallel */
+	static final int PARALLEL_BATCH_SIZE = 128;
 
 	private final EncryptionProvider decryptionProvider;
+	/** How to parse accounts in parallel, or null to parse everything on the calling thread */
+	private final ParsePipeline pipeline;
+	/** The time spent in each stage of the pipeline, or null if the account data is not read by the pipeline */
+	private final ParsePipeline.StageTimings timings;
+	/** The consumer to give accounts to instead of keeping them, or null */
+	private final PasswordConsumer consumer;
+	/** Whether to record the hash of each account's chunk, so that this reader can be the previous reader of a later refresh */
+	private final boolean trackChanges;
 	private final Map<Long, AccountData> accounts = new HashMap<Long, AccountData>();
+	/**
+	 * Hash of the ACCT chunk payload each account was parsed from, so that a later refresh can tell whether it changed. Empty unless
+	 * changes are tracked
+	 */
+	private final Map<Long, HashCode> accountHashes = new HashMap<Long, HashCode>();
 	private final Map<String, Collection<String>> domains = new HashMap<String, Collection<String>>();
+	private int reusedAccounts;
+
+	/** Accounts from an earlier version of a blob, which a reader can reuse if their chunks have not changed */
+	interface PreviousAccounts {
+		/** @return the decryption provider the accounts were created with */
+		EncryptionProvider getDecryptionProvider();
+
+		/**
+		 * @param hash
+		 *            The SHA-256 hash of the payload, or null if it has not been computed
+		 * @return the account with the given ID if it was parsed from the same ACCT chunk payload, or null if it has changed or cannot be
+		 *         reused
+		 */
+		AccountData getUnchangedAccount(long id, byte[] payload, HashCode hash);
+	}
 
 	public PasswordStoreReader(final InputStream accountsStream, final EncryptionProvider decryptionProvider) {
+		this(accountsStream, decryptionProvider, null);
+	}
+
+	/**
+	 * Parse a blob, optionally parsing accounts (including decrypting their names) in parallel. In parallel mode the calling thread reads
+	 * chunks from the stream and hands batches of ACCT chunks to the executor as it goes; the results are merged in the order the chunks
+	 * appear in the blob, so the result is the same as parsing sequentially.
+	 *
+	 * @param parseExecutor
+	 *            The executor to parse accounts on, or null to parse everything on the calling thread
+	 */
+	public PasswordStoreReader(final InputStream accountsStream, final EncryptionProvider decryptionProvider,
+			final ExecutorService parseExecutor) {
+		this(accountsStream, decryptionProvider, parseExecutor, null);
+	}
+
+	/**
+	 * Parse a blob in parallel on the given executor, optionally recording the hash of each account's chunk
+	 *
+	 * @param refreshable
+	 *            Whether this reader will be passed as the previous reader when parsing a newer version of the blob. Hashing each chunk
+	 *            costs time on every parse, and a refresh from a reader created without it parses every account again
+	 */
+	public PasswordStoreReader(final InputStream accountsStream, final EncryptionProvider decryptionProvider,
+			final ExecutorService parseExecutor, final boolean refreshable) {
+		this(accountsStream, decryptionProvider, ParsePipeline.forExecutor(parseExecutor), null, null, refreshable);
+	}
+
+	/**
+	 * Parse a newer version of a blob which has already been parsed. Accounts whose ACCT chunk is byte-for-byte the same as in the previous
+	 * blob are not parsed again: the previous {@link AccountData} instance, including any fields it has already decrypted, is used instead.
+	 * Only new and changed accounts are parsed and decrypted. The new reader records the hash of each chunk, so that it can be refreshed in
+	 * turn; the previous reader is not referenced once parsing finishes.
+	 *
+	 * @param previous
+	 *            The reader for the previous version of the blob, or null to parse every account. It is ignored if it was created with a
+	 *            different decryption provider, and nothing is reused if it was not itself created by a refresh
+	 */
+	public PasswordStoreReader(final InputStream accountsStream, final EncryptionProvider decryptionProvider,
+			final ExecutorService parseExecutor, final PasswordStoreReader previous) {
+		this(accountsStream, decryptionProvider, ParsePipeline.forExecutor(parseExecutor), previous, null);
+	}
+
+	/**
+	 * Parse a blob in a {@link ParsePipeline}, so that reading, splitting and decrypting the blob overlap
+	 *
+	 * @param pipeline
+	 *            How to parse accounts in parallel, or null to parse everything on the calling thread
+	 * @param previous
+	 *            The reader for the previous version of the blob, or null to parse every account. Changes are tracked if it is not null
+	 * @param consumer
+	 *            The consumer to give accounts to instead of keeping them, or null to keep them
+	 */
+	public PasswordStoreReader(final InputStream accountsStream, final EncryptionProvider decryptionProvider, final ParsePipeline pipeline,
+			final PasswordStoreReader previous, final PasswordConsumer consumer) {
+		this(accountsStream, decryptionProvider, pipeline, previous == null ? null : previous.previousAccounts(), consumer,
+				previous != null && consumer == null);
+	}
+
+	/**
+	 * @param previous
+	 *            The accounts from the previous version of the blob, or null to parse every account
+	 * @param trackChanges
+	 *            Whether to hash each account's chunk, so that this reader can be used to refresh from a later version of the blob.
+	 *            Ignored if accounts are given to a consumer
+	 */
+	PasswordStoreReader(final InputStream accountsStream, final EncryptionProvider decryptionProvider, final ParsePipeline pipeline,
+			final PreviousAccounts previous, final PasswordConsumer consumer, final boolean trackChanges) {
 		this.decryptionProvider = decryptionProvider;
+		this.pipeline = pipeline;
+		this.timings = pipeline != null && pipeline.getReadExecutor() != null ? new ParsePipeline.StageTimings() : null;
+		this.consumer = consumer;
+		this.trackChanges = trackChanges && consumer == null;
+		final PreviousAccounts reusable;
+		if (previous != null && !previous.getDecryptionProvider().equals(decryptionProvider)) {
+			LOGGER.debug("Decryption provider has changed, not reusing previously parsed accounts");
+			reusable = null;
+		} else {
+			reusable = previous;
+		}
+		final InputStream in = this.timings == null ? accountsStream : new ReadAheadInputStream(accountsStream,
+				pipeline.getReadExecutor(), ParsePipeline.BLOCK_SIZE, pipeline.getReadAheadBlocks(), this.timings);
 		try {
-			parseChunks(accountsStream);
+			parseChunks(in, reusable);
 		} catch (final IOException e) {
 			throw new LastPassException("Error parsing blob", e);
 		} finally {
 			try {
-				accountsStream.close();
+				in.close();
 			} catch (final IOException ignore) {
 			}
 		}
+		if (this.timings != null) {
+			LOGGER.debug("Parsed blob in pipeline: {}", this.timings);
+			if (pipeline.getTimingsListener() != null)
+				pipeline.getTimingsListener().parsed(this.timings);
+		}
+	}
+
+	/**
+	 * Parse a blob, giving each account to a consumer in the order they appear in the blob as soon as it has been parsed, rather than
+	 * keeping the accounts. When parsing in parallel, accounts are given to the consumer on the calling thread as each batch finishes.
+	 *
+	 * @param parseExecutor
+	 *            The executor to parse accounts on, or null to parse everything on the calling thread
+	 */
+	public static void stream(final InputStream accountsStream, final EncryptionProvider decryptionProvider,
+			final ExecutorService parseExecutor, final PasswordConsumer consumer) {
+		new PasswordStoreReader(accountsStream, decryptionProvider, ParsePipeline.forExecutor(parseExecutor), null,
+				Preconditions.checkNotNull(consumer));
 	}
 
 	public Map<Long, AccountData> getAccounts() {
@@ -50,7 +192,36 @@ public class PasswordStoreReader {
 		return this.domains;
 	}
 
-	private void parseChunks(final InputStream accountsStream) throws IOException {
+	/** @return the number of accounts which were reused from the previous reader rather than being parsed */
+	int getReusedAccounts() {
+		return this.reusedAccounts;
+	}
+
+	/** @return this reader's accounts, for a refresh to reuse. Nothing is reused unless this reader tracked changes */
+	PreviousAccounts previousAccounts() {
+		return new PreviousAccounts() {
+			@Override
+			public EncryptionProvider getDecryptionProvider() {
+				return PasswordStoreReader.this.decryptionProvider;
+			}
+
+			@Override
+			public AccountData getUnchangedAccount(final long id, final byte[] payload, final HashCode hash) {
+				final HashCode previousHash = PasswordStoreReader.this.accountHashes.get(id);
+				if (previousHash == null)
+					return null;
+				return previousHash.equals(hash != null ? hash : Hashing.sha256().hashBytes(payload)) ? PasswordStoreReader.this.accounts
+						.get(id) : null;
+			}
+		};
+	}
+
+	/**
+	 * @param previous
+	 *            The accounts which can be reused, or null. Only referenced while parsing, so that a chain of refreshed readers does not
+	 *            keep every earlier version of the blob reachable
+	 */
+	private void parseChunks(final InputStream accountsStream, final PreviousAccounts previous) throws IOException {
 		LOGGER.debug("Start parsing blob");
 		final Map<Long, Collection<String>> domainsById = new HashMap<Long, Collection<String>>();
 		// # LastPass blob chunk is made up of 4-byte ID, 4-byte size and payload of that size
@@ -60,35 +231,191 @@ public class PasswordStoreReader {
 		// # 0008: 0xDE 0xAD 0xBE 0xEF
 		// # 000C: --- Next chunk ---
 		final DataInputStream in = new DataInputStream(accountsStream);
-		while (true) {
-			final byte[] idBytes = new byte[4];
-			in.readFully(idBytes);
-			final String id = new String(idBytes);
-			LOGGER.trace("Parsing chunk {}", id);
-
-			if (END_MARKER_CHUNK_ID.equals(id)) {
-				LOGGER.debug("End of blob");
-				// End of stream
-				break;
-			} else {
-				// Create a new child DataInputStream for the next item in the stream.
-				final int size = in.readInt();
-				final DataInputStream chunkInputStream = new DataInputStream(ByteStreams.limit(in, size));
-				if (ACCT_CHUNK_ID.equals(id)) {
-					parseAccountData(chunkInputStream);
-				} else if (EQDN_CHUNK_ID.equals(id)) {
-					parseEquivalentDomain(chunkInputStream, domainsById);
+		final List<Future<List<AccountChunk>>> parsedBatches = new ArrayList<Future<List<AccountChunk>>>();
+		// Number of parsed batches whose accounts have been added
+		int addedBatches = 0;
+		List<AccountChunk> batch = new ArrayList<AccountChunk>(PARALLEL_BATCH_SIZE);
+		try {
+			while (true) {
+				final byte[] idBytes = new byte[4];
+				in.readFully(idBytes);
+				final String id = new String(idBytes);
+				LOGGER.trace("Parsing chunk {}", id);
+
+				if (END_MARKER_CHUNK_ID.equals(id)) {
+					LOGGER.debug("End of blob");
+					// End of stream
+					break;
+				} else {
+					final int size = in.readInt();
+					if (ACCT_CHUNK_ID.equals(id)) {
+						// Read the whole chunk so that it can be hashed, and parsed on another thread
+						final byte[] payload = new byte[size];
+						in.readFully(payload);
+						final AccountChunk accountChunk = readAccountChunk(payload, previous);
+						if (this.pipeline == null) {
+							accountChunk.parse(this.decryptionProvider);
+							addAccount(accountChunk);
+						} else {
+							batch.add(accountChunk);
+							if (batch.size() == PARALLEL_BATCH_SIZE) {
+								parsedBatches.add(submit(batch));
+								batch = new ArrayList<AccountChunk>(PARALLEL_BATCH_SIZE);
+								// Add the accounts from batches which have already finished, so a consumer sees them before the blob is read,
+								// and wait for the oldest batches if there are too many waiting to be parsed
+								while (addedBatches < parsedBatches.size()) {
+									final boolean tooManyInFlight = parsedBatches.size() - addedBatches > this.pipeline.getBatchesInFlight();
+									if (!tooManyInFlight && !parsedBatches.get(addedBatches).isDone())
+										break;
+									addParsedBatch(parsedBatches, addedBatches++);
+								}
+							}
+						}
+						continue;
+					}
+					// Create a new child DataInputStream for the next item in the stream.
+					final DataInputStream chunkInputStream = new DataInputStream(ByteStreams.limit(in, size));
+					if (EQDN_CHUNK_ID.equals(id)) {
+						parseEquivalentDomain(chunkInputStream, domainsById);
+					}
+					// Skip over any remaining bytes in the child input stream so that the parent stream is ready to read the next chunk
+					chunkInputStream.skipBytes(size);
 				}
-				// Skip over any remaining bytes in the child input stream so that the parent stream is ready to read the next chunk
-				chunkInputStream.skipBytes(size);
+			}
+			if (!batch.isEmpty())
+				parsedBatches.add(submit(batch));
+			while (addedBatches < parsedBatches.size()) {
+				addParsedBatch(parsedBatches, addedBatches++);
+			}
+			if (this.timings != null)
+				this.timings.finished();
+		} finally {
+			// Don't leave tasks running if parsing failed part way through
+			for (final Future<List<AccountChunk>> parsedBatch : parsedBatches) {
+				if (parsedBatch != null)
+					parsedBatch.cancel(true);
 			}
 		}
 
+		this.domains.putAll(indexEquivalentDomains(domainsById));
+		if (previous != null)
+			LOGGER.debug("Reused {} of {} accounts", this.reusedAccounts, this.accounts.size());
+		if (this.consumer != null)
+			this.consumer.complete(Collections.unmodifiableMap(this.domains));
+	}
+
+	/**
+	 * Read the account ID from an ACCT chunk payload, and find the previously parsed account if the payload has not changed. The payload is
+	 * only hashed if this reader tracks changes
+	 */
+	private AccountChunk readAccountChunk(final byte[] payload, final PreviousAccounts previous) throws IOException {
+		final HashCode hash = this.trackChanges ? Hashing.sha256().hashBytes(payload) : null;
+		if (previous != null) {
+			final long id = readLongItem(new DataInputStream(new ByteArrayInputStream(payload)));
+			final AccountData previousAccount = previous.getUnchangedAccount(id, payload, hash);
+			if (previousAccount != null)
+				return new AccountChunk(hash, null, previousAccount);
+		}
+		return new AccountChunk(hash, payload, null);
+	}
+
+	private Future<List<AccountChunk>> submit(final List<AccountChunk> batch) {
+		return this.pipeline.getDecryptExecutor().submit(new ParseAccountsTask(batch, this.decryptionProvider, this.timings));
+	}
+
+	/** Wait for a parsed batch and add its accounts, then drop the batch so that its chunk payloads can be garbage collected */
+	private void addParsedBatch(final List<Future<List<AccountChunk>>> parsedBatches, final int index) throws IOException {
+		final long start = System.nanoTime();
+		final List<AccountChunk> accountChunks = getParsedBatch(parsedBatches.get(index));
+		if (this.timings != null)
+			this.timings.addDecryptWait(System.nanoTime() - start);
+		parsedBatches.set(index, null);
+		for (final AccountChunk accountChunk : accountChunks) {
+			addAccount(accountChunk);
+		}
+	}
+
+	private void addAccount(final AccountChunk accountChunk) {
+		final AccountData accountData = accountChunk.accountData;
+		if (this.consumer != null) {
+			this.consumer.accept(accountData);
+			return;
+		}
+		this.accounts.put(accountData.getId(), accountData);
+		if (accountChunk.hash != null)
+			this.accountHashes.put(accountData.getId(), accountChunk.hash);
+		if (accountChunk.payload == null)
+			this.reusedAccounts++;
+	}
+
+	private static List<AccountChunk> getParsedBatch(final Future<List<AccountChunk>> parsedBatch) throws IOException {
+		try {
+			return parsedBatch.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new LastPassException("Interrupted while parsing blob", e);
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			Throwables.propagateIfInstanceOf(cause, IOException.class);
+			throw Throwables.propagate(cause);
+		}
+	}
+
+	/** An ACCT chunk, and the account parsed from it or reused from a previous reader */
+	private static class AccountChunk {
+		/** The hash of the chunk payload, or null if changes are not tracked */
+		private final HashCode hash;
+		/** The chunk payload, or null if the account was reused */
+		private final byte[] payload;
+		private AccountData accountData;
+
+		AccountChunk(final HashCode hash, final byte[] payload, final AccountData accountData) {
+			this.hash = hash;
+			this.payload = payload;
+			this.accountData = accountData;
+		}
+
+		void parse(final EncryptionProvider decryptionProvider) throws IOException {
+			if (this.accountData == null)
+				this.accountData = parseAccountData(new DataInputStream(new ByteArrayInputStream(this.payload)), decryptionProvider);
+		}
+	}
+
+	/** Parses the accounts in a batch of ACCT chunks which were not reused */
+	private static class ParseAccountsTask implements Callable<List<AccountChunk>> {
+		private final List<AccountChunk> chunks;
+		private final EncryptionProvider decryptionProvider;
+		/** The timings to add the parse time to, or null */
+		private final ParsePipeline.StageTimings timings;
+
+		ParseAccountsTask(final List<AccountChunk> chunks, final EncryptionProvider decryptionProvider,
+				final ParsePipeline.StageTimings timings) {
+			this.chunks = chunks;
+			this.decryptionProvider = decryptionProvider;
+			this.timings = timings;
+		}
+
+		@Override
+		public List<AccountChunk> call() throws IOException {
+			final long start = System.nanoTime();
+			for (final AccountChunk chunk : this.chunks) {
+				chunk.parse(this.decryptionProvider);
+			}
+			if (this.timings != null)
+				this.timings.addDecrypt(System.nanoTime() - start);
+			return this.chunks;
+		}
+	}
+
+	/** Convert equivalent domain groups keyed by group ID into the groups keyed by each of their domains */
+	static Map<String, Collection<String>> indexEquivalentDomains(final Map<Long, Collection<String>> domainsById) {
+		final Map<String, Collection<String>> domains = new HashMap<String, Collection<String>>();
 		for (final Collection<String> equivalentDomains : domainsById.values()) {
 			for (final String domain : equivalentDomains) {
-				this.domains.put(domain, equivalentDomains);
+				domains.put(domain, equivalentDomains);
 			}
 		}
+		return domains;
 	}
 
 	private static byte[] readItem(final DataInputStream in) throws IOException {
@@ -102,11 +429,11 @@ public class PasswordStoreReader {
 		return new String(readItem(in));
 	}
 
-	private static long readLongItem(final DataInputStream acctIn) throws IOException {
+	static long readLongItem(final DataInputStream acctIn) throws IOException {
 		return Long.parseLong(readStringItem(acctIn));
 	}
 
-	private static String readHexItem(final DataInputStream in) throws IOException {
+	static String readHexItem(final DataInputStream in) throws IOException {
 		final String item = readStringItem(in);
 		try {
 			return new String(Hex.decodeHex(item.toCharArray()));
@@ -115,7 +442,8 @@ public class PasswordStoreReader {
 		}
 	}
 
-	private void parseAccountData(final DataInputStream acctIn) throws IOException {
+	/** Parse the payload of an ACCT chunk */
+	static AccountData parseAccountData(final DataInputStream acctIn, final EncryptionProvider decryptionProvider) throws IOException {
 		// TODO how many of these "strings" are not strings?
 		final long id = readLongItem(acctIn);
 		LOGGER.trace("Parsing account data {}", id);
@@ -147,12 +475,13 @@ public class PasswordStoreReader {
 		final String attachPresent = readStringItem(acctIn);
 		final String individualShare = readStringItem(acctIn);
 		final String unknown1 = readStringItem(acctIn);
-		this.accounts.put(id, new AccountData(id, name, group, url, extra, favourite, sharedFromId, username, password, passwordProtected,
-				sn, lastTouched, autoLogin, neverAutofill, realmData, fiid, customJs, submitId, captchaId, urid, basicAuthorization,
-				method, action, groupId, deleted, attachKey, attachPresent, individualShare, unknown1, this.decryptionProvider));
+		return new AccountData(id, name, group, url, extra, favourite, sharedFromId, username, password, passwordProtected, sn,
+				lastTouched, autoLogin, neverAutofill, realmData, fiid, customJs, submitId, captchaId, urid, basicAuthorization, method,
+				action, groupId, deleted, attachKey, attachPresent, individualShare, unknown1, decryptionProvider);
 	}
 
-	private static void parseEquivalentDomain(final DataInputStream eqdnIn, final Map<Long, Collection<String>> domainsById)
+	/** Parse the payload of an EQDN chunk, adding the domain to its group */
+	static void parseEquivalentDomain(final DataInputStream eqdnIn, final Map<Long, Collection<String>> domainsById)
 			throws IOException {
 		final long id = readLongItem(eqdnIn);
 		LOGGER.trace("Parsing equivalent domain {}", id);
@@ -0,0 +1,140 @@
+package com.nhinds.lastpass.impl;
+
+import java.io.Closeable;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.nhinds.lastpass.RefreshablePasswordStore;
+import com.nhinds.lastpass.encryption.ScheduledKeyProvider;
+import com.nhinds.lastpass.encryption.ScheduledKeyProvider.Priority;
+
+/**
+ * Refreshes a password store in the background, checking for new accounts on a scheduled executor at a configurable interval. Each delay
+ * is varied randomly by up to the jitter fraction of the interval, so that many clients started together do not all check at once.
+ * <p>
+ * The password store is rebuilt on the executor's thread, and the new accounts are only published once they have all been read, so
+ * readers of the password store never wait for a refresh or see a partly refreshed store. A failed refresh keeps the existing accounts and
+ * is retried at the next interval. The executor is not shut down by this class.
+ */
+public class PasswordStoreRefresher implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(PasswordStoreRefresher.class);
+
+	static final double DEFAULT_JITTER = 0.1;
+
+	/** Listener which is notified after each background refresh */
+	public interface RefreshListener {
+		/**
+		 * @param changed
+		 *            Whether the accounts had changed
+		 */
+		void refreshed(boolean changed);
+
+		/** Called instead of {@link #refreshed(boolean)} if the refresh failed; the password store keeps its existing accounts */
+		void refreshFailed(Exception e);
+	}
+
+	private final RefreshablePasswordStore passwordStore;
+	private final ScheduledExecutorService executor;
+	private final long intervalNanos;
+	private final double jitter;
+	private final RefreshListener listener;
+	private final Random random;
+	/** The next scheduled refresh, or null if not started. Guarded by this */
+	private ScheduledFuture<?> nextRefresh;
+	/** Guarded by this */
+	private boolean closed;
+
+	public PasswordStoreRefresher(final RefreshablePasswordStore passwordStore, final ScheduledExecutorService executor,
+			final long interval, final TimeUnit unit) {
+		this(passwordStore, executor, interval, unit, DEFAULT_JITTER, null);
+	}
+
+	/**
+	 * @param passwordStore
+	 *            The password store to refresh
+	 * @param executor
+	 *            The executor to check for and retrieve new accounts on
+	 * @param interval
+	 *            The time between the end of one refresh and the start of the next, before jitter is applied
+	 * @param jitter
+	 *            The largest fraction of the interval to randomly add to or take away from each delay, from 0 (inclusive) to 1 (exclusive)
+	 * @param listener
+	 *            Listener to notify after each refresh, may be null
+	 */
+	public PasswordStoreRefresher(final RefreshablePasswordStore passwordStore, final ScheduledExecutorService executor,
+			final long interval, final TimeUnit unit, final double jitter, final RefreshListener listener) {
+		this(passwordStore, executor, interval, unit, jitter, listener, new Random());
+	}
+
+	PasswordStoreRefresher(final RefreshablePasswordStore passwordStore, final ScheduledExecutorService executor, final long interval,
+			final TimeUnit unit, final double jitter, final RefreshListener listener, final Random random) {
+		Preconditions.checkArgument(interval > 0, "Interval must be positive: %s", interval);
+		Preconditions.checkArgument(jitter >= 0 && jitter < 1, "Jitter must be at least 0 and less than 1: %s", jitter);
+		this.passwordStore = Preconditions.checkNotNull(passwordStore);
+		this.executor = Preconditions.checkNotNull(executor);
+		this.intervalNanos = unit.toNanos(interval);
+		this.jitter = jitter;
+		this.listener = listener;
+		this.random = random;
+	}
+
+	/** @return the password store being refreshed, which can be read at any time */
+	public RefreshablePasswordStore getPasswordStore() {
+		return this.passwordStore;
+	}
+
+	/** Schedule the first refresh one interval from now. Has no effect if the refresher has already been started or closed */
+	public synchronized void start() {
+		if (this.nextRefresh == null)
+			scheduleNextRefresh();
+	}
+
+	/** Stop refreshing. A refresh already in progress is allowed to finish, but no further refreshes are scheduled */
+	@Override
+	public synchronized void close() {
+		this.closed = true;
+		if (this.nextRefresh != null)
+			this.nextRefresh.cancel(false);
+	}
+
+	private synchronized void scheduleNextRefresh() {
+		if (this.closed)
+			return;
+		this.nextRefresh = this.executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				refresh();
+			}
+		}, nextDelayNanos(), TimeUnit.NANOSECONDS);
+	}
+
+	/** @return the interval, varied randomly by up to the jitter fraction in either direction */
+	long nextDelayNanos() {
+		final double variation = this.jitter * (2 * this.random.nextDouble() - 1);
+		return Math.max(1, (long) (this.intervalNanos * (1 + variation)));
+	}
+
+	private void refresh() {
+		// Logins needed by background refreshes wait behind interactive logins for key derivation
+		final Priority previousPriority = ScheduledKeyProvider.setCurrentPriority(Priority.BACKGROUND);
+		try {
+			final boolean changed = this.passwordStore.refresh();
+			LOGGER.debug("Background refresh finished (changed: {})", changed);
+			if (this.listener != null)
+				this.listener.refreshed(changed);
+		} catch (final Exception e) {
+			LOGGER.warn("Background refresh failed", e);
+			if (this.listener != null)
+				this.listener.refreshFailed(e);
+		} finally {
+			ScheduledKeyProvider.setCurrentPriority(previousPriority);
+			scheduleNextRefresh();
+		}
+	}
+}
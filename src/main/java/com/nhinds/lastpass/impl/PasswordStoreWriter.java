@@ -0,0 +1,166 @@
+package com.nhinds.lastpass.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.codec.binary.Hex;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.nhinds.lastpass.encryption.AES256EncryptionProvider;
+
+/**
+ * Writes account data in the chunked blob format read by {@link PasswordStoreReader}.
+ * <p>
+ * Chunks are written to the underlying stream as soon as they are complete, so only one chunk is held in memory at a time. Encrypted
+ * fields are encrypted with the mode given when the writer is created; empty encrypted fields are written as empty items, as LastPass
+ * does. {@link #close()} writes the end marker and closes the underlying stream. Instances are not safe to use from multiple threads.
+ */
+public class PasswordStoreWriter implements Closeable {
+	private static final String END_MARKER_CHUNK_ID = "ENDM";
+	private static final String ACCT_CHUNK_ID = "ACCT";
+	private static final String EQDN_CHUNK_ID = "EQDN";
+	private static final byte[] END_MARKER_PAYLOAD = "OK".getBytes();
+
+	private static final String SECURE_NOTE_URL = "http://sn";
+	private static final String FALSE = "0";
+	private static final String TRUE = "1";
+
+	private final DataOutputStream out;
+	private final AES256EncryptionProvider encryptionProvider;
+	private final AES256EncryptionProvider.Mode mode;
+	private final ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+	private final DataOutputStream chunkOut = new DataOutputStream(this.chunk);
+	private boolean closed;
+
+	public PasswordStoreWriter(final OutputStream out, final AES256EncryptionProvider encryptionProvider,
+			final AES256EncryptionProvider.Mode mode) {
+		this.out = new DataOutputStream(Preconditions.checkNotNull(out));
+		this.encryptionProvider = Preconditions.checkNotNull(encryptionProvider);
+		this.mode = Preconditions.checkNotNull(mode);
+	}
+
+	/**
+	 * Write an account with the given plaintext fields, and default values for the remaining fields
+	 *
+	 * @param secureNote
+	 *            Whether the account is a secure note rather than a site login, in which case the URL is ignored and the note is stored
+	 *            in <code>extra</code>
+	 */
+	public void writeAccount(final long id, final String name, final String group, final String url, final String extra,
+			final String username, final String password, final boolean secureNote) throws IOException {
+		writeAccount(id, name, group, secureNote ? SECURE_NOTE_URL : url, extra, FALSE, "", username, password, FALSE,
+				secureNote ? TRUE : FALSE, FALSE, FALSE, FALSE, "", "", "", "", "", "", "", "", "", "", FALSE, "", FALSE, FALSE, "");
+	}
+
+	/** Write an existing account, re-encrypting its encrypted fields with this writer's key and mode */
+	public void writeAccount(final AccountData account) throws IOException {
+		writeAccount(account.getId(), account.getName(), account.getGroup(), account.getUrl(), account.getExtra(), account.getFavourite(),
+				account.getSharedFromId(), account.getUsername(), account.getPassword(), account.getPasswordProtected(), account.getSn(),
+				account.getLastTouched(), account.getAutoLogin(), account.getNeverAutofill(), account.getRealmData(), account.getFiid(),
+				account.getCustomJs(), account.getSubmitId(), account.getCaptchaId(), account.getUrid(), account.getBasicAuthorization(),
+				account.getMethod(), account.getAction(), account.getGroupId(), account.getDeleted(), account.getAttachKey(),
+				account.getAttachPresent(), account.getIndividualShare(), account.getUnknown1());
+	}
+
+	/** Write one domain of an equivalent domain group. All domains written with the same ID are equivalent */
+	public void writeEquivalentDomain(final long id, final String domain) throws IOException {
+		startChunk();
+		writeItem(Long.toString(id));
+		writeHexItem(domain);
+		writeChunk(EQDN_CHUNK_ID);
+	}
+
+	/** Write the end marker and close the underlying stream */
+	@Override
+	public void close() throws IOException {
+		if (this.closed)
+			return;
+		this.closed = true;
+		try {
+			this.chunk.reset();
+			this.chunkOut.write(END_MARKER_PAYLOAD);
+			writeChunk(END_MARKER_CHUNK_ID);
+		} finally {
+			this.out.close();
+		}
+	}
+
+	private void writeAccount(final long id, final String name, final String group, final String url, final String extra,
+			final String favourite, final String sharedFromId, final String username, final String password,
+			final String passwordProtected, final String sn, final String lastTouched, final String autoLogin, final String neverAutofill,
+			final String realmData, final String fiid, final String customJs, final String submitId, final String captchaId,
+			final String urid, final String basicAuthorization, final String method, final String action, final String groupId,
+			final String deleted, final String attachKey, final String attachPresent, final String individualShare, final String unknown1)
+			throws IOException {
+		startChunk();
+		// Fields are in the order PasswordStoreReader.parseAccountData reads them
+		writeItem(Long.toString(id));
+		writeEncryptedItem(name);
+		writeEncryptedItem(group);
+		writeHexItem(url);
+		writeEncryptedItem(extra);
+		writeItem(favourite);
+		writeItem(sharedFromId);
+		writeEncryptedItem(username);
+		writeEncryptedItem(password);
+		writeItem(passwordProtected);
+		writeItem(sn);
+		writeItem(lastTouched);
+		writeItem(autoLogin);
+		writeItem(neverAutofill);
+		writeItem(realmData);
+		writeEncryptedItem(fiid);
+		writeItem(customJs);
+		writeItem(submitId);
+		writeItem(captchaId);
+		writeItem(urid);
+		writeItem(basicAuthorization);
+		writeItem(method);
+		writeItem(action);
+		writeItem(groupId);
+		writeItem(deleted);
+		writeItem(attachKey);
+		writeItem(attachPresent);
+		writeItem(individualShare);
+		writeItem(unknown1);
+		writeChunk(ACCT_CHUNK_ID);
+	}
+
+	/** Check the writer is still open, and discard anything left in the chunk buffer by a previous failed write */
+	private void startChunk() {
+		Preconditions.checkState(!this.closed, "Writer is closed");
+		this.chunk.reset();
+	}
+
+	private void writeItem(final byte[] item) throws IOException {
+		this.chunkOut.writeInt(item.length);
+		this.chunkOut.write(item);
+	}
+
+	private void writeItem(final String item) throws IOException {
+		writeItem(Strings.nullToEmpty(item).getBytes());
+	}
+
+	private void writeHexItem(final String item) throws IOException {
+		writeItem(new String(Hex.encodeHex(Strings.nullToEmpty(item).getBytes())));
+	}
+
+	private void writeEncryptedItem(final String item) throws IOException {
+		if (Strings.isNullOrEmpty(item))
+			writeItem(new byte[0]);
+		else
+			writeItem(this.encryptionProvider.encrypt(item, this.mode));
+	}
+
+	/** Write the buffered chunk payload to the underlying stream under the given chunk ID, and clear the buffer */
+	private void writeChunk(final String id) throws IOException {
+		this.out.write(id.getBytes());
+		this.out.writeInt(this.chunk.size());
+		this.chunk.writeTo(this.out);
+		this.chunk.reset();
+	}
+}
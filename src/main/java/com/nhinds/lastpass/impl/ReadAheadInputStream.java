@@ -0,0 +1,166 @@
+package com.nhinds.lastpass.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Stream which reads blocks from another stream on an executor, up to a bounded number of blocks ahead of the reader of this stream.
+ * Closing this stream stops the background read, waiting for any read of the other stream in progress to finish, then closes the other
+ * stream. A reader still waiting for a block when the stream is closed from another thread fails with an {@link IOException}.
+ * <p>
+ * If the executor runs the background read on the thread creating this stream, such as a same-thread executor, blocks are read directly
+ * by the reader of this stream instead, since reading ahead on that thread would fill the queue and wait forever.
+ */
+class ReadAheadInputStream extends InputStream {
+	/** Marks the end of the other stream, or a failure to read it */
+	private static final byte[] END = new byte[0];
+
+	private final InputStream in;
+	private final BlockingQueue<byte[]> blocks;
+	private final ParsePipeline.StageTimings timings;
+	private final FutureTask<Void> readTask;
+	/** The exception thrown reading the other stream, set before the end marker is queued */
+	private volatile Throwable readFailure;
+	private volatile boolean readStarted;
+	private volatile boolean closed;
+	/** Whether the executor ran the background read on the constructing thread, so the reader reads the other stream directly */
+	private volatile boolean direct;
+	private final CountDownLatch readFinished = new CountDownLatch(1);
+	private byte[] block = new byte[0];
+	private int position;
+	private boolean ended;
+
+	ReadAheadInputStream(final InputStream in, final Executor executor, final int blockSize, final int readAheadBlocks,
+			final ParsePipeline.StageTimings timings) {
+		this.in = in;
+		this.blocks = new ArrayBlockingQueue<byte[]>(readAheadBlocks);
+		this.timings = timings;
+		final Thread constructingThread = Thread.currentThread();
+		final AtomicBoolean submitting = new AtomicBoolean(true);
+		this.readTask = new FutureTask<Void>(new Runnable() {
+			@Override
+			public void run() {
+				// Only a task run by execute itself runs on the constructing thread while it is still submitting
+				if (submitting.get() && Thread.currentThread() == constructingThread)
+					ReadAheadInputStream.this.direct = true;
+				else
+					readBlocks(blockSize);
+			}
+		}, null);
+		executor.execute(this.readTask);
+		submitting.set(false);
+	}
+
+	private void readBlocks(final int blockSize) {
+		this.readStarted = true;
+		try {
+			try {
+				while (!this.closed) {
+					final byte[] buffer = new byte[blockSize];
+					final long start = System.nanoTime();
+					final int read = this.in.read(buffer);
+					this.timings.addRead(System.nanoTime() - start);
+					if (read == -1)
+						break;
+					this.blocks.put(read == blockSize ? buffer : Arrays.copyOf(buffer, read));
+				}
+			} catch (final IOException e) {
+				this.readFailure = e;
+			} catch (final RuntimeException e) {
+				this.readFailure = e;
+			}
+			this.blocks.put(END);
+		} catch (final InterruptedException e) {
+			// Closed before the other stream was read
+		} finally {
+			this.readFinished.countDown();
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (this.direct)
+			return this.in.read();
+		if (!nextBlock())
+			return -1;
+		return this.block[this.position++] & 0xff;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+		if (this.direct)
+			return this.in.read(b, off, len);
+		if (len == 0)
+			return 0;
+		if (!nextBlock())
+			return -1;
+		final int read = Math.min(len, this.block.length - this.position);
+		System.arraycopy(this.block, this.position, b, off, read);
+		this.position += read;
+		return read;
+	}
+
+	@Override
+	public int available() throws IOException {
+		if (this.direct)
+			return this.in.available();
+		return this.block.length - this.position;
+	}
+
+	/** @return whether there is data left in the current block, after waiting for the next block if needed */
+	private boolean nextBlock() throws IOException {
+		while (this.position == this.block.length) {
+			if (this.ended)
+				return false;
+			final long start = System.nanoTime();
+			try {
+				this.block = this.blocks.take();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading account data", e);
+			} finally {
+				this.timings.addReadWait(System.nanoTime() - start);
+			}
+			this.position = 0;
+			if (this.block == END) {
+				this.ended = true;
+				final Throwable readFailure = this.readFailure;
+				if (readFailure != null) {
+					Throwables.propagateIfInstanceOf(readFailure, IOException.class);
+					throw Throwables.propagate(readFailure);
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.closed = true;
+		this.readTask.cancel(true);
+		// A read task which starts after this sees that the stream is closed, so only wait for one which has already started
+		if (this.readStarted) {
+			try {
+				this.readFinished.await();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		this.blocks.clear();
+		if (!this.ended && this.readFailure == null) {
+			// Wake up a reader on another thread which is still waiting for a block
+			this.readFailure = new IOException("Account data stream closed");
+			this.blocks.offer(END);
+		}
+		this.in.close();
+	}
+}
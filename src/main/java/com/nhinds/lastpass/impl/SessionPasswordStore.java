@@ -0,0 +1,91 @@
+package com.nhinds.lastpass.impl;
+
+import java.util.Collection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.nhinds.lastpass.GoogleAuthenticatorRequired;
+import com.nhinds.lastpass.LastPassException;
+import com.nhinds.lastpass.PasswordInfo;
+import com.nhinds.lastpass.PasswordStore;
+import com.nhinds.lastpass.RefreshablePasswordStore;
+import com.nhinds.lastpass.impl.LastPassLoginProvider.LoginResult;
+
+/**
+ * Password store which keeps the session of the login it was retrieved with. Refreshing checks the accounts version with that session,
+ * and only retrieves the accounts again if the version has changed, so an up to date store costs one small request rather than a key
+ * derivation and a download of the account data.
+ */
+class SessionPasswordStore implements RefreshablePasswordStore {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SessionPasswordStore.class);
+
+	private final LastPassBuilderImpl builder;
+	/** The login the current accounts were retrieved with. Guarded by this */
+	private LoginResult loginResult;
+	/** The current accounts, or null if they may not be served because LastPass rejected the login they were served for */
+	private volatile PasswordStore passwordStore;
+	/** Why the accounts may not be served, set before the accounts are cleared */
+	private volatile LastPassException invalidated;
+
+	SessionPasswordStore(final LastPassBuilderImpl builder, final LoginResult loginResult, final PasswordStore passwordStore) {
+		this.builder = builder;
+		this.loginResult = loginResult;
+		this.passwordStore = passwordStore;
+	}
+
+	@Override
+	public synchronized boolean refresh() throws GoogleAuthenticatorRequired {
+		final String sessionId = this.loginResult.getSessionId();
+		// An offline login has no session to check
+		final Integer accountsVersion = sessionId == null ? null : this.builder.checkSession(sessionId);
+		final LoginResult refreshed;
+		if (accountsVersion == null) {
+			LOGGER.debug("No valid session, logging in again");
+			refreshed = this.builder.logInAgain();
+		} else {
+			refreshed = new LoginResult(sessionId, this.loginResult.getKey(), accountsVersion, this.loginResult.getIterations());
+		}
+
+		if (this.passwordStore != null && refreshed.getAccountsVersion() == this.loginResult.getAccountsVersion()) {
+			LOGGER.debug("Accounts version {} is unchanged", refreshed.getAccountsVersion());
+			this.loginResult = refreshed;
+			return false;
+		}
+		LOGGER.debug("Accounts version changed from {} to {}", this.loginResult.getAccountsVersion(), refreshed.getAccountsVersion());
+		this.passwordStore = this.builder.getPasswordStore(refreshed, null);
+		this.loginResult = refreshed;
+		return true;
+	}
+
+	/**
+	 * Stop serving the current accounts, because they were served from the cache and LastPass has since rejected the login. Reads fail
+	 * with a {@link LastPassException} until a refresh logs in successfully
+	 */
+	synchronized void invalidate(final LastPassException cause) {
+		this.invalidated = cause;
+		this.passwordStore = null;
+	}
+
+	@Override
+	public Collection<PasswordInfo> getPasswords() {
+		return getPasswordStore().getPasswords();
+	}
+
+	@Override
+	public Collection<PasswordInfo> getPasswordsByHostname(final String hostname) {
+		return getPasswordStore().getPasswordsByHostname(hostname);
+	}
+
+	@Override
+	public PasswordInfo getPassword(final long id) {
+		return getPasswordStore().getPassword(id);
+	}
+
+	private PasswordStore getPasswordStore() {
+		final PasswordStore passwordStore = this.passwordStore;
+		if (passwordStore == null)
+			throw new LastPassException("Cached accounts are no longer available: " + this.invalidated.getMessage(), this.invalidated);
+		return passwordStore;
+	}
+}
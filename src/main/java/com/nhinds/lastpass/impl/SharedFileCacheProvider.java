@@ -0,0 +1,442 @@
+package com.nhinds.lastpass.impl;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Cache provider which can be shared by several processes (and several instances in one process) using the same directory.
+ * <p>
+ * Each user's account data is published as a series of immutable generation files, named after a hash of the username and the generation
+ * number. Readers use the highest generation, and a file which has been opened or mapped stays consistent even if a newer generation is
+ * published while it is being read. Account data is read from the generation whose header was last returned, so it matches the
+ * account version a caller has just checked. Looking up a user does not list the directory once a generation has been read for it. Only the
+ * current and previous generations are kept; on platforms which do not allow open files to be deleted, older generations which are still in
+ * use are deleted by a later publish.
+ * <p>
+ * A sink from {@link #newAccountDataSink(String, int, int)} holds an exclusive lock on the user's lock file until it is committed or
+ * aborted, so only one process downloads a user's account data at a time; other processes wait for the lock and can then find the account
+ * data in the cache instead of downloading it themselves. Instances are safe to use from multiple threads.
+ */
+public class SharedFileCacheProvider implements StreamingCacheProvider {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SharedFileCacheProvider.class);
+
+	static final String CACHE_FILE_SUFFIX = ".cache";
+	/** Appended to the file prefix for a username, which already ends with a dot */
+	private static final String LOCK_FILE_SUFFIX = "lock";
+	private static final long DEFAULT_LOCK_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+	private static final long LOCK_POLL_MILLIS = 50;
+
+	/**
+	 * File locks are held by the whole process, so threads in this process (possibly using different instances for the same directory)
+	 * take one of these before locking a file. Keyed by the canonical path of the lock file
+	 */
+	private static final ConcurrentMap<String, Semaphore> PROCESS_LOCKS = new ConcurrentHashMap<String, Semaphore>();
+
+	private final File directory;
+	private final long lockTimeoutMillis;
+	/** The most recently read generation for each username, which keeps its header and whether it has been verified */
+	private final ConcurrentMap<String, Generation> generations = new ConcurrentHashMap<String, Generation>();
+
+	private static class Generation {
+		private final long number;
+		private final File file;
+		private final CacheFileFormat.Header header;
+
+		Generation(final long number, final File file, final CacheFileFormat.Header header) {
+			this.number = number;
+			this.file = file;
+			this.header = header;
+		}
+	}
+
+	public SharedFileCacheProvider(final File directory) throws IOException {
+		this(directory, DEFAULT_LOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param lockTimeout
+	 *            How long to wait for another thread or process which is storing account data for the same user before giving up on
+	 *            caching
+	 */
+	public SharedFileCacheProvider(final File directory, final long lockTimeout, final TimeUnit unit) throws IOException {
+		this.directory = Preconditions.checkNotNull(directory);
+		this.lockTimeoutMillis = unit.toMillis(lockTimeout);
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create cache directory " + directory);
+		LOGGER.debug("Caching to shared directory {}", directory);
+	}
+
+	@Override
+	public Integer getIterations(final String username) {
+		final Generation generation = getCurrentGeneration(username);
+		return generation == null ? null : generation.header.iterations;
+	}
+
+	@Override
+	public Integer getAccountVersion(final String username) {
+		final Generation generation = getCurrentGeneration(username);
+		return generation == null ? null : generation.header.accountVersion;
+	}
+
+	@Override
+	public InputStream getAccountData(final String username) throws IOException {
+		// Retry once with the current generation in case the generation is deleted by another process between finding and opening it
+		for (int attempt = 0;; attempt++) {
+			final Generation generation = getVerifiedGeneration(username, attempt > 0);
+			if (generation == null)
+				return null;
+			try {
+				return CacheFileFormat.openAccountData(generation.file, generation.header);
+			} catch (final FileNotFoundException e) {
+				if (attempt > 0)
+					throw e;
+			}
+		}
+	}
+
+	@Override
+	public ByteBuffer mapAccountData(final String username) throws IOException {
+		for (int attempt = 0;; attempt++) {
+			final Generation generation = getVerifiedGeneration(username, attempt > 0);
+			if (generation == null)
+				return null;
+			try {
+				return CacheFileFormat.mapAccountData(generation.file, generation.header);
+			} catch (final FileNotFoundException e) {
+				if (attempt > 0)
+					throw e;
+			}
+		}
+	}
+
+	/**
+	 * Find the generation to read account data from for a username, checking its account data against its checksum. This is normally the
+	 * generation whose header was last returned by {@link #getIterations(String)} or {@link #getAccountVersion(String)}, so that a caller
+	 * which has checked the account version gets the account data it checked even if another process has published a newer generation
+	 * since. Threads sharing this provider can only move it on to a newer generation.
+	 *
+	 * @param current
+	 *            Whether to look for the current generation rather than using the last one read
+	 */
+	private Generation getVerifiedGeneration(final String username, final boolean current) {
+		Generation generation = current ? null : this.generations.get(username);
+		if (generation == null || !generation.file.exists())
+			generation = getCurrentGeneration(username);
+		if (generation == null)
+			return null;
+		try {
+			CacheFileFormat.verify(generation.file, generation.header);
+			return generation;
+		} catch (final IOException e) {
+			// Leave the file for the next publish to replace, since other processes may be looking at it
+			LOGGER.warn("Ignoring corrupt cache file " + generation.file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Find the highest generation for a username, reusing the previously read header if it has not changed. Generations are always
+	 * published with the next number, so once a generation has been read the current one is found by checking whether the following
+	 * generations exist. The directory is only listed the first time a user with a lock file is looked up, or if the last generation read
+	 * has been deleted; users without a lock file have never had account data stored
+	 */
+	private Generation getCurrentGeneration(final String username) {
+		final String prefix = getFilePrefix(username);
+		final Generation previous = this.generations.get(username);
+		long number;
+		if (previous != null && previous.file.exists()) {
+			number = previous.number;
+			while (getGenerationFile(prefix, number + 1).exists())
+				number++;
+			if (number == previous.number)
+				return previous;
+		} else {
+			if (!getLockFile(username).exists())
+				return null;
+			number = findCurrentGenerationNumber(prefix);
+			if (number < 0)
+				return null;
+		}
+		final File file = getGenerationFile(prefix, number);
+		try {
+			final CacheFileFormat.Header header = CacheFileFormat.readHeader(file);
+			if (!username.equals(header.username)) {
+				LOGGER.debug("Cache file {} does not match its username", file);
+				return null;
+			}
+			return putGeneration(username, new Generation(number, file, header));
+		} catch (final IOException e) {
+			LOGGER.debug("Could not read cache file " + file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Remember the generation read for a username, unless another thread has already read a newer one
+	 *
+	 * @return the newest generation read for the username
+	 */
+	private Generation putGeneration(final String username, final Generation generation) {
+		while (true) {
+			final Generation previous = this.generations.get(username);
+			if (previous != null && previous.number >= generation.number && previous.file.exists())
+				return previous;
+			if (previous == null ? this.generations.putIfAbsent(username, generation) == null : this.generations.replace(username,
+					previous, generation))
+				return generation;
+		}
+	}
+
+	/** @return the highest generation number with the given file prefix, or -1 if there are none */
+	private long findCurrentGenerationNumber(final String prefix) {
+		long current = -1;
+		for (final String name : listGenerationFiles(prefix)) {
+			current = Math.max(current, getGenerationNumber(prefix, name));
+		}
+		return current;
+	}
+
+	private String[] listGenerationFiles(final String prefix) {
+		final String[] names = this.directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(final File dir, final String name) {
+				return name.startsWith(prefix) && name.endsWith(CACHE_FILE_SUFFIX) && getGenerationNumber(prefix, name) >= 0;
+			}
+		});
+		return names == null ? new String[0] : names;
+	}
+
+	/** @return the generation number of a file name with the given prefix, or -1 if it is not a generation file name */
+	private static long getGenerationNumber(final String prefix, final String name) {
+		try {
+			return Long.parseLong(name.substring(prefix.length(), name.length() - CACHE_FILE_SUFFIX.length()));
+		} catch (final RuntimeException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public void storeAccountData(final String username, final int iterations, final int accountVersion, final InputStream accountData)
+			throws IOException {
+		final AccountDataSink sink = newAccountDataSink(username, iterations, accountVersion);
+		boolean committed = false;
+		try {
+			ByteStreams.copy(accountData, sink.getOutputStream());
+			sink.commit();
+			committed = true;
+		} finally {
+			accountData.close();
+			if (!committed)
+				sink.abort();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Waits for any other thread or process which is storing account data for the same user, and holds the user's lock until the sink is
+	 * committed or aborted. Committing publishes a new generation.
+	 *
+	 * @throws IOException
+	 *             if the lock could not be taken within the timeout
+	 */
+	@Override
+	public AccountDataSink newAccountDataSink(final String username, final int iterations, final int accountVersion)
+			throws IOException {
+		final String prefix = getFilePrefix(username);
+		final UserLock lock = lock(getLockFile(username));
+		try {
+			return new SharedCacheFileSink(prefix, username, iterations, accountVersion, lock);
+		} catch (final IOException e) {
+			lock.release();
+			throw e;
+		}
+	}
+
+	private class SharedCacheFileSink extends CacheFileSink {
+		private final String prefix;
+		private final UserLock lock;
+
+		SharedCacheFileSink(final String prefix, final String username, final int iterations, final int accountVersion,
+				final UserLock lock) throws IOException {
+			// The temporary file is named after the first generation, but the generation is chosen when it is committed
+			super(getGenerationFile(prefix, 0), username, iterations, accountVersion);
+			this.prefix = prefix;
+			this.lock = lock;
+		}
+
+		@Override
+		void install(final File tempFile, final CacheFileFormat.Header header, final long length) throws IOException {
+			// Holding the lock means no other sink can publish at the same time
+			final long generation = findCurrentGenerationNumber(this.prefix) + 1;
+			final File generationFile = getGenerationFile(this.prefix, generation);
+			rename(tempFile, generationFile);
+			putGeneration(header.username, new Generation(generation, generationFile, header));
+			LOGGER.debug("Published generation {} of account data for {}", generation, header.username);
+			for (final String name : listGenerationFiles(this.prefix)) {
+				if (getGenerationNumber(this.prefix, name) >= generation - 1)
+					continue;
+				if (!new File(SharedFileCacheProvider.this.directory, name).delete())
+					LOGGER.debug("Could not delete old cache file {}, it may still be in use", name);
+			}
+			// Every sink holds the lock while writing, so any other temporary file for this user was left behind by a process which stopped
+			final String[] tempFiles = SharedFileCacheProvider.this.directory.list(new FilenameFilter() {
+				@Override
+				public boolean accept(final File dir, final String name) {
+					return name.startsWith(SharedCacheFileSink.this.prefix) && name.endsWith(CacheFileSink.TEMP_FILE_SUFFIX);
+				}
+			});
+			if (tempFiles != null) {
+				for (final String name : tempFiles) {
+					new File(SharedFileCacheProvider.this.directory, name).delete();
+				}
+			}
+		}
+
+		@Override
+		public void commit() throws IOException {
+			try {
+				super.commit();
+			} finally {
+				this.lock.release();
+			}
+		}
+
+		@Override
+		public void abort() {
+			try {
+				super.abort();
+			} finally {
+				this.lock.release();
+			}
+		}
+	}
+
+	/** A lock on a user's lock file, held by this process and by one thread in it */
+	private static class UserLock {
+		private final Semaphore processLock;
+		private final RandomAccessFile lockFile;
+		private final FileLock fileLock;
+		private boolean released;
+
+		UserLock(final Semaphore processLock, final RandomAccessFile lockFile, final FileLock fileLock) {
+			this.processLock = processLock;
+			this.lockFile = lockFile;
+			this.fileLock = fileLock;
+		}
+
+		synchronized void release() {
+			if (this.released)
+				return;
+			this.released = true;
+			try {
+				this.fileLock.release();
+				this.lockFile.close();
+			} catch (final IOException e) {
+				LOGGER.warn("Could not release cache lock", e);
+			} finally {
+				this.processLock.release();
+			}
+		}
+	}
+
+	private UserLock lock(final File file) throws IOException {
+		final Semaphore processLock = getProcessLock(file);
+		final long deadline = System.currentTimeMillis() + this.lockTimeoutMillis;
+		try {
+			if (!processLock.tryAcquire(this.lockTimeoutMillis, TimeUnit.MILLISECONDS))
+				throw new IOException("Timed out waiting for another thread to store account data in " + file);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting to store account data in " + file, e);
+		}
+		RandomAccessFile lockFile = null;
+		try {
+			lockFile = new RandomAccessFile(file, "rw");
+			final FileChannel channel = lockFile.getChannel();
+			while (true) {
+				FileLock fileLock;
+				try {
+					fileLock = channel.tryLock();
+				} catch (final OverlappingFileLockException e) {
+					// Locked by something else in this process which does not use a provider, so treat it like another process
+					fileLock = null;
+				}
+				if (fileLock != null)
+					return new UserLock(processLock, lockFile, fileLock);
+				if (System.currentTimeMillis() >= deadline)
+					throw new IOException("Timed out waiting for another process to store account data in " + file);
+				Thread.sleep(LOCK_POLL_MILLIS);
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			closeAndRelease(lockFile, processLock);
+			throw new IOException("Interrupted waiting to store account data in " + file, e);
+		} catch (final IOException e) {
+			closeAndRelease(lockFile, processLock);
+			throw e;
+		}
+	}
+
+	private static void closeAndRelease(final RandomAccessFile lockFile, final Semaphore processLock) {
+		try {
+			if (lockFile != null)
+				lockFile.close();
+		} catch (final IOException ignore) {
+		} finally {
+			processLock.release();
+		}
+	}
+
+	private static Semaphore getProcessLock(final File file) throws IOException {
+		final String path = file.getCanonicalPath();
+		final Semaphore processLock = PROCESS_LOCKS.get(path);
+		if (processLock != null)
+			return processLock;
+		final Semaphore newProcessLock = new Semaphore(1);
+		final Semaphore existing = PROCESS_LOCKS.putIfAbsent(path, newProcessLock);
+		return existing == null ? newProcessLock : existing;
+	}
+
+	private static String getFilePrefix(final String username) {
+		return Hashing.sha256().hashString(username, Charsets.UTF_8) + ".";
+	}
+
+	File getLockFile(final String username) {
+		return new File(this.directory, getFilePrefix(username) + LOCK_FILE_SUFFIX);
+	}
+
+	private File getGenerationFile(final String prefix, final long generation) {
+		return new File(this.directory, prefix + generation + CACHE_FILE_SUFFIX);
+	}
+
+	@Override
+	public int hashCode() {
+		return this.directory.hashCode();
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		return obj instanceof SharedFileCacheProvider && this.directory.equals(((SharedFileCacheProvider) obj).directory);
+	}
+}
@@ -0,0 +1,41 @@
+package com.nhinds.lastpass.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Cache provider which can map its stored account data and stream new account data into the cache as it is downloaded.
+ * <p>
+ * This is optional: a provider which only implements {@link CacheProvider} still works, but downloaded account data is then buffered in
+ * memory and passed to {@link #storeAccountData(String, int, int, java.io.InputStream)} once it is complete.
+ */
+public interface StreamingCacheProvider extends CacheProvider {
+	/**
+	 * Destination for account data which is being streamed into the cache. Data written to the sink is not visible through the
+	 * <code>get*</code> methods until it is committed, and replaces any data stored for the username when it is.
+	 */
+	interface AccountDataSink {
+		/** @return the stream to write account data to */
+		OutputStream getOutputStream();
+
+		/** Finish writing account data and replace any stored data for the username with it */
+		void commit() throws IOException;
+
+		/** Discard the data written so far, leaving any stored data in place */
+		void abort();
+	}
+
+	/**
+	 * @return the stored account data for the given username as a read-only buffer, normally mapped from disk, or null if no account data
+	 *         is available for the given username or this provider cannot provide it as a buffer
+	 */
+	ByteBuffer mapAccountData(String username) throws IOException;
+
+	/**
+	 * Begin streaming account data for a username into the cache. The caller must either commit or abort the returned sink.
+	 *
+	 * @return a sink to write account data to, or null if this provider does not store account data
+	 */
+	AccountDataSink newAccountDataSink(String username, int iterations, int accountVersion) throws IOException;
+}
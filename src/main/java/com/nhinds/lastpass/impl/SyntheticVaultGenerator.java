@@ -0,0 +1,141 @@
+package com.nhinds.lastpass.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import com.google.common.base.Preconditions;
+import com.nhinds.lastpass.encryption.AES256EncryptionProvider;
+
+/**
+ * Generates synthetic vaults for load testing and benchmarking.
+ * <p>
+ * Generated vaults are deterministic for a given seed and account count. Field lengths and contents roughly follow real vaults: account
+ * URLs are spread over a pool of registrable domains (under several public suffixes) with a skewed popularity, so popular sites have many
+ * accounts; most accounts are in one of a small number of folders; usernames are mostly email addresses; a small proportion of entries are
+ * secure notes with long text; and a proportion of domains are in equivalent domain groups of two to four domains.
+ */
+public class SyntheticVaultGenerator {
+	private static final String[] SUFFIXES = { "com", "com", "com", "org", "net", "co.uk", "com.au", "io", "de" };
+	private static final String[] SUBDOMAINS = { "", "", "www.", "www.", "login.", "accounts.", "secure.", "my." };
+	private static final String[] PATHS = { "/", "/login", "/signin", "/account/login", "/auth?next=%2Fhome" };
+	private static final String[] GROUPS = { "Email", "Social", "Shopping", "Finance", "Finance\\Banking", "Work", "Work\\Development",
+			"Travel", "Entertainment", "Utilities", "Games", "Personal" };
+	private static final String[] MAIL_DOMAINS = { "gmail.com", "outlook.com", "yahoo.com", "example.com", "fastmail.fm" };
+	private static final String WORD_CHARACTERS = "abcdefghijklmnopqrstuvwxyz";
+	private static final String PASSWORD_CHARACTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789!@#$%^&*()-_=+[]{};:,.<>?";
+	private static final String NOTE_CHARACTERS = "abcdefghijklmnopqrstuvwxyz      \n0123456789.,";
+
+	private static final double SECURE_NOTE_PROBABILITY = 0.05;
+	private static final double ACCOUNT_NOTE_PROBABILITY = 0.1;
+	private static final double UNGROUPED_PROBABILITY = 0.3;
+	private static final double EMAIL_USERNAME_PROBABILITY = 0.8;
+	/** Proportion of domains which are in an equivalent domain group */
+	private static final double EQUIVALENT_DOMAIN_PROBABILITY = 0.1;
+
+	private final long seed;
+
+	public SyntheticVaultGenerator(final long seed) {
+		this.seed = seed;
+	}
+
+	/** Number of distinct registrable domains used for a vault with the given number of accounts */
+	public static int getDomainCount(final int accounts) {
+		return Math.max(10, accounts / 5);
+	}
+
+	/** The registrable domain with the given index, for indexes from 0 to {@link #getDomainCount(int)} */
+	public static String getDomain(final int index) {
+		final StringBuilder name = new StringBuilder();
+		int remaining = index;
+		do {
+			name.append(WORD_CHARACTERS.charAt(remaining % WORD_CHARACTERS.length()));
+			remaining /= WORD_CHARACTERS.length();
+		} while (remaining > 0);
+		return "site-" + name + "." + SUFFIXES[index % SUFFIXES.length];
+	}
+
+	/**
+	 * Generate a vault with the given number of accounts, writing it to the given stream which is closed afterwards
+	 */
+	public void generate(final OutputStream out, final AES256EncryptionProvider encryptionProvider,
+			final AES256EncryptionProvider.Mode mode, final int accounts) throws IOException {
+		final PasswordStoreWriter writer = new PasswordStoreWriter(out, encryptionProvider, mode);
+		try {
+			generate(writer, accounts);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/** Generate a vault with the given number of accounts, without closing the writer */
+	public void generate(final PasswordStoreWriter writer, final int accounts) throws IOException {
+		Preconditions.checkArgument(accounts >= 0, "Account count must not be negative: %s", accounts);
+		final Random random = new Random(this.seed);
+		final int domainCount = getDomainCount(accounts);
+
+		// Equivalent domain groups are made of consecutive domains, starting at a random offset in each block of domains
+		long groupId = 1;
+		final int groupSpacing = (int) (4 / EQUIVALENT_DOMAIN_PROBABILITY);
+		for (int start = 0; start + groupSpacing <= domainCount; start += groupSpacing) {
+			final int groupSize = 2 + random.nextInt(3);
+			final int first = start + random.nextInt(groupSpacing - groupSize + 1);
+			for (int domain = first; domain < first + groupSize; domain++) {
+				writer.writeEquivalentDomain(groupId, getDomain(domain));
+			}
+			groupId++;
+		}
+
+		for (long id = 1; id <= accounts; id++) {
+			final String domain = getDomain(skewedIndex(random, domainCount));
+			final String group = random.nextDouble() < UNGROUPED_PROBABILITY ? "" : GROUPS[random.nextInt(GROUPS.length)];
+			if (random.nextDouble() < SECURE_NOTE_PROBABILITY) {
+				writer.writeAccount(id, capitalize(word(random, 4, 20)) + " note", group, null,
+						randomString(random, NOTE_CHARACTERS, 50 + (int) (Math.exp(random.nextDouble() * 4.3) * 40)), "", "", true);
+			} else {
+				final String url = "https://" + SUBDOMAINS[random.nextInt(SUBDOMAINS.length)] + domain
+						+ PATHS[random.nextInt(PATHS.length)];
+				final String name = random.nextBoolean() ? domain : capitalize(domain.substring(0, domain.indexOf('.')))
+						+ (random.nextInt(4) == 0 ? " (" + word(random, 3, 10) + ")" : "");
+				final String extra = random.nextDouble() < ACCOUNT_NOTE_PROBABILITY ? randomString(random, NOTE_CHARACTERS,
+						10 + random.nextInt(190)) : "";
+				writer.writeAccount(id, name, group, url, extra, username(random), password(random), false);
+			}
+		}
+	}
+
+	/** A random index below <code>count</code>, with low indexes much more likely than high ones */
+	private static int skewedIndex(final Random random, final int count) {
+		final double uniform = random.nextDouble();
+		return (int) (uniform * uniform * uniform * count);
+	}
+
+	private static String username(final Random random) {
+		final String localPart = word(random, 3, 12) + (random.nextBoolean() ? "." + word(random, 3, 10) : "")
+				+ (random.nextInt(3) == 0 ? Integer.toString(random.nextInt(1000)) : "");
+		if (random.nextDouble() < EMAIL_USERNAME_PROBABILITY)
+			return localPart + "@" + MAIL_DOMAINS[random.nextInt(MAIL_DOMAINS.length)];
+		return localPart;
+	}
+
+	private static String password(final Random random) {
+		final int length = (int) Math.max(6, Math.min(64, Math.round(14 + random.nextGaussian() * 5)));
+		return randomString(random, PASSWORD_CHARACTERS, length);
+	}
+
+	private static String word(final Random random, final int minLength, final int maxLength) {
+		return randomString(random, WORD_CHARACTERS, minLength + random.nextInt(maxLength - minLength + 1));
+	}
+
+	private static String capitalize(final String word) {
+		return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+	}
+
+	private static String randomString(final Random random, final String characters, final int length) {
+		final char[] string = new char[length];
+		for (int i = 0; i < length; i++) {
+			string[i] = characters.charAt(random.nextInt(characters.length()));
+		}
+		return new String(string);
+	}
+}
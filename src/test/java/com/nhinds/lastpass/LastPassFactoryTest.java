@@ -9,6 +9,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import com.nhinds.lastpass.impl.DirectoryCacheProvider;
 import com.nhinds.lastpass.impl.FileCacheProvider;
 import com.nhinds.lastpass.impl.LastPassImpl;
 import com.nhinds.lastpass.impl.NullCacheProvider;
@@ -27,4 +28,11 @@ public class LastPassFactoryTest {
 		File cacheFile = this.temporaryFolder.newFile();
 		assertEquals(new LastPassImpl(new FileCacheProvider(cacheFile)), LastPassFactory.getCachingLastPass(cacheFile));
 	}
+
+	@Test
+	public void concurrentLastPass() throws IOException {
+		File cacheDirectory = this.temporaryFolder.newFolder();
+		assertEquals(new LastPassImpl(new DirectoryCacheProvider(cacheDirectory)),
+				LastPassFactory.getConcurrentLastPass(cacheDirectory));
+	}
 }
@@ -1,12 +1,19 @@
 package com.nhinds.lastpass.encryption;
 
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
 
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
@@ -33,13 +40,15 @@ public class AES256DecryptionProviderTest {
 		rand.nextBytes(key1);
 		rand.nextBytes(key2);
 		final List<Object[]> params = new ArrayList<Object[]>();
-		for (final byte[] key : ImmutableList.of(key1, key2)) {
-			for (final String plainText : plainTexts) {
-				params.add(new Object[] { key, encryptCBCPlain(plainText, key), plainText });
-				params.add(new Object[] { key, encryptECBPlain(plainText, key), plainText });
+		for (final CryptoBackend backend : StandardCryptoBackend.values()) {
+			for (final byte[] key : ImmutableList.of(key1, key2)) {
+				for (final String plainText : plainTexts) {
+					params.add(new Object[] { backend, key, encryptCBCPlain(plainText, key), plainText });
+					params.add(new Object[] { backend, key, encryptECBPlain(plainText, key), plainText });
+				}
+				// Empty cipherText should equal empty plaintext
+				params.add(new Object[] { backend, key, new byte[0], "" });
 			}
-			// Empty cipherText should equal empty plaintext
-			params.add(new Object[] { key, new byte[0], "" });
 		}
 		return params;
 	}
@@ -71,13 +80,16 @@ public class AES256DecryptionProviderTest {
 		}
 	}
 
+	private final CryptoBackend backend;
 	private final byte[] encryptionKey;
 	private final byte[] cipherText;
 	private final String plainText;
 	
 	private AES256EncryptionProvider provider;
 
-	public AES256DecryptionProviderTest(final byte[] encryptionKey, final byte[] cipherText, final String plainText) {
+	public AES256DecryptionProviderTest(final CryptoBackend backend, final byte[] encryptionKey, final byte[] cipherText,
+			final String plainText) {
+		this.backend = backend;
 		this.encryptionKey = encryptionKey;
 		this.cipherText = cipherText;
 		this.plainText = plainText;
@@ -85,7 +97,7 @@ public class AES256DecryptionProviderTest {
 	
 	@Before
 	public void setup() {
-		provider = new AES256EncryptionProvider(this.encryptionKey);
+		provider = new AES256EncryptionProvider(this.encryptionKey, this.backend);
 	}
 
 	@Test
@@ -97,4 +109,64 @@ public class AES256DecryptionProviderTest {
 	public void roundtrip() {
 		assertEquals(this.plainText, provider.decrypt(provider.encrypt(this.plainText)));
 	}
+
+	@Test
+	public void roundtripEcb() {
+		final byte[] encrypted = provider.encrypt(this.plainText, AES256EncryptionProvider.Mode.ECB);
+		assertEquals(0, encrypted.length % 16);
+		assertEquals(this.plainText, provider.decrypt(encrypted));
+	}
+
+	@Test
+	public void roundtripCbc() {
+		final byte[] encrypted = provider.encrypt(this.plainText, AES256EncryptionProvider.Mode.CBC);
+		assertEquals(1, encrypted.length % 16);
+		assertEquals(this.plainText, provider.decrypt(encrypted));
+	}
+
+	@Test
+	public void decryptFromMultipleThreads() throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < 100; i++) {
+				results.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() {
+						return provider.decrypt(provider.encrypt(provider.decrypt(cipherText)));
+					}
+				}));
+			}
+			for (final Future<String> result : results) {
+				assertEquals(this.plainText, result.get());
+			}
+			assertThat(provider.getPooledCipherCount(), lessThanOrEqualTo(3 * AES256EncryptionProvider.MAX_POOLED_CIPHERS));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void cipherPoolIsBoundedWhenManyThreadsDecryptAtOnce() throws Exception {
+		final int threads = 2 * AES256EncryptionProvider.MAX_POOLED_CIPHERS;
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final CyclicBarrier barrier = new CyclicBarrier(threads);
+			final List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < threads; i++) {
+				results.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						barrier.await();
+						return provider.decrypt(cipherText);
+					}
+				}));
+			}
+			for (final Future<String> result : results)
+				assertEquals(this.plainText, result.get());
+			assertThat(provider.getPooledCipherCount(), lessThanOrEqualTo(3 * AES256EncryptionProvider.MAX_POOLED_CIPHERS));
+		} finally {
+			executor.shutdown();
+		}
+	}
 }
@@ -0,0 +1,57 @@
+package com.nhinds.lastpass.encryption;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Test;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.spongycastle.crypto.params.KeyParameter;
+
+public class PBKDF2HmacSHA256Test {
+	@Test
+	public void rfc7914Vector1() throws DecoderException {
+		assertArrayEquals(hex("55ac046e56e3089fec1691c22544b605f94185216dde0465e68b9d57c20dacbc"),
+				PBKDF2HmacSHA256.derive("passwd".getBytes(), "salt".getBytes(), 1));
+	}
+
+	@Test
+	public void rfc7914Vector2() throws DecoderException {
+		assertArrayEquals(hex("4ddcd8f60b98be21830cee5ef22701f9641a4418d04c0414aeff08876b34ab56"),
+				PBKDF2HmacSHA256.derive("Password".getBytes(), "NaCl".getBytes(), 80000));
+	}
+
+	@Test
+	public void matchesSpongyCastleForAllPasswordAndSaltLengths() {
+		final Random random = new Random(1234);
+		// Cover empty inputs, inputs either side of the block size, and passwords long enough to be hashed before use
+		for (int passwordLength = 0; passwordLength <= 130; passwordLength += 13) {
+			for (int saltLength = 0; saltLength <= 130; saltLength += 11) {
+				final byte[] password = new byte[passwordLength];
+				final byte[] salt = new byte[saltLength];
+				random.nextBytes(password);
+				random.nextBytes(salt);
+				final int iterations = 1 + random.nextInt(20);
+
+				final PKCS5S2ParametersGenerator generator = new PKCS5S2ParametersGenerator(new SHA256Digest());
+				generator.init(password, salt, iterations);
+				final byte[] expected = ((KeyParameter) generator.generateDerivedMacParameters(32 * 8)).getKey();
+
+				assertArrayEquals(passwordLength + "/" + saltLength + "/" + iterations, expected,
+						PBKDF2HmacSHA256.derive(password, salt, iterations));
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zeroIterationsThrowsException() {
+		PBKDF2HmacSHA256.derive(new byte[1], new byte[1], 0);
+	}
+
+	private static byte[] hex(final String hex) throws DecoderException {
+		return Hex.decodeHex(hex.toCharArray());
+	}
+}
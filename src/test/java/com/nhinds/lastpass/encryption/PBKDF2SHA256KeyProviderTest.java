@@ -4,11 +4,21 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.spongycastle.crypto.PBEParametersGenerator;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.spongycastle.crypto.params.KeyParameter;
 
 import com.nhinds.lastpass.encryption.PBKDF2SHA256KeyProvider;
 
+@RunWith(Parameterized.class)
 public class PBKDF2SHA256KeyProviderTest {
 
 	private static byte[] KEY_a_b_1 = new byte[] { -5, -114, 32, -4, 46, 76, 63, 36, -116, 96, -61, -101, -42, 82, -13, -63, 52, 114, -104,
@@ -22,7 +32,20 @@ public class PBKDF2SHA256KeyProviderTest {
 	private static final String HASH_a_b_2 = "266cd96b9060ed4ea3346a18f040ee137a8c7f43a3df90ff13d0c67d02669828";
 	private static final String HASH_a_b_200 = "80eaf751bebacb74fe0ac800b78a74c725c2ae94d7f092da9f98e398c93383b1";
 
-	private final PBKDF2SHA256KeyProvider provider = new PBKDF2SHA256KeyProvider();
+	@Parameters
+	public static List<Object[]> params() {
+		final List<Object[]> params = new ArrayList<Object[]>();
+		for (final CryptoBackend backend : StandardCryptoBackend.values()) {
+			params.add(new Object[] { backend });
+		}
+		return params;
+	}
+
+	private final PBKDF2SHA256KeyProvider provider;
+
+	public PBKDF2SHA256KeyProviderTest(final CryptoBackend backend) {
+		this.provider = new PBKDF2SHA256KeyProvider(backend);
+	}
 
 	@Test
 	public void testKeyAB1() throws GeneralSecurityException {
@@ -53,4 +76,19 @@ public class PBKDF2SHA256KeyProviderTest {
 	public void testHashAB200() throws GeneralSecurityException {
 		assertEquals(HASH_a_b_200, this.provider.getHash(KEY_a_b_200, "b", 200));
 	}
+
+	@Test
+	public void testKeyMatchesSpongyCastleGenerator() throws GeneralSecurityException {
+		final String longPassword = "a password which is longer than the sixty four byte HMAC-SHA256 block size";
+		for (final String password : new String[] { "", "b", "pässwörd", longPassword }) {
+			for (final int iterations : new int[] { 2, 5000 }) {
+				final PKCS5S2ParametersGenerator generator = new PKCS5S2ParametersGenerator(new SHA256Digest());
+				generator.init(PBEParametersGenerator.PKCS5PasswordToUTF8Bytes(password.toCharArray()), "user@example.com".getBytes(),
+						iterations);
+				final byte[] expected = ((KeyParameter) generator.generateDerivedMacParameters(32 * 8)).getKey();
+
+				assertArrayEquals(password + "/" + iterations, expected, this.provider.getKey("user@example.com", password, iterations));
+			}
+		}
+	}
 }
@@ -0,0 +1,208 @@
+package com.nhinds.lastpass.encryption;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.nhinds.lastpass.LastPassException;
+import com.nhinds.lastpass.encryption.ScheduledKeyProvider.Priority;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ScheduledKeyProviderTest {
+	private static final byte[] KEY = { 1, 2, 3 };
+
+	@Mock
+	private KeyProvider delegate;
+
+	private final ExecutorService callers = Executors.newCachedThreadPool();
+	private final List<String> derivedFor = Collections.synchronizedList(new ArrayList<String>());
+	private final CountDownLatch release = new CountDownLatch(1);
+	private ScheduledKeyProvider keyProvider;
+
+	@After
+	public void shutdown() {
+		this.release.countDown();
+		this.callers.shutdownNow();
+		if (this.keyProvider != null)
+			this.keyProvider.close();
+	}
+
+	@Test
+	public void keysAreDerivedOnDedicatedThread() throws Exception {
+		final String[] thread = new String[1];
+		when(this.delegate.getKey("user", "password", 5000)).thenAnswer(new Answer<byte[]>() {
+			@Override
+			public byte[] answer(final InvocationOnMock invocation) {
+				thread[0] = Thread.currentThread().getName();
+				return KEY;
+			}
+		});
+		this.keyProvider = new ScheduledKeyProvider(this.delegate, 1, 1);
+
+		assertArrayEquals(KEY, this.keyProvider.getKey("user", "password", 5000));
+		assertThat(thread[0], startsWith("lastpass-key-derivation-"));
+		assertThat(thread[0], is(not(equalTo(Thread.currentThread().getName()))));
+		assertEquals(1, this.keyProvider.getMetrics().getCompleted());
+		assertThat(this.keyProvider.getMetrics().getComputeNanos(), is(greaterThan(0L)));
+	}
+
+	@Test
+	public void hashesAreComputedOnCallingThread() throws Exception {
+		when(this.delegate.getHash(KEY, "password", 5000)).thenReturn("hash");
+		this.keyProvider = new ScheduledKeyProvider(this.delegate, 1, 1);
+
+		assertEquals("hash", this.keyProvider.getHash(KEY, "password", 5000));
+		verify(this.delegate).getHash(KEY, "password", 5000);
+	}
+
+	@Test
+	public void derivationFailureIsThrownToCaller() throws Exception {
+		final GeneralSecurityException failure = new GeneralSecurityException("No such algorithm");
+		when(this.delegate.getKey("user", "password", 5000)).thenThrow(failure);
+		this.keyProvider = new ScheduledKeyProvider(this.delegate, 1, 1);
+
+		try {
+			this.keyProvider.getKey("user", "password", 5000);
+			fail("Expected the derivation to fail");
+		} catch (final GeneralSecurityException e) {
+			assertEquals(failure, e);
+		}
+	}
+
+	@Test
+	public void derivationsBeyondQueueCapacityAreRejected() throws Exception {
+		blockDerivations();
+		this.keyProvider = new ScheduledKeyProvider(this.delegate, 1, 1);
+		final Future<byte[]> running = derive("running", Priority.INTERACTIVE);
+		awaitDerivation("running");
+		final Future<byte[]> queued = derive("queued", Priority.INTERACTIVE);
+		awaitQueued(queued);
+
+		try {
+			this.keyProvider.getKey("rejected", "password", 5000);
+			fail("Expected the derivation to be rejected");
+		} catch (final LastPassException expected) {
+		}
+		assertEquals(1, this.keyProvider.getMetrics().getRejected());
+
+		this.release.countDown();
+		assertArrayEquals(KEY, running.get(10, TimeUnit.SECONDS));
+		assertArrayEquals(KEY, queued.get(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void interactiveDerivationsRunBeforeBackgroundDerivations() throws Exception {
+		blockDerivations();
+		this.keyProvider = new ScheduledKeyProvider(this.delegate, 1, 4);
+		final Future<byte[]> running = derive("running", Priority.INTERACTIVE);
+		awaitDerivation("running");
+		final Future<byte[]> background = derive("background", Priority.BACKGROUND);
+		awaitQueued(background);
+		final Future<byte[]> interactive = derive("interactive", Priority.INTERACTIVE);
+		awaitQueued(interactive);
+
+		this.release.countDown();
+		running.get(10, TimeUnit.SECONDS);
+		background.get(10, TimeUnit.SECONDS);
+		interactive.get(10, TimeUnit.SECONDS);
+
+		assertEquals(Arrays.asList("running", "interactive", "background"), this.derivedFor);
+		assertThat(this.keyProvider.getMetrics().getQueueWaitNanos(), is(greaterThan(0L)));
+	}
+
+	@Test
+	public void interruptedCallerKeepsPermitUntilDerivationFinishes() throws Exception {
+		blockDerivations();
+		this.keyProvider = new ScheduledKeyProvider(this.delegate, 1, 0);
+		final Future<byte[]> interrupted = derive("interrupted", Priority.INTERACTIVE);
+		awaitDerivation("interrupted");
+
+		interrupted.cancel(true);
+		// The interrupted caller gives up on its derivation, but the derivation still occupies the only thread
+		Thread.sleep(50);
+		try {
+			derive("rejected", Priority.INTERACTIVE).get(10, TimeUnit.SECONDS);
+			fail("Expected the derivation to be rejected");
+		} catch (final ExecutionException e) {
+			assertThat(e.getCause(), is(instanceOf(LastPassException.class)));
+		}
+
+		this.release.countDown();
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (this.keyProvider.getMetrics().getCompleted() < 1 && System.nanoTime() < deadline)
+			Thread.sleep(5);
+		// The permit is released just after the derivation completes
+		Thread.sleep(50);
+		assertArrayEquals(KEY, this.keyProvider.getKey("admitted", "password", 5000));
+		assertEquals(1, this.keyProvider.getMetrics().getRejected());
+	}
+
+	/** Make derivations record their username, then wait until released */
+	private void blockDerivations() throws GeneralSecurityException {
+		when(this.delegate.getKey(anyString(), eq("password"), eq(5000))).thenAnswer(new Answer<byte[]>() {
+			@Override
+			public byte[] answer(final InvocationOnMock invocation) throws InterruptedException {
+				ScheduledKeyProviderTest.this.derivedFor.add((String) invocation.getArguments()[0]);
+				ScheduledKeyProviderTest.this.release.await();
+				return KEY;
+			}
+		});
+	}
+
+	private Future<byte[]> derive(final String username, final Priority priority) {
+		return this.callers.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws GeneralSecurityException {
+				ScheduledKeyProvider.setCurrentPriority(priority);
+				return ScheduledKeyProviderTest.this.keyProvider.getKey(username, "password", 5000);
+			}
+		});
+	}
+
+	private void awaitDerivation(final String username) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!this.derivedFor.contains(username) && System.nanoTime() < deadline)
+			Thread.sleep(5);
+		assertTrue(this.derivedFor.contains(username));
+	}
+
+	/** Wait until a derivation has been admitted, which is when it holds a permit but has not started */
+	private void awaitQueued(final Future<byte[]> derivation) throws InterruptedException {
+		// The caller thread blocks in getKey once it has queued the derivation, so give it time to get there
+		Thread.sleep(50);
+		assertTrue(!derivation.isDone());
+	}
+}
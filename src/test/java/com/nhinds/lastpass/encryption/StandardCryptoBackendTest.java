@@ -0,0 +1,49 @@
+package com.nhinds.lastpass.encryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class StandardCryptoBackendTest {
+	@Test
+	public void spongyCastleBackendUsesSpongyCastleProvider() throws GeneralSecurityException {
+		assertEquals("SC", StandardCryptoBackend.SPONGY_CASTLE.getCipher("AES/CBC/PKCS5Padding").getProvider().getName());
+		assertEquals("SC", StandardCryptoBackend.SPONGY_CASTLE.getMessageDigest("SHA-256").getProvider().getName());
+		assertEquals("SC", StandardCryptoBackend.SPONGY_CASTLE.getMac("HmacSHA256").getProvider().getName());
+	}
+
+	@Test
+	public void spongyCastleBackendDoesNotRegisterProvider() throws GeneralSecurityException {
+		final Provider[] providers = Security.getProviders();
+
+		StandardCryptoBackend.SPONGY_CASTLE.getCipher("AES/ECB/PKCS5Padding");
+		new AES256EncryptionProvider(new byte[32], StandardCryptoBackend.SPONGY_CASTLE).decrypt(new byte[0]);
+
+		assertNull(Security.getProvider("SC"));
+		assertArrayEquals(providers, Security.getProviders());
+	}
+
+	@Test
+	public void jdkBackendUsesHighestPriorityInstalledProvider() throws GeneralSecurityException {
+		final String provider = StandardCryptoBackend.JDK.getMessageDigest("SHA-256").getProvider().getName();
+		for (final Provider installed : Security.getProviders()) {
+			if (installed.getService("MessageDigest", "SHA-256") != null) {
+				assertEquals(installed.getName(), provider);
+				return;
+			}
+		}
+	}
+
+	@Test
+	public void defaultBackendIsStandardBackend() {
+		assertTrue(Arrays.asList(StandardCryptoBackend.values()).contains(StandardCryptoBackend.getDefault()));
+	}
+}
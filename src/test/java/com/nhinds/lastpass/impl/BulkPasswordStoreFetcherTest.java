@@ -0,0 +1,211 @@
+package com.nhinds.lastpass.impl;
+
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.nhinds.lastpass.LastPassException;
+import com.nhinds.lastpass.encryption.AES256EncryptionProvider;
+import com.nhinds.lastpass.encryption.PBKDF2SHA256KeyProvider;
+import com.nhinds.lastpass.impl.BulkPasswordStoreFetcher.Credentials;
+import com.nhinds.lastpass.impl.BulkPasswordStoreFetcher.Result;
+
+public class BulkPasswordStoreFetcherTest {
+	private static final int ACCOUNTS = 3;
+
+	private final LocalLastPass server = new LocalLastPass();
+	private final LastPassImpl lastPass = new LastPassImpl(new NullCacheProvider(), this.server);
+
+	@Test
+	public void virtualThreadsAreUsedWhenAvailable() {
+		final BulkPasswordStoreFetcher fetcher = new BulkPasswordStoreFetcher(this.lastPass);
+		try {
+			assertEquals(hasVirtualThreads(), fetcher.usesVirtualThreads());
+		} finally {
+			fetcher.close();
+		}
+	}
+
+	@Test
+	public void fetchesEveryPasswordStoreWithinConcurrencyLimit() throws Exception {
+		final BulkPasswordStoreFetcher fetcher = new BulkPasswordStoreFetcher(this.lastPass, 4);
+		try {
+			final List<Credentials> credentials = credentials(40);
+
+			final List<Result> results = fetcher.fetchAll(credentials);
+
+			assertThat(results, hasSize(40));
+			for (int i = 0; i < results.size(); i++) {
+				final Result result = results.get(i);
+				assertEquals(credentials.get(i), result.getCredentials());
+				assertTrue(result.toString(), result.isSuccessful());
+				assertThat(result.getPasswordStore().getPasswords(), hasSize(ACCOUNTS));
+			}
+			assertThat(this.server.peakRequests.get(), lessThanOrEqualTo(4));
+			assertEquals(0, this.server.requests.get());
+		} finally {
+			fetcher.close();
+		}
+	}
+
+	@Test
+	public void platformThreadPoolIsUsedWithoutVirtualThreads() throws Exception {
+		final BulkPasswordStoreFetcher fetcher = new BulkPasswordStoreFetcher(this.lastPass, 2, null);
+		try {
+			assertFalse(fetcher.usesVirtualThreads());
+
+			final List<Result> results = fetcher.fetchAll(credentials(10));
+
+			for (final Result result : results)
+				assertTrue(result.toString(), result.isSuccessful());
+			assertThat(this.server.peakRequests.get(), lessThanOrEqualTo(2));
+		} finally {
+			fetcher.close();
+		}
+	}
+
+	@Test
+	public void failedFetchDoesNotAffectOtherFetches() throws Exception {
+		final BulkPasswordStoreFetcher fetcher = new BulkPasswordStoreFetcher(this.lastPass, 4);
+		try {
+			final List<Credentials> credentials = credentials(5);
+			credentials.set(2, new Credentials("user2@example.com", "wrong password"));
+
+			final List<Result> results = fetcher.fetchAll(credentials);
+
+			for (int i = 0; i < results.size(); i++) {
+				final Result result = results.get(i);
+				if (i == 2) {
+					assertFalse(result.isSuccessful());
+					assertNull(result.getPasswordStore());
+					assertThat(result.getFailure(), instanceOf(LastPassException.class));
+				} else {
+					assertTrue(result.toString(), result.isSuccessful());
+				}
+			}
+		} finally {
+			fetcher.close();
+		}
+	}
+
+	private static List<Credentials> credentials(final int users) {
+		final List<Credentials> credentials = new ArrayList<Credentials>();
+		for (int i = 0; i < users; i++)
+			credentials.add(new Credentials("user" + i + "@example.com", "password"));
+		return credentials;
+	}
+
+	private static boolean hasVirtualThreads() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (final NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Local stand-in for login.php and getaccts.php, which accepts "password" for any username and serves a synthetic vault encrypted
+	 * with the user's key. Downloads are slowed down so that concurrent fetches overlap
+	 */
+	private static class LocalLastPass extends MockHttpTransport {
+		private static final Pattern USERNAME = Pattern.compile("(?:^|&)username=([^&]*)");
+		private static final Pattern HASH = Pattern.compile("(?:^|&)hash=([^&]*)");
+		private static final String SESSION_COOKIE = LastPassBuilderImpl.SESSION_COOKIE_NAME + "=";
+
+		final AtomicInteger requests = new AtomicInteger();
+		final AtomicInteger peakRequests = new AtomicInteger();
+		private final PBKDF2SHA256KeyProvider keyProvider = new PBKDF2SHA256KeyProvider();
+
+		@Override
+		public LowLevelHttpRequest buildRequest(final String method, final String url) {
+			return new MockLowLevelHttpRequest(url) {
+				@Override
+				public LowLevelHttpResponse execute() throws IOException {
+					final int current = LocalLastPass.this.requests.incrementAndGet();
+					try {
+						int peak;
+						while ((peak = LocalLastPass.this.peakRequests.get()) < current
+								&& !LocalLastPass.this.peakRequests.compareAndSet(peak, current)) {
+						}
+						if (url.startsWith("https://lastpass.com/login.php"))
+							return login(getContentAsString());
+						if (url.startsWith("https://lastpass.com/getaccts.php"))
+							return accounts(getFirstHeaderValue("Cookie"));
+						return new MockLowLevelHttpResponse().setStatusCode(404);
+					} finally {
+						LocalLastPass.this.requests.decrementAndGet();
+					}
+				}
+			};
+		}
+
+		private MockLowLevelHttpResponse login(final String form) throws IOException {
+			final String username = formValue(USERNAME, form);
+			final String expectedHash;
+			try {
+				expectedHash = this.keyProvider.getHash(key(username), "password", 1);
+			} catch (final GeneralSecurityException e) {
+				throw new IOException(e);
+			}
+			final String response;
+			if (expectedHash.equals(formValue(HASH, form)))
+				response = "<response><ok sessionid=\"" + username + "\" accts_version=\"1\"/></response>";
+			else
+				response = "<response><error message=\"Invalid password\" cause=\"unknownpassword\"/></response>";
+			return new MockLowLevelHttpResponse().setContentType("text/xml").setContent(response);
+		}
+
+		private MockLowLevelHttpResponse accounts(final String cookie) throws IOException {
+			final String username = cookie.substring(cookie.indexOf(SESSION_COOKIE) + SESSION_COOKIE.length());
+			final ByteArrayOutputStream accountData = new ByteArrayOutputStream();
+			new SyntheticVaultGenerator(username.hashCode()).generate(accountData, new AES256EncryptionProvider(key(username)),
+					AES256EncryptionProvider.Mode.CBC, ACCOUNTS);
+			try {
+				Thread.sleep(10);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return new MockLowLevelHttpResponse().setContent(new ByteArrayInputStream(accountData.toByteArray()));
+		}
+
+		private byte[] key(final String username) throws IOException {
+			try {
+				return this.keyProvider.getKey(username, "password", 1);
+			} catch (final GeneralSecurityException e) {
+				throw new IOException(e);
+			}
+		}
+
+		private static String formValue(final Pattern pattern, final String form) throws IOException {
+			final Matcher matcher = pattern.matcher(form);
+			if (!matcher.find())
+				throw new IOException("Missing form value " + pattern + " in " + form);
+			return URLDecoder.decode(matcher.group(1), "UTF-8");
+		}
+	}
+}
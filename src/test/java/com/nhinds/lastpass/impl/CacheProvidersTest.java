@@ -0,0 +1,77 @@
+package com.nhinds.lastpass.impl;
+
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.InputStream;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.io.ByteStreams;
+import com.nhinds.lastpass.impl.StreamingCacheProvider.AccountDataSink;
+
+public class CacheProvidersTest {
+	private final CacheProvider cacheProvider = mock(CacheProvider.class);
+
+	@Test
+	public void streamingProviderIsUsedDirectly() {
+		final StreamingCacheProvider streamingCacheProvider = mock(StreamingCacheProvider.class);
+
+		assertThat(CacheProviders.streaming(streamingCacheProvider), sameInstance(streamingCacheProvider));
+	}
+
+	@Test
+	public void plainProviderIsReadThrough() throws Exception {
+		when(this.cacheProvider.getIterations("user")).thenReturn(5000);
+		when(this.cacheProvider.getAccountVersion("user")).thenReturn(12);
+
+		final StreamingCacheProvider streaming = CacheProviders.streaming(this.cacheProvider);
+
+		assertEquals(Integer.valueOf(5000), streaming.getIterations("user"));
+		assertEquals(Integer.valueOf(12), streaming.getAccountVersion("user"));
+		assertNull(streaming.mapAccountData("user"));
+		assertEquals(CacheProviders.streaming(this.cacheProvider), streaming);
+	}
+
+	@Test
+	public void committedSinkStoresBufferedAccountData() throws Exception {
+		final byte[][] stored = new byte[1][];
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(final InvocationOnMock invocation) throws Throwable {
+				stored[0] = ByteStreams.toByteArray((InputStream) invocation.getArguments()[3]);
+				return null;
+			}
+		}).when(this.cacheProvider).storeAccountData(anyString(), anyInt(), anyInt(), any(InputStream.class));
+
+		final AccountDataSink sink = CacheProviders.streaming(this.cacheProvider).newAccountDataSink("user", 5000, 12);
+		sink.getOutputStream().write(new byte[] { 1, 2, 3 });
+		verify(this.cacheProvider, never()).storeAccountData(anyString(), anyInt(), anyInt(), any(InputStream.class));
+		sink.commit();
+
+		verify(this.cacheProvider).storeAccountData(anyString(), anyInt(), anyInt(), any(InputStream.class));
+		assertArrayEquals(new byte[] { 1, 2, 3 }, stored[0]);
+	}
+
+	@Test
+	public void abortedSinkStoresNothing() throws Exception {
+		final AccountDataSink sink = CacheProviders.streaming(this.cacheProvider).newAccountDataSink("user", 5000, 12);
+		sink.getOutputStream().write(new byte[] { 1, 2, 3 });
+		sink.abort();
+
+		verify(this.cacheProvider, never()).storeAccountData(anyString(), anyInt(), anyInt(), any(InputStream.class));
+	}
+}
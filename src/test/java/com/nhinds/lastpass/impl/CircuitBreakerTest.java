@@ -0,0 +1,81 @@
+package com.nhinds.lastpass.impl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+public class CircuitBreakerTest {
+	private final FakeTicker ticker = new FakeTicker();
+	private final CircuitBreaker circuitBreaker = new CircuitBreaker(2, 1, TimeUnit.MINUTES, this.ticker);
+
+	@Test
+	public void opensAfterConsecutiveFailures() {
+		this.circuitBreaker.recordFailure();
+		assertTrue(this.circuitBreaker.allowRequest());
+
+		this.circuitBreaker.recordFailure();
+		assertFalse(this.circuitBreaker.allowRequest());
+		assertTrue(this.circuitBreaker.isOpen());
+	}
+
+	@Test
+	public void successResetsFailures() {
+		this.circuitBreaker.recordFailure();
+		this.circuitBreaker.recordSuccess();
+		this.circuitBreaker.recordFailure();
+
+		assertTrue(this.circuitBreaker.allowRequest());
+	}
+
+	@Test
+	public void allowsRequestsAfterCoolDown() {
+		this.circuitBreaker.recordFailure();
+		this.circuitBreaker.recordFailure();
+
+		this.ticker.advance(59, TimeUnit.SECONDS);
+		assertFalse(this.circuitBreaker.allowRequest());
+		this.ticker.advance(1, TimeUnit.SECONDS);
+		assertTrue(this.circuitBreaker.allowRequest());
+	}
+
+	@Test
+	public void failureAfterCoolDownReopens() {
+		this.circuitBreaker.recordFailure();
+		this.circuitBreaker.recordFailure();
+		this.ticker.advance(1, TimeUnit.MINUTES);
+
+		this.circuitBreaker.recordFailure();
+
+		assertFalse(this.circuitBreaker.allowRequest());
+	}
+
+	@Test
+	public void successAfterCoolDownCloses() {
+		this.circuitBreaker.recordFailure();
+		this.circuitBreaker.recordFailure();
+		this.ticker.advance(1, TimeUnit.MINUTES);
+
+		this.circuitBreaker.recordSuccess();
+		this.circuitBreaker.recordFailure();
+
+		assertTrue(this.circuitBreaker.allowRequest());
+	}
+
+	private static class FakeTicker extends Ticker {
+		private long nanos;
+
+		@Override
+		public long read() {
+			return this.nanos;
+		}
+
+		void advance(final long time, final TimeUnit unit) {
+			this.nanos += unit.toNanos(time);
+		}
+	}
+}
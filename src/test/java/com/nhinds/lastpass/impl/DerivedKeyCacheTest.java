@@ -0,0 +1,107 @@
+package com.nhinds.lastpass.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.google.common.base.Ticker;
+import com.nhinds.lastpass.encryption.KeyProvider;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DerivedKeyCacheTest {
+	private static final byte[] KEY = { 1, 2, 3 };
+	private static final byte[] OTHER_KEY = { 4, 5, 6 };
+
+	@Mock
+	private KeyProvider keyProvider;
+
+	private final FakeTicker ticker = new FakeTicker();
+	private DerivedKeyCache cache;
+
+	@Before
+	public void setup() throws Exception {
+		when(this.keyProvider.getKey("user", "password", 5000)).thenReturn(KEY.clone(), KEY.clone());
+		when(this.keyProvider.getKey("user", "password", 1)).thenReturn(OTHER_KEY.clone());
+		when(this.keyProvider.getKey("user", "other password", 5000)).thenReturn(OTHER_KEY.clone());
+		when(this.keyProvider.getKey("user2", "password", 5000)).thenReturn(OTHER_KEY.clone());
+		this.cache = new DerivedKeyCache(2, 1, TimeUnit.MINUTES, this.ticker);
+	}
+
+	@Test
+	public void keyIsDerivedOnceForSameCredentials() throws Exception {
+		assertArrayEquals(KEY, this.cache.getKey(this.keyProvider, "user", "password", 5000));
+		assertArrayEquals(KEY, this.cache.getKey(this.keyProvider, "user", "password", 5000));
+
+		verify(this.keyProvider, times(1)).getKey("user", "password", 5000);
+	}
+
+	@Test
+	public void keyIsDerivedForDifferentIterationsOrPassword() throws Exception {
+		assertArrayEquals(KEY, this.cache.getKey(this.keyProvider, "user", "password", 5000));
+		assertArrayEquals(OTHER_KEY, this.cache.getKey(this.keyProvider, "user", "password", 1));
+		assertArrayEquals(OTHER_KEY, this.cache.getKey(this.keyProvider, "user", "other password", 5000));
+	}
+
+	@Test
+	public void returnedKeysAreCopies() throws Exception {
+		final byte[] key = this.cache.getKey(this.keyProvider, "user", "password", 5000);
+		key[0] = 100;
+		final byte[] cachedKey = this.cache.getKey(this.keyProvider, "user", "password", 5000);
+		cachedKey[1] = 100;
+
+		assertArrayEquals(KEY, this.cache.getKey(this.keyProvider, "user", "password", 5000));
+	}
+
+	@Test
+	public void keysExpire() throws Exception {
+		this.cache.getKey(this.keyProvider, "user", "password", 5000);
+		this.ticker.advance(2, TimeUnit.MINUTES);
+		assertArrayEquals(KEY, this.cache.getKey(this.keyProvider, "user", "password", 5000));
+
+		verify(this.keyProvider, times(2)).getKey("user", "password", 5000);
+	}
+
+	@Test
+	public void invalidateRemovesOnlyKeysForUser() throws Exception {
+		this.cache.getKey(this.keyProvider, "user", "password", 5000);
+		this.cache.getKey(this.keyProvider, "user2", "password", 5000);
+
+		this.cache.invalidate("user");
+		this.cache.getKey(this.keyProvider, "user", "password", 5000);
+		this.cache.getKey(this.keyProvider, "user2", "password", 5000);
+
+		verify(this.keyProvider, times(2)).getKey("user", "password", 5000);
+		verify(this.keyProvider, times(1)).getKey("user2", "password", 5000);
+	}
+
+	@Test
+	public void keysAreStillReturnedCorrectlyAfterEviction() throws Exception {
+		final byte[] key = this.cache.getKey(this.keyProvider, "user", "password", 5000);
+		this.cache.clear();
+
+		assertArrayEquals("Evicting a key should not modify keys which have been returned", KEY, key);
+		assertArrayEquals(KEY, this.cache.getKey(this.keyProvider, "user", "password", 5000));
+	}
+
+	private static class FakeTicker extends Ticker {
+		private long nanos;
+
+		@Override
+		public long read() {
+			return this.nanos;
+		}
+
+		void advance(final long time, final TimeUnit unit) {
+			this.nanos += unit.toNanos(time);
+		}
+	}
+}
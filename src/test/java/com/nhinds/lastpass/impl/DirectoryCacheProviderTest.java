@@ -0,0 +1,311 @@
+package com.nhinds.lastpass.impl;
+
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.nhinds.lastpass.impl.StreamingCacheProvider.AccountDataSink;
+
+public class DirectoryCacheProviderTest {
+	private static final byte[] ACCOUNT_DATA = new byte[] { 1, 2, 100, 101 };
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File directory;
+
+	@Before
+	public void setup() throws IOException {
+		this.directory = this.temporaryFolder.newFolder();
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void nullDirectoryThrowsException() throws IOException {
+		new DirectoryCacheProvider(null);
+	}
+
+	@Test
+	public void missingDirectoryIsCreated() throws IOException {
+		final File missingDirectory = new File(this.directory, "missing");
+
+		final DirectoryCacheProvider provider = new DirectoryCacheProvider(missingDirectory);
+		provider.storeAccountData("user", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+
+		assertTrue(missingDirectory.isDirectory());
+		assertEquals(Integer.valueOf(5), provider.getIterations("user"));
+	}
+
+	@Test
+	public void unknownUserReturnsNull() throws IOException {
+		final DirectoryCacheProvider provider = new DirectoryCacheProvider(this.directory);
+
+		assertNull(provider.getIterations("user"));
+		assertNull(provider.getAccountVersion("user"));
+		assertNull(provider.getAccountData("user"));
+		assertNull(provider.mapAccountData("user"));
+	}
+
+	@Test
+	public void storesDataForMultipleUsers() throws IOException {
+		final DirectoryCacheProvider provider = new DirectoryCacheProvider(this.directory);
+
+		provider.storeAccountData("user1", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+		provider.storeAccountData("user2", 6, 8, new ByteArrayInputStream(new byte[] { 9 }));
+
+		assertEquals(Integer.valueOf(5), provider.getIterations("user1"));
+		assertEquals(Integer.valueOf(7), provider.getAccountVersion("user1"));
+		assertThat(ByteStreams.toByteArray(provider.getAccountData("user1")), is(equalTo(ACCOUNT_DATA)));
+		assertEquals(Integer.valueOf(6), provider.getIterations("user2"));
+		assertEquals(Integer.valueOf(8), provider.getAccountVersion("user2"));
+		assertThat(ByteStreams.toByteArray(provider.getAccountData("user2")), is(equalTo(new byte[] { 9 })));
+	}
+
+	@Test
+	public void storeReplacesDataForSameUser() throws IOException {
+		final DirectoryCacheProvider provider = new DirectoryCacheProvider(this.directory);
+		provider.storeAccountData("user", 5, 7, new ByteArrayInputStream(new byte[] { 9 }));
+
+		provider.storeAccountData("user", 6, 8, new ByteArrayInputStream(ACCOUNT_DATA));
+
+		assertEquals(Integer.valueOf(6), provider.getIterations("user"));
+		assertEquals(Integer.valueOf(8), provider.getAccountVersion("user"));
+		assertThat(ByteStreams.toByteArray(provider.getAccountData("user")), is(equalTo(ACCOUNT_DATA)));
+		assertThat(this.directory.listFiles(), is(arrayWithSize(1)));
+		assertEquals(provider.getCacheFile("user").length(), provider.getTotalBytes());
+	}
+
+	@Test
+	public void fileNamesDoNotContainUsernames() throws IOException {
+		final DirectoryCacheProvider provider = new DirectoryCacheProvider(this.directory);
+
+		provider.storeAccountData("someone@example.com", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+
+		for (final File file : this.directory.listFiles()) {
+			assertThat(file.getName(), not(containsString("someone")));
+		}
+	}
+
+	@Test
+	public void storedDataCanBeMapped() throws IOException {
+		final DirectoryCacheProvider provider = new DirectoryCacheProvider(this.directory);
+		provider.storeAccountData("user", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+
+		final ByteBuffer accountData = provider.mapAccountData("user");
+		final byte[] mapped = new byte[accountData.remaining()];
+		accountData.get(mapped);
+
+		assertThat(mapped, is(equalTo(ACCOUNT_DATA)));
+	}
+
+	@Test
+	public void storedDataIsReadByNewProvider() throws IOException {
+		final DirectoryCacheProvider provider = new DirectoryCacheProvider(this.directory);
+		provider.storeAccountData("user1", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+		provider.storeAccountData("user2", 6, 8, new ByteArrayInputStream(new byte[] { 9 }));
+
+		final DirectoryCacheProvider newProvider = new DirectoryCacheProvider(this.directory);
+
+		assertEquals(Integer.valueOf(5), newProvider.getIterations("user1"));
+		assertEquals(Integer.valueOf(8), newProvider.getAccountVersion("user2"));
+		assertThat(ByteStreams.toByteArray(newProvider.getAccountData("user1")), is(equalTo(ACCOUNT_DATA)));
+		assertEquals(provider.getTotalBytes(), newProvider.getTotalBytes());
+	}
+
+	@Test
+	public void headersAreReadWithoutAccessingDisk() throws IOException {
+		final DirectoryCacheProvider provider = new DirectoryCacheProvider(this.directory);
+		provider.storeAccountData("user", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+		assertTrue(provider.getCacheFile("user").delete());
+
+		assertEquals(Integer.valueOf(5), provider.getIterations("user"));
+		assertEquals(Integer.valueOf(7), provider.getAccountVersion("user"));
+	}
+
+	@Test
+	public void invalidAndTemporaryFilesAreDeleted() throws IOException {
+		final File invalidFile = new File(this.directory, "invalid" + DirectoryCacheProvider.CACHE_FILE_SUFFIX);
+		Files.write(new byte[] { 1 }, invalidFile);
+		final File tempFile = new File(this.directory, "partial" + CacheFileSink.TEMP_FILE_SUFFIX);
+		Files.write(new byte[] { 1 }, tempFile);
+		final File otherFile = new File(this.directory, "other.txt");
+		Files.write(new byte[] { 1 }, otherFile);
+
+		new DirectoryCacheProvider(this.directory);
+
+		assertFalse(invalidFile.exists());
+		assertFalse(tempFile.exists());
+		assertTrue(otherFile.exists());
+	}
+
+	@Test
+	public void corruptFileIsDeleted() throws IOException {
+		final DirectoryCacheProvider provider = new DirectoryCacheProvider(this.directory);
+		provider.storeAccountData("user", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+		final File cacheFile = provider.getCacheFile("user");
+		final byte[] contents = Files.toByteArray(cacheFile);
+		contents[contents.length - 1]++;
+		Files.write(contents, cacheFile);
+
+		final DirectoryCacheProvider newProvider = new DirectoryCacheProvider(this.directory);
+		assertEquals(Integer.valueOf(7), newProvider.getAccountVersion("user"));
+		assertNull(newProvider.getAccountData("user"));
+
+		assertNull(newProvider.getAccountVersion("user"));
+		assertFalse(cacheFile.exists());
+		assertEquals(0, newProvider.getTotalBytes());
+	}
+
+	@Test
+	public void leastRecentlyUsedUserIsEvictedWhenOverBudget() throws IOException {
+		final byte[] accountData = new byte[1000];
+		final DirectoryCacheProvider provider = new DirectoryCacheProvider(this.directory, 2500);
+		provider.storeAccountData("user1", 5, 7, new ByteArrayInputStream(accountData));
+		provider.storeAccountData("user2", 5, 7, new ByteArrayInputStream(accountData));
+		// Use user1 so that user2 is the least recently used
+		provider.getAccountVersion("user1");
+
+		provider.storeAccountData("user3", 5, 7, new ByteArrayInputStream(accountData));
+
+		assertEquals(Integer.valueOf(7), provider.getAccountVersion("user1"));
+		assertNull(provider.getAccountVersion("user2"));
+		assertNull(provider.getAccountData("user2"));
+		assertFalse(provider.getCacheFile("user2").exists());
+		assertEquals(Integer.valueOf(7), provider.getAccountVersion("user3"));
+		assertThat(provider.getTotalBytes(), is(provider.getCacheFile("user1").length() + provider.getCacheFile("user3").length()));
+	}
+
+	@Test
+	public void mostRecentlyStoredUserIsKeptWhenLargerThanBudget() throws IOException {
+		final DirectoryCacheProvider provider = new DirectoryCacheProvider(this.directory, 100);
+		provider.storeAccountData("user1", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+
+		provider.storeAccountData("user2", 5, 7, new ByteArrayInputStream(new byte[1000]));
+
+		assertNull(provider.getAccountVersion("user1"));
+		assertEquals(Integer.valueOf(7), provider.getAccountVersion("user2"));
+	}
+
+	@Test
+	public void existingFilesAreEvictedWhenOverBudget() throws IOException {
+		final DirectoryCacheProvider provider = new DirectoryCacheProvider(this.directory);
+		provider.storeAccountData("user1", 5, 7, new ByteArrayInputStream(new byte[1000]));
+		provider.storeAccountData("user2", 5, 7, new ByteArrayInputStream(new byte[1000]));
+		assertTrue(provider.getCacheFile("user1").setLastModified(provider.getCacheFile("user2").lastModified() - 10000));
+
+		final DirectoryCacheProvider newProvider = new DirectoryCacheProvider(this.directory, 1500);
+
+		assertNull(newProvider.getAccountVersion("user1"));
+		assertEquals(Integer.valueOf(7), newProvider.getAccountVersion("user2"));
+	}
+
+	@Test
+	public void commitFailsWhenCacheFileCannotBeReplaced() throws IOException {
+		final DirectoryCacheProvider provider = new DirectoryCacheProvider(this.directory);
+		// A non-empty directory can be neither renamed over nor deleted
+		final File cacheFile = provider.getCacheFile("user");
+		assertTrue(new File(cacheFile, "child").mkdirs());
+
+		try {
+			provider.storeAccountData("user", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+			fail("Expected commit to fail");
+		} catch (final IOException expected) {
+			assertThat(expected.getMessage(), containsString("Could not rename"));
+		}
+
+		assertNull(provider.getAccountVersion("user"));
+		assertTrue(cacheFile.isDirectory());
+		assertThat(this.directory.listFiles(), is(arrayWithSize(1)));
+	}
+
+	@Test
+	public void readsForDifferentUsersDoNotWaitForEachOther() throws Exception {
+		final DirectoryCacheProvider provider = new DirectoryCacheProvider(this.directory);
+		final String user = "user";
+		final String otherUser = otherUser(provider, user);
+		provider.storeAccountData(user, 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+		provider.storeAccountData(otherUser, 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+		final ExecutorService executor = Executors.newCachedThreadPool();
+		// Hold the lock a read or commit for the user holds while it accesses the user's cache file
+		final Lock lock = provider.getLock(user);
+		lock.lock();
+		try {
+			final Future<byte[]> read = readAccountData(executor, provider, user);
+			final Future<byte[]> otherRead = readAccountData(executor, provider, otherUser);
+
+			assertThat(otherRead.get(10, TimeUnit.SECONDS), is(equalTo(ACCOUNT_DATA)));
+			try {
+				read.get(50, TimeUnit.MILLISECONDS);
+				fail("Expected read to wait for the lock");
+			} catch (final TimeoutException expected) {
+			}
+			lock.unlock();
+			assertThat(read.get(10, TimeUnit.SECONDS), is(equalTo(ACCOUNT_DATA)));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/** @return a username which does not share a lock with the given username */
+	private static String otherUser(final DirectoryCacheProvider provider, final String username) {
+		for (int i = 0;; i++) {
+			if (provider.getLock("other" + i) != provider.getLock(username))
+				return "other" + i;
+		}
+	}
+
+	private static Future<byte[]> readAccountData(final ExecutorService executor, final CacheProvider provider, final String username) {
+		return executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				final InputStream accountData = provider.getAccountData(username);
+				try {
+					return ByteStreams.toByteArray(accountData);
+				} finally {
+					accountData.close();
+				}
+			}
+		});
+	}
+
+	@Test
+	public void abortedSinkKeepsOriginalAccountData() throws IOException {
+		final DirectoryCacheProvider provider = new DirectoryCacheProvider(this.directory);
+		provider.storeAccountData("user", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+
+		final AccountDataSink sink = provider.newAccountDataSink("user", 6, 8);
+		sink.getOutputStream().write(new byte[] { 9 });
+		sink.abort();
+
+		assertEquals(Integer.valueOf(7), provider.getAccountVersion("user"));
+		assertThat(ByteStreams.toByteArray(provider.getAccountData("user")), is(equalTo(ACCOUNT_DATA)));
+		assertThat(this.directory.listFiles(), is(arrayWithSize(1)));
+	}
+}
@@ -6,13 +6,21 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 
 import org.hamcrest.Description;
 import org.hamcrest.Matcher;
@@ -25,6 +33,7 @@ import org.junit.rules.TemporaryFolder;
 import com.google.common.io.ByteArrayDataInput;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
+import com.nhinds.lastpass.impl.StreamingCacheProvider.AccountDataSink;
 
 public class FileCacheProviderTest {
 	private static final String USER = "user";
@@ -93,6 +102,47 @@ public class FileCacheProviderTest {
 		assertNull(provider.getAccountData(USER));
 	}
 
+	@Test
+	public void previousFormatFileIsIgnored() throws IOException {
+		final DataOutputStream out = new DataOutputStream(new FileOutputStream(this.cacheFile));
+		try {
+			out.writeUTF(USER);
+			out.writeInt(5);
+			out.writeInt(7);
+			out.write(ACCOUNT_DATA);
+		} finally {
+			out.close();
+		}
+		final FileCacheProvider provider = new FileCacheProvider(this.cacheFile);
+
+		assertNull(provider.getIterations(USER));
+		assertNull(provider.getAccountVersion(USER));
+		assertNull(provider.getAccountData(USER));
+	}
+
+	@Test
+	public void truncatedFileIsIgnored() throws IOException {
+		writeFile(5, 7, ACCOUNT_DATA.length, checksum(ACCOUNT_DATA), Arrays.copyOf(ACCOUNT_DATA, 2));
+		final FileCacheProvider provider = new FileCacheProvider(this.cacheFile);
+
+		assertNull(provider.getIterations(USER));
+		assertNull(provider.getAccountVersion(USER));
+		assertNull(provider.getAccountData(USER));
+	}
+
+	@Test
+	public void corruptFileIsDiscardedBeforeAccountDataIsRead() throws IOException {
+		final byte[] corruptAccountData = ACCOUNT_DATA.clone();
+		corruptAccountData[2]++;
+		writeFile(5, 7, ACCOUNT_DATA.length, checksum(ACCOUNT_DATA), corruptAccountData);
+		final FileCacheProvider provider = new FileCacheProvider(this.cacheFile);
+		assertEquals(Integer.valueOf(7), provider.getAccountVersion(USER));
+
+		assertNull(provider.mapAccountData(USER));
+		assertNull(provider.getAccountData(USER));
+		assertNull(provider.getAccountVersion(USER));
+	}
+
 	@Test
 	public void validFileReturnsData() throws IOException {
 		writeValidFile(5, 7);
@@ -105,6 +155,19 @@ public class FileCacheProviderTest {
 				ByteStreams.toByteArray(provider.getAccountData(USER)), is(equalTo(ACCOUNT_DATA)));
 	}
 
+	@Test
+	public void validFileCanBeMapped() throws IOException {
+		writeValidFile(5, 7);
+		final FileCacheProvider provider = new FileCacheProvider(this.cacheFile);
+
+		final ByteBuffer accountData = provider.mapAccountData(USER);
+		final byte[] mapped = new byte[accountData.remaining()];
+		accountData.get(mapped);
+
+		assertThat(mapped, is(equalTo(ACCOUNT_DATA)));
+		assertNull(provider.mapAccountData("1"));
+	}
+
 	@Test
 	public void validFileReturnsNullForDifferentUser() throws IOException {
 		writeValidFile(5, 7);
@@ -141,18 +204,126 @@ public class FileCacheProviderTest {
 		assertNull(provider.getAccountData(USER));
 	}
 
+	@Test
+	public void committedSinkReplacesAccountData() throws IOException {
+		writeValidFile(2, 3);
+		final FileCacheProvider provider = new FileCacheProvider(this.cacheFile);
+
+		final AccountDataSink sink = provider.newAccountDataSink(USER, 10, 11);
+		sink.getOutputStream().write(new byte[] { 7, 8 });
+		sink.getOutputStream().write(9);
+
+		assertEquals("Data should not be visible until the sink is committed", Integer.valueOf(3), provider.getAccountVersion(USER));
+		assertThat(ByteStreams.toByteArray(provider.getAccountData(USER)), is(equalTo(ACCOUNT_DATA)));
+
+		sink.commit();
+
+		assertEquals(Integer.valueOf(10), provider.getIterations(USER));
+		assertEquals(Integer.valueOf(11), provider.getAccountVersion(USER));
+		assertThat(ByteStreams.toByteArray(provider.getAccountData(USER)), is(equalTo(new byte[] { 7, 8, 9 })));
+		assertThat(Files.toByteArray(this.cacheFile), isCacheDataFor(USER, 10, 11, new byte[] { 7, 8, 9 }));
+		assertThat(this.temporaryFolder.getRoot().list(), is(equalTo(new String[] { this.cacheFile.getName() })));
+	}
+
+	@Test
+	public void abortedSinkKeepsOriginalAccountData() throws IOException {
+		writeValidFile(2, 3);
+		final FileCacheProvider provider = new FileCacheProvider(this.cacheFile);
+
+		final AccountDataSink sink = provider.newAccountDataSink("user2", 10, 11);
+		sink.getOutputStream().write(new byte[] { 7, 8 });
+		sink.abort();
+
+		assertEquals(Integer.valueOf(2), provider.getIterations(USER));
+		assertEquals(Integer.valueOf(3), provider.getAccountVersion(USER));
+		assertThat(ByteStreams.toByteArray(provider.getAccountData(USER)), is(equalTo(ACCOUNT_DATA)));
+		assertNull(provider.getAccountData("user2"));
+		assertThat(new FileCacheProvider(this.cacheFile).getAccountVersion(USER), is(3));
+		assertThat(this.temporaryFolder.getRoot().list(), is(equalTo(new String[] { this.cacheFile.getName() })));
+	}
+
+	@Test
+	public void failedStoreKeepsOriginalAccountData() throws IOException {
+		writeValidFile(2, 3);
+		final FileCacheProvider provider = new FileCacheProvider(this.cacheFile);
+
+		try {
+			provider.storeAccountData(USER, 10, 11, new InputStream() {
+				@Override
+				public int read() throws IOException {
+					throw new IOException("Connection reset");
+				}
+			});
+			fail("Expected store to fail");
+		} catch (final IOException expected) {
+		}
+
+		assertEquals(Integer.valueOf(3), provider.getAccountVersion(USER));
+		assertThat(Files.toByteArray(this.cacheFile), isCacheDataFor(USER, 2, 3, ACCOUNT_DATA));
+		assertThat(this.temporaryFolder.getRoot().list(), is(equalTo(new String[] { this.cacheFile.getName() })));
+	}
+
+	@Test
+	public void readsDuringCommitsSeeCompleteAccountData() throws Exception {
+		writeValidFile(2, 3);
+		final FileCacheProvider provider = new FileCacheProvider(this.cacheFile);
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final Future<Void> commits = executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					for (int version = 4; version < 100; version++) {
+						final AccountDataSink sink = provider.newAccountDataSink(USER, 2, version);
+						sink.getOutputStream().write(new byte[] { (byte) version, (byte) version });
+						sink.commit();
+					}
+					return null;
+				}
+			});
+
+			while (!commits.isDone()) {
+				final InputStream accountData = provider.getAccountData(USER);
+				try {
+					final byte[] data = ByteStreams.toByteArray(accountData);
+					assertTrue("Unexpected account data " + Arrays.toString(data),
+							Arrays.equals(ACCOUNT_DATA, data) || (data.length == 2 && data[0] == data[1]));
+				} finally {
+					accountData.close();
+				}
+			}
+			commits.get();
+			assertEquals(Integer.valueOf(99), provider.getAccountVersion(USER));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
 	private void writeValidFile(int iterations, int accountsVersion) throws IOException {
+		writeFile(iterations, accountsVersion, ACCOUNT_DATA.length, checksum(ACCOUNT_DATA), ACCOUNT_DATA);
+	}
+
+	private void writeFile(int iterations, int accountsVersion, long length, int checksum, byte[] accountData) throws IOException {
 		final DataOutputStream out = new DataOutputStream(new FileOutputStream(this.cacheFile));
 		try {
+			out.write("LPAC".getBytes());
+			out.writeInt(1);
+			out.writeLong(length);
+			out.writeInt(checksum);
 			out.writeUTF(USER);
 			out.writeInt(iterations);
 			out.writeInt(accountsVersion);
-			out.write(ACCOUNT_DATA);
+			out.write(accountData);
 		} finally {
 			out.close();
 		}
 	}
 
+	private static int checksum(byte[] accountData) {
+		final CRC32 crc = new CRC32();
+		crc.update(accountData);
+		return (int) crc.getValue();
+	}
+
 	private static ByteArrayInputStream getAccountDataInputStream() {
 		return new ByteArrayInputStream(ACCOUNT_DATA);
 	}
@@ -171,11 +342,17 @@ public class FileCacheProviderTest {
 			@Override
 			protected boolean matchesSafely(byte[] item, Description mismatchDescription) {
 				// Assumes that the username is ASCII - this is true for these tests
-				final int metadataLength = 2 + user.length() + 4 + 4;
+				final int metadataLength = 4 + 4 + 8 + 4 + 2 + user.length() + 4 + 4;
 				final int expectedSize = metadataLength + accountData.length;
 				final ByteArrayDataInput dataInput = ByteStreams.newDataInput(item);
 				if (item.length != expectedSize) {
 					mismatchDescription.appendText("Wrong size: expected " + expectedSize);
+				} else if (dataInput.readInt() != 0x4c504143 || dataInput.readInt() != 1) {
+					mismatchDescription.appendText("Wrong magic number or version");
+				} else if (dataInput.readLong() != accountData.length) {
+					mismatchDescription.appendText("Wrong account data length");
+				} else if (dataInput.readInt() != checksum(accountData)) {
+					mismatchDescription.appendText("Wrong checksum");
 				} else if (!user.equals(dataInput.readUTF())) {
 					mismatchDescription.appendText("Wrong username");
 				} else if (dataInput.readInt() != iterations) {
@@ -1,29 +1,59 @@
 package com.nhinds.lastpass.impl;
 
+import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.startsWith;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpStatusCodes;
@@ -32,13 +62,23 @@ import com.google.api.client.http.LowLevelHttpRequest;
 import com.google.api.client.http.LowLevelHttpResponse;
 import com.google.api.client.testing.http.MockHttpTransport;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.nhinds.lastpass.GoogleAuthenticatorRequired;
+import com.nhinds.lastpass.LastPass.PasswordConsumer;
 import com.nhinds.lastpass.LastPass.ProgressListener;
 import com.nhinds.lastpass.LastPass.ProgressStatus;
+import com.nhinds.lastpass.LastPassException;
+import com.nhinds.lastpass.PasswordInfo;
 import com.nhinds.lastpass.PasswordStore;
+import com.nhinds.lastpass.RefreshablePasswordStore;
 import com.nhinds.lastpass.encryption.AES256EncryptionProvider;
 import com.nhinds.lastpass.encryption.EncryptionProvider;
+import com.nhinds.lastpass.impl.StreamingCacheProvider.AccountDataSink;
 import com.nhinds.lastpass.impl.LastPassBuilderImpl.PasswordStoreFactory;
 import com.nhinds.lastpass.impl.LastPassLoginProvider.LoginResult;
+import com.nhinds.lastpass.impl.dto.LastPassError;
 
 @RunWith(MockitoJUnitRunner.class)
 public class LastPassBuilderTest {
@@ -47,7 +87,7 @@ public class LastPassBuilderTest {
 	private static final byte[] KEY = { 5, 6, 17 };
 
 	@Mock
-	private CacheProvider cacheProvider;
+	private StreamingCacheProvider cacheProvider;
 	@Mock
 	private LastPassLoginProvider loginProvider;
 	@Mock
@@ -58,6 +98,15 @@ public class LastPassBuilderTest {
 	private LowLevelHttpRequest httpRequest;
 	@Mock
 	private LowLevelHttpResponse httpResponse;
+	@Mock
+	private AccountDataSink cacheSink;
+	@Mock
+	private PasswordStore mockPasswordStore;
+	@Mock
+	private PasswordConsumer passwordConsumer;
+
+	private final ByteArrayOutputStream cachedAccountData = new ByteArrayOutputStream();
+	private byte[] parsedAccountData;
 
 	private LastPassBuilderImpl lastPassBuilder;
 
@@ -72,6 +121,25 @@ public class LastPassBuilderTest {
 		};
 		when(this.httpRequest.execute()).thenReturn(this.httpResponse);
 		when(this.httpResponse.getStatusCode()).thenReturn(HttpStatusCodes.STATUS_CODE_OK);
+		when(this.cacheProvider.newAccountDataSink(anyString(), anyInt(), anyInt())).thenReturn(this.cacheSink);
+		when(this.cacheSink.getOutputStream()).thenReturn(this.cachedAccountData);
+		// Read the account data fully and close it, like the real password store factory
+		final Answer<PasswordStore> parseAccountData = new Answer<PasswordStore>() {
+			@Override
+			public PasswordStore answer(final InvocationOnMock invocation) throws Throwable {
+				final InputStream accountData = (InputStream) invocation.getArguments()[0];
+				try {
+					LastPassBuilderTest.this.parsedAccountData = ByteStreams.toByteArray(accountData);
+				} finally {
+					accountData.close();
+				}
+				return LastPassBuilderTest.this.mockPasswordStore;
+			}
+		};
+		when(this.passwordStoreFactory.getPasswordStore(any(InputStream.class), any(EncryptionProvider.class))).thenAnswer(
+				parseAccountData);
+		when(this.passwordStoreFactory.getPasswordStore(any(InputStream.class), any(EncryptionProvider.class), anyBoolean())).thenAnswer(
+				parseAccountData);
 
 		this.lastPassBuilder = new LastPassBuilderImpl(transport, USERNAME, PASSWORD, this.cacheProvider, this.loginProvider,
 				this.passwordStoreFactory);
@@ -86,16 +154,13 @@ public class LastPassBuilderTest {
 		final byte[] content = { 1 };
 		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 1)).thenReturn(new LoginResult("789", KEY, 11, 12));
 		when(this.httpResponse.getContent()).thenReturn(new ByteArrayInputStream(content));
-		final PasswordStore mockPasswordStore = mock(PasswordStore.class);
-		when(this.passwordStoreFactory.getPasswordStore(any(InputStream.class), any(EncryptionProvider.class))).thenReturn(
-				mockPasswordStore);
 
 		PasswordStore passwordStore = this.lastPassBuilder.getPasswordStore(null);
-		assertEquals(mockPasswordStore, passwordStore);
+		assertEquals(this.mockPasswordStore, passwordStore);
 
 		verify(this.httpRequest).addHeader("Cookie", LastPassBuilderImpl.SESSION_COOKIE_NAME + "=789");
 
-		verifyKeyAndReadAccountInputStream();
+		verifyKeyAndAccountData(content);
 		verifyStoreAccountData(12, 11, content);
 	}
 
@@ -131,16 +196,13 @@ public class LastPassBuilderTest {
 		final byte[] content = { 4, 5, 6 };
 		when(this.loginProvider.login(USERNAME, PASSWORD, "otp", "trustMe", 1)).thenReturn(new LoginResult("12345", KEY, 65, 55));
 		when(this.httpResponse.getContent()).thenReturn(new ByteArrayInputStream(content));
-		final PasswordStore mockPasswordStore = mock(PasswordStore.class);
-		when(this.passwordStoreFactory.getPasswordStore(any(InputStream.class), any(EncryptionProvider.class))).thenReturn(
-				mockPasswordStore);
 
 		PasswordStore passwordStore = this.lastPassBuilder.getPasswordStore("otp", "trustMe", null);
-		assertEquals(mockPasswordStore, passwordStore);
+		assertEquals(this.mockPasswordStore, passwordStore);
 
 		verify(this.httpRequest).addHeader("Cookie", LastPassBuilderImpl.SESSION_COOKIE_NAME + "=12345");
 
-		verifyKeyAndReadAccountInputStream();
+		verifyKeyAndAccountData(content);
 		verifyStoreAccountData(55, 65, content);
 	}
 
@@ -180,7 +242,7 @@ public class LastPassBuilderTest {
 		this.lastPassBuilder.getPasswordStore("myOtp", null, null);
 
 		verify(this.passwordStoreFactory).getPasswordStore(accountDataStream, new AES256EncryptionProvider(KEY));
-		verify(this.cacheProvider, never()).storeAccountData(anyString(), anyInt(), anyInt(), any(InputStream.class));
+		verify(this.cacheProvider, never()).newAccountDataSink(anyString(), anyInt(), anyInt());
 	}
 
 	@Test
@@ -206,7 +268,24 @@ public class LastPassBuilderTest {
 
 		verify(listener, never()).statusChanged(ProgressStatus.RETRIEVING);
 		verify(this.httpRequest, never()).execute();
-		verify(this.cacheProvider, never()).storeAccountData(anyString(), anyInt(), anyInt(), any(InputStream.class));
+		verify(this.cacheProvider, never()).newAccountDataSink(anyString(), anyInt(), anyInt());
+	}
+
+	@Test
+	public void getMappedCachedPasswordStore() throws Exception {
+		when(this.cacheProvider.getAccountVersion(USERNAME)).thenReturn(5);
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(5123);
+		final ByteBuffer accountData = ByteBuffer.wrap(new byte[] { 55, 102, 99, 100 });
+		when(this.cacheProvider.mapAccountData(USERNAME)).thenReturn(accountData);
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 5123)).thenReturn(new LoginResult("66", KEY, 5, 5123));
+		when(this.passwordStoreFactory.getPasswordStore(accountData, new AES256EncryptionProvider(KEY))).thenReturn(
+				this.mockPasswordStore);
+
+		assertEquals(this.mockPasswordStore, this.lastPassBuilder.getPasswordStore(null));
+
+		verify(this.cacheProvider, never()).getAccountData(anyString());
+		verify(this.httpRequest, never()).execute();
+		verify(this.cacheProvider, never()).newAccountDataSink(anyString(), anyInt(), anyInt());
 	}
 
 	@Test
@@ -224,7 +303,7 @@ public class LastPassBuilderTest {
 
 		verify(this.httpRequest).addHeader("Cookie", LastPassBuilderImpl.SESSION_COOKIE_NAME + "=67");
 
-		verifyKeyAndReadAccountInputStream();
+		verifyKeyAndAccountData(content);
 		verifyStoreAccountData(5123, 16, content);
 	}
 
@@ -251,7 +330,7 @@ public class LastPassBuilderTest {
 		inOrder.verify(listener).statusChanged(ProgressStatus.DECRYPTING);
 		inOrder.verify(this.passwordStoreFactory).getPasswordStore(any(InputStream.class), eq(new AES256EncryptionProvider(KEY)));
 
-		verifyKeyAndReadAccountInputStream();
+		verifyKeyAndAccountData(content);
 		verifyStoreAccountData(4, 50, content);
 	}
 
@@ -265,45 +344,567 @@ public class LastPassBuilderTest {
 		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 1)).thenReturn(new LoginResult("789", KEY, 11, 12));
 		when(this.httpResponse.getContent()).thenReturn(new ByteArrayInputStream(content));
 
+		doAnswer(new Answer<PasswordStore>() {
+			@Override
+			public PasswordStore answer(final InvocationOnMock invocation) throws Throwable {
+				final InputStream in = (InputStream) invocation.getArguments()[0];
+				try {
+					assertEquals(1, in.read());
+					assertEquals(2, in.read());
+					assertEquals(5, in.skip(5));
+					assertEquals(8, in.read());
+					assertEquals(2, in.skip(2));
+					assertEquals(0, in.skip(2));
+					assertEquals(-1, in.read());
+				} finally {
+					in.close();
+				}
+				return LastPassBuilderTest.this.mockPasswordStore;
+			}
+		}).when(this.passwordStoreFactory).getPasswordStore(any(InputStream.class), eq(new AES256EncryptionProvider(KEY)));
+
 		this.lastPassBuilder.getPasswordStore(null);
-		
-		ArgumentCaptor<InputStream> inputStreamCaptor = ArgumentCaptor.forClass(InputStream.class);
-		// Verify the key was correct
-		verify(this.passwordStoreFactory).getPasswordStore(inputStreamCaptor.capture(), eq(new AES256EncryptionProvider(KEY)));
-		// Read the input stream fully and close it to force the data to be cached
-		InputStream in = inputStreamCaptor.getValue();
+
+		verifyStoreAccountData(12, 11, content);
+	}
+
+	@Test
+	public void cachedAccountDataIsAbortedWhenParsingFails() throws Exception {
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(null);
+		final byte[] content = { 1, 2, 3 };
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 1)).thenReturn(new LoginResult("789", KEY, 11, 12));
+		when(this.httpResponse.getContent()).thenReturn(new ByteArrayInputStream(content));
+		final LastPassException parseError = new LastPassException("Error parsing blob");
+		doThrow(parseError).when(this.passwordStoreFactory).getPasswordStore(any(InputStream.class), any(EncryptionProvider.class));
+
 		try {
-			assertEquals(1, in.read());
-			assertEquals(2, in.read());
-			in.skip(5);
-			assertEquals(8, in.read());
-			in.skip(2);
-			assertEquals(-1, in.read());
-		} finally {
-			in.close();
+			this.lastPassBuilder.getPasswordStore(null);
+			fail("Expected parsing to fail");
+		} catch (final LastPassException e) {
+			assertEquals(parseError, e);
+		}
+
+		verify(this.cacheSink).abort();
+		verify(this.cacheSink, never()).commit();
+	}
+
+	@Test
+	public void accountDataIsStillParsedWhenCachingFails() throws Exception {
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(null);
+		final byte[] content = { 1, 2, 3 };
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 1)).thenReturn(new LoginResult("789", KEY, 11, 12));
+		when(this.httpResponse.getContent()).thenReturn(new ByteArrayInputStream(content));
+		when(this.cacheSink.getOutputStream()).thenReturn(new OutputStream() {
+			@Override
+			public void write(final int b) throws IOException {
+				throw new IOException("Disk full");
+			}
+		});
+
+		assertEquals(this.mockPasswordStore, this.lastPassBuilder.getPasswordStore(null));
+
+		verifyKeyAndAccountData(content);
+		verify(this.cacheSink).abort();
+		verify(this.cacheSink, never()).commit();
+	}
+
+	@Test
+	public void accountDataCachedWhileWaitingForSinkIsNotRetrieved() throws Exception {
+		final byte[] content = { 55, 102, 99, 100 };
+		// Another process stores the account data while the sink is waiting for it
+		when(this.cacheProvider.getAccountVersion(USERNAME)).thenReturn(null, 5);
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(5123);
+		final ByteArrayInputStream accountDataStream = new ByteArrayInputStream(content);
+		when(this.cacheProvider.getAccountData(USERNAME)).thenReturn(accountDataStream);
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 5123)).thenReturn(new LoginResult("66", KEY, 5, 5123));
+
+		assertEquals(this.mockPasswordStore, this.lastPassBuilder.getPasswordStore(null));
+
+		verify(this.passwordStoreFactory).getPasswordStore(accountDataStream, new AES256EncryptionProvider(KEY));
+		verify(this.httpRequest, never()).execute();
+		verify(this.cacheSink).abort();
+		verify(this.cacheSink, never()).commit();
+	}
+
+	@Test
+	public void cacheSinkIsAbortedWhenRetrievingFails() throws Exception {
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(null);
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 1)).thenReturn(new LoginResult("789", KEY, 11, 12));
+		when(this.httpRequest.execute()).thenThrow(new IOException("Connection reset"));
+
+		try {
+			this.lastPassBuilder.getPasswordStore(null);
+			fail("Expected retrieving to fail");
+		} catch (final LastPassException expected) {
+		}
+
+		verify(this.cacheSink).abort();
+		verify(this.cacheSink, never()).commit();
+	}
+
+	@Test
+	public void accountDataIsNotCachedWhenCacheProviderHasNoSink() throws Exception {
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(null);
+		final byte[] content = { 1, 2, 3 };
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 1)).thenReturn(new LoginResult("789", KEY, 11, 12));
+		when(this.httpResponse.getContent()).thenReturn(new ByteArrayInputStream(content));
+		when(this.cacheProvider.newAccountDataSink(anyString(), anyInt(), anyInt())).thenReturn(null);
+
+		assertEquals(this.mockPasswordStore, this.lastPassBuilder.getPasswordStore(null));
+
+		verifyKeyAndAccountData(content);
+	}
+
+	@Test
+	public void derivedKeysAreInvalidatedAfterSuccessfulLogin() throws Exception {
+		when(this.cacheProvider.getAccountVersion(USERNAME)).thenReturn(5);
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(5123);
+		when(this.cacheProvider.getAccountData(USERNAME)).thenReturn(new ByteArrayInputStream(new byte[0]));
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 5123)).thenReturn(new LoginResult("66", KEY, 5, 5123));
+
+		this.lastPassBuilder.getPasswordStore(null);
+
+		verify(this.loginProvider).invalidateKeys(USERNAME);
+	}
+
+	@Test
+	public void derivedKeysAreKeptWhenOtpIsRequired() throws Exception {
+		final LastPassError error = mock(LastPassError.class);
+		when(error.getCause()).thenReturn("googleauthrequired");
+		final ErrorResponseException otpRequired = new ErrorResponseException(error);
+		when(this.loginProvider.login(eq(USERNAME), eq(PASSWORD), anyString(), anyString(), anyInt())).thenThrow(otpRequired);
+
+		try {
+			this.lastPassBuilder.getPasswordStore(null);
+			fail("Expected OTP to be required");
+		} catch (final GoogleAuthenticatorRequired expected) {
 		}
-		
+
+		verify(this.loginProvider, never()).invalidateKeys(anyString());
+	}
+
+	@Test
+	public void newAccountVersionRefreshesPreviousPasswordStore() throws Exception {
+		when(this.cacheProvider.getAccountVersion(USERNAME)).thenReturn(null);
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(null);
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 1)).thenReturn(new LoginResult("66", KEY, 5, 1),
+				new LoginResult("67", KEY, 6, 1));
+		final ByteArrayInputStream newAccountData = new ByteArrayInputStream(new byte[] { 2 });
+		when(this.httpResponse.getContent()).thenReturn(new ByteArrayInputStream(new byte[] { 1 }), newAccountData);
+		final PasswordStore refreshedPasswordStore = mock(PasswordStore.class);
+		when(this.passwordStoreFactory.refreshPasswordStore(eq(this.mockPasswordStore), any(InputStream.class),
+				eq(new AES256EncryptionProvider(KEY)))).thenReturn(refreshedPasswordStore);
+
+		assertEquals(this.mockPasswordStore, this.lastPassBuilder.getPasswordStore(null));
+		assertEquals(refreshedPasswordStore, this.lastPassBuilder.getPasswordStore(null));
+
+		verify(this.passwordStoreFactory).getPasswordStore(any(InputStream.class), any(EncryptionProvider.class));
+	}
+
+	@Test
+	public void streamUncachedPasswords() throws Exception {
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(null);
+		final byte[] content = { 1, 2, 3 };
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 1)).thenReturn(new LoginResult("789", KEY, 11, 12));
+		when(this.httpResponse.getContent()).thenReturn(new ByteArrayInputStream(content));
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(final InvocationOnMock invocation) throws Throwable {
+				LastPassBuilderTest.this.parsedAccountData = ByteStreams.toByteArray((InputStream) invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(this.passwordStoreFactory).streamPasswords(any(InputStream.class), any(EncryptionProvider.class),
+				any(PasswordConsumer.class));
+
+		this.lastPassBuilder.streamPasswords(null, this.passwordConsumer);
+
+		verify(this.passwordStoreFactory).streamPasswords(any(InputStream.class), eq(new AES256EncryptionProvider(KEY)),
+				eq(this.passwordConsumer));
+		verify(this.passwordStoreFactory, never()).getPasswordStore(any(InputStream.class), any(EncryptionProvider.class));
+		assertThat(this.parsedAccountData, equalTo(content));
 		verifyStoreAccountData(12, 11, content);
 	}
 
-	private void verifyStoreAccountData(int iterations, int accountsVersion, final byte[] content) throws IOException {
-		// Check the cached data is correct
-		ArgumentCaptor<ByteArrayInputStream> cacheInputStreamCaptor = ArgumentCaptor.forClass(ByteArrayInputStream.class);
-		verify(this.cacheProvider).storeAccountData(eq(USERNAME), eq(iterations), eq(accountsVersion), cacheInputStreamCaptor.capture());
-		ByteArrayInputStream cachedAccountData = cacheInputStreamCaptor.getValue();
-		cachedAccountData.reset();
-		assertThat(ByteStreams.toByteArray(cachedAccountData), equalTo(content));
+	@Test
+	public void streamMappedCachedPasswords() throws Exception {
+		when(this.cacheProvider.getAccountVersion(USERNAME)).thenReturn(5);
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(5123);
+		when(this.cacheProvider.mapAccountData(USERNAME)).thenReturn(ByteBuffer.wrap(new byte[] { 55, 102 }));
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 5123)).thenReturn(new LoginResult("66", KEY, 5, 5123));
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(final InvocationOnMock invocation) throws Throwable {
+				LastPassBuilderTest.this.parsedAccountData = ByteStreams.toByteArray((InputStream) invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(this.passwordStoreFactory).streamPasswords(any(InputStream.class), any(EncryptionProvider.class),
+				any(PasswordConsumer.class));
+
+		this.lastPassBuilder.streamPasswords(null, this.passwordConsumer);
+
+		assertThat(this.parsedAccountData, equalTo(new byte[] { 55, 102 }));
+		verify(this.httpRequest, never()).execute();
+		verify(this.cacheProvider, never()).newAccountDataSink(anyString(), anyInt(), anyInt());
 	}
 
-	private byte[] verifyKeyAndReadAccountInputStream() throws IOException {
-		ArgumentCaptor<InputStream> inputStreamCaptor = ArgumentCaptor.forClass(InputStream.class);
-		// Verify the key was correct
-		verify(this.passwordStoreFactory).getPasswordStore(inputStreamCaptor.capture(), eq(new AES256EncryptionProvider(KEY)));
-		// Read the input stream fully and close it to force the data to be cached
+	@Test(expected = GoogleAuthenticatorRequired.class)
+	public void streamPasswordsThrowsGoogleAuthenticatorRequired() throws Exception {
+		final LastPassError error = mock(LastPassError.class);
+		when(error.getCause()).thenReturn("googleauthrequired");
+		final ErrorResponseException otpRequired = new ErrorResponseException(error);
+		when(this.loginProvider.login(eq(USERNAME), eq(PASSWORD), anyString(), anyString(), anyInt())).thenThrow(otpRequired);
+
+		this.lastPassBuilder.streamPasswords(null, this.passwordConsumer);
+	}
+
+	@Test
+	public void getPasswordStoreAsyncRunsStagesOnSeparateExecutors() throws Exception {
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(null);
+		final byte[] content = { 1, 2 };
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 1, false)).thenReturn(new LoginResult("789", KEY, 11, 12));
+		when(this.httpResponse.getContent()).thenReturn(new ByteArrayInputStream(content));
+		final RecordingExecutor ioExecutor = new RecordingExecutor();
+		final RecordingExecutor cpuExecutor = new RecordingExecutor();
+
+		final ListenableFuture<PasswordStore> passwordStore = this.lastPassBuilder.getPasswordStoreAsync(null, null, null, ioExecutor,
+				cpuExecutor);
+
+		assertEquals(this.mockPasswordStore, passwordStore.get());
+		// Key derivation and decryption on the CPU executor, logging in, retrieving and reading ahead on the I/O executor
+		assertEquals(2, cpuExecutor.executed);
+		assertEquals(3, ioExecutor.executed);
+		final InOrder inOrder = inOrder(this.loginProvider);
+		inOrder.verify(this.loginProvider).deriveKey(USERNAME, PASSWORD, 1);
+		inOrder.verify(this.loginProvider).login(USERNAME, PASSWORD, null, null, 1, false);
+		verifyKeyAndAccountData(content);
+		verifyStoreAccountData(12, 11, content);
+	}
+
+	@Test
+	public void getPasswordStoreAsyncReadsDownloadOnIoExecutor() throws Exception {
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(null);
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 1, false)).thenReturn(new LoginResult("789", KEY, 11, 12));
+		final byte[] content = new byte[3 * ParsePipeline.BLOCK_SIZE + 1];
+		content[content.length - 1] = 7;
+		final Set<String> readingThreads = Collections.synchronizedSet(new HashSet<String>());
+		when(this.httpResponse.getContent()).thenReturn(new FilterInputStream(new ByteArrayInputStream(content)) {
+			@Override
+			public int read() throws IOException {
+				readingThreads.add(Thread.currentThread().getName());
+				return super.read();
+			}
+
+			@Override
+			public int read(final byte[] b, final int off, final int len) throws IOException {
+				readingThreads.add(Thread.currentThread().getName());
+				return super.read(b, off, len);
+			}
+		});
+		final ExecutorService ioExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("io-%d").build());
+		final ExecutorService cpuExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("cpu-%d").build());
+		try {
+			final ListenableFuture<PasswordStore> passwordStore = this.lastPassBuilder.getPasswordStoreAsync(null, null, null, ioExecutor,
+					cpuExecutor);
+
+			assertEquals(this.mockPasswordStore, passwordStore.get(10, TimeUnit.SECONDS));
+			verifyKeyAndAccountData(content);
+			assertThat(readingThreads, is(not(empty())));
+			for (final String thread : readingThreads)
+				assertThat(thread, startsWith("io-"));
+		} finally {
+			ioExecutor.shutdownNow();
+			cpuExecutor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void getPasswordStoreAsyncDerivesKeyForServerIterationsOnCpuExecutor() throws Exception {
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(null);
+		final byte[] content = { 1, 2 };
+		final LastPassError error = mock(LastPassError.class);
+		when(error.getIterations()).thenReturn(5000);
+		final ErrorResponseException wrongIterations = new ErrorResponseException(error);
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 1, false)).thenThrow(wrongIterations);
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 5000, false)).thenReturn(new LoginResult("789", KEY, 11, 5000));
+		when(this.httpResponse.getContent()).thenReturn(new ByteArrayInputStream(content));
+		final RecordingExecutor ioExecutor = new RecordingExecutor();
+		final RecordingExecutor cpuExecutor = new RecordingExecutor();
+
+		final ListenableFuture<PasswordStore> passwordStore = this.lastPassBuilder.getPasswordStoreAsync(null, null, null, ioExecutor,
+				cpuExecutor);
+
+		assertEquals(this.mockPasswordStore, passwordStore.get());
+		// Both key derivations and decryption on the CPU executor, both logins, retrieving and reading ahead on the I/O executor
+		assertEquals(3, cpuExecutor.executed);
+		assertEquals(4, ioExecutor.executed);
+		final InOrder inOrder = inOrder(this.loginProvider);
+		inOrder.verify(this.loginProvider).deriveKey(USERNAME, PASSWORD, 1);
+		inOrder.verify(this.loginProvider).login(USERNAME, PASSWORD, null, null, 1, false);
+		inOrder.verify(this.loginProvider).deriveKey(USERNAME, PASSWORD, 5000);
+		inOrder.verify(this.loginProvider).login(USERNAME, PASSWORD, null, null, 5000, false);
+		verifyKeyAndAccountData(content);
+		verifyStoreAccountData(5000, 11, content);
+	}
+
+	@Test
+	public void getPasswordStoreAsyncFailsWithGoogleAuthenticatorRequired() throws Exception {
+		final LastPassError error = mock(LastPassError.class);
+		when(error.getCause()).thenReturn("googleauthrequired");
+		final ErrorResponseException otpRequired = new ErrorResponseException(error);
+		when(this.loginProvider.login(eq(USERNAME), eq(PASSWORD), anyString(), anyString(), anyInt(), eq(false))).thenThrow(otpRequired);
+
+		final ListenableFuture<PasswordStore> passwordStore = this.lastPassBuilder.getPasswordStoreAsync(null, null, null,
+				MoreExecutors.sameThreadExecutor(), MoreExecutors.sameThreadExecutor());
+
+		try {
+			passwordStore.get();
+			fail("Expected OTP to be required");
+		} catch (final ExecutionException e) {
+			assertThat(e.getCause(), is(instanceOf(GoogleAuthenticatorRequired.class)));
+		}
+	}
+
+	@Test
+	public void cancellingGetPasswordStoreAsyncDisconnectsDownload() throws Exception {
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(null);
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 1, false)).thenReturn(new LoginResult("789", KEY, 11, 12));
+		final CountDownLatch readStarted = new CountDownLatch(1);
+		final CountDownLatch closed = new CountDownLatch(1);
+		when(this.httpResponse.getContent()).thenReturn(new InputStream() {
+			@Override
+			public int read() throws IOException {
+				readStarted.countDown();
+				try {
+					closed.await();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw new IOException("Stream closed");
+			}
+
+			@Override
+			public void close() {
+				closed.countDown();
+			}
+		});
+		final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+		final ExecutorService cpuExecutor = Executors.newSingleThreadExecutor();
 		try {
-			return ByteStreams.toByteArray(inputStreamCaptor.getValue());
+			final ListenableFuture<PasswordStore> passwordStore = this.lastPassBuilder.getPasswordStoreAsync(null, null, null, ioExecutor,
+					cpuExecutor);
+			assertTrue(readStarted.await(10, TimeUnit.SECONDS));
+
+			passwordStore.cancel(true);
+
+			verify(this.httpResponse).disconnect();
+			verify(this.cacheSink).abort();
+			ioExecutor.shutdown();
+			assertTrue(ioExecutor.awaitTermination(10, TimeUnit.SECONDS));
+			verify(this.cacheSink).abort();
+			verify(this.cacheSink, never()).commit();
+			// The download is decrypted as it arrives, so the password store was being built from it when it was disconnected
+			assertTrue(passwordStore.isCancelled());
 		} finally {
-			inputStreamCaptor.getValue().close();
+			ioExecutor.shutdownNow();
+			cpuExecutor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void refreshWithUnchangedAccountsVersionOnlyChecksSession() throws Exception {
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(null);
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 1)).thenReturn(new LoginResult("789", KEY, 11, 12));
+		when(this.httpResponse.getContent()).thenReturn(new ByteArrayInputStream(new byte[] { 1 }));
+		when(this.loginProvider.checkSession("789")).thenReturn(11);
+
+		final RefreshablePasswordStore passwordStore = this.lastPassBuilder.getRefreshablePasswordStore(null);
+
+		assertFalse(passwordStore.refresh());
+		verify(this.loginProvider, times(1)).login(anyString(), anyString(), anyString(), anyString(), anyInt());
+		verify(this.httpRequest, times(1)).execute();
+	}
+
+	@Test
+	public void refreshWithChangedAccountsVersionRetrievesWithExistingSession() throws Exception {
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(null);
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 1)).thenReturn(new LoginResult("789", KEY, 11, 12));
+		when(this.httpResponse.getContent()).thenReturn(new ByteArrayInputStream(new byte[] { 1 }),
+				new ByteArrayInputStream(new byte[] { 2 }));
+		when(this.loginProvider.checkSession("789")).thenReturn(13);
+		final PasswordStore refreshedPasswordStore = mock(PasswordStore.class);
+		when(this.passwordStoreFactory.refreshPasswordStore(eq(this.mockPasswordStore), any(InputStream.class),
+						eq(new AES256EncryptionProvider(KEY)))).thenReturn(refreshedPasswordStore);
+		final PasswordInfo password = mock(PasswordInfo.class);
+		when(refreshedPasswordStore.getPassword(5)).thenReturn(password);
+
+		final RefreshablePasswordStore passwordStore = this.lastPassBuilder.getRefreshablePasswordStore(null);
+
+		assertTrue(passwordStore.refresh());
+		assertEquals(password, passwordStore.getPassword(5));
+		verify(this.loginProvider, times(1)).login(anyString(), anyString(), anyString(), anyString(), anyInt());
+		verify(this.httpRequest, times(2)).addHeader("Cookie", LastPassBuilderImpl.SESSION_COOKIE_NAME + "=789");
+		verify(this.cacheProvider).newAccountDataSink(USERNAME, 12, 13);
+	}
+
+	@Test
+	public void refreshWithExpiredSessionLogsInAgain() throws Exception {
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(null);
+		when(this.loginProvider.login(USERNAME, PASSWORD, "otp", null, 1)).thenReturn(new LoginResult("789", KEY, 11, 12));
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 1)).thenReturn(new LoginResult("790", KEY, 14, 12));
+		when(this.httpResponse.getContent()).thenReturn(new ByteArrayInputStream(new byte[] { 1 }),
+				new ByteArrayInputStream(new byte[] { 2 }));
+		when(this.loginProvider.checkSession("789")).thenReturn(null);
+
+		final RefreshablePasswordStore passwordStore = this.lastPassBuilder.getRefreshablePasswordStore("otp", null, null);
+
+		assertTrue(passwordStore.refresh());
+		verify(this.httpRequest).addHeader("Cookie", LastPassBuilderImpl.SESSION_COOKIE_NAME + "=790");
+	}
+
+	@Test(expected = GoogleAuthenticatorRequired.class)
+	public void refreshWithExpiredSessionThrowsGoogleAuthenticatorRequired() throws Exception {
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(null);
+		when(this.loginProvider.login(USERNAME, PASSWORD, "otp", null, 1)).thenReturn(new LoginResult("789", KEY, 11, 12));
+		when(this.httpResponse.getContent()).thenReturn(new ByteArrayInputStream(new byte[] { 1 }));
+		when(this.loginProvider.checkSession("789")).thenReturn(null);
+		final LastPassError error = mock(LastPassError.class);
+		when(error.getCause()).thenReturn("googleauthrequired");
+		final ErrorResponseException otpRequired = new ErrorResponseException(error);
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 1)).thenThrow(otpRequired);
+
+		final RefreshablePasswordStore passwordStore = this.lastPassBuilder.getRefreshablePasswordStore("otp", null, null);
+
+		passwordStore.refresh();
+	}
+
+	@Test
+	public void staleWhileRevalidateServesCachedAccountsThenRefreshesInBackground() throws Exception {
+		final List<Runnable> backgroundTasks = new ArrayList<Runnable>();
+		when(this.loginProvider.getNetworkPolicy()).thenReturn(new NetworkPolicy(1, 1, TimeUnit.SECONDS, null, new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				backgroundTasks.add(command);
+			}
+		}));
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(5000);
+		when(this.cacheProvider.getAccountVersion(USERNAME)).thenReturn(11);
+		when(this.cacheProvider.getAccountData(USERNAME)).thenReturn(new ByteArrayInputStream(new byte[] { 1 }));
+		when(this.loginProvider.cachedLogin(USERNAME, PASSWORD, 5000)).thenReturn(new LoginResult(null, KEY, 11, 5000));
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 5000)).thenReturn(new LoginResult("789", KEY, 11, 5000));
+
+		final RefreshablePasswordStore passwordStore = this.lastPassBuilder.getRefreshablePasswordStore(null);
+
+		verify(this.loginProvider, never()).login(anyString(), anyString(), anyString(), anyString(), anyInt());
+		assertEquals(1, backgroundTasks.size());
+		backgroundTasks.get(0).run();
+		verify(this.loginProvider).login(USERNAME, PASSWORD, null, null, 5000);
+		// The accounts version is unchanged, so the next refresh only checks the new session
+		when(this.loginProvider.checkSession("789")).thenReturn(11);
+		assertFalse(passwordStore.refresh());
+		verify(this.httpRequest, never()).execute();
+	}
+
+	@Test
+	public void staleWhileRevalidateStopsServingCachedAccountsWhenLoginIsRejected() throws Exception {
+		final List<Runnable> backgroundTasks = new ArrayList<Runnable>();
+		when(this.loginProvider.getNetworkPolicy()).thenReturn(new NetworkPolicy(1, 1, TimeUnit.SECONDS, null, new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				backgroundTasks.add(command);
+			}
+		}));
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(5000);
+		when(this.cacheProvider.getAccountVersion(USERNAME)).thenReturn(11);
+		when(this.cacheProvider.getAccountData(USERNAME)).thenReturn(new ByteArrayInputStream(new byte[] { 1 }));
+		when(this.loginProvider.cachedLogin(USERNAME, PASSWORD, 5000)).thenReturn(new LoginResult(null, KEY, 11, 5000));
+		final LastPassError error = mock(LastPassError.class);
+		when(error.getCause()).thenReturn("unknownpassword");
+		final ErrorResponseException wrongPassword = new ErrorResponseException(error);
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 5000)).thenThrow(wrongPassword);
+		final PasswordInfo password = mock(PasswordInfo.class);
+		when(this.mockPasswordStore.getPasswords()).thenReturn(Collections.singletonList(password));
+
+		final RefreshablePasswordStore passwordStore = this.lastPassBuilder.getRefreshablePasswordStore(null);
+		assertEquals(Collections.singletonList(password), passwordStore.getPasswords());
+		backgroundTasks.get(0).run();
+
+		try {
+			passwordStore.getPasswords();
+			fail("Expected the cached accounts to no longer be served");
+		} catch (final LastPassException e) {
+			assertEquals(wrongPassword, e.getCause());
+		}
+
+		// A refresh which logs in successfully serves the accounts again, even though the accounts version is unchanged
+		doReturn(new LoginResult("789", KEY, 11, 5000)).when(this.loginProvider).login(USERNAME, PASSWORD, null, null, 5000);
+		when(this.passwordStoreFactory.refreshPasswordStore(eq(this.mockPasswordStore), any(InputStream.class),
+				eq(new AES256EncryptionProvider(KEY)))).thenReturn(this.mockPasswordStore);
+		assertTrue(passwordStore.refresh());
+		assertEquals(Collections.singletonList(password), passwordStore.getPasswords());
+	}
+
+	@Test
+	public void staleWhileRevalidateLogsInWhenRevalidateExecutorRejects() throws Exception {
+		when(this.loginProvider.getNetworkPolicy()).thenReturn(new NetworkPolicy(1, 1, TimeUnit.SECONDS, null, new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				throw new RejectedExecutionException("Saturated");
+			}
+		}));
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(5000);
+		when(this.cacheProvider.getAccountVersion(USERNAME)).thenReturn(11);
+		when(this.cacheProvider.getAccountData(USERNAME)).thenReturn(new ByteArrayInputStream(new byte[] { 1 }),
+				new ByteArrayInputStream(new byte[] { 1 }));
+		when(this.loginProvider.cachedLogin(USERNAME, PASSWORD, 5000)).thenReturn(new LoginResult(null, KEY, 11, 5000));
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 5000)).thenReturn(new LoginResult("789", KEY, 11, 5000));
+		when(this.passwordStoreFactory.refreshPasswordStore(eq(this.mockPasswordStore), any(InputStream.class),
+				eq(new AES256EncryptionProvider(KEY)))).thenReturn(this.mockPasswordStore);
+
+		final RefreshablePasswordStore passwordStore = this.lastPassBuilder.getRefreshablePasswordStore(null);
+
+		verify(this.loginProvider).login(USERNAME, PASSWORD, null, null, 5000);
+		assertEquals(this.mockPasswordStore.getPasswords(), passwordStore.getPasswords());
+		// The store is for the new session, so the next refresh only checks it
+		when(this.loginProvider.checkSession("789")).thenReturn(11);
+		assertFalse(passwordStore.refresh());
+	}
+
+	@Test
+	public void staleWhileRevalidateLogsInWhenNothingIsCached() throws Exception {
+		when(this.loginProvider.getNetworkPolicy()).thenReturn(
+				new NetworkPolicy(1, 1, TimeUnit.SECONDS, null, MoreExecutors.sameThreadExecutor()));
+		when(this.cacheProvider.getIterations(USERNAME)).thenReturn(null);
+		when(this.loginProvider.login(USERNAME, PASSWORD, null, null, 1)).thenReturn(new LoginResult("789", KEY, 11, 12));
+		when(this.httpResponse.getContent()).thenReturn(new ByteArrayInputStream(new byte[] { 1 }));
+
+		this.lastPassBuilder.getRefreshablePasswordStore(null);
+
+		verify(this.loginProvider).login(USERNAME, PASSWORD, null, null, 1);
+		verify(this.httpRequest).execute();
+	}
+
+	/** Executor which runs tasks on the calling thread, counting them */
+	private static class RecordingExecutor implements Executor {
+		private int executed;
+
+		@Override
+		public void execute(final Runnable command) {
+			this.executed++;
+			command.run();
 		}
 	}
+
+	private void verifyStoreAccountData(int iterations, int accountsVersion, final byte[] content) throws IOException {
+		// Check the cached data is correct
+		verify(this.cacheProvider).newAccountDataSink(USERNAME, iterations, accountsVersion);
+		verify(this.cacheSink).commit();
+		verify(this.cacheSink, never()).abort();
+		assertThat(this.cachedAccountData.toByteArray(), equalTo(content));
+	}
+
+	private void verifyKeyAndAccountData(final byte[] content) {
+		// Verify the key was correct
+		verify(this.passwordStoreFactory).getPasswordStore(any(InputStream.class), eq(new AES256EncryptionProvider(KEY)));
+		assertThat(this.parsedAccountData, equalTo(content));
+	}
 }
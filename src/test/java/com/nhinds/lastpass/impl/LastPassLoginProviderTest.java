@@ -0,0 +1,219 @@
+package com.nhinds.lastpass.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.nhinds.lastpass.encryption.KeyProvider;
+import com.nhinds.lastpass.impl.LastPassLoginProvider.LoginResult;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LastPassLoginProviderTest {
+	private static final byte[] KEY_1 = { 1 };
+	private static final byte[] KEY_5000 = { 50 };
+
+	@Mock
+	private KeyProvider keyProvider;
+	@Mock
+	private CacheProvider cacheProvider;
+
+	private final Queue<String> responses = new LinkedList<String>();
+	private String expectedUrl = "https://lastpass.com/login.php";
+	private MockLowLevelHttpRequest lastRequest;
+	private IOException failure;
+	private int failedRequests;
+	private MockHttpTransport transport;
+	private LastPassLoginProvider loginProvider;
+
+	@Before
+	public void setup() throws Exception {
+		when(this.keyProvider.getKey("user", "password", 1)).thenReturn(KEY_1);
+		when(this.keyProvider.getKey("user", "password", 5000)).thenReturn(KEY_5000);
+		when(this.keyProvider.getHash(KEY_1, "password", 1)).thenReturn("hash1");
+		when(this.keyProvider.getHash(KEY_5000, "password", 5000)).thenReturn("hash5000");
+
+		this.transport = new MockHttpTransport() {
+			@Override
+			public LowLevelHttpRequest buildRequest(final String method, final String url) throws IOException {
+				assertEquals(LastPassLoginProviderTest.this.expectedUrl, url);
+				final IOException failure = LastPassLoginProviderTest.this.failure;
+				if (failure != null) {
+					return new MockLowLevelHttpRequest(url) {
+						@Override
+						public LowLevelHttpResponse execute() throws IOException {
+							LastPassLoginProviderTest.this.failedRequests++;
+							throw failure;
+						}
+					};
+				}
+				final MockLowLevelHttpResponse response = new MockLowLevelHttpResponse().setContentType("text/xml").setContent(
+						LastPassLoginProviderTest.this.responses.remove());
+				LastPassLoginProviderTest.this.lastRequest = new MockLowLevelHttpRequest(url).setResponse(response);
+				return LastPassLoginProviderTest.this.lastRequest;
+			}
+		};
+		this.loginProvider = new LastPassLoginProvider(this.keyProvider, null, this.cacheProvider, this.transport, new DerivedKeyCache());
+	}
+
+	@Test
+	public void loginRetriesWithServerProvidedIterations() throws Exception {
+		this.responses.add(error("wrong iterations", "iterations", 5000));
+		this.responses.add(ok("session", 7));
+
+		final LoginResult result = this.loginProvider.login("user", "password", null, null, 1);
+
+		assertEquals("session", result.getSessionId());
+		assertEquals(7, result.getAccountsVersion());
+		assertEquals(5000, result.getIterations());
+		assertArrayEquals(KEY_5000, result.getKey());
+	}
+
+	@Test
+	public void loginWithoutRetryFailsWithServerProvidedIterations() throws Exception {
+		this.responses.add(error("wrong iterations", "iterations", 5000));
+
+		try {
+			this.loginProvider.login("user", "password", null, null, 1, false);
+			fail("Expected the login to fail");
+		} catch (final ErrorResponseException expected) {
+			assertEquals(Integer.valueOf(5000), expected.getError().getIterations());
+		}
+		verify(this.keyProvider, never()).getKey("user", "password", 5000);
+	}
+
+	@Test
+	public void otpRetryDoesNotDeriveKeyAgain() throws Exception {
+		this.responses.add(error("wrong iterations", "iterations", 5000));
+		this.responses.add(error("otp required", "googleauthrequired", null));
+		this.responses.add(error("wrong iterations", "iterations", 5000));
+		this.responses.add(ok("session", 7));
+
+		try {
+			this.loginProvider.login("user", "password", null, null, 1);
+			fail("Expected OTP to be required");
+		} catch (final ErrorResponseException expected) {
+			assertEquals("googleauthrequired", expected.getError().getCause());
+		}
+		final LoginResult result = this.loginProvider.login("user", "password", "123456", null, 1);
+
+		assertArrayEquals(KEY_5000, result.getKey());
+		verify(this.keyProvider, times(1)).getKey("user", "password", 1);
+		verify(this.keyProvider, times(1)).getKey("user", "password", 5000);
+	}
+
+	@Test
+	public void invalidatedKeysAreDerivedAgain() throws Exception {
+		final LastPassLoginProvider loginProvider = new LastPassLoginProvider(this.keyProvider, null, this.cacheProvider, this.transport);
+		this.responses.add(ok("session", 7));
+		this.responses.add(ok("session", 7));
+
+		loginProvider.login("user", "password", null, null, 1);
+		loginProvider.invalidateKeys("user");
+		loginProvider.login("user", "password", null, null, 1);
+
+		verify(this.keyProvider, times(2)).getKey("user", "password", 1);
+	}
+
+	@Test
+	public void checkSessionReturnsAccountsVersionForValidSession() throws Exception {
+		this.expectedUrl = LastPassLoginProvider.LOGIN_CHECK_URL;
+		this.responses.add(ok("session", 9));
+
+		assertEquals(Integer.valueOf(9), this.loginProvider.checkSession("session"));
+		assertEquals(LastPassBuilderImpl.SESSION_COOKIE_NAME + "=session", this.lastRequest.getFirstHeaderValue("Cookie"));
+	}
+
+	@Test
+	public void checkSessionReturnsNullForExpiredSession() throws Exception {
+		this.expectedUrl = LastPassLoginProvider.LOGIN_CHECK_URL;
+		this.responses.add(error("not logged in", "unknown", null));
+
+		assertNull(this.loginProvider.checkSession("session"));
+	}
+
+	@Test
+	public void readTimeoutFallsBackToOfflineLogin() throws Exception {
+		this.failure = new SocketTimeoutException("Read timed out");
+		when(this.cacheProvider.getIterations("user")).thenReturn(1);
+		when(this.cacheProvider.getAccountVersion("user")).thenReturn(4);
+
+		final LoginResult result = this.loginProvider.login("user", "password", null, null, 1);
+
+		assertNull(result.getSessionId());
+		assertEquals(4, result.getAccountsVersion());
+		assertArrayEquals(KEY_1, result.getKey());
+	}
+
+	@Test
+	public void openCircuitBreakerSkipsLastPass() throws Exception {
+		this.failure = new ConnectException("Connection refused");
+		when(this.cacheProvider.getIterations("user")).thenReturn(1);
+		when(this.cacheProvider.getAccountVersion("user")).thenReturn(4);
+		final NetworkPolicy networkPolicy = new NetworkPolicy(1, 1, TimeUnit.SECONDS, new CircuitBreaker(2, 1, TimeUnit.MINUTES), null);
+		final LastPassLoginProvider loginProvider = new LastPassLoginProvider(this.keyProvider, null, this.cacheProvider, this.transport,
+				new DerivedKeyCache(), networkPolicy);
+
+		for (int i = 0; i < 3; i++)
+			assertNull(loginProvider.login("user", "password", null, null, 1).getSessionId());
+
+		assertEquals(2, this.failedRequests);
+		assertTrue(networkPolicy.getCircuitBreaker().isOpen());
+	}
+
+	@Test
+	public void offlineLoginFailsWithoutCachedAccountData() throws Exception {
+		this.failure = new SocketTimeoutException("Read timed out");
+
+		try {
+			this.loginProvider.login("user", "password", null, null, 1);
+			fail("Expected the login to fail");
+		} catch (final SocketTimeoutException expected) {
+		}
+	}
+
+	@Test
+	public void cachedLoginDoesNotContactLastPass() throws Exception {
+		when(this.cacheProvider.getIterations("user")).thenReturn(5000);
+		when(this.cacheProvider.getAccountVersion("user")).thenReturn(4);
+
+		final LoginResult result = this.loginProvider.cachedLogin("user", "password", 5000);
+
+		assertNull(result.getSessionId());
+		assertEquals(4, result.getAccountsVersion());
+		assertArrayEquals(KEY_5000, result.getKey());
+		assertNull(this.loginProvider.cachedLogin("user", "password", 1));
+	}
+
+	private static String ok(final String sessionId, final int accountsVersion) {
+		return "<response><ok sessionid=\"" + sessionId + "\" accts_version=\"" + accountsVersion + "\"/></response>";
+	}
+
+	private static String error(final String message, final String cause, final Integer iterations) {
+		return "<response><error message=\"" + message + "\" cause=\"" + cause + "\""
+				+ (iterations == null ? "" : " iterations=\"" + iterations + "\"") + "/></response>";
+	}
+}
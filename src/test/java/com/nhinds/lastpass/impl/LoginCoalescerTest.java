@@ -0,0 +1,153 @@
+package com.nhinds.lastpass.impl;
+
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+import com.nhinds.lastpass.LastPassException;
+import com.nhinds.lastpass.PasswordStore;
+
+public class LoginCoalescerTest {
+	private final LoginCoalescer coalescer = new LoginCoalescer();
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final PasswordStore passwordStore = mock(PasswordStore.class);
+
+	@After
+	public void shutdownExecutor() {
+		this.executor.shutdownNow();
+	}
+
+	@Test
+	public void concurrentLoginsShareOneLogin() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountingLogin login = new CountingLogin(release, this.passwordStore);
+
+		final List<Future<PasswordStore>> results = new ArrayList<Future<PasswordStore>>();
+		results.add(getPasswordStore("password", null, login));
+		assertTrue(login.started.await(10, TimeUnit.SECONDS));
+		results.add(getPasswordStore("password", null, login));
+		results.add(getPasswordStore("password", null, login));
+		awaitCoalesced(2);
+		release.countDown();
+
+		for (final Future<PasswordStore> result : results)
+			assertThat(result.get(10, TimeUnit.SECONDS), sameInstance(this.passwordStore));
+		assertEquals(1, login.calls.get());
+	}
+
+	@Test
+	public void loginFailureIsSharedWithWaitingCallers() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final LastPassException failure = new LastPassException("Login failed");
+		final CountingLogin login = new CountingLogin(release, null) {
+			@Override
+			public PasswordStore get() {
+				super.get();
+				throw failure;
+			}
+		};
+
+		final Future<PasswordStore> first = getPasswordStore("password", null, login);
+		assertTrue(login.started.await(10, TimeUnit.SECONDS));
+		final Future<PasswordStore> second = getPasswordStore("password", null, login);
+		awaitCoalesced(1);
+		release.countDown();
+
+		for (final Future<PasswordStore> result : new Future[] { first, second }) {
+			try {
+				result.get(10, TimeUnit.SECONDS);
+				fail("Expected the login to fail");
+			} catch (final ExecutionException e) {
+				assertThat(e.getCause(), sameInstance((Throwable) failure));
+			}
+		}
+		assertEquals(1, login.calls.get());
+	}
+
+	@Test
+	public void loginsWithDifferentDetailsAreNotShared() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountingLogin login = new CountingLogin(release, this.passwordStore);
+
+		final Future<PasswordStore> first = getPasswordStore("password", null, login);
+		assertTrue(login.started.await(10, TimeUnit.SECONDS));
+		final Future<PasswordStore> otherPassword = getPasswordStore("other password", null, login);
+		final Future<PasswordStore> otherOtp = getPasswordStore("password", "123456", login);
+		release.countDown();
+
+		first.get(10, TimeUnit.SECONDS);
+		otherPassword.get(10, TimeUnit.SECONDS);
+		otherOtp.get(10, TimeUnit.SECONDS);
+		assertEquals(3, login.calls.get());
+		assertEquals(0, this.coalescer.getCoalescedCount());
+	}
+
+	@Test
+	public void finishedLoginIsNotReused() {
+		final CountingLogin login = new CountingLogin(new CountDownLatch(0), this.passwordStore);
+
+		this.coalescer.getPasswordStore("user", "password", "device", null, null, login);
+		this.coalescer.getPasswordStore("user", "password", "device", null, null, login);
+
+		assertEquals(2, login.calls.get());
+	}
+
+	private Future<PasswordStore> getPasswordStore(final String password, final String otp, final Supplier<PasswordStore> login) {
+		return this.executor.submit(new Callable<PasswordStore>() {
+			@Override
+			public PasswordStore call() {
+				return LoginCoalescerTest.this.coalescer.getPasswordStore("user", password, "device", otp, null, login);
+			}
+		});
+	}
+
+	private void awaitCoalesced(final long expected) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (this.coalescer.getCoalescedCount() < expected && System.nanoTime() < deadline)
+			Thread.sleep(10);
+		assertEquals(expected, this.coalescer.getCoalescedCount());
+	}
+
+	/** Login which counts its calls and blocks until released */
+	private static class CountingLogin implements Supplier<PasswordStore> {
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch release;
+		private final PasswordStore passwordStore;
+
+		CountingLogin(final CountDownLatch release, final PasswordStore passwordStore) {
+			this.release = release;
+			this.passwordStore = passwordStore;
+		}
+
+		@Override
+		public PasswordStore get() {
+			this.calls.incrementAndGet();
+			this.started.countDown();
+			try {
+				this.release.await();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return this.passwordStore;
+		}
+	}
+}
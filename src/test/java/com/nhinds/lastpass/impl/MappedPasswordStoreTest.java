@@ -0,0 +1,176 @@
+package com.nhinds.lastpass.impl;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.nhinds.lastpass.LastPassException;
+import com.nhinds.lastpass.PasswordInfo;
+import com.nhinds.lastpass.encryption.AES256EncryptionProvider;
+
+public class MappedPasswordStoreTest {
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private AES256EncryptionProvider encryptionProvider;
+
+	@Before
+	public void setup() {
+		this.encryptionProvider = new AES256EncryptionProvider(randomKey());
+	}
+
+	private static byte[] randomKey() {
+		final byte[] key = new byte[32];
+		new Random().nextBytes(key);
+		return key;
+	}
+
+	private byte[] generate(final int accounts) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new SyntheticVaultGenerator(accounts).generate(out, this.encryptionProvider, AES256EncryptionProvider.Mode.CBC, accounts);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void matchesPasswordStoreImpl() throws IOException {
+		final byte[] blob = generate(500);
+		final PasswordStoreImpl expected = new PasswordStoreImpl(new ByteArrayInputStream(blob), this.encryptionProvider);
+		final MappedPasswordStore passwordStore = new MappedPasswordStore(ByteBuffer.wrap(blob), this.encryptionProvider, 10);
+
+		assertEquals(describe(expected.getPasswords()), describe(passwordStore.getPasswords()));
+		for (long id = 1; id <= 500; id++) {
+			assertEquals(describe(expected.getPassword(id)), describe(passwordStore.getPassword(id)));
+		}
+		for (int domain = 0; domain < SyntheticVaultGenerator.getDomainCount(500); domain++) {
+			final String hostname = "www." + SyntheticVaultGenerator.getDomain(domain);
+			assertEquals(hostname, describe(expected.getPasswordsByHostname(hostname)),
+					describe(passwordStore.getPasswordsByHostname(hostname)));
+		}
+	}
+
+	@Test
+	public void refreshReusesUnchangedDecodedAccounts() throws IOException {
+		final byte[] blob = generate(10);
+		final MappedPasswordStore previous = new MappedPasswordStore(ByteBuffer.wrap(blob), this.encryptionProvider, 10);
+		final PasswordInfo decoded = previous.getPassword(5);
+
+		final PasswordStoreImpl refreshed = PasswordStoreImpl.refresh(previous, new ByteArrayInputStream(blob), this.encryptionProvider,
+				null);
+
+		assertThat(refreshed.getPassword(5), is(sameInstance(decoded)));
+		assertEquals(describe(previous.getPasswords()), describe(refreshed.getPasswords()));
+		// Account 1 was decoded when the store was created; the others were never decoded, so they are parsed again
+		assertEquals(2, refreshed.getReusedAccounts());
+	}
+
+	@Test
+	public void decodedAccountsAreCached() throws IOException {
+		final MappedPasswordStore passwordStore = new MappedPasswordStore(ByteBuffer.wrap(generate(10)), this.encryptionProvider, 2);
+
+		final PasswordInfo password = passwordStore.getPassword(5);
+
+		assertThat(passwordStore.getPassword(5), is(sameInstance(password)));
+	}
+
+	@Test
+	public void accountsAreReadInIdOrderWhenOutOfOrderInBlob() throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final PasswordStoreWriter writer = new PasswordStoreWriter(out, this.encryptionProvider, AES256EncryptionProvider.Mode.ECB);
+		for (final long id : new long[] { 30, 10, 20 }) {
+			writer.writeAccount(id, "account " + id, "", "http://example.com", "", "user" + id, "", false);
+		}
+		writer.close();
+
+		final MappedPasswordStore passwordStore = new MappedPasswordStore(ByteBuffer.wrap(out.toByteArray()), this.encryptionProvider);
+
+		assertEquals("user10", passwordStore.getPassword(10).getUsername());
+		assertEquals("user20", passwordStore.getPassword(20).getUsername());
+		assertEquals("user30", passwordStore.getPassword(30).getUsername());
+		assertEquals(Arrays.asList("account 10", "account 20", "account 30"), names(passwordStore.getPasswords()));
+		assertEquals(Arrays.asList("account 30", "account 10", "account 20"),
+				names(passwordStore.getPasswordsByHostname("example.com")));
+	}
+
+	@Test
+	public void emptyBlob() throws IOException {
+		final MappedPasswordStore passwordStore = new MappedPasswordStore(ByteBuffer.wrap(generate(0)), this.encryptionProvider);
+
+		assertThat(passwordStore.getPasswords(), is(empty()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void getByIdThrowsExceptionOnInvalidId() throws IOException {
+		new MappedPasswordStore(ByteBuffer.wrap(generate(10)), this.encryptionProvider).getPassword(11);
+	}
+
+	@Test(expected = LastPassException.class)
+	public void truncatedBlobThrowsException() throws IOException {
+		final byte[] blob = generate(10);
+		new MappedPasswordStore(ByteBuffer.wrap(Arrays.copyOf(blob, blob.length / 2)), this.encryptionProvider);
+	}
+
+	@Test(expected = LastPassException.class)
+	public void wrongKeyThrowsException() throws IOException {
+		new MappedPasswordStore(ByteBuffer.wrap(generate(10)), new AES256EncryptionProvider(randomKey()));
+	}
+
+	@Test
+	public void mapFileFromPosition() throws IOException {
+		final byte[] blob = generate(20);
+		final File file = this.temporaryFolder.newFile();
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[] { 1, 2, 3 });
+			out.write(blob);
+		} finally {
+			out.close();
+		}
+
+		final MappedPasswordStore passwordStore = MappedPasswordStore.map(file, 3, this.encryptionProvider);
+
+		final PasswordStoreImpl expected = new PasswordStoreImpl(new ByteArrayInputStream(blob), this.encryptionProvider);
+		assertEquals(describe(expected.getPasswords()), describe(passwordStore.getPasswords()));
+	}
+
+	private static List<String> names(final Collection<PasswordInfo> passwords) {
+		final List<String> names = new ArrayList<String>();
+		for (final PasswordInfo password : passwords) {
+			names.add(password.getName());
+		}
+		return names;
+	}
+
+	private static List<String> describe(final Collection<PasswordInfo> passwords) {
+		final List<String> descriptions = new ArrayList<String>();
+		for (final PasswordInfo password : passwords) {
+			descriptions.add(describe(password));
+		}
+		Collections.sort(descriptions);
+		return descriptions;
+	}
+
+	private static String describe(final PasswordInfo password) {
+		return password.getId() + " " + password.getName() + " " + password.getUrl() + " " + password.getUsername() + " "
+				+ password.getPassword();
+	}
+}
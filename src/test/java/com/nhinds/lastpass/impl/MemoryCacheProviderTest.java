@@ -0,0 +1,246 @@
+package com.nhinds.lastpass.impl;
+
+import static org.hamcrest.Matchers.both;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.io.ByteStreams;
+import com.nhinds.lastpass.impl.StreamingCacheProvider.AccountDataSink;
+
+public class MemoryCacheProviderTest {
+	private static final byte[] ACCOUNT_DATA = new byte[] { 1, 2, 100, 101 };
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private DirectoryCacheProvider secondTier;
+
+	@Before
+	public void setup() throws IOException {
+		this.secondTier = new DirectoryCacheProvider(this.temporaryFolder.newFolder());
+	}
+
+	@Test
+	public void unknownUserReturnsNull() throws IOException {
+		final MemoryCacheProvider provider = new MemoryCacheProvider(1000, this.secondTier);
+
+		assertNull(provider.getIterations("user"));
+		assertNull(provider.getAccountVersion("user"));
+		assertNull(provider.getAccountData("user"));
+		assertNull(provider.mapAccountData("user"));
+	}
+
+	@Test
+	public void storedDataIsKeptOffHeap() throws IOException {
+		final MemoryCacheProvider provider = new MemoryCacheProvider(1000);
+
+		provider.storeAccountData("user", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+
+		assertEquals(Integer.valueOf(5), provider.getIterations("user"));
+		assertEquals(Integer.valueOf(7), provider.getAccountVersion("user"));
+		assertThat(ByteStreams.toByteArray(provider.getAccountData("user")), is(equalTo(ACCOUNT_DATA)));
+		final ByteBuffer accountData = provider.mapAccountData("user");
+		assertTrue(accountData.isDirect());
+		assertTrue(accountData.isReadOnly());
+		assertThat(toByteArray(accountData), is(equalTo(ACCOUNT_DATA)));
+		assertThat("Reading the account data should not consume it", toByteArray(provider.mapAccountData("user")),
+				is(equalTo(ACCOUNT_DATA)));
+	}
+
+	@Test
+	public void storedDataIsWrittenThroughToSecondTier() throws IOException {
+		final MemoryCacheProvider provider = new MemoryCacheProvider(1000, this.secondTier);
+
+		provider.storeAccountData("user", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+
+		assertEquals(Integer.valueOf(5), this.secondTier.getIterations("user"));
+		assertEquals(Integer.valueOf(7), this.secondTier.getAccountVersion("user"));
+		assertThat(ByteStreams.toByteArray(this.secondTier.getAccountData("user")), is(equalTo(ACCOUNT_DATA)));
+	}
+
+	@Test
+	public void dataIsLoadedFromSecondTier() throws IOException {
+		this.secondTier.storeAccountData("user", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+		final MemoryCacheProvider provider = new MemoryCacheProvider(1000, this.secondTier);
+
+		assertEquals(Integer.valueOf(5), provider.getIterations("user"));
+		assertEquals(Integer.valueOf(7), provider.getAccountVersion("user"));
+		assertThat(ByteStreams.toByteArray(provider.getAccountData("user")), is(equalTo(ACCOUNT_DATA)));
+		assertEquals(ACCOUNT_DATA.length, provider.getTotalBytes());
+
+		// Once loaded, the data is served from memory
+		assertTrue(this.secondTier.getCacheFile("user").delete());
+		assertTrue(provider.mapAccountData("user").isDirect());
+		assertThat(toByteArray(provider.mapAccountData("user")), is(equalTo(ACCOUNT_DATA)));
+	}
+
+	@Test
+	public void dataIsLoadedFromSecondTierWhichCannotMap() throws IOException {
+		final StreamingCacheProvider streamingSecondTier = mock(StreamingCacheProvider.class);
+		when(streamingSecondTier.getIterations("user")).thenReturn(5);
+		when(streamingSecondTier.getAccountVersion("user")).thenReturn(7);
+		when(streamingSecondTier.getAccountData("user")).thenReturn(new ByteArrayInputStream(ACCOUNT_DATA));
+		final MemoryCacheProvider provider = new MemoryCacheProvider(1000, streamingSecondTier);
+
+		assertThat(toByteArray(provider.mapAccountData("user")), is(equalTo(ACCOUNT_DATA)));
+		assertThat(ByteStreams.toByteArray(provider.getAccountData("user")), is(equalTo(ACCOUNT_DATA)));
+	}
+
+	@Test
+	public void loadDoesNotReplaceDataCommittedWhileLoading() throws IOException {
+		final byte[] newerAccountData = new byte[] { 3, 4, 5 };
+		final StreamingCacheProvider streamingSecondTier = mock(StreamingCacheProvider.class);
+		when(streamingSecondTier.getIterations("user")).thenReturn(5);
+		when(streamingSecondTier.getAccountVersion("user")).thenReturn(7);
+		final MemoryCacheProvider provider = new MemoryCacheProvider(1000, streamingSecondTier);
+		when(streamingSecondTier.getAccountData("user")).thenAnswer(new Answer<InputStream>() {
+			@Override
+			public InputStream answer(final InvocationOnMock invocation) throws IOException {
+				// A newer version is committed after the load has read the version but before it finishes
+				provider.storeAccountData("user", 6, 8, new ByteArrayInputStream(newerAccountData));
+				return new ByteArrayInputStream(ACCOUNT_DATA);
+			}
+		});
+
+		assertThat(toByteArray(provider.mapAccountData("user")), is(equalTo(newerAccountData)));
+
+		assertEquals(Integer.valueOf(6), provider.getIterations("user"));
+		assertEquals(Integer.valueOf(8), provider.getAccountVersion("user"));
+		assertThat(ByteStreams.toByteArray(provider.getAccountData("user")), is(equalTo(newerAccountData)));
+		assertEquals(0, provider.getInFlightBytes());
+		assertThat(provider.getTotalBytes(), is(lessThanOrEqualTo(1000L)));
+	}
+
+	@Test
+	public void leastRecentlyUsedUserIsEvictedFromMemoryOnly() throws IOException {
+		final MemoryCacheProvider provider = new MemoryCacheProvider(2500, this.secondTier);
+		provider.storeAccountData("user1", 5, 7, new ByteArrayInputStream(new byte[1000]));
+		provider.storeAccountData("user2", 5, 7, new ByteArrayInputStream(new byte[1000]));
+		// Use user1 so that user2 is the least recently used
+		provider.getAccountData("user1");
+
+		provider.storeAccountData("user3", 5, 7, new ByteArrayInputStream(new byte[1000]));
+
+		// Buffers handed over without copying may be larger than their data, so count the memory they use rather than the data
+		assertThat(provider.getTotalBytes(), is(both(greaterThanOrEqualTo(2000L)).and(lessThanOrEqualTo(2500L))));
+		assertTrue(provider.mapAccountData("user1").isDirect());
+		assertTrue(provider.mapAccountData("user3").isDirect());
+		// user2 is still in the second tier, and is loaded back into memory when it is requested
+		assertEquals(1000, ByteStreams.toByteArray(provider.getAccountData("user2")).length);
+		assertThat(provider.getTotalBytes(), is(both(greaterThanOrEqualTo(2000L)).and(lessThanOrEqualTo(2500L))));
+	}
+
+	@Test
+	public void buffersBeingWrittenCountAgainstBudget() throws IOException {
+		final MemoryCacheProvider provider = new MemoryCacheProvider(2500, this.secondTier);
+		provider.storeAccountData("user1", 5, 7, new ByteArrayInputStream(new byte[1000]));
+		final AccountDataSink sink2 = provider.newAccountDataSink("user2", 5, 7);
+		sink2.getOutputStream().write(new byte[1000]);
+		assertThat(provider.getInFlightBytes(), is(greaterThanOrEqualTo(1000L)));
+		assertThat(provider.getTotalBytes() + provider.getInFlightBytes(), is(lessThanOrEqualTo(2500L)));
+
+		// Needs more room than the sink being written leaves, so it is not kept in memory
+		final AccountDataSink sink3 = provider.newAccountDataSink("user3", 5, 7);
+		sink3.getOutputStream().write(new byte[2000]);
+		assertThat(provider.getTotalBytes() + provider.getInFlightBytes(), is(lessThanOrEqualTo(2500L)));
+		sink3.commit();
+		sink2.commit();
+
+		assertEquals(0, provider.getInFlightBytes());
+		assertThat(provider.getTotalBytes(), is(lessThanOrEqualTo(2500L)));
+		assertTrue(provider.mapAccountData("user2").isDirect());
+		assertEquals(Integer.valueOf(7), provider.getAccountVersion("user3"));
+		assertEquals(2000, ByteStreams.toByteArray(provider.getAccountData("user3")).length);
+	}
+
+	@Test
+	public void abortedSinkReleasesItsBuffer() throws IOException {
+		final MemoryCacheProvider provider = new MemoryCacheProvider(2500, this.secondTier);
+		final AccountDataSink sink = provider.newAccountDataSink("user", 5, 7);
+		sink.getOutputStream().write(new byte[1000]);
+
+		sink.abort();
+
+		assertEquals(0, provider.getInFlightBytes());
+		assertEquals(0, provider.getTotalBytes());
+	}
+
+	@Test
+	public void dataLargerThanBudgetIsOnlyStoredInSecondTier() throws IOException {
+		final MemoryCacheProvider provider = new MemoryCacheProvider(100, this.secondTier);
+		provider.storeAccountData("user", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+
+		provider.storeAccountData("user", 6, 8, new ByteArrayInputStream(new byte[1000]));
+
+		assertEquals(0, provider.getTotalBytes());
+		assertEquals(Integer.valueOf(8), provider.getAccountVersion("user"));
+		assertEquals(1000, ByteStreams.toByteArray(provider.getAccountData("user")).length);
+		assertEquals(1000, provider.mapAccountData("user").remaining());
+		assertEquals(0, provider.getTotalBytes());
+	}
+
+	@Test
+	public void abortedSinkKeepsOriginalAccountData() throws IOException {
+		final MemoryCacheProvider provider = new MemoryCacheProvider(1000, this.secondTier);
+		provider.storeAccountData("user", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+
+		final AccountDataSink sink = provider.newAccountDataSink("user", 6, 8);
+		sink.getOutputStream().write(new byte[] { 9 });
+		sink.abort();
+
+		assertEquals(Integer.valueOf(7), provider.getAccountVersion("user"));
+		assertThat(ByteStreams.toByteArray(provider.getAccountData("user")), is(equalTo(ACCOUNT_DATA)));
+		assertEquals(Integer.valueOf(7), this.secondTier.getAccountVersion("user"));
+	}
+
+	@Test
+	public void failedSecondTierCommitKeepsOriginalAccountData() throws IOException {
+		final StreamingCacheProvider failingSecondTier = mock(StreamingCacheProvider.class);
+		final AccountDataSink failingSink = mock(AccountDataSink.class);
+		when(failingSecondTier.newAccountDataSink("user", 6, 8)).thenReturn(failingSink);
+		when(failingSink.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+		final IOException commitFailure = new IOException("Disk full");
+		doThrow(commitFailure).when(failingSink).commit();
+		final MemoryCacheProvider provider = new MemoryCacheProvider(1000, failingSecondTier);
+		provider.newAccountDataSink("user", 5, 7).commit();
+
+		try {
+			provider.storeAccountData("user", 6, 8, new ByteArrayInputStream(ACCOUNT_DATA));
+			fail("Expected the second tier commit to fail");
+		} catch (final IOException e) {
+			assertEquals(commitFailure, e);
+		}
+
+		assertEquals(Integer.valueOf(7), provider.getAccountVersion("user"));
+		assertEquals(0, provider.mapAccountData("user").remaining());
+	}
+
+	private static byte[] toByteArray(final ByteBuffer buffer) {
+		final byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+}
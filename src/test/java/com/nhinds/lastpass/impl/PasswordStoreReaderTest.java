@@ -0,0 +1,347 @@
+package com.nhinds.lastpass.impl;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.nhinds.lastpass.LastPass.PasswordConsumer;
+import com.nhinds.lastpass.LastPassException;
+import com.nhinds.lastpass.PasswordInfo;
+import com.nhinds.lastpass.encryption.AES256EncryptionProvider;
+
+public class PasswordStoreReaderTest {
+	private AES256EncryptionProvider encryptionProvider;
+	private ExecutorService executor;
+	private ExecutorService readExecutor;
+
+	@Before
+	public void setup() {
+		this.encryptionProvider = new AES256EncryptionProvider(randomKey());
+		this.executor = Executors.newFixedThreadPool(4);
+		this.readExecutor = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void shutdown() {
+		this.executor.shutdownNow();
+		this.readExecutor.shutdownNow();
+	}
+
+	private static byte[] randomKey() {
+		final byte[] key = new byte[32];
+		new Random().nextBytes(key);
+		return key;
+	}
+
+	private byte[] generate(final int accounts) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new SyntheticVaultGenerator(accounts).generate(out, this.encryptionProvider, AES256EncryptionProvider.Mode.CBC, accounts);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void parallelParsingMatchesSequentialParsing() throws IOException {
+		// Not a multiple of the batch size, so the last batch is partial
+		final byte[] blob = generate(PasswordStoreReader.PARALLEL_BATCH_SIZE * 7 + 3);
+
+		final PasswordStoreReader sequential = new PasswordStoreReader(new ByteArrayInputStream(blob), this.encryptionProvider);
+		final PasswordStoreReader parallel = new PasswordStoreReader(new ByteArrayInputStream(blob), this.encryptionProvider,
+				this.executor);
+
+		assertEquals(describe(sequential.getAccounts()), describe(parallel.getAccounts()));
+		assertEquals(sequential.getDomains(), parallel.getDomains());
+	}
+
+	@Test
+	public void laterAccountWithSameIdReplacesEarlierAccount() throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final PasswordStoreWriter writer = new PasswordStoreWriter(out, this.encryptionProvider, AES256EncryptionProvider.Mode.ECB);
+		for (int i = 0; i < 256; i++) {
+			writer.writeAccount(i % 3, "account " + i, "", "http://example.com", "", "user" + i, "", false);
+		}
+		writer.close();
+
+		final PasswordStoreReader reader = new PasswordStoreReader(new ByteArrayInputStream(out.toByteArray()), this.encryptionProvider,
+				this.executor);
+
+		// The last three accounts written were 253, 254 and 255, with IDs 1, 2 and 0
+		assertEquals(Arrays.asList("0 account 255", "1 account 253", "2 account 254"), names(reader.getAccounts()));
+	}
+
+	@Test(expected = LastPassException.class)
+	public void truncatedBlobThrowsExceptionWhenParsingInParallel() throws IOException {
+		final byte[] blob = generate(500);
+		new PasswordStoreReader(new ByteArrayInputStream(Arrays.copyOf(blob, blob.length / 2)), this.encryptionProvider, this.executor);
+	}
+
+	@Test(expected = LastPassException.class)
+	public void wrongKeyThrowsExceptionWhenParsingInParallel() throws IOException {
+		new PasswordStoreReader(new ByteArrayInputStream(generate(500)), new AES256EncryptionProvider(randomKey()), this.executor);
+	}
+
+	@Test
+	public void refreshReusesUnchangedAccounts() throws IOException {
+		final PasswordStoreReader previous = new PasswordStoreReader(new ByteArrayInputStream(writeAccounts(1, 2, 3, 4)),
+				this.encryptionProvider, null, true);
+
+		final PasswordStoreReader refreshed = new PasswordStoreReader(new ByteArrayInputStream(writeAccounts(1, -2, 4, 5)),
+				this.encryptionProvider, null, previous);
+
+		assertEquals(Arrays.asList("1 account 1", "2 account -2", "4 account 4", "5 account 5"), names(refreshed.getAccounts()));
+		assertThat(refreshed.getAccounts().get(1L), is(sameInstance(previous.getAccounts().get(1L))));
+		assertThat(refreshed.getAccounts().get(4L), is(sameInstance(previous.getAccounts().get(4L))));
+		assertThat(refreshed.getAccounts().get(2L), is(not(sameInstance(previous.getAccounts().get(2L)))));
+		assertEquals(2, refreshed.getReusedAccounts());
+	}
+
+	@Test
+	public void refreshReusesAccountsFromEarlierRefreshes() throws IOException {
+		final PasswordStoreReader first = new PasswordStoreReader(new ByteArrayInputStream(writeAccounts(1, 2)), this.encryptionProvider,
+				null, true);
+		final PasswordStoreReader second = new PasswordStoreReader(new ByteArrayInputStream(writeAccounts(1, -2)),
+				this.encryptionProvider, null, first);
+
+		final PasswordStoreReader third = new PasswordStoreReader(new ByteArrayInputStream(writeAccounts(1, -2)),
+				this.encryptionProvider, null, second);
+
+		assertThat(third.getAccounts().get(1L), is(sameInstance(first.getAccounts().get(1L))));
+		assertThat(third.getAccounts().get(2L), is(sameInstance(second.getAccounts().get(2L))));
+	}
+
+	@Test
+	public void refreshFromReaderWhichDoesNotTrackChangesParsesEveryAccount() throws IOException {
+		final PasswordStoreReader previous = new PasswordStoreReader(new ByteArrayInputStream(writeAccounts(1, 2)),
+				this.encryptionProvider);
+
+		final PasswordStoreReader refreshed = new PasswordStoreReader(new ByteArrayInputStream(writeAccounts(1, 2)),
+				this.encryptionProvider, null, previous);
+
+		assertEquals(0, refreshed.getReusedAccounts());
+		assertThat(refreshed.getAccounts().get(1L), is(not(sameInstance(previous.getAccounts().get(1L)))));
+	}
+
+	@Test
+	public void refreshedReadersDoNotKeepPreviousReadersReachable() throws Exception {
+		final byte[] blob = writeAccounts(1, 2, 3);
+		PasswordStoreReader reader = new PasswordStoreReader(new ByteArrayInputStream(blob), this.encryptionProvider, null, true);
+		final WeakReference<PasswordStoreReader> first = new WeakReference<PasswordStoreReader>(reader);
+		for (int i = 0; i < 10; i++)
+			reader = new PasswordStoreReader(new ByteArrayInputStream(blob), this.encryptionProvider, null, reader);
+
+		for (int i = 0; i < 50 && first.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(first.get());
+		assertEquals(3, reader.getReusedAccounts());
+	}
+
+	@Test
+	public void parallelRefreshMatchesSequentialParsing() throws IOException {
+		final byte[] blob = generate(PasswordStoreReader.PARALLEL_BATCH_SIZE * 3 + 5);
+		final PasswordStoreReader previous = new PasswordStoreReader(new ByteArrayInputStream(blob), this.encryptionProvider, null, true);
+
+		final PasswordStoreReader refreshed = new PasswordStoreReader(new ByteArrayInputStream(blob), this.encryptionProvider,
+				this.executor, previous);
+
+		assertEquals(describe(previous.getAccounts()), describe(refreshed.getAccounts()));
+		assertEquals(previous.getAccounts().size(), refreshed.getReusedAccounts());
+	}
+
+	@Test
+	public void refreshWithDifferentKeyParsesEveryAccount() throws IOException {
+		final byte[] blob = writeAccounts(1, 2);
+		final PasswordStoreReader previous = new PasswordStoreReader(new ByteArrayInputStream(blob), new AES256EncryptionProvider(
+				randomKey()) {
+			@Override
+			public String decrypt(final byte[] aesItem) {
+				return PasswordStoreReaderTest.this.encryptionProvider.decrypt(aesItem);
+			}
+		});
+
+		final PasswordStoreReader refreshed = new PasswordStoreReader(new ByteArrayInputStream(blob), this.encryptionProvider, null,
+				previous);
+
+		assertEquals(0, refreshed.getReusedAccounts());
+		assertThat(refreshed.getAccounts().get(1L), is(not(sameInstance(previous.getAccounts().get(1L)))));
+	}
+
+	@Test
+	public void pipelinedParsingMatchesSequentialParsing() throws IOException {
+		final byte[] blob = generate(PasswordStoreReader.PARALLEL_BATCH_SIZE * 7 + 3);
+		final List<ParsePipeline.StageTimings> timings = new ArrayList<ParsePipeline.StageTimings>();
+		// Small limits, so that every stage has to wait for the others
+		final ParsePipeline pipeline = new ParsePipeline(this.readExecutor, this.executor, 1, 1, new ParsePipeline.TimingsListener() {
+			@Override
+			public void parsed(final ParsePipeline.StageTimings stageTimings) {
+				timings.add(stageTimings);
+			}
+		});
+
+		final PasswordStoreReader sequential = new PasswordStoreReader(new ByteArrayInputStream(blob), this.encryptionProvider);
+		final PasswordStoreReader pipelined = new PasswordStoreReader(new ByteArrayInputStream(blob), this.encryptionProvider, pipeline,
+				null, null);
+
+		assertEquals(describe(sequential.getAccounts()), describe(pipelined.getAccounts()));
+		assertEquals(sequential.getDomains(), pipelined.getDomains());
+		assertEquals(1, timings.size());
+		final ParsePipeline.StageTimings stageTimings = timings.get(0);
+		assertThat(stageTimings.getTotalNanos(), is(greaterThan(0L)));
+		assertThat(stageTimings.getReadNanos(), is(greaterThan(0L)));
+		assertThat(stageTimings.getSplitNanos(), is(greaterThan(0L)));
+		assertThat(stageTimings.getDecryptNanos(), is(greaterThan(0L)));
+	}
+
+	@Test
+	public void pipelinedStreamMatchesSequentialStream() throws IOException {
+		final byte[] blob = generate(PasswordStoreReader.PARALLEL_BATCH_SIZE * 3 + 1);
+		final RecordingConsumer sequential = new RecordingConsumer();
+		final RecordingConsumer pipelined = new RecordingConsumer();
+
+		PasswordStoreReader.stream(new ByteArrayInputStream(blob), this.encryptionProvider, null, sequential);
+		new PasswordStoreReader(new ByteArrayInputStream(blob), this.encryptionProvider, new ParsePipeline(this.readExecutor,
+				this.executor), null, pipelined);
+
+		assertEquals(sequential.names, pipelined.names);
+		assertEquals(sequential.equivalentDomains, pipelined.equivalentDomains);
+	}
+
+	@Test(expected = LastPassException.class)
+	public void readFailureThrowsExceptionWhenPipelined() throws IOException {
+		final byte[] blob = generate(500);
+		final InputStream failing = new SequenceInputStream(new ByteArrayInputStream(Arrays.copyOf(blob, blob.length / 2)),
+				new InputStream() {
+					@Override
+					public int read() throws IOException {
+						throw new IOException("Connection reset");
+					}
+				});
+		new PasswordStoreReader(failing, this.encryptionProvider, new ParsePipeline(this.readExecutor, this.executor), null, null);
+	}
+
+	@Test
+	public void streamGivesAccountsToConsumerInOrder() throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final PasswordStoreWriter writer = new PasswordStoreWriter(out, this.encryptionProvider, AES256EncryptionProvider.Mode.ECB);
+		writer.writeAccount(3, "account 3", "", "http://example.com", "", "user3", "", false);
+		writer.writeEquivalentDomain(1, "example.com");
+		writer.writeEquivalentDomain(1, "example.org");
+		writer.writeAccount(1, "account 1", "", "http://example.org", "", "user1", "", false);
+		writer.close();
+		final RecordingConsumer consumer = new RecordingConsumer();
+
+		PasswordStoreReader.stream(new ByteArrayInputStream(out.toByteArray()), this.encryptionProvider, null, consumer);
+
+		assertEquals(Arrays.asList("3 account 3", "1 account 1"), consumer.names);
+		assertEquals(Arrays.asList("example.com", "example.org"), consumer.equivalentDomains.get("example.org"));
+	}
+
+	@Test
+	public void streamGivesAccountsToConsumerBeforeTheBlobIsRead() throws IOException {
+		final byte[] blob = writeAccounts(1, 2);
+		final ByteArrayInputStream accountsStream = new ByteArrayInputStream(blob);
+		final List<Integer> remainingBytes = new ArrayList<Integer>();
+
+		PasswordStoreReader.stream(accountsStream, this.encryptionProvider, null, new RecordingConsumer() {
+			@Override
+			public void accept(final PasswordInfo password) {
+				remainingBytes.add(accountsStream.available());
+			}
+		});
+
+		assertEquals(2, remainingBytes.size());
+		assertThat(remainingBytes.get(0), is(greaterThan(remainingBytes.get(1))));
+		assertThat(remainingBytes.get(1), is(greaterThan(0)));
+	}
+
+	@Test
+	public void parallelStreamMatchesSequentialStream() throws IOException {
+		final byte[] blob = generate(PasswordStoreReader.PARALLEL_BATCH_SIZE * 5 + 7);
+		final RecordingConsumer sequential = new RecordingConsumer();
+		final RecordingConsumer parallel = new RecordingConsumer();
+
+		PasswordStoreReader.stream(new ByteArrayInputStream(blob), this.encryptionProvider, null, sequential);
+		PasswordStoreReader.stream(new ByteArrayInputStream(blob), this.encryptionProvider, this.executor, parallel);
+
+		assertEquals(sequential.names, parallel.names);
+		assertEquals(sequential.equivalentDomains, parallel.equivalentDomains);
+	}
+
+	@Test(expected = LastPassException.class)
+	public void truncatedBlobThrowsExceptionWhenStreaming() throws IOException {
+		final byte[] blob = generate(50);
+		PasswordStoreReader.stream(new ByteArrayInputStream(Arrays.copyOf(blob, blob.length / 2)), this.encryptionProvider, null,
+				new RecordingConsumer());
+	}
+
+	private static class RecordingConsumer implements PasswordConsumer {
+		final List<String> names = new ArrayList<String>();
+		Map<String, Collection<String>> equivalentDomains;
+
+		@Override
+		public void accept(final PasswordInfo password) {
+			this.names.add(password.getId() + " " + password.getName());
+		}
+
+		@Override
+		public void complete(final Map<String, Collection<String>> equivalentDomains) {
+			assertNull("Completed twice", this.equivalentDomains);
+			this.equivalentDomains = equivalentDomains;
+		}
+	}
+
+	/** Write accounts with the given IDs, using the absolute value as the ID so that negative IDs produce a changed account */
+	private byte[] writeAccounts(final long... ids) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final PasswordStoreWriter writer = new PasswordStoreWriter(out, this.encryptionProvider, AES256EncryptionProvider.Mode.ECB);
+		for (final long id : ids) {
+			writer.writeAccount(Math.abs(id), "account " + id, "", "http://example.com", "", "user" + id, "", false);
+		}
+		writer.close();
+		return out.toByteArray();
+	}
+
+	private static List<String> names(final Map<Long, AccountData> accounts) {
+		final List<String> names = new ArrayList<String>();
+		for (final AccountData account : accounts.values()) {
+			names.add(account.getId() + " " + account.getName());
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+	private static List<String> describe(final Map<Long, AccountData> accounts) {
+		final List<String> descriptions = new ArrayList<String>();
+		for (final Map.Entry<Long, AccountData> account : accounts.entrySet()) {
+			final AccountData accountData = account.getValue();
+			descriptions.add(account.getKey() + " " + accountData.getName() + " " + accountData.getGroup() + " " + accountData.getUrl()
+					+ " " + accountData.getUsername() + " " + accountData.getPassword());
+		}
+		Collections.sort(descriptions);
+		return descriptions;
+	}
+}
@@ -0,0 +1,111 @@
+package com.nhinds.lastpass.impl;
+
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.nhinds.lastpass.LastPassException;
+import com.nhinds.lastpass.RefreshablePasswordStore;
+import com.nhinds.lastpass.impl.PasswordStoreRefresher.RefreshListener;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PasswordStoreRefresherTest {
+	@Mock
+	private RefreshablePasswordStore passwordStore;
+	@Mock
+	private RefreshListener listener;
+
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+	@After
+	public void shutdownExecutor() {
+		this.executor.shutdownNow();
+	}
+
+	@Test
+	public void refreshesRepeatedlyOnceStarted() throws Exception {
+		when(this.passwordStore.refresh()).thenReturn(true, false);
+		final PasswordStoreRefresher refresher = new PasswordStoreRefresher(this.passwordStore, this.executor, 10,
+				TimeUnit.MILLISECONDS, 0.5, this.listener);
+
+		refresher.start();
+
+		verify(this.listener, timeout(5000)).refreshed(true);
+		verify(this.listener, timeout(5000).atLeast(1)).refreshed(false);
+		refresher.close();
+	}
+
+	@Test
+	public void failedRefreshIsReportedAndRetried() throws Exception {
+		final LastPassException failure = new LastPassException("Error connecting to LastPass");
+		when(this.passwordStore.refresh()).thenThrow(failure).thenReturn(false);
+		final PasswordStoreRefresher refresher = new PasswordStoreRefresher(this.passwordStore, this.executor, 10,
+				TimeUnit.MILLISECONDS, 0, this.listener);
+
+		refresher.start();
+
+		verify(this.listener, timeout(5000)).refreshFailed(failure);
+		verify(this.listener, timeout(5000).atLeast(1)).refreshed(false);
+		refresher.close();
+	}
+
+	@Test
+	public void closeStopsRefreshing() throws Exception {
+		final PasswordStoreRefresher refresher = new PasswordStoreRefresher(this.passwordStore, this.executor, 10,
+				TimeUnit.MILLISECONDS);
+		refresher.start();
+		verify(this.passwordStore, timeout(5000).atLeast(1)).refresh();
+
+		refresher.close();
+		// Let any refresh in progress finish, then check nothing else runs
+		this.executor.submit(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}).get();
+		verify(this.passwordStore, atLeast(1)).refresh();
+		Thread.sleep(50);
+		verifyNoMoreInteractions(this.passwordStore);
+	}
+
+	@Test
+	public void notStartedRefresherDoesNotRefresh() throws Exception {
+		final PasswordStoreRefresher refresher = new PasswordStoreRefresher(this.passwordStore, this.executor, 1,
+				TimeUnit.MILLISECONDS);
+
+		Thread.sleep(20);
+		refresher.close();
+		refresher.start();
+
+		Thread.sleep(20);
+		verify(this.passwordStore, never()).refresh();
+	}
+
+	@Test
+	public void delaysAreVariedWithinJitter() {
+		final PasswordStoreRefresher refresher = new PasswordStoreRefresher(this.passwordStore, this.executor, 100, TimeUnit.SECONDS,
+				0.2, null, new Random(42));
+
+		for (int i = 0; i < 100; i++)
+			assertThat(refresher.nextDelayNanos(),
+					allOf(greaterThanOrEqualTo(TimeUnit.SECONDS.toNanos(80)), lessThanOrEqualTo(TimeUnit.SECONDS.toNanos(120))));
+	}
+}
@@ -149,9 +149,42 @@ public class PasswordStoreTest {
 		this.accounts.putAll(ImmutableMap.<Long, AccountData> builder().put(1L, domainMatch).put(2L, domainAlias).put(3L, subdomainMatch)
 				.put(4L, hostMatch).put(5L, ipMatch).put(6L, ftpMatch).put(11L, domainMismatch).put(12L, ipMismatch)
 				.put(13L, subdomainMismatch).put(14L, hostMismatch).put(15L, invalidUrl).put(16L, invalidUrl2).build());
+		// The hostname index is built when the store is constructed
+		this.passwordStore = new PasswordStoreImpl(this.passwordStoreReader);
 
 		final Collection<PasswordInfo> passwords = this.passwordStore.getPasswordsByHostname("myhost.com");
 
 		assertThat(passwords, containsInAnyOrder((PasswordInfo) domainMatch, domainAlias, subdomainMatch, hostMatch, ipMatch, ftpMatch));
 	}
+
+	@Test
+	public void getPasswordsByHostnameReturnsEmptyCollectionForUnknownHostname() {
+		final AccountData domainMatch = mock(AccountData.class);
+		when(domainMatch.getUrl()).thenReturn("http://myhost.com");
+		this.accounts.put(1L, domainMatch);
+		this.passwordStore = new PasswordStoreImpl(this.passwordStoreReader);
+
+		assertThat(this.passwordStore.getPasswordsByHostname("otherhost.com"), is(empty()));
+	}
+
+	@Test
+	public void getPasswordsByHostnameUsesGroupOfRequestedHostname() {
+		final Collection<String> group1 = Arrays.asList("a.com", "shared.com");
+		final Collection<String> group2 = Arrays.asList("b.com", "shared.com");
+		this.domains.put("a.com", group1);
+		this.domains.put("b.com", group2);
+		this.domains.put("shared.com", group2);
+		final AccountData aAccount = mock(AccountData.class);
+		when(aAccount.getUrl()).thenReturn("http://www.a.com");
+		final AccountData bAccount = mock(AccountData.class);
+		when(bAccount.getUrl()).thenReturn("http://b.com");
+		final AccountData sharedAccount = mock(AccountData.class);
+		when(sharedAccount.getUrl()).thenReturn("https://login.shared.com/");
+		this.accounts.putAll(ImmutableMap.<Long, AccountData> of(1L, aAccount, 2L, bAccount, 3L, sharedAccount));
+		this.passwordStore = new PasswordStoreImpl(this.passwordStoreReader);
+
+		assertThat(this.passwordStore.getPasswordsByHostname("a.com"), containsInAnyOrder((PasswordInfo) aAccount, sharedAccount));
+		assertThat(this.passwordStore.getPasswordsByHostname("b.com"), containsInAnyOrder((PasswordInfo) bAccount, sharedAccount));
+		assertThat(this.passwordStore.getPasswordsByHostname("shared.com"), containsInAnyOrder((PasswordInfo) bAccount, sharedAccount));
+	}
 }
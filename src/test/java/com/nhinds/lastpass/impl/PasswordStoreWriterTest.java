@@ -0,0 +1,132 @@
+package com.nhinds.lastpass.impl;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.nhinds.lastpass.encryption.AES256EncryptionProvider;
+
+@RunWith(Parameterized.class)
+public class PasswordStoreWriterTest {
+	@Parameters
+	public static List<Object[]> params() {
+		return Arrays.asList(new Object[][] { { AES256EncryptionProvider.Mode.ECB }, { AES256EncryptionProvider.Mode.CBC } });
+	}
+
+	private final AES256EncryptionProvider.Mode mode;
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	private AES256EncryptionProvider encryptionProvider;
+	private PasswordStoreWriter writer;
+
+	public PasswordStoreWriterTest(final AES256EncryptionProvider.Mode mode) {
+		this.mode = mode;
+	}
+
+	@Before
+	public void setup() {
+		final byte[] key = new byte[32];
+		new Random().nextBytes(key);
+		this.encryptionProvider = new AES256EncryptionProvider(key);
+		this.writer = new PasswordStoreWriter(this.out, this.encryptionProvider, this.mode);
+	}
+
+	private PasswordStoreReader read() throws IOException {
+		this.writer.close();
+		return new PasswordStoreReader(new ByteArrayInputStream(this.out.toByteArray()), this.encryptionProvider);
+	}
+
+	@Test
+	public void writeAccount() throws IOException {
+		this.writer.writeAccount(12, "name", "group", "https://example.com/login", "extra", "username", "password", false);
+
+		final AccountData account = read().getAccounts().get(12L);
+
+		assertEquals(12, account.getId());
+		assertEquals("name", account.getName());
+		assertEquals("group", account.getGroup());
+		assertEquals("https://example.com/login", account.getUrl());
+		assertEquals("extra", account.getExtra());
+		assertEquals("username", account.getUsername());
+		assertEquals("password", account.getPassword());
+		assertEquals("0", account.getSn());
+		assertEquals("", account.getFiid());
+	}
+
+	@Test
+	public void writeSecureNote() throws IOException {
+		this.writer.writeAccount(3, "note", "", null, "some notes", "", "", true);
+
+		final AccountData account = read().getAccounts().get(3L);
+
+		assertEquals("http://sn", account.getUrl());
+		assertEquals("1", account.getSn());
+		assertEquals("some notes", account.getExtra());
+		assertEquals("", account.getGroup());
+		assertEquals("", account.getPassword());
+	}
+
+	@Test
+	public void rewriteAccountData() throws IOException {
+		final AccountData original = new AccountData(7, this.encryptionProvider.encrypt("name"), this.encryptionProvider.encrypt("group"),
+				"http://example.com", new byte[0], "1", "2", this.encryptionProvider.encrypt("user"),
+				this.encryptionProvider.encrypt("pass"), "3", "4", "5", "6", "7", "8", this.encryptionProvider.encrypt("fiid"), "9", "10",
+				"11", "12", "13", "14", "15", "16", "17", "18", "19", "20", "21", this.encryptionProvider);
+
+		this.writer.writeAccount(original);
+		final AccountData account = read().getAccounts().get(7L);
+
+		assertEquals(Arrays.asList(original.getName(), original.getGroup(), original.getUrl(), original.getExtra(),
+				original.getFavourite(), original.getSharedFromId(), original.getUsername(), original.getPassword(),
+				original.getPasswordProtected(), original.getSn(), original.getLastTouched(), original.getAutoLogin(),
+				original.getNeverAutofill(), original.getRealmData(), original.getFiid(), original.getCustomJs(), original.getSubmitId(),
+				original.getCaptchaId(), original.getUrid(), original.getBasicAuthorization(), original.getMethod(), original.getAction(),
+				original.getGroupId(), original.getDeleted(), original.getAttachKey(), original.getAttachPresent(),
+				original.getIndividualShare(), original.getUnknown1()), Arrays.asList(account.getName(), account.getGroup(),
+				account.getUrl(), account.getExtra(), account.getFavourite(), account.getSharedFromId(), account.getUsername(),
+				account.getPassword(), account.getPasswordProtected(), account.getSn(), account.getLastTouched(), account.getAutoLogin(),
+				account.getNeverAutofill(), account.getRealmData(), account.getFiid(), account.getCustomJs(), account.getSubmitId(),
+				account.getCaptchaId(), account.getUrid(), account.getBasicAuthorization(), account.getMethod(), account.getAction(),
+				account.getGroupId(), account.getDeleted(), account.getAttachKey(), account.getAttachPresent(),
+				account.getIndividualShare(), account.getUnknown1()));
+	}
+
+	@Test
+	public void writeEquivalentDomains() throws IOException {
+		this.writer.writeEquivalentDomain(1, "example.com");
+		this.writer.writeEquivalentDomain(1, "example.org");
+		this.writer.writeEquivalentDomain(2, "other.com");
+
+		final PasswordStoreReader reader = read();
+
+		assertThat(reader.getDomains().get("example.com"), containsInAnyOrder("example.com", "example.org"));
+		assertThat(reader.getDomains().get("example.org"), containsInAnyOrder("example.com", "example.org"));
+		assertThat(reader.getDomains().get("other.com"), containsInAnyOrder("other.com"));
+	}
+
+	@Test
+	public void emptyVault() throws IOException {
+		final PasswordStoreReader reader = read();
+
+		assertEquals(0, reader.getAccounts().size());
+		assertEquals(0, reader.getDomains().size());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void cannotWriteAfterClose() throws IOException {
+		this.writer.close();
+		this.writer.writeEquivalentDomain(1, "example.com");
+	}
+}
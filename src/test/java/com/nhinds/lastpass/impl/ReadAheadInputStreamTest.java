@@ -0,0 +1,198 @@
+package com.nhinds.lastpass.impl;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class ReadAheadInputStreamTest {
+	private static final byte[] DATA = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+	private final ParsePipeline.StageTimings timings = new ParsePipeline.StageTimings();
+
+	@After
+	public void shutdownExecutor() {
+		this.executor.shutdownNow();
+	}
+
+	@Test
+	public void readsAllDataAcrossBlocks() throws IOException {
+		final InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(DATA), this.executor, 3, 2, this.timings);
+
+		assertEquals(1, in.read());
+		assertThat(ByteStreams.toByteArray(in), is(equalTo(new byte[] { 2, 3, 4, 5, 6, 7, 8, 9, 10 })));
+		assertEquals(-1, in.read());
+		in.close();
+	}
+
+	@Test
+	public void readFailureIsThrownAfterPrecedingData() throws IOException {
+		final InputStream failing = new InputStream() {
+			private int read;
+
+			@Override
+			public int read() throws IOException {
+				if (this.read == 4)
+					throw new IOException("Connection reset");
+				return ++this.read;
+			}
+		};
+		final InputStream in = new ReadAheadInputStream(failing, this.executor, 2, 2, this.timings);
+
+		assertEquals(1, in.read());
+		assertEquals(2, in.read());
+		assertEquals(3, in.read());
+		assertEquals(4, in.read());
+		try {
+			in.read();
+			fail("Expected the read failure to be thrown");
+		} catch (final IOException e) {
+			assertEquals("Connection reset", e.getMessage());
+		}
+		in.close();
+	}
+
+	@Test
+	public void readsAtMostTheReadAheadLimit() throws Exception {
+		final AtomicInteger blocksRead = new AtomicInteger();
+		final InputStream endless = new InputStream() {
+			@Override
+			public int read() {
+				return 0;
+			}
+
+			@Override
+			public int read(final byte[] b, final int off, final int len) {
+				blocksRead.incrementAndGet();
+				return len;
+			}
+		};
+		final InputStream in = new ReadAheadInputStream(endless, this.executor, 4, 2, this.timings);
+		in.read();
+		Thread.sleep(100);
+
+		// The block being read, two queued blocks, and one waiting to be queued
+		assertThat(blocksRead.get(), is(lessThanOrEqualTo(4)));
+		in.close();
+	}
+
+	@Test
+	public void closeStopsReadingAndClosesStream() throws Exception {
+		final AtomicInteger closed = new AtomicInteger();
+		final InputStream endless = new InputStream() {
+			@Override
+			public int read() {
+				return 0;
+			}
+
+			@Override
+			public void close() {
+				closed.incrementAndGet();
+			}
+		};
+		final InputStream in = new ReadAheadInputStream(endless, this.executor, 4, 1, this.timings);
+		in.read();
+
+		in.close();
+
+		assertEquals(1, closed.get());
+		// The executor is free again once the read task has stopped
+		assertTrue(this.executor.submit(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}, Boolean.TRUE).get());
+	}
+
+	@Test
+	public void sameThreadExecutorReadsDirectly() throws IOException {
+		final InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(DATA), MoreExecutors.sameThreadExecutor(), 1, 2,
+				this.timings);
+
+		// More blocks than the read-ahead limit, which a read ahead on this thread would wait forever to queue
+		assertThat(ByteStreams.toByteArray(in), is(equalTo(DATA)));
+		in.close();
+	}
+
+	@Test
+	public void closeFromAnotherThreadFailsWaitingReader() throws Exception {
+		final CountDownLatch reading = new CountDownLatch(1);
+		final InputStream stalled = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				reading.countDown();
+				throw new IOException("Disconnected");
+			}
+		};
+		final ExecutorService blockedExecutor = Executors.newSingleThreadExecutor();
+		final CountDownLatch release = new CountDownLatch(1);
+		// Keep the read task queued, so the reader waits for a block which never arrives
+		blockedExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					release.await();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		try {
+			final InputStream in = new ReadAheadInputStream(stalled, blockedExecutor, 4, 1, this.timings);
+			final Future<Integer> read = this.executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws IOException {
+					return in.read();
+				}
+			});
+			Thread.sleep(50);
+
+			in.close();
+
+			try {
+				read.get(10, TimeUnit.SECONDS);
+				fail("Expected the read to fail");
+			} catch (final ExecutionException e) {
+				assertThat(e.getCause(), is(instanceOf(IOException.class)));
+			}
+			assertEquals(1, reading.getCount());
+		} finally {
+			release.countDown();
+			blockedExecutor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void timingsAreRecorded() throws IOException {
+		final InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(DATA), this.executor, 3, 2, this.timings);
+		ByteStreams.toByteArray(in);
+		in.close();
+
+		assertThat(this.timings.getReadNanos(), is(greaterThan(0L)));
+		assertThat(this.timings.getReadWaitNanos(), is(greaterThan(0L)));
+	}
+}
@@ -0,0 +1,266 @@
+package com.nhinds.lastpass.impl;
+
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.nhinds.lastpass.impl.StreamingCacheProvider.AccountDataSink;
+
+public class SharedFileCacheProviderTest {
+	private static final byte[] ACCOUNT_DATA = new byte[] { 1, 2, 100, 101 };
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File directory;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+	@Before
+	public void setup() throws IOException {
+		this.directory = this.temporaryFolder.newFolder();
+	}
+
+	@After
+	public void shutdownExecutor() {
+		this.executor.shutdownNow();
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void nullDirectoryThrowsException() throws IOException {
+		new SharedFileCacheProvider(null);
+	}
+
+	@Test
+	public void unknownUserReturnsNull() throws IOException {
+		final SharedFileCacheProvider provider = new SharedFileCacheProvider(this.directory);
+
+		assertNull(provider.getIterations("user"));
+		assertNull(provider.getAccountVersion("user"));
+		assertNull(provider.getAccountData("user"));
+		assertNull(provider.mapAccountData("user"));
+	}
+
+	@Test
+	public void dataStoredByOneInstanceIsSeenByAnother() throws IOException {
+		final SharedFileCacheProvider provider1 = new SharedFileCacheProvider(this.directory);
+		final SharedFileCacheProvider provider2 = new SharedFileCacheProvider(this.directory);
+		assertNull(provider2.getAccountVersion("user"));
+
+		provider1.storeAccountData("user", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+
+		assertEquals(Integer.valueOf(5), provider2.getIterations("user"));
+		assertEquals(Integer.valueOf(7), provider2.getAccountVersion("user"));
+		assertThat(ByteStreams.toByteArray(provider2.getAccountData("user")), is(equalTo(ACCOUNT_DATA)));
+		final ByteBuffer mapped = provider2.mapAccountData("user");
+		final byte[] mappedBytes = new byte[mapped.remaining()];
+		mapped.get(mappedBytes);
+		assertThat(mappedBytes, is(equalTo(ACCOUNT_DATA)));
+	}
+
+	@Test
+	public void newGenerationReplacesPreviousOne() throws IOException {
+		final SharedFileCacheProvider provider1 = new SharedFileCacheProvider(this.directory);
+		final SharedFileCacheProvider provider2 = new SharedFileCacheProvider(this.directory);
+		provider1.storeAccountData("user", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+		assertEquals(Integer.valueOf(7), provider2.getAccountVersion("user"));
+
+		provider1.storeAccountData("user", 6, 8, new ByteArrayInputStream(new byte[] { 9 }));
+
+		assertEquals(Integer.valueOf(6), provider2.getIterations("user"));
+		assertEquals(Integer.valueOf(8), provider2.getAccountVersion("user"));
+		assertThat(ByteStreams.toByteArray(provider2.getAccountData("user")), is(equalTo(new byte[] { 9 })));
+	}
+
+	@Test
+	public void accountDataComesFromTheGenerationWhoseHeaderWasChecked() throws IOException {
+		final SharedFileCacheProvider provider1 = new SharedFileCacheProvider(this.directory);
+		final SharedFileCacheProvider provider2 = new SharedFileCacheProvider(this.directory);
+		provider1.storeAccountData("user", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+		assertEquals(Integer.valueOf(7), provider2.getAccountVersion("user"));
+
+		provider1.storeAccountData("user", 5, 8, new ByteArrayInputStream(new byte[] { 9 }));
+
+		assertThat(ByteStreams.toByteArray(provider2.getAccountData("user")), is(equalTo(ACCOUNT_DATA)));
+		assertEquals(ACCOUNT_DATA.length, provider2.mapAccountData("user").remaining());
+		assertEquals(Integer.valueOf(8), provider2.getAccountVersion("user"));
+		assertThat(ByteStreams.toByteArray(provider2.getAccountData("user")), is(equalTo(new byte[] { 9 })));
+	}
+
+	@Test
+	public void onlyCurrentAndPreviousGenerationsAreKept() throws IOException {
+		final SharedFileCacheProvider provider = new SharedFileCacheProvider(this.directory);
+
+		for (int accountVersion = 1; accountVersion <= 4; accountVersion++) {
+			provider.storeAccountData("user", 5, accountVersion, new ByteArrayInputStream(ACCOUNT_DATA));
+		}
+
+		assertThat(cacheFiles(), arrayWithSize(2));
+		assertEquals(Integer.valueOf(4), provider.getAccountVersion("user"));
+	}
+
+	@Test
+	public void openAccountDataIsNotAffectedByNewGenerations() throws IOException {
+		final SharedFileCacheProvider provider = new SharedFileCacheProvider(this.directory);
+		provider.storeAccountData("user", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+
+		final InputStream snapshot = provider.getAccountData("user");
+		provider.storeAccountData("user", 5, 8, new ByteArrayInputStream(new byte[] { 9 }));
+		provider.storeAccountData("user", 5, 9, new ByteArrayInputStream(new byte[] { 10, 11 }));
+
+		assertThat(ByteStreams.toByteArray(snapshot), is(equalTo(ACCOUNT_DATA)));
+		snapshot.close();
+	}
+
+	@Test
+	public void abortedSinkLeavesCurrentGenerationInPlace() throws IOException {
+		final SharedFileCacheProvider provider = new SharedFileCacheProvider(this.directory);
+		provider.storeAccountData("user", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+
+		final AccountDataSink sink = provider.newAccountDataSink("user", 5, 8);
+		sink.getOutputStream().write(new byte[] { 9 });
+		sink.abort();
+
+		assertEquals(Integer.valueOf(7), provider.getAccountVersion("user"));
+		assertThat(ByteStreams.toByteArray(provider.getAccountData("user")), is(equalTo(ACCOUNT_DATA)));
+		assertThat(cacheFiles(), arrayWithSize(1));
+		assertThat(tempFiles(), arrayWithSize(0));
+	}
+
+	@Test
+	public void sinkWaitsForAnotherSinkForTheSameUser() throws Exception {
+		final SharedFileCacheProvider provider1 = new SharedFileCacheProvider(this.directory);
+		final SharedFileCacheProvider provider2 = new SharedFileCacheProvider(this.directory);
+		final AccountDataSink sink = provider1.newAccountDataSink("user", 5, 7);
+
+		final Future<Integer> waitingSink = this.executor.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws IOException {
+				final AccountDataSink waiting = provider2.newAccountDataSink("user", 5, 7);
+				try {
+					// The first sink has been committed by the time this one is returned
+					return provider2.getAccountVersion("user");
+				} finally {
+					waiting.abort();
+				}
+			}
+		});
+		try {
+			waitingSink.get(200, TimeUnit.MILLISECONDS);
+			fail("Expected the second sink to wait for the first");
+		} catch (final TimeoutException expected) {
+		}
+		sink.getOutputStream().write(ACCOUNT_DATA);
+		sink.commit();
+
+		assertEquals(Integer.valueOf(7), waitingSink.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void sinksForDifferentUsersDoNotWait() throws IOException {
+		final SharedFileCacheProvider provider = new SharedFileCacheProvider(this.directory, 0, TimeUnit.MILLISECONDS);
+		final AccountDataSink sink1 = provider.newAccountDataSink("user1", 5, 7);
+		final AccountDataSink sink2 = provider.newAccountDataSink("user2", 5, 7);
+
+		sink1.commit();
+		sink2.commit();
+
+		assertEquals(Integer.valueOf(7), provider.getAccountVersion("user1"));
+		assertEquals(Integer.valueOf(7), provider.getAccountVersion("user2"));
+	}
+
+	@Test
+	public void sinkTimesOutWhileAnotherProcessHoldsTheLock() throws IOException {
+		final SharedFileCacheProvider provider = new SharedFileCacheProvider(this.directory, 100, TimeUnit.MILLISECONDS);
+		final RandomAccessFile lockFile = new RandomAccessFile(provider.getLockFile("user"), "rw");
+		try {
+			final FileLock lock = lockFile.getChannel().lock();
+			try {
+				provider.newAccountDataSink("user", 5, 7);
+				fail("Expected the sink to time out");
+			} catch (final IOException expected) {
+			}
+			lock.release();
+
+			provider.newAccountDataSink("user", 5, 7).commit();
+		} finally {
+			lockFile.close();
+		}
+		assertEquals(Integer.valueOf(7), provider.getAccountVersion("user"));
+	}
+
+	@Test
+	public void abandonedTempFilesAreDeletedByTheNextPublish() throws IOException {
+		final SharedFileCacheProvider provider = new SharedFileCacheProvider(this.directory);
+		final File abandoned = new File(provider.getLockFile("user").getPath().replaceAll("lock$", "0.cache123.tmp"));
+		Files.write(ACCOUNT_DATA, abandoned);
+
+		provider.storeAccountData("user", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+
+		assertFalse(abandoned.exists());
+	}
+
+	@Test
+	public void corruptGenerationIsIgnored() throws IOException {
+		final SharedFileCacheProvider provider = new SharedFileCacheProvider(this.directory);
+		provider.storeAccountData("user", 5, 7, new ByteArrayInputStream(ACCOUNT_DATA));
+		final File cacheFile = cacheFiles()[0];
+		final byte[] contents = Files.toByteArray(cacheFile);
+		contents[contents.length - 1]++;
+		Files.write(contents, cacheFile);
+
+		final SharedFileCacheProvider newProvider = new SharedFileCacheProvider(this.directory);
+		assertNull(newProvider.getAccountData("user"));
+		assertNull(newProvider.mapAccountData("user"));
+
+		newProvider.storeAccountData("user", 5, 8, new ByteArrayInputStream(ACCOUNT_DATA));
+		assertThat(ByteStreams.toByteArray(newProvider.getAccountData("user")), is(equalTo(ACCOUNT_DATA)));
+		assertTrue(cacheFile.exists());
+	}
+
+	private File[] cacheFiles() {
+		return this.directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(final File dir, final String name) {
+				return name.endsWith(SharedFileCacheProvider.CACHE_FILE_SUFFIX);
+			}
+		});
+	}
+
+	private File[] tempFiles() {
+		return this.directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(final File dir, final String name) {
+				return name.endsWith(CacheFileSink.TEMP_FILE_SUFFIX);
+			}
+		});
+	}
+}
@@ -0,0 +1,89 @@
+package com.nhinds.lastpass.impl;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.isEmptyString;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.nhinds.lastpass.encryption.AES256EncryptionProvider;
+
+public class SyntheticVaultGeneratorTest {
+	private AES256EncryptionProvider encryptionProvider;
+
+	@Before
+	public void setup() {
+		final byte[] key = new byte[32];
+		new Random().nextBytes(key);
+		this.encryptionProvider = new AES256EncryptionProvider(key);
+	}
+
+	private PasswordStoreReader generate(final long seed, final int accounts) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new SyntheticVaultGenerator(seed).generate(out, this.encryptionProvider, AES256EncryptionProvider.Mode.CBC, accounts);
+		return new PasswordStoreReader(new ByteArrayInputStream(out.toByteArray()), this.encryptionProvider);
+	}
+
+	@Test
+	public void generatesRequestedNumberOfAccounts() throws IOException {
+		final PasswordStoreReader reader = generate(1, 1000);
+
+		assertEquals(1000, reader.getAccounts().size());
+		for (long id = 1; id <= 1000; id++) {
+			final AccountData account = reader.getAccounts().get(id);
+			assertThat(account.getName(), not(isEmptyString()));
+			if ("0".equals(account.getSn()))
+				assertThat(account.getPassword(), not(isEmptyString()));
+			else
+				assertThat(account.getExtra(), not(isEmptyString()));
+		}
+	}
+
+	@Test
+	public void generatesEquivalentDomainGroups() throws IOException {
+		final PasswordStoreReader reader = generate(1, 1000);
+
+		assertThat(reader.getDomains().size(), greaterThan(0));
+		for (final String domain : reader.getDomains().keySet()) {
+			assertThat(reader.getDomains().get(domain).size(), greaterThan(1));
+		}
+	}
+
+	@Test
+	public void accountsAreSpreadOverDomains() throws IOException {
+		final PasswordStoreReader reader = generate(1, 1000);
+		final PasswordStoreImpl passwordStore = new PasswordStoreImpl(reader);
+
+		final Set<String> hosts = new HashSet<String>();
+		for (final AccountData account : reader.getAccounts().values()) {
+			hosts.add(HostnameIndex.resolveHost(URI.create(account.getUrl()).getHost()));
+		}
+		assertThat(hosts.size(), greaterThan(20));
+		assertThat(passwordStore.getPasswordsByHostname("www." + SyntheticVaultGenerator.getDomain(0)), not(hasSize(0)));
+	}
+
+	@Test
+	public void sameSeedGeneratesSameVault() throws IOException {
+		final ByteArrayOutputStream first = new ByteArrayOutputStream();
+		final ByteArrayOutputStream second = new ByteArrayOutputStream();
+		new SyntheticVaultGenerator(5).generate(new PasswordStoreWriter(first, this.encryptionProvider,
+				AES256EncryptionProvider.Mode.ECB), 100);
+		new SyntheticVaultGenerator(5).generate(new PasswordStoreWriter(second, this.encryptionProvider,
+				AES256EncryptionProvider.Mode.ECB), 100);
+
+		assertArrayEquals(first.toByteArray(), second.toByteArray());
+	}
+}